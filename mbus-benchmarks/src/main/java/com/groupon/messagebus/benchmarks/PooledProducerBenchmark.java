@@ -0,0 +1,116 @@
+package com.groupon.messagebus.benchmarks;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.groupon.messagebus.api.DestinationType;
+import com.groupon.messagebus.api.HostParams;
+import com.groupon.messagebus.api.Message;
+import com.groupon.messagebus.api.Producer;
+import com.groupon.messagebus.api.ProducerConfig;
+import com.groupon.messagebus.api.exceptions.MessageBusException;
+import com.groupon.messagebus.client.PooledProducer;
+import com.groupon.messagebus.client.ProducerImpl;
+import com.groupon.messagebus.stubbroker.StubBroker;
+
+/**
+ * sendSafe throughput of eight threads sharing one producer: a plain
+ * ProducerImpl (poolSize 1) against a {@link PooledProducer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class PooledProducerBenchmark {
+
+    private static final String SINK_QUEUE = "jms.queue.BenchmarkSink";
+
+    @Param({ "1", "4" })
+    public int poolSize;
+
+    private StubBroker broker;
+    private Producer producer;
+    private Message message;
+
+    @Setup
+    public void setUp() throws IOException, MessageBusException {
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.ERROR);
+
+        broker = new StubBroker();
+        // Nobody consumes the sink queue.
+        broker.setMaxQueueDepth(10000);
+        broker.start();
+
+        ProducerConfig config = new ProducerConfig();
+        config.setBroker(new HostParams("localhost", broker.getPort()));
+        config.setDestinationType(DestinationType.QUEUE);
+        config.setDestinationName(SINK_QUEUE);
+        producer = poolSize == 1 ? new ProducerImpl() : new PooledProducer(
+                poolSize);
+        producer.start(config);
+        message = Message.createBinaryMessage(new byte[256]);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        producer.stop();
+        broker.stop();
+    }
+
+    @Benchmark
+    public void sendSafe() throws MessageBusException {
+        producer.sendSafe(message);
+    }
+}
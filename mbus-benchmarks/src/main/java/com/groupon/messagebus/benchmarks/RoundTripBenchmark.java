@@ -0,0 +1,192 @@
+package com.groupon.messagebus.benchmarks;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.groupon.messagebus.api.ConsumerConfig;
+import com.groupon.messagebus.api.DestinationType;
+import com.groupon.messagebus.api.HostParams;
+import com.groupon.messagebus.api.Message;
+import com.groupon.messagebus.api.ProducerConfig;
+import com.groupon.messagebus.api.ReceiptFuture;
+import com.groupon.messagebus.api.exceptions.MessageBusException;
+import com.groupon.messagebus.client.ConsumerImpl;
+import com.groupon.messagebus.client.ProducerImpl;
+import com.groupon.messagebus.stubbroker.StubBroker;
+
+/**
+ * End to end produce and consume through ProducerImpl/ConsumerImpl against an
+ * in-process {@link StubBroker}, over both transports. Numbers include
+ * the loopback round trip, so compare them with each other rather than with a
+ * real broker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    private static final String SINK_QUEUE = "jms.queue.BenchmarkSink";
+    private static final String ROUND_TRIP_QUEUE = "jms.queue.BenchmarkRoundTrip";
+    private static final int BATCH_SIZE = 100;
+
+    @Param({ "false", "true" })
+    public boolean nio;
+
+    @Param({ "256" })
+    public int payloadSize;
+
+    private StubBroker broker;
+    private ProducerImpl sinkProducer;
+    private ProducerImpl roundTripProducer;
+    private ConsumerImpl consumer;
+    private Message message;
+    private List<Message> batch;
+
+    @Setup
+    public void setUp() throws IOException, MessageBusException,
+            InterruptedException {
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.ERROR);
+
+        broker = new StubBroker();
+        // Nobody consumes the sink queue.
+        broker.setMaxQueueDepth(10000);
+        broker.start();
+        HostParams host = new HostParams("localhost", broker.getPort());
+
+        ConsumerConfig consumerConfig = new ConsumerConfig();
+        consumerConfig.setHostParams(Collections.singleton(host));
+        consumerConfig.setUseDynamicServerList(false);
+        consumerConfig.setDestinationType(DestinationType.QUEUE);
+        consumerConfig.setDestinationName(ROUND_TRIP_QUEUE);
+        consumerConfig.setSubscriptionId("benchmark");
+        consumerConfig.setUseNioTransport(nio);
+        consumer = new ConsumerImpl();
+        consumer.start(consumerConfig);
+        while (!broker.hasSubscriber(ROUND_TRIP_QUEUE)) {
+            Thread.sleep(10);
+        }
+
+        sinkProducer = startProducer(host, SINK_QUEUE);
+        roundTripProducer = startProducer(host, ROUND_TRIP_QUEUE);
+
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        message = Message.createBinaryMessage(payload);
+        batch = new ArrayList<Message>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(message);
+        }
+    }
+
+    private ProducerImpl startProducer(HostParams host, String destination)
+            throws MessageBusException {
+        ProducerConfig config = new ProducerConfig();
+        config.setBroker(host);
+        config.setDestinationType(DestinationType.QUEUE);
+        config.setDestinationName(destination);
+        config.setUseNioTransport(nio);
+        ProducerImpl producer = new ProducerImpl();
+        producer.start(config);
+        return producer;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        sinkProducer.stop();
+        roundTripProducer.stop();
+        consumer.stop();
+        broker.stop();
+    }
+
+    @Benchmark
+    public void send() throws MessageBusException {
+        sinkProducer.send(message);
+    }
+
+    @Benchmark
+    public void sendSafe() throws MessageBusException {
+        sinkProducer.sendSafe(message);
+    }
+
+    @Benchmark
+    public ReceiptFuture sendSafeAsync() throws MessageBusException {
+        return sinkProducer.sendSafeAsync(message);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void sendBatch() throws MessageBusException {
+        sinkProducer.send(batch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void sendSafeBatch() throws MessageBusException {
+        sinkProducer.sendSafe(batch);
+    }
+
+    @Benchmark
+    public Message produceAndConsume() throws MessageBusException {
+        roundTripProducer.send(message);
+        Message received = consumer.receive();
+        consumer.ack();
+        return received;
+    }
+}
@@ -0,0 +1,167 @@
+package com.groupon.messagebus.benchmarks;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.groupon.messagebus.api.BrokerSelectionStrategy;
+import com.groupon.messagebus.api.ConsumerConfig;
+import com.groupon.messagebus.api.DestinationType;
+import com.groupon.messagebus.api.HostParams;
+import com.groupon.messagebus.api.Message;
+import com.groupon.messagebus.api.ProducerConfig;
+import com.groupon.messagebus.api.exceptions.MessageBusException;
+import com.groupon.messagebus.client.ConsumerImpl;
+import com.groupon.messagebus.client.ProducerImpl;
+import com.groupon.messagebus.stubbroker.StubBroker;
+
+/**
+ * Receive and ackSafe latency of one consumer over three in-process
+ * {@link StubBroker}s, one of which delays deliveries and receipts by
+ * slowLatency ms, for each broker selection strategy. Every operation also
+ * sends a message to each broker so that all of them keep a backlog to pick
+ * from. Run in sample mode to compare the tail percentiles; messages left on
+ * the slow broker stay there, where a real cluster would redistribute them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SlowBrokerBenchmark {
+
+    private static final String QUEUE = "jms.queue.BenchmarkSlowBroker";
+    private static final int BROKERS = 3;
+
+    @Param({ "ROUND_ROBIN", "LEAST_OUTSTANDING", "LATENCY_WEIGHTED",
+            "POWER_OF_TWO_CHOICES" })
+    public BrokerSelectionStrategy strategy;
+
+    @Param({ "5" })
+    public long slowLatency;
+
+    private final List<StubBroker> brokers = new ArrayList<StubBroker>();
+    private final List<ProducerImpl> producers = new ArrayList<ProducerImpl>();
+    private ConsumerImpl consumer;
+    private Message message;
+
+    @Setup
+    public void setUp() throws IOException, MessageBusException,
+            InterruptedException {
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.ERROR);
+
+        Set<HostParams> hosts = new LinkedHashSet<HostParams>();
+        for (int i = 0; i < BROKERS; i++) {
+            StubBroker broker = new StubBroker();
+            if (i == 0) {
+                broker.setDeliveryLatency(slowLatency);
+                broker.setReceiptLatency(slowLatency);
+            }
+            broker.start();
+            brokers.add(broker);
+            HostParams host = new HostParams("localhost", broker.getPort());
+            hosts.add(host);
+
+            ProducerConfig config = new ProducerConfig();
+            config.setBroker(host);
+            config.setDestinationType(DestinationType.QUEUE);
+            config.setDestinationName(QUEUE);
+            ProducerImpl producer = new ProducerImpl();
+            producer.start(config);
+            producers.add(producer);
+        }
+
+        ConsumerConfig config = new ConsumerConfig();
+        config.setHostParams(hosts);
+        config.setUseDynamicServerList(false);
+        config.setDestinationType(DestinationType.QUEUE);
+        config.setDestinationName(QUEUE);
+        config.setSubscriptionId("benchmark");
+        config.setPrefetchSize(4);
+        config.setBrokerSelectionStrategy(strategy);
+        consumer = new ConsumerImpl();
+        consumer.start(config);
+        for (StubBroker broker : brokers) {
+            while (!broker.hasSubscriber(QUEUE)) {
+                Thread.sleep(10);
+            }
+        }
+
+        message = Message.createStringMessage("slow broker benchmark");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        consumer.stop();
+        for (ProducerImpl producer : producers) {
+            producer.stop();
+        }
+        for (StubBroker broker : brokers) {
+            broker.stop();
+        }
+        brokers.clear();
+        producers.clear();
+    }
+
+    @Benchmark
+    public Message receiveAndAckSafe() throws MessageBusException {
+        for (ProducerImpl producer : producers) {
+            producer.send(message);
+        }
+        Message received = consumer.receive();
+        consumer.ackSafe();
+        return received;
+    }
+}
@@ -0,0 +1,132 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.groupon.messagebus.api.Message;
+
+/**
+ * Per-message encoding costs outside the STOMP layer: the Thrift + Base64
+ * payload, JSON messages and the ack id. Lives in the client package to reach
+ * the package-private ack id codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({ "256", "8192" })
+    public int payloadSize;
+
+    private Message message;
+    private byte[] thriftBytes;
+    private byte[] rawThriftBytes;
+    private Map<String, Object> jsonPayload;
+    private String ackIdClearText;
+    private String ackId;
+
+    @Setup
+    public void setUp() throws TException, UnsupportedEncodingException {
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        message = Message.createBinaryMessage("message-1", payload);
+        thriftBytes = Utils.getThriftDataAsBytes(message);
+        rawThriftBytes = Utils.getThriftData(message);
+
+        jsonPayload = new HashMap<String, Object>();
+        jsonPayload.put("orderId", 123456789L);
+        jsonPayload.put("status", "SHIPPED");
+        jsonPayload.put("items", new String[] { "a1", "b2", "c3" });
+
+        ackIdClearText = "broker-12.example.com:61613:ID:1a2b3c4d-5e6f-7081-92a3-b4c5d6e7f809:"
+                + "8c3a41f2-9d1e-4b6a-8f3c-2e7d5a9b1c0f";
+        ackId = Utils.encode(ackIdClearText);
+    }
+
+    @Benchmark
+    public byte[] getThriftDataAsBytes() throws TException,
+            UnsupportedEncodingException {
+        return Utils.getThriftDataAsBytes(message);
+    }
+
+    @Benchmark
+    public Message getMessageFromBytes() {
+        return Utils.getMessageFromBytes(thriftBytes);
+    }
+
+    @Benchmark
+    public byte[] getThriftData() throws TException {
+        return Utils.getThriftData(message);
+    }
+
+    @Benchmark
+    public Message getMessageFromThriftBytes() {
+        return Utils.getMessageFromThriftBytes(rawThriftBytes);
+    }
+
+    @Benchmark
+    public Message createJsonMessage() {
+        return Message.createJsonMessage(jsonPayload);
+    }
+
+    @Benchmark
+    public String encodeAckId() {
+        return Utils.encode(ackIdClearText);
+    }
+
+    @Benchmark
+    public String decodeAckId() {
+        return Utils.decode(ackId);
+    }
+}
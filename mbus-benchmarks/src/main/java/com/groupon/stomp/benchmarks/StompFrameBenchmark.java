@@ -0,0 +1,107 @@
+package com.groupon.stomp.benchmarks;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.groupon.messagebus.api.Message;
+import com.groupon.messagebus.client.Utils;
+import com.groupon.stomp.ByteSequence;
+import com.groupon.stomp.StompFrame;
+import com.groupon.stomp.StompWireFormat;
+
+/**
+ * Encoding and decoding of a SEND frame carrying a Thrift/Base64 message, as
+ * ProducerImpl builds it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StompFrameBenchmark {
+
+    @Param({ "256", "8192" })
+    public int payloadSize;
+
+    private StompFrame frame;
+    private ByteSequence marshalled;
+    private StompWireFormat wireFormat;
+
+    @Setup
+    public void setUp() throws IOException, TException {
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("destination", "jms.queue.OrderEvents");
+        headers.put("persistent", "true");
+        headers.put("receipt", "12345");
+        frame = new StompFrame("SEND", headers,
+                Utils.getThriftDataAsBytes(Message.createBinaryMessage(payload)));
+        wireFormat = new StompWireFormat();
+        marshalled = wireFormat.marshal(frame);
+    }
+
+    @Benchmark
+    public String format() {
+        return frame.format();
+    }
+
+    @Benchmark
+    public ByteSequence marshal() throws IOException {
+        return wireFormat.marshal(frame);
+    }
+
+    @Benchmark
+    public Object unmarshal() throws IOException {
+        return wireFormat.unmarshal(marshalled);
+    }
+}
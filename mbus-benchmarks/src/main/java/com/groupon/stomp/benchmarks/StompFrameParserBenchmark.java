@@ -0,0 +1,154 @@
+package com.groupon.stomp.benchmarks;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.groupon.stomp.ByteArrayInputStream;
+import com.groupon.stomp.StompFrame;
+import com.groupon.stomp.StompFrameParser;
+import com.groupon.stomp.StompWireFormat;
+
+/**
+ * Compares the byte-at-a-time DataInput parser in StompWireFormat with the
+ * incremental StompFrameParser on a MESSAGE frame like the broker sends.
+ *
+ * Run with -prof gc to compare allocation per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StompFrameParserBenchmark {
+
+    @Param({ "128", "4096" })
+    public int bodySize;
+
+    @Param({ "false", "true" })
+    public boolean contentLength;
+
+    private byte[] frameBytes;
+    private ByteBuffer heapBuffer;
+    private ByteBuffer directBuffer;
+    private StompWireFormat wireFormat;
+    private StompFrameParser parser;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] body = new byte[bodySize];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("message-id", "ID:1a2b3c4d-5e6f-7081-92a3-b4c5d6e7f809");
+        headers.put("destination", "jms.queue.OrderEvents");
+        headers.put("subscription", "order-consumer");
+        headers.put("connection-id", "8c3a41f2-9d1e-4b6a-8f3c-2e7d5a9b1c0f");
+        headers.put("timestamp", "1380000000000");
+        headers.put("expires", "0");
+        headers.put("priority", "4");
+        if (contentLength) {
+            headers.put("content-length", Integer.toString(bodySize));
+        }
+        StompFrame frame = new StompFrame("MESSAGE", headers, body);
+        byte[] head = frame.format().substring(0,
+                frame.format().length() - bodySize).getBytes("UTF-8");
+
+        frameBytes = new byte[head.length + body.length + 1];
+        System.arraycopy(head, 0, frameBytes, 0, head.length);
+        System.arraycopy(body, 0, frameBytes, head.length, body.length);
+
+        heapBuffer = ByteBuffer.wrap(frameBytes);
+        directBuffer = ByteBuffer.allocateDirect(frameBytes.length);
+        directBuffer.put(frameBytes);
+        wireFormat = new StompWireFormat();
+        parser = new StompFrameParser();
+    }
+
+    @Benchmark
+    public Object legacyDataInput() throws IOException {
+        return wireFormat.unmarshal(new DataInputStream(
+                new ByteArrayInputStream(frameBytes)));
+    }
+
+    @Benchmark
+    public Object parserHeapBuffer() throws IOException {
+        heapBuffer.clear();
+        return parser.parse(heapBuffer);
+    }
+
+    @Benchmark
+    public Object parserDirectBuffer() throws IOException {
+        directBuffer.clear();
+        return parser.parse(directBuffer);
+    }
+
+    /**
+     * Parses and reads the two headers the consumer looks at, so lazily
+     * decoded values are paid for.
+     */
+    @Benchmark
+    public void parserWithHeaderLookups(Blackhole bh) throws IOException {
+        heapBuffer.clear();
+        StompFrame frame = parser.parse(heapBuffer);
+        bh.consume(frame.getHeaders().get("message-id"));
+        bh.consume(frame.getHeaders().get("connection-id"));
+    }
+
+    @Benchmark
+    public void legacyWithHeaderLookups(Blackhole bh) throws IOException {
+        StompFrame frame = (StompFrame) wireFormat.unmarshal(new DataInputStream(
+                new ByteArrayInputStream(frameBytes)));
+        bh.consume(frame.getHeaders().get("message-id"));
+        bh.consume(frame.getHeaders().get("connection-id"));
+    }
+}
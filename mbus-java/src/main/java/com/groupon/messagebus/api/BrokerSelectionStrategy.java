@@ -0,0 +1,60 @@
+package com.groupon.messagebus.api;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * How a consumer picks the broker connection to take the next message from
+ * when several of them have messages fetched. See
+ * {@link ConsumerConfig#setBrokerSelectionStrategy(BrokerSelectionStrategy)}.
+ */
+public enum BrokerSelectionStrategy {
+    /**
+     * Each broker in turn, regardless of its health.
+     */
+    ROUND_ROBIN,
+    /**
+     * The broker with the fewest messages received and not acked or nacked
+     * yet.
+     */
+    LEAST_OUTSTANDING,
+    /**
+     * A random broker, weighted by the inverse of its average fetch and ack
+     * latency. Fetch latency runs from a credit to the next message, so on a
+     * queue that is often empty it also counts the wait for a message to be
+     * published, up to one second.
+     */
+    LATENCY_WEIGHTED,
+    /**
+     * The better of two random brokers, scored by average latency times
+     * outstanding messages.
+     */
+    POWER_OF_TWO_CHOICES;
+}
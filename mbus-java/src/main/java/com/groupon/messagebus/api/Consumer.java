@@ -1,5 +1,7 @@
 package com.groupon.messagebus.api;
 
+import java.util.Collection;
+
 import com.groupon.messagebus.api.exceptions.InvalidConfigException;
 import com.groupon.messagebus.api.exceptions.InvalidStatusException;
 import com.groupon.messagebus.api.exceptions.ReceiveTimeoutException;
@@ -43,6 +45,15 @@ import com.groupon.messagebus.api.Message;
  * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
+/**
+ * Receives messages from the brokers of a destination.
+ *
+ * receive() and acking by ack id or {@link AckHandle} may be called from any
+ * number of threads. ack(), nack() and ackSafe() without arguments act on
+ * "the last received message", which is only well defined across threads
+ * when {@link ConsumerConfig#setThreadSafe(boolean)} is on; then each thread
+ * acks the message it received last.
+ */
 public interface Consumer {
 
     public enum Status{
@@ -186,6 +197,79 @@ public interface Consumer {
      */
     public boolean ackSafe(String ackId, long timeout);
 
+    /**
+     * Ack a batch of messages given their ackIds. The acks for each broker go
+     * out with one flush and the call waits for a single receipt per broker
+     * covering them, instead of one receipt per message.
+     *
+     * @param ackIds AckID fields of the Messages.
+     *
+     * @return true, or false if any ack failed.
+     */
+    public boolean ackSafe(Collection<String> ackIds);
+
+    /**
+     * Same as ackSafe(Collection), waiting up to timeout milliseconds for
+     * each broker's receipt.
+     *
+     * @param ackIds AckID fields of the Messages.
+     *
+     * @return true, or false if any ack failed.
+     */
+    public boolean ackSafe(Collection<String> ackIds, long timeout);
+
+    /**
+     * Ack the message given the ackId contained in Message, without waiting
+     * for the broker. The returned future completes when the broker's
+     * confirmation arrives; if the ack fails or no confirmation comes within
+     * the default timeout, get() throws an ExecutionException caused by an
+     * {@link com.groupon.messagebus.api.exceptions.AckFailedException}.
+     *
+     * @param ackId AckID field in Message.
+     *
+     * @return {@link ReceiptFuture} for the broker's confirmation.
+     */
+    public ReceiptFuture ackSafeAsync(String ackId);
+
+    /**
+     * Same as ackSafeAsync(String), failing the future if no confirmation
+     * arrives within timeout milliseconds.
+     *
+     * @param ackId AckID field in Message.
+     *
+     * @return {@link ReceiptFuture} for the broker's confirmation.
+     */
+    public ReceiptFuture ackSafeAsync(String ackId, long timeout);
+
+    /**
+     * Ack the message given its AckHandle. A handle from this consumer is
+     * acked on the connection the message arrived on, skipping the ack id
+     * decoding done by ack(String).
+     *
+     * @param ackHandle AckHandle field in Message.
+     *
+     * @return true or false if ack failed.
+     */
+    public boolean ack(AckHandle ackHandle);
+
+    /**
+     * Same as ackSafe(String, long), given the message's AckHandle.
+     *
+     * @param ackHandle AckHandle field in Message.
+     *
+     * @return true or false if ack failed.
+     */
+    public boolean ackSafe(AckHandle ackHandle, long timeout);
+
+    /**
+     * Same as ackSafeAsync(String, long), given the message's AckHandle.
+     *
+     * @param ackHandle AckHandle field in Message.
+     *
+     * @return {@link ReceiptFuture} for the broker's confirmation.
+     */
+    public ReceiptFuture ackSafeAsync(AckHandle ackHandle, long timeout);
+
     /**
      * Nack the last received message
      *
@@ -204,9 +288,68 @@ public interface Consumer {
 
     public boolean nack(String msgId);
 
+    /**
+     * Same as nack(String), given the message's AckHandle.
+     *
+     * @param ackHandle AckHandle field in Message.
+     *
+     * @return true or false if nack failed.
+     */
+    public boolean nack(AckHandle ackHandle);
+
     /**
      * Keepalive sends a heart beat to all the servers
      * @return true or false if keepalive failed.
      */
     public boolean keepAlive();
+
+    /**
+     * Starts a transactional batch of acks for the calling thread.
+     *
+     * Until commit() or abort(), every ack and ackSafe from this thread joins
+     * the transaction instead of being applied right away, and ackSafe does
+     * not wait for a receipt. The broker applies all of them on commit, with
+     * one journal sync instead of one per message. nack() is not part of the
+     * batch.
+     *
+     * @throws com.groupon.messagebus.api.exceptions.InvalidStatusException
+     *             if the consumer is not running, auto acks, or this thread
+     *             already has a batch open.
+     */
+    public void beginBatch();
+
+    /**
+     * Commits the calling thread's batch of acks on every broker it touched
+     * and waits for each to confirm. Brokers commit independently, so a
+     * failure on one does not undo the others.
+     *
+     * @return true if every broker confirmed the commit. Acks of a failed
+     *         commit are dropped and their messages redelivered.
+     */
+    public boolean commit();
+
+    /**
+     * Same as commit(), waiting up to timeout ms for each broker.
+     */
+    public boolean commit(long timeout);
+
+    /**
+     * Drops the calling thread's batch of acks. Its messages stay unacked and
+     * are redelivered.
+     */
+    public void abort();
+
+    /**
+     * Switch this consumer to push-based delivery. Messages are handed to the
+     * listener on a pool of worker threads sized by
+     * {@link ConsumerConfig#getThreadPoolSize()}; at most that many messages
+     * are in flight at once, the rest wait in the broker connections.
+     *
+     * The listener may be set before or after start(). Passing null stops
+     * delivery to the previous listener. receive() should not be mixed with
+     * a listener on the same consumer.
+     *
+     * @param listener {@link MessageListener} to deliver messages to.
+     */
+    public void setMessageListener(MessageListener listener);
 }
@@ -72,8 +72,38 @@ public class ConsumerConfig {
     private long receiveSleepInterval = 1;
     // Consumer maintains internal thread pool. This property sets the size of
     // the thread pool. Default value is 4. We recommend setting this less than
-    // half the number of cores in the box
+    // half the number of cores in the box. It is also the number of messages
+    // a MessageListener processes concurrently.
     private int threadPoolSize = 4;
+    // Talk to brokers over a non-blocking SocketChannel instead of a Socket.
+    private boolean useNioTransport = false;
+    // Feed all broker connections into one bounded queue that receive()
+    // takes from, instead of polling each connection in turn.
+    private boolean useSharedReceiveQueue = false;
+    private int sharedReceiveQueueCapacity = 1024;
+    // Messages each broker connection may hold fetched ahead of receive().
+    // Credit goes back to the broker in batches of half this window.
+    private int prefetchSize = 1;
+    // Acks per broker connection written together, and the longest time in
+    // ms an ack waits for its batch to fill up.
+    private int ackBatchSize = 1;
+    private long ackBatchInterval = 100;
+    // ack(), nack() and ackSafe() act on the calling thread's last message.
+    private boolean threadSafe = false;
+    // Run broker connections and listener workers on virtual threads.
+    private boolean useVirtualThreads = false;
+    private BrokerSelectionStrategy brokerSelectionStrategy = BrokerSelectionStrategy.ROUND_ROBIN;
+    // A MessageListener gets each broker's messages in order on a thread of
+    // its own, instead of from the threadPoolSize workers.
+    private boolean orderedListenerLanes = false;
+    // Longest time in ms the connection to a broker that left the server
+    // list stays open for its prefetched messages to be received and acked.
+    private long drainTimeout = 30000;
+    // Backoff between attempts to reopen a failed broker connection, and the
+    // failed attempts in a row after which it is considered down.
+    private long reconnectBackoffMin = 100;
+    private long reconnectBackoffMax = 30000;
+    private int circuitBreakerThreshold = 3;
 
     /******
      * 
@@ -187,12 +217,226 @@ public class ConsumerConfig {
         this.dynamicServerListFetchURL = dynamicServerListFetchURL;
     }
 
+    /**
+     * @deprecated receive() now waits to be signalled by the broker
+     *             connections instead of sleeping between polls.
+     */
+    @Deprecated
     public long getReceiveSleepInterval() {
         return receiveSleepInterval;
     }
 
+    /**
+     * @deprecated receive() now waits to be signalled by the broker
+     *             connections instead of sleeping between polls.
+     */
+    @Deprecated
     public void setReceiveSleepInterval(long receiveSleepInterval) {
         this.receiveSleepInterval = receiveSleepInterval;
     }
 
+    public boolean isUseNioTransport() {
+        return useNioTransport;
+    }
+
+    public void setUseNioTransport(boolean useNioTransport) {
+        this.useNioTransport = useNioTransport;
+    }
+
+    public boolean isUseSharedReceiveQueue() {
+        return useSharedReceiveQueue;
+    }
+
+    public void setUseSharedReceiveQueue(boolean useSharedReceiveQueue) {
+        this.useSharedReceiveQueue = useSharedReceiveQueue;
+    }
+
+    public int getPrefetchSize() {
+        return prefetchSize;
+    }
+
+    /**
+     * Number of messages each broker connection fetches ahead, sent to the
+     * broker as the prefetch-size header on SUBSCRIBE. Default is 1, which
+     * credits every message as it is received.
+     * 
+     * @param prefetchSize
+     */
+    public void setPrefetchSize(int prefetchSize) {
+        this.prefetchSize = prefetchSize;
+    }
+
+    public int getAckBatchSize() {
+        return ackBatchSize;
+    }
+
+    /**
+     * Number of acks each broker connection collects before writing them
+     * with one flush. Collected acks are also written every ackBatchInterval
+     * ms and when the consumer stops. Acks still collected when a connection
+     * dies are lost and the broker redelivers those messages. Default is 1,
+     * every ack is written at once.
+     * 
+     * @param ackBatchSize
+     */
+    public void setAckBatchSize(int ackBatchSize) {
+        this.ackBatchSize = ackBatchSize;
+    }
+
+    public long getAckBatchInterval() {
+        return ackBatchInterval;
+    }
+
+    public void setAckBatchInterval(long ackBatchInterval) {
+        this.ackBatchInterval = ackBatchInterval;
+    }
+
+    public int getSharedReceiveQueueCapacity() {
+        return sharedReceiveQueueCapacity;
+    }
+
+    /**
+     * Total number of fetched messages the shared receive queue holds. Each
+     * broker connection gets an equal share of it, but never less than
+     * prefetchSize.
+     * 
+     * @param sharedReceiveQueueCapacity
+     */
+    public void setSharedReceiveQueueCapacity(int sharedReceiveQueueCapacity) {
+        this.sharedReceiveQueueCapacity = sharedReceiveQueueCapacity;
+    }
+
+    public boolean isThreadSafe() {
+        return threadSafe;
+    }
+
+    /**
+     * Lets several threads share one Consumer. When true, ack(), nack() and
+     * ackSafe() without an ack id act on the last message received by the
+     * calling thread, and a MessageListener may call them from onMessage().
+     * When false (the default) they act on the last message received by any
+     * thread. Receiving, and acking by ack id or AckHandle, are safe from
+     * any thread in both modes.
+     * 
+     * @param threadSafe
+     */
+    public void setThreadSafe(boolean threadSafe) {
+        this.threadSafe = threadSafe;
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * Runs the thread reading each broker connection, and the MessageListener
+     * workers, on virtual threads instead of platform threads, so a JVM can
+     * hold thousands of subscriptions. Needs Java 21 or later; on older JVMs
+     * platform threads are used. Default is false.
+     * 
+     * @param useVirtualThreads
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    public BrokerSelectionStrategy getBrokerSelectionStrategy() {
+        return brokerSelectionStrategy;
+    }
+
+    /**
+     * How receive() picks the broker to take the next message from when
+     * several have messages fetched. The strategies other than ROUND_ROBIN
+     * steer receives away from brokers that are slow to deliver or to
+     * confirm acks, or that have many messages unacked. Not used with
+     * useSharedReceiveQueue, which hands out messages in arrival order.
+     * Default is ROUND_ROBIN.
+     * 
+     * @param brokerSelectionStrategy
+     */
+    public void setBrokerSelectionStrategy(
+            BrokerSelectionStrategy brokerSelectionStrategy) {
+        this.brokerSelectionStrategy = brokerSelectionStrategy;
+    }
+
+    public boolean isOrderedListenerLanes() {
+        return orderedListenerLanes;
+    }
+
+    /**
+     * Deliver to a MessageListener on one lane per broker connection, a
+     * thread passing that broker's messages to onMessage() one at a time in
+     * the order they arrived. Messages sent with the same partition key
+     * through a ClusterProducer all come from one broker, so they are
+     * processed in order, while different brokers are processed in parallel.
+     * threadPoolSize is not used for listener workers then. Can not be
+     * combined with useSharedReceiveQueue. Default is false.
+     * 
+     * @param orderedListenerLanes
+     */
+    public void setOrderedListenerLanes(boolean orderedListenerLanes) {
+        this.orderedListenerLanes = orderedListenerLanes;
+    }
+
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * When a broker leaves the dynamic server list, its connection stops
+     * asking for messages but stays open until the messages it already
+     * fetched have been received and acked, so they are not redelivered.
+     * This is the longest time in ms it waits for that before closing, 0 to
+     * close at once. Default is 30000.
+     * 
+     * @param drainTimeout
+     */
+    public void setDrainTimeout(long drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
+    public long getReconnectBackoffMin() {
+        return reconnectBackoffMin;
+    }
+
+    /**
+     * Delay in ms before the first attempt to reopen a failed broker
+     * connection. Each further failed attempt doubles it, with jitter, up to
+     * reconnectBackoffMax. Default is 100.
+     * 
+     * @param reconnectBackoffMin
+     */
+    public void setReconnectBackoffMin(long reconnectBackoffMin) {
+        this.reconnectBackoffMin = reconnectBackoffMin;
+    }
+
+    public long getReconnectBackoffMax() {
+        return reconnectBackoffMax;
+    }
+
+    /**
+     * Longest delay in ms between attempts to reopen a failed broker
+     * connection. Default is 30000.
+     * 
+     * @param reconnectBackoffMax
+     */
+    public void setReconnectBackoffMax(long reconnectBackoffMax) {
+        this.reconnectBackoffMax = reconnectBackoffMax;
+    }
+
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * Failed connection attempts in a row after which a broker connection is
+     * considered down. From then on its fetcher waits out the backoff
+     * delay between attempts instead of retrying right away. Default is 3.
+     * 
+     * @param circuitBreakerThreshold
+     */
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
 }
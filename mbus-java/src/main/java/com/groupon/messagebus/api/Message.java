@@ -30,6 +30,7 @@ package com.groupon.messagebus.api;
  * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
+import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.security.MessageDigest;
@@ -46,11 +47,20 @@ import com.groupon.messagebus.thrift.api.MessagePayloadType;
 
 public class Message {
 
+    /**
+     * Header carrying the partition key of a message, see setPartitionKey.
+     */
+    public static final String PARTITION_KEY_HEADER = "partition_key";
+
     private final MessageInternal messageInternal;
     // Used to encode host address and message-id. Only used by consumer.
     private String ackId;
+    private AckHandle ackHandle;
 
     public String getAckId() {
+        if (ackId == null && ackHandle != null) {
+            ackId = ackHandle.getAckId();
+        }
         return ackId;
     }
 
@@ -58,6 +68,48 @@ public class Message {
         this.ackId = ackId;
     }
 
+    /**
+     * @return handle to ack this message with on the Consumer that received
+     *         it, null if the message was not received from a broker.
+     */
+    public AckHandle getAckHandle() {
+        return ackHandle;
+    }
+
+    public void setAckHandle(AckHandle ackHandle) {
+        this.ackHandle = ackHandle;
+    }
+
+    /**
+     * @return the partition key of this message, null if it has none.
+     */
+    public String getPartitionKey() {
+        Map<String, String> properties = getMessageProperties();
+        return properties == null ? null : properties.get(PARTITION_KEY_HEADER);
+    }
+
+    /**
+     * Messages sent with the same partition key through a ClusterProducer
+     * go to the same broker, so a consumer processing each broker on its
+     * own lane sees them in the order they were sent. The key is kept in the
+     * message properties, so received messages carry it too, and is sent as
+     * the PARTITION_KEY_HEADER header.
+     */
+    public void setPartitionKey(String partitionKey) {
+        Map<String, String> properties = getMessageProperties();
+        if (partitionKey == null) {
+            if (properties != null) {
+                properties.remove(PARTITION_KEY_HEADER);
+            }
+            return;
+        }
+        if (properties == null) {
+            properties = new HashMap<String, String>();
+            setMessageProperties(properties);
+        }
+        properties.put(PARTITION_KEY_HEADER, partitionKey);
+    }
+
     private Logger log = Logger.getLogger(Message.class);
     
     private static String getSaltedMessageId(){
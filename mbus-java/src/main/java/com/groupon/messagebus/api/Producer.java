@@ -30,6 +30,7 @@ package com.groupon.messagebus.api;
  * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
+import java.util.List;
 import java.util.Map;
 
 import com.groupon.messagebus.api.exceptions.BrokerConnectionCloseFailedException;
@@ -149,6 +150,124 @@ public interface Producer {
    * @param headers : A Map<String, String> for headers to send along with the messages.
    */
   public void sendSafe(Message message, String destinationName, Map<String, String> headers) throws TooManyConnectionRetryAttemptsException, SendFailedException;
+
+  /**
+   * Pipelined Safe Send.
+   * <p/>
+   * Sends the message with a unique receipt id and returns without waiting for
+   * the broker. The returned {@link ReceiptFuture} completes when the receipt
+   * arrives, so many confirmed sends can be in flight on one connection.
+   * Blocks only while ProducerConfig.maxInflightSafeSends receipts are
+   * outstanding.
+   * <p/>
+   * The message is not resent if the receipt never arrives, the caller decides
+   * whether to retry.
+   *
+   * @param message : A {@link Message} to send.
+   */
+  public ReceiptFuture sendSafeAsync(Message message) throws TooManyConnectionRetryAttemptsException, SendFailedException;
+
+  /**
+   * Pipelined Safe Send.
+   *
+   * @see #sendSafeAsync(Message)
+   * @param message : A {@link Message} to send.
+   * @param headers : A Map<String, String> for headers to send along with the messages.
+   */
+  public ReceiptFuture sendSafeAsync(Message message, Map<String, String> headers) throws TooManyConnectionRetryAttemptsException, SendFailedException;
+
+  /**
+   * Pipelined Safe Send along with queue/topic name
+   *
+   * @see #sendSafeAsync(Message)
+   * @param message : A {@link Message} to send.
+   * @param headers : A Map<String, String> for headers to send along with the messages.
+   */
+  public ReceiptFuture sendSafeAsync(Message message, String destinationName, Map<String, String> headers) throws TooManyConnectionRetryAttemptsException, SendFailedException;
   
   
+  /**
+   * Fire and forget batch send.
+   * <p/>
+   * Sends all messages to the configured destination as back to back frames
+   * with a single flush, instead of one flush per message. Suited for bursts
+   * of many messages.
+   *
+   * @param messages : the {@link Message}s to send, in order.
+   */
+  public void send(List<Message> messages) throws TooManyConnectionRetryAttemptsException, SendFailedException;
+
+  /**
+   * Fire and forget batch send.
+   *
+   * @see #send(List)
+   * @param messages : the {@link Message}s to send, in order.
+   * @param headers : A Map<String, String> for headers to send along with every message.
+   */
+  public void send(List<Message> messages, Map<String, String> headers) throws TooManyConnectionRetryAttemptsException, SendFailedException;
+
+  /**
+   * Fire and forget batch send along with queue/topic name
+   *
+   * @see #send(List)
+   * @param messages : the {@link Message}s to send, in order.
+   * @param headers : A Map<String, String> for headers to send along with every message.
+   */
+  public void send(List<Message> messages, String destinationName, Map<String, String> headers) throws TooManyConnectionRetryAttemptsException, SendFailedException;
+
+  /**
+   * Safe batch send with Receipts.
+   * <p/>
+   * Sends all messages with a single flush and returns once the broker has
+   * acknowledged every one of them. If a receipt fails the whole batch is
+   * retried, so some messages may be delivered twice.
+   *
+   * @param messages : the {@link Message}s to send, in order.
+   */
+  public void sendSafe(List<Message> messages) throws TooManyConnectionRetryAttemptsException, SendFailedException;
+
+  /**
+   * Safe batch send with Receipts.
+   *
+   * @see #sendSafe(List)
+   * @param messages : the {@link Message}s to send, in order.
+   * @param headers : A Map<String, String> for headers to send along with every message.
+   */
+  public void sendSafe(List<Message> messages, Map<String, String> headers) throws TooManyConnectionRetryAttemptsException, SendFailedException;
+
+  /**
+   * Safe batch send with Receipts along with queue/topic name
+   *
+   * @see #sendSafe(List)
+   * @param messages : the {@link Message}s to send, in order.
+   * @param headers : A Map<String, String> for headers to send along with every message.
+   */
+  public void sendSafe(List<Message> messages, String destinationName, Map<String, String> headers) throws TooManyConnectionRetryAttemptsException, SendFailedException;
+
+  /**
+   * Starts a transactional batch for the calling thread.
+   * <p/>
+   * Until commit() or abort(), every send from this thread carries the
+   * transaction id and the broker holds the messages back. On commit the
+   * broker delivers and persists the whole batch at once, with one journal
+   * sync instead of one per persistent message.
+   * <p/>
+   * Sends inside a batch are not retried: the broker drops the transaction
+   * with its connection, so after a failed send commit() fails and the
+   * whole batch has to be sent again.
+   */
+  public void beginBatch() throws TooManyConnectionRetryAttemptsException, SendFailedException;
+
+  /**
+   * Commits the calling thread's batch and waits for the broker to confirm it.
+   *
+   * @throws SendFailedException if the broker did not confirm the commit.
+   */
+  public void commit() throws SendFailedException;
+
+  /**
+   * Drops the calling thread's batch. None of its messages are delivered.
+   */
+  public void abort();
+
 }
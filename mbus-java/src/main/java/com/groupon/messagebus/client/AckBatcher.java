@@ -0,0 +1,86 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the acks of one broker connection so they can be written as one
+ * run of ACK frames with a single flush. Used by StompServerFetcher when
+ * ConsumerConfig.ackBatchSize is greater than one.
+ */
+class AckBatcher {
+
+    static class Batch {
+        final List<String> messageIds;
+        final List<String> connectionIds;
+
+        Batch(List<String> aMessageIds, List<String> aConnectionIds) {
+            messageIds = aMessageIds;
+            connectionIds = aConnectionIds;
+        }
+    }
+
+    private final int batchSize;
+    private List<String> messageIds;
+    private List<String> connectionIds;
+
+    AckBatcher(int aBatchSize) {
+        batchSize = aBatchSize;
+        messageIds = new ArrayList<String>(batchSize);
+        connectionIds = new ArrayList<String>(batchSize);
+    }
+
+    /**
+     * @return true once the batch is full and should be flushed.
+     */
+    synchronized boolean add(String messageId, String connectionId) {
+        messageIds.add(messageId);
+        connectionIds.add(connectionId);
+        return messageIds.size() >= batchSize;
+    }
+
+    /**
+     * Hands over the pending acks and starts a new batch.
+     * 
+     * @return the pending acks, or null if there are none.
+     */
+    synchronized Batch drain() {
+        if (messageIds.isEmpty()) {
+            return null;
+        }
+        Batch batch = new Batch(messageIds, connectionIds);
+        messageIds = new ArrayList<String>(batchSize);
+        connectionIds = new ArrayList<String>(batchSize);
+        return batch;
+    }
+}
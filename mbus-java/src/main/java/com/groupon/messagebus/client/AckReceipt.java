@@ -0,0 +1,103 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import com.groupon.messagebus.api.exceptions.AckFailedException;
+import com.groupon.messagebus.util.HashedWheelTimer;
+import com.groupon.stomp.AbstractReceipt;
+
+/**
+ * Future for an ack sent with a receipt request. Completed exactly once: by
+ * the fetcher thread when the RECEIPT or ERROR arrives, by the timeout, or
+ * by the connection closing. A failed ack surfaces as an ExecutionException
+ * caused by an {@link AckFailedException}.
+ */
+class AckReceipt extends AbstractReceipt {
+
+    private final AckReceiptRegistry registry;
+    private volatile HashedWheelTimer.Timeout timeout;
+
+    AckReceipt(String aReceiptId, AckReceiptRegistry aRegistry) {
+        super(aReceiptId);
+        registry = aRegistry;
+    }
+
+    /**
+     * @return a receipt that has already failed, for acks that could not be
+     *         sent at all.
+     */
+    static AckReceipt failed(String receiptId, AckFailedException cause) {
+        AckReceipt receipt = new AckReceipt(receiptId, null);
+        receipt.fail(cause);
+        return receipt;
+    }
+
+    /**
+     * @return a receipt that has already completed, for acks confirmed some
+     *         other way.
+     */
+    static AckReceipt completed(String receiptId) {
+        AckReceipt receipt = new AckReceipt(receiptId, null);
+        receipt.complete();
+        return receipt;
+    }
+
+    void setTimeout(HashedWheelTimer.Timeout aTimeout) {
+        timeout = aTimeout;
+        if (isDone()) {
+            aTimeout.cancel();
+        }
+    }
+
+    boolean complete() {
+        return finish(null, false);
+    }
+
+    boolean fail(AckFailedException cause) {
+        return finish(cause, false);
+    }
+
+    @Override
+    protected void onFinish() {
+        HashedWheelTimer.Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+        }
+        if (registry != null) {
+            registry.remove(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ack receipt:" + getReceiptId();
+    }
+}
@@ -0,0 +1,145 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.groupon.messagebus.api.exceptions.AckFailedException;
+import com.groupon.messagebus.util.HashedWheelTimer;
+import com.groupon.stomp.Stomp;
+import com.groupon.stomp.StompFrame;
+
+/**
+ * Receipts a broker connection is waiting for, by receipt id. The fetcher
+ * thread completes them as RECEIPT and ERROR frames come in; timeouts are
+ * driven by one timer wheel shared by all consumers, so nothing blocks per
+ * pending ack and a receipt that never comes does not stay registered.
+ */
+class AckReceiptRegistry {
+
+    private static final HashedWheelTimer TIMER = new HashedWheelTimer(
+            "mbus-ack-receipt-timer", 10, 512);
+    // How long a receipt nobody has registered for yet is kept around.
+    private static final long PARKED_RECEIPT_LIFETIME = 10000;
+
+    private Logger log = Logger.getLogger(AckReceiptRegistry.class);
+    private final ConcurrentHashMap<String, AckReceipt> pending = new ConcurrentHashMap<String, AckReceipt>();
+    // Receipts read before their ack registered, e.g. a late one for an ack
+    // that already timed out.
+    private final ConcurrentHashMap<String, StompFrame> parked = new ConcurrentHashMap<String, StompFrame>();
+
+    /**
+     * Registers a receipt id before its ack is written. An ack for a message
+     * that already has one pending shares the existing receipt.
+     * 
+     * @param timeout
+     *            in ms after which the receipt fails, 0 for never.
+     */
+    AckReceipt register(String receiptId, final long timeout) {
+        final AckReceipt receipt = new AckReceipt(receiptId, this);
+        AckReceipt existing = pending.putIfAbsent(receiptId, receipt);
+        if (existing != null) {
+            return existing;
+        }
+        StompFrame early = parked.remove(receiptId);
+        if (early != null) {
+            resolve(receipt, early);
+            return receipt;
+        }
+        if (timeout > 0) {
+            receipt.setTimeout(TIMER.newTimeout(new Runnable() {
+                public void run() {
+                    receipt.fail(new AckFailedException(
+                            "Ack timed out. Failed to receive RECEIPT from server in "
+                                    + timeout + "ms."));
+                }
+            }, timeout, TimeUnit.MILLISECONDS));
+        }
+        return receipt;
+    }
+
+    /**
+     * Completes the receipt a RECEIPT or ERROR frame answers.
+     * 
+     * @return true if an ack was waiting for it.
+     */
+    boolean dispatch(final String receiptId, final StompFrame frame) {
+        AckReceipt receipt = pending.get(receiptId);
+        if (receipt == null) {
+            parked.put(receiptId, frame);
+            TIMER.newTimeout(new Runnable() {
+                public void run() {
+                    parked.remove(receiptId, frame);
+                }
+            }, PARKED_RECEIPT_LIFETIME, TimeUnit.MILLISECONDS);
+            // The ack may have registered meanwhile; whoever removes the
+            // parked frame resolves it.
+            receipt = pending.get(receiptId);
+            if (receipt == null || !parked.remove(receiptId, frame)) {
+                return false;
+            }
+        }
+        resolve(receipt, frame);
+        return true;
+    }
+
+    void remove(AckReceipt receipt) {
+        pending.remove(receipt.getReceiptId(), receipt);
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Fails everything still waiting, when the connection goes away.
+     */
+    void failAll(String reason) {
+        for (Map.Entry<String, AckReceipt> entry : pending.entrySet()) {
+            entry.getValue().fail(new AckFailedException(reason));
+        }
+    }
+
+    private void resolve(AckReceipt receipt, StompFrame frame) {
+        if (Stomp.Responses.RECEIPT.equals(frame.getAction())) {
+            receipt.complete();
+        } else {
+            log.debug("Ack " + receipt.getReceiptId() + " failed: "
+                    + frame.getBody());
+            receipt.fail(new AckFailedException("Failed to receive RECEIPT: "
+                    + frame.getBody()));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import com.groupon.messagebus.api.AckHandle;
+
+/**
+ * AckHandle for a message received from a broker. Holds the consumer and
+ * fetcher the message came in on, so an ack from the receiving consumer goes
+ * straight to that connection. The ack id string, Base64 of
+ * "host:port:message-id:connection-id", is only built when asked for.
+ */
+final class BrokerAckHandle implements AckHandle {
+
+    private static final int ACK_ID_FIELDS = 4;
+
+    // null for a handle parsed from an ack id string
+    private final ConsumerImpl consumer;
+    private final StompServerFetcher server;
+    final String host;
+    final int port;
+    final String messageId;
+    final String connectionId;
+
+    private volatile String ackId;
+
+    BrokerAckHandle(ConsumerImpl aConsumer, StompServerFetcher aServer,
+            String aMessageId, String aConnectionId) {
+        this(aConsumer, aServer, aServer.getHost(), aServer.getPort(),
+                aMessageId, aConnectionId);
+    }
+
+    private BrokerAckHandle(ConsumerImpl aConsumer,
+            StompServerFetcher aServer, String aHost, int aPort,
+            String aMessageId, String aConnectionId) {
+        consumer = aConsumer;
+        server = aServer;
+        host = aHost;
+        port = aPort;
+        messageId = aMessageId;
+        connectionId = aConnectionId;
+    }
+
+    /**
+     * @return the handle for an ack id string, or null if it is not in the
+     *         "host:port:message-id:connection-id" form.
+     */
+    static BrokerAckHandle parse(String ackId) {
+        if (ackId == null) {
+            return null;
+        }
+        String clearText = Utils.decode(ackId);
+        String[] fields = new String[ACK_ID_FIELDS];
+        int start = 0;
+        for (int i = 0; i < ACK_ID_FIELDS; i++) {
+            int end = i == ACK_ID_FIELDS - 1 ? clearText.length() : clearText
+                    .indexOf(':', start);
+            if (end <= start) {
+                return null;
+            }
+            fields[i] = clearText.substring(start, end);
+            start = end + 1;
+        }
+        if (fields[ACK_ID_FIELDS - 1].indexOf(':') >= 0) {
+            return null;
+        }
+
+        int port;
+        try {
+            port = Integer.parseInt(fields[1]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        BrokerAckHandle handle = new BrokerAckHandle(null, null, fields[0], port,
+                fields[2], fields[3]);
+        handle.ackId = ackId;
+        return handle;
+    }
+
+    /**
+     * @return the fetcher the message was received on if it belongs to
+     *         aConsumer and is still running, otherwise null.
+     */
+    StompServerFetcher getLiveServer(ConsumerImpl aConsumer) {
+        return consumer == aConsumer && server != null && server.isRunning() ? server
+                : null;
+    }
+
+    @Override
+    public String getAckId() {
+        String id = ackId;
+        if (id == null) {
+            StringBuilder clearText = new StringBuilder(host);
+            clearText.append(':').append(port).append(':').append(messageId)
+                    .append(':').append(connectionId);
+            id = Utils.encode(clearText.toString());
+            ackId = id;
+        }
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port + ":" + messageId;
+    }
+}
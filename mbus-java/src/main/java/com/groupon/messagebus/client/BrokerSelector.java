@@ -0,0 +1,138 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.List;
+import java.util.Random;
+
+import com.groupon.messagebus.api.BrokerSelectionStrategy;
+
+/**
+ * Picks the fetcher a consumer receives its next message from, among the
+ * ones with messages fetched, by their {@link BrokerStats}. Round robin has
+ * no selector, the consumer sweeps its fetchers in turn as before.
+ */
+abstract class BrokerSelector {
+
+    // Added to latencies so that brokers without samples yet compare sanely.
+    private static final double MIN_LATENCY = 1;
+
+    protected final Random random = new Random();
+
+    /**
+     * @return the selector for strategy, null for ROUND_ROBIN.
+     */
+    static BrokerSelector forStrategy(BrokerSelectionStrategy strategy) {
+        switch (strategy) {
+        case LEAST_OUTSTANDING:
+            return new LeastOutstanding();
+        case LATENCY_WEIGHTED:
+            return new LatencyWeighted();
+        case POWER_OF_TWO_CHOICES:
+            return new PowerOfTwoChoices();
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @param candidates
+     *            not empty.
+     */
+    abstract StompServerFetcher select(List<StompServerFetcher> candidates);
+
+    static double latency(StompServerFetcher fetcher) {
+        return fetcher.getStats().getLatency() + MIN_LATENCY;
+    }
+
+    static class LeastOutstanding extends BrokerSelector {
+        @Override
+        StompServerFetcher select(List<StompServerFetcher> candidates) {
+            // Start at a random one so ties are spread out.
+            int start = random.nextInt(candidates.size());
+            StompServerFetcher best = null;
+            int bestOutstanding = Integer.MAX_VALUE;
+            for (int i = 0; i < candidates.size(); i++) {
+                StompServerFetcher fetcher = candidates.get((start + i)
+                        % candidates.size());
+                int outstanding = fetcher.getStats().getOutstanding();
+                if (outstanding < bestOutstanding) {
+                    best = fetcher;
+                    bestOutstanding = outstanding;
+                }
+            }
+            return best;
+        }
+    }
+
+    static class LatencyWeighted extends BrokerSelector {
+        @Override
+        StompServerFetcher select(List<StompServerFetcher> candidates) {
+            double[] weights = new double[candidates.size()];
+            double total = 0;
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = 1 / latency(candidates.get(i));
+                total += weights[i];
+            }
+            double pick = random.nextDouble() * total;
+            for (int i = 0; i < weights.length; i++) {
+                pick -= weights[i];
+                if (pick < 0) {
+                    return candidates.get(i);
+                }
+            }
+            return candidates.get(weights.length - 1);
+        }
+    }
+
+    static class PowerOfTwoChoices extends BrokerSelector {
+        @Override
+        StompServerFetcher select(List<StompServerFetcher> candidates) {
+            int size = candidates.size();
+            if (size == 1) {
+                return candidates.get(0);
+            }
+            int first = random.nextInt(size);
+            int second = random.nextInt(size - 1);
+            if (second >= first) {
+                second++;
+            }
+            StompServerFetcher a = candidates.get(first);
+            StompServerFetcher b = candidates.get(second);
+            return score(a) <= score(b) ? a : b;
+        }
+
+        private static double score(StompServerFetcher fetcher) {
+            return latency(fetcher)
+                    * (fetcher.getStats().getOutstanding() + 1);
+        }
+    }
+}
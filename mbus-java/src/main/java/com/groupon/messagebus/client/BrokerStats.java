@@ -0,0 +1,108 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Health of one broker connection as a consumer sees it, for the broker
+ * selection strategies: moving averages of fetch and ack latency, and the
+ * messages handed out and not acked or nacked yet.
+ */
+class BrokerStats {
+
+    // Weight of the newest sample in the moving averages.
+    private static final double ALPHA = 0.2;
+    // A broker answering a credit later than this most likely had nothing
+    // queued rather than being slow, so its sample is capped.
+    static final long MAX_FETCH_SAMPLE = 1000;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private double fetchLatency = 0;
+    private double ackLatency = 0;
+    private boolean fetchSampled = false;
+    private boolean ackSampled = false;
+
+    void onHandOut() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * @param count
+     *            messages acked or nacked. Acks of messages handed out before
+     *            a reconnect are not counted twice.
+     */
+    void onAcked(int count) {
+        while (true) {
+            int current = outstanding.get();
+            int next = Math.max(0, current - count);
+            if (current == next || outstanding.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The broker redelivers what was outstanding on a connection that
+     * closed.
+     */
+    void onReconnect() {
+        outstanding.set(0);
+    }
+
+    /**
+     * @param ms
+     *            from asking the broker for messages, by SUBSCRIBE or credit,
+     *            to the first MESSAGE after it. Messages the prefetch window
+     *            let the broker send ahead are not sampled.
+     */
+    synchronized void recordFetch(long ms) {
+        ms = Math.min(ms, MAX_FETCH_SAMPLE);
+        fetchLatency = fetchSampled ? fetchLatency + ALPHA * (ms - fetchLatency) : ms;
+        fetchSampled = true;
+    }
+
+    synchronized void recordAck(long ms) {
+        ackLatency = ackSampled ? ackLatency + ALPHA * (ms - ackLatency) : ms;
+        ackSampled = true;
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the average fetch plus ack latency in ms.
+     */
+    synchronized double getLatency() {
+        return fetchLatency + ackLatency;
+    }
+}
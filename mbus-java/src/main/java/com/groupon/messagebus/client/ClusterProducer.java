@@ -0,0 +1,632 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.groupon.messagebus.api.ClusterSendStrategy;
+import com.groupon.messagebus.api.HostParams;
+import com.groupon.messagebus.api.Message;
+import com.groupon.messagebus.api.Producer;
+import com.groupon.messagebus.api.ProducerConfig;
+import com.groupon.messagebus.api.ReceiptFuture;
+import com.groupon.messagebus.api.exceptions.BrokerConnectionCloseFailedException;
+import com.groupon.messagebus.api.exceptions.InvalidConfigException;
+import com.groupon.messagebus.api.exceptions.InvalidStatusException;
+import com.groupon.messagebus.api.exceptions.SendFailedException;
+import com.groupon.messagebus.api.exceptions.TooManyConnectionRetryAttemptsException;
+import com.groupon.messagebus.util.BrokerDiscoveryService;
+import com.groupon.messagebus.util.ConsistentHashRing;
+
+/**
+ * A {@link Producer} over every broker of the cluster, so publish throughput
+ * grows with the broker fleet instead of pinning to ProducerConfig.broker.
+ * <p/>
+ * The broker list comes from ProducerConfig.dynamicServerListFetchURL,
+ * through the BrokerDiscoveryService consumers share, or is given to the
+ * constructor. There is one connection per broker, and each send picks one
+ * by ProducerConfig.clusterSendStrategy. The list is read again when
+ * discovery reports a change and every connectionLifetime ms: new brokers
+ * are connected, and connections to brokers that left are closed once no
+ * send is using them.
+ */
+public class ClusterProducer extends DelegatingProducer {
+
+    /**
+     * Header carrying the partition key of a send, used by the
+     * PARTITION_KEY strategy; the same as Message.PARTITION_KEY_HEADER.
+     */
+    public static final String PARTITION_KEY_HEADER = Message.PARTITION_KEY_HEADER;
+
+    private Logger log = Logger.getLogger(ClusterProducer.class);
+
+    private static final Comparator<Member> BY_BROKER = new Comparator<Member>() {
+        public int compare(Member a, Member b) {
+            return a.broker.toString().compareTo(b.broker.toString());
+        }
+    };
+
+    // Set when the broker list is given instead of fetched.
+    private final Set<HostParams> staticBrokers;
+    private ProducerConfig config;
+    private volatile Status status = Status.INITIALIZED;
+    // Connected brokers sorted by host:port, so producers with the same list
+    // map partition keys alike. Replaced as a whole on membership changes.
+    private volatile Member[] members = new Member[0];
+    // Members on a consistent hash ring, for PARTITION_KEY. Replaced just
+    // before members.
+    private volatile ConsistentHashRing<Member> ring = new ConsistentHashRing<Member>(
+            new ArrayList<Member>());
+    private final AtomicInteger next = new AtomicInteger();
+    private final Random random = new Random();
+    private Timer refreshTimer;
+    private BrokerDiscoveryService.Subscription discovery;
+    // Member the calling thread's open batch runs on.
+    private final ThreadLocal<Member> batchMember = new ThreadLocal<Member>();
+
+    /**
+     * Fetches the broker list from ProducerConfig.dynamicServerListFetchURL.
+     */
+    public ClusterProducer() {
+        this.staticBrokers = null;
+    }
+
+    /**
+     * @param brokers
+     *            the brokers to spread sends over. ProducerConfig.broker and
+     *            dynamicServerListFetchURL are ignored.
+     */
+    public ClusterProducer(Collection<HostParams> brokers) {
+        if (brokers.isEmpty()) {
+            throw new IllegalArgumentException("Broker list is empty");
+        }
+        this.staticBrokers = new LinkedHashSet<HostParams>(brokers);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the brokers sends currently go to.
+     */
+    public List<HostParams> getBrokers() {
+        List<HostParams> result = new ArrayList<HostParams>();
+        for (Member member : members) {
+            result.add(member.broker);
+        }
+        return result;
+    }
+
+    public void start(ProducerConfig aConfig) throws InvalidConfigException,
+            TooManyConnectionRetryAttemptsException, InvalidStatusException {
+        if (status != Status.INITIALIZED) {
+            throw new InvalidStatusException(
+                    "Producer cannot be started. Status=" + status);
+        }
+        if (aConfig.getClusterSendStrategy() == null) {
+            throw new InvalidConfigException(
+                    "Cluster send strategy can not be null");
+        }
+        if (staticBrokers == null
+                && aConfig.getDynamicServerListFetchURL() == null) {
+            throw new InvalidConfigException(
+                    "Either a broker list or dynamicServerListFetchURL must be given");
+        }
+        config = aConfig;
+        new ProducerImpl().validateConfigs(config);
+
+        Set<HostParams> brokers;
+        try {
+            brokers = fetchHostList();
+        } catch (IOException e) {
+            throw new TooManyConnectionRetryAttemptsException(e);
+        }
+        status = Status.RUNNING;
+        updateMembers(brokers);
+        if (members.length == 0) {
+            status = Status.STOPPED;
+            throw new TooManyConnectionRetryAttemptsException(
+                    "Can not connect to any of the brokers " + brokers);
+        }
+
+        refreshTimer = new Timer("cluster-producer-refresh", true);
+        refreshTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                refreshServers();
+            }
+        }, config.getConnectionLifetime(), config.getConnectionLifetime());
+        if (staticBrokers == null) {
+            discovery = BrokerDiscoveryService.getInstance().subscribe(
+                    config.getDynamicServerListFetchURL(),
+                    config.getConnectionLifetime(),
+                    new BrokerDiscoveryService.Listener() {
+                        public void onBrokersChanged(String url,
+                                Set<HostParams> brokers,
+                                Set<HostParams> added, Set<HostParams> removed) {
+                            refreshLater();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Refreshes on the refresh thread, off the discovery thread.
+     */
+    private void refreshLater() {
+        try {
+            refreshTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    refreshServers();
+                }
+            }, 0);
+        } catch (RuntimeException e) {
+            log.debug("Not refreshing, producer stopped", e);
+        }
+    }
+
+    /**
+     * Refreshes the connection to every broker.
+     */
+    public void refreshConnection()
+            throws TooManyConnectionRetryAttemptsException {
+        if (status != Status.RUNNING) {
+            log.warn("This producer is not running, skip refreshing connection.");
+            return;
+        }
+        for (Member member : members) {
+            member.producer.refreshConnection();
+        }
+    }
+
+    /**
+     * Reads the broker list again, connects to new brokers and retires
+     * the connections to brokers no longer listed. Brokers that could not be
+     * connected are tried again on the next refresh.
+     */
+    public void refreshServers() {
+        if (status != Status.RUNNING || staticBrokers != null
+                && members.length == staticBrokers.size()) {
+            return;
+        }
+        try {
+            updateMembers(fetchHostList());
+        } catch (Exception e) {
+            log.warn(
+                    "Exception when trying to get server list. Aborting refresh servers.",
+                    e);
+        }
+    }
+
+    /**
+     * @return the given broker list, or the last good list of
+     *         dynamicServerListFetchURL, kept up to date by the shared
+     *         BrokerDiscoveryService.
+     */
+    public Set<HostParams> fetchHostList() throws IOException {
+        if (staticBrokers != null) {
+            return staticBrokers;
+        }
+        return BrokerDiscoveryService.getInstance().getBrokers(
+                config.getDynamicServerListFetchURL());
+    }
+
+    public void stop() throws BrokerConnectionCloseFailedException,
+            InvalidStatusException {
+        switch (status) {
+        case RUNNING:
+            break;
+        case STOPPED:
+            log.info("Producer is already stopped, nothing to do.");
+            return;
+        case INITIALIZED:
+            throw new InvalidStatusException(
+                    "Producer cannot be stopped. Status=" + status);
+        }
+        synchronized (this) {
+            status = Status.STOPPED;
+            if (refreshTimer != null) {
+                refreshTimer.cancel();
+            }
+            if (discovery != null) {
+                discovery.cancel();
+            }
+            for (Member member : members) {
+                member.retired = true;
+                retire(member);
+            }
+            members = new Member[0];
+        }
+    }
+
+    ReceiptFuture dispatch(SendMode mode, List<Message> messages,
+            boolean batch, String destinationName, Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        if (isPartitioned()) {
+            Member pinned = batchMember.get();
+            if (pinned != null) {
+                checkOwner(pinned, messages, headers);
+            } else if (batch && messages.size() > 1) {
+                Collection<List<Message>> parts = splitByOwner(messages,
+                        headers);
+                if (parts.size() > 1) {
+                    // Each broker gets its own keys' messages, in order.
+                    for (List<Message> part : parts) {
+                        route(mode, part, true, destinationName, headers);
+                    }
+                    return null;
+                }
+            }
+        }
+        return route(mode, messages, batch, destinationName, headers);
+    }
+
+    private ReceiptFuture route(SendMode mode, List<Message> messages,
+            boolean batch, String destinationName, Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        Member member = acquire(partitionKey(messages, headers));
+        try {
+            return sendTo(member.producer, mode, messages, batch,
+                    destinationName, headers);
+        } finally {
+            release(member);
+        }
+    }
+
+    /**
+     * Pins the calling thread to one broker until commit() or abort(), since
+     * a transaction lives on a single connection.
+     */
+    public void beginBatch() throws TooManyConnectionRetryAttemptsException,
+            SendFailedException {
+        beginBatch(null);
+    }
+
+    /**
+     * Like beginBatch(), but pins the calling thread to the broker owning
+     * partitionKey under the PARTITION_KEY strategy. Keyed sends inside the
+     * batch must hash onto that broker too, else they fail with
+     * SendFailedException rather than break their key's order.
+     */
+    public void beginBatch(String partitionKey)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        if (batchMember.get() != null) {
+            throw new InvalidStatusException(
+                    "A batch is already open on this thread.");
+        }
+        Member member = acquire(partitionKey);
+        boolean begun = false;
+        try {
+            member.producer.beginBatch();
+            begun = true;
+        } finally {
+            if (!begun) {
+                release(member);
+            }
+        }
+        batchMember.set(member);
+    }
+
+    public void commit() throws SendFailedException {
+        Member member = endBatch();
+        try {
+            member.producer.commit();
+        } finally {
+            release(member);
+        }
+    }
+
+    public void abort() {
+        Member member = endBatch();
+        try {
+            member.producer.abort();
+        } finally {
+            release(member);
+        }
+    }
+
+    private Member endBatch() {
+        Member member = batchMember.get();
+        if (member == null) {
+            throw new InvalidStatusException("No batch is open on this thread.");
+        }
+        batchMember.remove();
+        return member;
+    }
+
+    /**
+     * @return the member of the calling thread's batch if it has one, else
+     *         the one the strategy picks.
+     */
+    private Member acquire(String key) throws SendFailedException {
+        Member pinned = batchMember.get();
+        if (pinned != null) {
+            pinned.users.incrementAndGet();
+            return pinned;
+        }
+        while (true) {
+            if (status != Status.RUNNING) {
+                throw new InvalidStatusException(
+                        "This producer is not running and cannot publish. Status="
+                                + status);
+            }
+            Member[] current = members;
+            if (current.length == 0) {
+                throw new SendFailedException("No broker is connected");
+            }
+            Member member = select(current, key);
+            member.users.incrementAndGet();
+            if (!member.retired) {
+                return member;
+            }
+            // Its broker left the list while we picked it.
+            release(member);
+        }
+    }
+
+    /**
+     * @return the message's partition key, else the one in headers.
+     */
+    private static String partitionKey(Message message,
+            Map<String, String> headers) {
+        String key = message.getPartitionKey();
+        if (key == null && headers != null) {
+            key = headers.get(PARTITION_KEY_HEADER);
+        }
+        return key;
+    }
+
+    /**
+     * A batch goes to a single broker, the one of its first message's key;
+     * dispatch() splits batches whose keys hash onto several brokers.
+     */
+    private static String partitionKey(List<Message> messages,
+            Map<String, String> headers) {
+        if (messages.isEmpty()) {
+            return headers == null ? null : headers.get(PARTITION_KEY_HEADER);
+        }
+        return partitionKey(messages.get(0), headers);
+    }
+
+    private boolean isPartitioned() {
+        return config.getClusterSendStrategy() == ClusterSendStrategy.PARTITION_KEY;
+    }
+
+    /**
+     * @return the messages grouped by the broker owning their key, in order;
+     *         unkeyed messages form one group that goes round robin.
+     */
+    private Collection<List<Message>> splitByOwner(List<Message> messages,
+            Map<String, String> headers) {
+        Map<Member, List<Message>> parts = new LinkedHashMap<Member, List<Message>>();
+        for (Message message : messages) {
+            String key = partitionKey(message, headers);
+            Member owner = key == null ? null : ring.get(key);
+            List<Message> part = parts.get(owner);
+            if (part == null) {
+                part = new ArrayList<Message>();
+                parts.put(owner, part);
+            }
+            part.add(message);
+        }
+        return parts.values();
+    }
+
+    /**
+     * A batch lives on its pinned broker, so a keyed send owned by another
+     * one would reorder its key.
+     */
+    private void checkOwner(Member pinned, List<Message> messages,
+            Map<String, String> headers) throws SendFailedException {
+        for (Message message : messages) {
+            String key = partitionKey(message, headers);
+            Member owner = key == null ? null : ring.get(key);
+            if (owner != null && owner != pinned) {
+                throw new SendFailedException("Partition key " + key
+                        + " belongs to " + owner + ", not to the batch's broker "
+                        + pinned + "; begin the batch with beginBatch(key).");
+            }
+        }
+    }
+
+    private Member select(Member[] current, String key) {
+        switch (config.getClusterSendStrategy()) {
+        case PARTITION_KEY:
+            Member owner = key == null ? null : ring.get(key);
+            if (owner != null) {
+                // A keyed send waits for its broker rather than reorder.
+                return owner;
+            }
+            return nextConnected(current);
+        case LEAST_INFLIGHT:
+            return leastInflight(current);
+        default:
+            return nextConnected(current);
+        }
+    }
+
+    /**
+     * @return the next member round robin, skipping those whose connection
+     *         is down unless all of them are.
+     */
+    private Member nextConnected(Member[] current) {
+        Member member = null;
+        for (int i = 0; i < current.length; i++) {
+            member = current[(next.getAndIncrement() & Integer.MAX_VALUE)
+                    % current.length];
+            if (member.producer.isConnected()) {
+                return member;
+            }
+        }
+        return member;
+    }
+
+    private Member leastInflight(Member[] current) {
+        // Start at a random one so ties are spread out.
+        int start = random.nextInt(current.length);
+        Member best = null;
+        int bestInflight = Integer.MAX_VALUE;
+        for (int i = 0; i < current.length; i++) {
+            Member member = current[(start + i) % current.length];
+            if (!member.producer.isConnected()) {
+                continue;
+            }
+            int inflight = member.users.get()
+                    + member.producer.getPendingReceiptCount();
+            if (inflight < bestInflight) {
+                best = member;
+                bestInflight = inflight;
+            }
+        }
+        return best != null ? best : current[start];
+    }
+
+    private void release(Member member) {
+        if (member.users.decrementAndGet() == 0 && member.retired) {
+            retireLater(member);
+        }
+    }
+
+    /**
+     * Closes the member on the refresh thread, so the sender that let go of
+     * it last does not wait for its receipts to drain.
+     */
+    private void retireLater(final Member member) {
+        try {
+            refreshTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    retire(member);
+                }
+            }, 0);
+        } catch (RuntimeException e) {
+            // Not started, or stopped and the timer with it.
+            retire(member);
+        }
+    }
+
+    /**
+     * Connects to the brokers in the list that have no member yet and
+     * retires the members of brokers no longer in it.
+     */
+    private synchronized void updateMembers(Set<HostParams> brokers) {
+        if (status != Status.RUNNING) {
+            return;
+        }
+        List<Member> kept = new ArrayList<Member>();
+        List<Member> removed = new ArrayList<Member>();
+        Set<HostParams> known = new LinkedHashSet<HostParams>();
+        for (Member member : members) {
+            if (brokers.contains(member.broker)) {
+                kept.add(member);
+                known.add(member.broker);
+            } else {
+                removed.add(member);
+            }
+        }
+        for (HostParams broker : brokers) {
+            if (known.contains(broker)) {
+                continue;
+            }
+            ProducerConfig memberConfig = new ProducerConfig(config);
+            memberConfig.setBroker(broker);
+            ProducerImpl producer = new ProducerImpl();
+            try {
+                producer.start(memberConfig);
+                kept.add(new Member(broker, producer));
+                log.debug("Started producing to " + broker);
+            } catch (Exception e) {
+                log.error("Failed to connect to " + broker
+                        + ", trying again on the next refresh", e);
+            }
+        }
+        Member[] updated = kept.toArray(new Member[kept.size()]);
+        Arrays.sort(updated, BY_BROKER);
+        ring = new ConsistentHashRing<Member>(kept);
+        members = updated;
+        for (Member member : removed) {
+            log.debug("Stopping producing to " + member.broker);
+            member.retired = true;
+            if (member.users.get() == 0) {
+                retire(member);
+            }
+        }
+    }
+
+    private void retire(Member member) {
+        if (!member.stopped.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            member.producer.stop();
+        } catch (Exception e) {
+            log.warn("Error closing connection to " + member.broker, e);
+        }
+    }
+
+    private static class Member {
+        final HostParams broker;
+        final ProducerImpl producer;
+        // Sends running on this member right now.
+        final AtomicInteger users = new AtomicInteger();
+        volatile boolean retired;
+        final AtomicBoolean stopped = new AtomicBoolean();
+
+        Member(HostParams broker, ProducerImpl producer) {
+            this.broker = broker;
+            this.producer = producer;
+        }
+
+        // Names the member's points on the ring.
+        @Override
+        public String toString() {
+            return broker.toString();
+        }
+    }
+}
@@ -6,26 +6,33 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.StringTokenizer;
-import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.log4j.Logger;
 import com.groupon.messagebus.api.Consumer;
+import com.groupon.messagebus.api.AckHandle;
 import com.groupon.messagebus.api.ConsumerAckType;
 import com.groupon.messagebus.api.ConsumerConfig;
 import com.groupon.messagebus.api.DestinationType;
@@ -39,7 +46,11 @@ import com.groupon.messagebus.api.exceptions.KeepAliveFailedException;
 import com.groupon.messagebus.api.exceptions.NackFailedException;
 import com.groupon.messagebus.api.exceptions.ReceiveTimeoutException;
 import com.groupon.messagebus.api.Message;
+import com.groupon.messagebus.api.MessageListener;
+import com.groupon.messagebus.api.ReceiptFuture;
+import com.groupon.messagebus.util.BrokerDiscoveryService;
 import com.groupon.messagebus.util.DynamicServerListGetter;
+import com.groupon.messagebus.util.ThreadFactories;
 import com.groupon.stomp.StompFrame;
 
 /**
@@ -48,6 +59,10 @@ import com.groupon.stomp.StompFrame;
  * class round robins between these threads to access next message. In a way its
  * a load balancer for these threads.
  * 
+ * Fetcher threads signal every message they cache, so a blocking receive()
+ * waits for a signal instead of sleeping between polls, and a
+ * {@link MessageListener} gets messages pushed to it on a bounded worker pool.
+ * 
  * Copyright (c) 2013, Groupon, Inc.
  * All rights reserved.
  *
@@ -81,26 +96,73 @@ import com.groupon.stomp.StompFrame;
 public class ConsumerImpl implements Consumer {
 
     private Logger log = Logger.getLogger(ConsumerImpl.class);
-    private Timer refreshServerListTimer = new Timer();
-
-    private List<StompServerFetcher> serverList = Collections
-            .synchronizedList(new ArrayList<StompServerFetcher>());
-    private Map<HostParams, List<StompServerFetcher>> currentServers = new HashMap<HostParams, List<StompServerFetcher>>();
-    private StompServerFetcher lastSentServer = null;
-    private int lastContactedServerIdx = -1;
+    // Run this consumer's ack flushes and drain checks, and apart from them
+    // its server list refreshes, which can spend a while connecting and
+    // backing off. Started with the consumer and shut down with it.
+    private ScheduledExecutorService scheduler;
+    private ScheduledExecutorService refresher;
+    private ScheduledFuture<?> refreshServerListTask;
+    private BrokerDiscoveryService.Subscription discovery;
+    // Serializes refreshServers() between the timer and discovery pushes.
+    private final Object refreshLock = new Object();
+    // Creates the thread reading each broker connection.
+    private ThreadFactory fetcherThreadFactory;
+
+    // Copy on write, so receive() can sweep the servers without locking while
+    // the refresh timer adds and removes brokers.
+    private final List<StompServerFetcher> serverList = new CopyOnWriteArrayList<StompServerFetcher>();
+    private final Map<HostParams, List<StompServerFetcher>> currentServers = new ConcurrentHashMap<HostParams, List<StompServerFetcher>>();
+    // Fetchers of brokers that left the list, by the time they are closed
+    // at the latest. They stay in serverList until then.
+    private final Map<StompServerFetcher, Long> drainingServers = new ConcurrentHashMap<StompServerFetcher, Long>();
+    // Brokers that left the list, until they are listed again. Acks for
+    // their messages never open a new connection to them.
+    private final Set<HostParams> removedHosts = Collections
+            .newSetFromMap(new ConcurrentHashMap<HostParams, Boolean>());
+    // Guarded by drainingServers.
+    private ScheduledFuture<?> drainCheckTask;
+    private static final long DRAIN_CHECK_INTERVAL = 100;
+    private static final StompServerFetcher[] NO_SERVERS = new StompServerFetcher[0];
+    // The message ack(), nack() and ackSafe() act on. Kept per calling
+    // thread when ConsumerConfig.threadSafe is on.
+    private volatile Received lastReceived = null;
+    private ThreadLocal<Received> threadLastReceived;
+    // The calling thread's open batch of acks.
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<Transaction>();
+    private volatile int lastContactedServerIdx = -1;
 
     private ConsumerConfig config;
     private static final String TOPIC_NAME_PREFIX = "jms.topic.";
     private static final String QUEUE_NAME_PREFIX = "jms.queue.";
     private static final long ACKSAFE_TIMEOUT = 1000;
+    // Upper bound on a single wait for a fetcher signal. Only a safety net,
+    // every cached message signals.
+    private static final long MAX_ARRIVAL_WAIT = 1000;
     private Status status;
 
+    private final Object arrivalLock = new Object();
+    private long arrivals = 0;
+    private final Runnable arrivalSignal = new Runnable() {
+        public void run() {
+            onArrival();
+        }
+    };
+
+    private final Object dispatchLock = new Object();
+    private MessageListener messageListener;
+    private volatile Dispatch listenerDispatch;
+
+    // Set when ConsumerConfig.useSharedReceiveQueue is on.
+    private HandOffQueue handOffQueue;
+    // Set unless ConsumerConfig.brokerSelectionStrategy is ROUND_ROBIN.
+    private BrokerSelector brokerSelector;
+    // Writes out batched acks, set when ConsumerConfig.ackBatchSize > 1.
+    private ScheduledFuture<?> ackFlushTask;
+
     public Status getStatus() {
         return status;
     }
 
-    ExecutorService executor;
-
     public ConsumerImpl() {
         this.status = Status.INITIALIZED;
     }
@@ -123,6 +185,16 @@ public class ConsumerImpl implements Consumer {
 
         validateConfigs(config);
 
+        if (config.isThreadSafe()) {
+            threadLastReceived = new ThreadLocal<Received>();
+        }
+        fetcherThreadFactory = ThreadFactories.newThreadFactory(
+                "mbus-fetcher-", config.isUseVirtualThreads(), false);
+        scheduler = Executors.newSingleThreadScheduledExecutor(ThreadFactories
+                .newThreadFactory("mbus-consumer-scheduler-", false));
+        refresher = Executors.newSingleThreadScheduledExecutor(ThreadFactories
+                .newThreadFactory("mbus-consumer-refresh-", false));
+
         Set<HostParams> hostsList = null;
                 
         //If useDynamicServerList and url is null, generate it.
@@ -158,17 +230,35 @@ public class ConsumerImpl implements Consumer {
                 return false;
             }
 
-            refreshServerListTimer.schedule(
+            // The timer retries brokers that failed to connect, changes to
+            // the list are pushed as soon as discovery sees them.
+            refreshServerListTask = refresher.scheduleWithFixedDelay(
                     new RefreshServerListTimerTask(this),
                     config.getConnectionLifetime(),
-                    config.getConnectionLifetime());
+                    config.getConnectionLifetime(), TimeUnit.MILLISECONDS);
+            discovery = BrokerDiscoveryService.getInstance().subscribe(
+                    config.getDynamicServerListFetchURL(),
+                    config.getConnectionLifetime(),
+                    new BrokerDiscoveryService.Listener() {
+                        public void onBrokersChanged(String url,
+                                Set<HostParams> brokers,
+                                Set<HostParams> added, Set<HostParams> removed) {
+                            refresher.execute(new RefreshServerListTimerTask(
+                                    ConsumerImpl.this));
+                        }
+                    });
 
         } else {
             hostsList = config.getHostParams();
         }
 
-        executor = Executors
-                .newFixedThreadPool(hostsList.size() > 0 ? hostsList.size() : 1);
+        if (config.isUseSharedReceiveQueue()) {
+            handOffQueue = new HandOffQueue(
+                    config.getSharedReceiveQueueCapacity(),
+                    config.getPrefetchSize());
+        }
+        brokerSelector = BrokerSelector.forStrategy(config
+                .getBrokerSelectionStrategy());
 
         for (HostParams host : hostsList) {
             try {
@@ -180,7 +270,17 @@ public class ConsumerImpl implements Consumer {
             }
         }
 
+        if (config.getAckBatchSize() > 1) {
+            ackFlushTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flushAcks();
+                }
+            }, config.getAckBatchInterval(), config.getAckBatchInterval(),
+                    TimeUnit.MILLISECONDS);
+        }
+
         this.status = Status.RUNNING;
+        startListener();
         return true;
     }
 
@@ -197,16 +297,39 @@ public class ConsumerImpl implements Consumer {
             throw new InvalidStatusException(
                     "Consumer cannot be stopped. Status=" + this.status);
         }
+        if (ackFlushTask != null) {
+            ackFlushTask.cancel(false);
+        }
+        // closing a fetcher writes its batched acks
         for (StompServerFetcher client : serverList) {
             client.close();
         }
-        if (executor != null)
-            executor.shutdownNow();
+        stopListener();
         serverList.clear();
         currentServers.clear();
-        refreshServerListTimer.cancel();
+        removedHosts.clear();
+        if (refreshServerListTask != null) {
+            refreshServerListTask.cancel(false);
+        }
+        if (discovery != null) {
+            discovery.cancel();
+        }
+        synchronized (drainingServers) {
+            // the draining fetchers were closed with serverList
+            drainingServers.clear();
+            if (drainCheckTask != null) {
+                drainCheckTask.cancel(false);
+                drainCheckTask = null;
+            }
+        }
+        refresher.shutdown();
+        scheduler.shutdown();
         log.debug("Consumer " + this.toString() + " stopped successfully");
         this.status = Status.STOPPED;
+        // wake up blocked receivers so they can see the new status
+        synchronized (arrivalLock) {
+            arrivalLock.notifyAll();
+        }
     }
 
     @Override
@@ -221,13 +344,19 @@ public class ConsumerImpl implements Consumer {
             return false;
         }
 
-        if (lastSentServer != null) {
+        Received received = getLastReceived();
+        if (received != null) {
             try {
-                lastSentServer.ack();
-                lastSentServer = null;
+                Transaction tx = transaction.get();
+                if (tx != null) {
+                    tx.ack(received);
+                } else {
+                    received.ack();
+                }
+                setLastReceived(null);
                 return true;
             } catch (AckFailedException e) {
-                log.error("Ack failed to server " + lastSentServer, e);
+                log.error("Ack failed to server " + received.server, e);
                 return false;
             }
         }
@@ -235,6 +364,16 @@ public class ConsumerImpl implements Consumer {
     }
 
     public boolean ack(String ackId) {
+        BrokerAckHandle handle = BrokerAckHandle.parse(ackId);
+        if (handle == null) {
+            log.error("Ack failed to ackId " + ackId + ", wrong ack id format.");
+            return false;
+        }
+        return ack(handle);
+    }
+
+    @Override
+    public boolean ack(AckHandle ackHandle) {
         if (config.getAckType() == ConsumerAckType.AUTO_CLIENT_ACK) {
             log.warn("This consumer has auto ack type. No need to explicitly ack.");
             return false;
@@ -245,44 +384,28 @@ public class ConsumerImpl implements Consumer {
             return false;
         }
 
+        BrokerAckHandle handle = toBrokerAckHandle(ackHandle);
+        if (handle == null) {
+            return false;
+        }
+
+        // We should send ack from one connection only.
         try {
-            String clearText = Utils.decode(ackId);
-
-            StringTokenizer st = new StringTokenizer(clearText, ":");
-            if (st.countTokens() != 4)
-                throw new AckFailedException(new Exception(
-                        "Wrong ack id format."));
-            String hostname = st.nextToken();
-            int port = Integer.parseInt(st.nextToken());
-            String messageId = st.nextToken();
-            String connectionId = st.nextToken();
-
-            HostParams hostInfo = new HostParams(hostname, port);
-            List<StompServerFetcher> connections = currentServers.get(hostInfo);
-            if (connections == null || connections.size() == 0) {
-                connections = new ArrayList<StompServerFetcher>();
-                StompServerFetcher server = new StompServerFetcher(hostname,
-                        port, config);
-                connections.add(server);
-                currentServers.put(hostInfo, connections);
-                serverList.add(server);
-            }
-
-            // We should send ack from one connection only.
-            try {
-                connections.get(0).ack(messageId, connectionId);
-                // nullifies lastSentServer so default ack() won't double-ack
-                // this message
-                lastSentServer = null;
-                return true;
-            } catch (AckFailedException e) {
-                log.error("Ack failed to messageId " + messageId, e);
+            Transaction tx = transaction.get();
+            if (tx != null) {
+                tx.ack(getAckServer(handle), handle.messageId,
+                        handle.connectionId);
+            } else {
+                getAckServer(handle).ack(handle.messageId, handle.connectionId);
             }
+            // clears the last received message so default ack() won't
+            // double-ack it
+            setLastReceived(null);
+            return true;
         } catch (AckFailedException e) {
-            log.error("Ack failed to ackId " + ackId, e);
+            log.error("Ack failed to messageId " + handle.messageId, e);
             return false;
         }
-        return false;
     }
 
     @Override
@@ -304,30 +427,32 @@ public class ConsumerImpl implements Consumer {
             return null;
         }
 
-        Callable<Message> task = new Callable<Message>() {
-            public Message call() {
-                return receiveImpl(true);
+        Message message = receiveImpl(true, System.currentTimeMillis()
+                + timeout);
+        if (message == null && this.status == Status.RUNNING) {
+            if (Thread.interrupted()) {
+                InterruptedException ix = new InterruptedException();
+                log.error("Receive request interrupted", ix);
+                throw new ReceiveTimeoutException(ix);
             }
-        };
-
-        Future<Message> future = executor.submit(task);
-        try {
-
-            return future.get(timeout, TimeUnit.MILLISECONDS);
-
-        } catch (TimeoutException tx) {
-            log.debug("Receive request timed out", tx);
-            throw new ReceiveTimeoutException(tx);
-        } catch (InterruptedException ix) {
-            log.error(ix.getMessage(), ix);
-            throw new ReceiveTimeoutException(ix);
-        } catch (ExecutionException ex) {
-            log.error(ex.getMessage(), ex);
-            throw new ReceiveTimeoutException(ex);
-        } finally {
-            future.cancel(true);
+            log.debug("Receive request timed out after " + timeout + " ms");
+            throw new ReceiveTimeoutException("Receive request timed out after "
+                    + timeout + " ms");
         }
+        return message;
+    }
 
+    @Override
+    public synchronized void setMessageListener(MessageListener listener) {
+        if (this.status == Status.STOPPED) {
+            throw new InvalidStatusException(
+                    "Consumer is stopped, can not set a message listener.");
+        }
+        stopListener();
+        messageListener = listener;
+        if (this.status == Status.RUNNING) {
+            startListener();
+        }
     }
 
     @Override
@@ -336,13 +461,14 @@ public class ConsumerImpl implements Consumer {
             log.warn("This consumer is not running, can not nack.");
             return false;
         }
-        if (lastSentServer != null) {
+        Received received = getLastReceived();
+        if (received != null) {
             try {
-                lastSentServer.nack();
-                lastSentServer = null;
+                received.nack();
+                setLastReceived(null);
                 return true;
             } catch (NackFailedException e) {
-                log.error("Nack failed to server " + lastSentServer, e);
+                log.error("Nack failed to server " + received.server, e);
                 return false;
             }
         }
@@ -351,47 +477,40 @@ public class ConsumerImpl implements Consumer {
 
     @Override
     public boolean nack(String ackId) {
+        BrokerAckHandle handle = BrokerAckHandle.parse(ackId);
+        if (handle == null) {
+            log.error("nack failed to nackId " + ackId + ", wrong nack id format.");
+            return false;
+        }
+        return nack(handle);
+    }
+
+    @Override
+    public boolean nack(AckHandle ackHandle) {
         if (this.status != Status.RUNNING) {
             log.warn("This consumer is not running, can not nack.");
             return false;
         }
+
+        BrokerAckHandle handle = toBrokerAckHandle(ackHandle);
+        if (handle == null) {
+            return false;
+        }
+
+        // We should send nack from one connection only.
         try {
-            String clearText = Utils.decode(ackId);
-
-            StringTokenizer st = new StringTokenizer(clearText, ":");
-            if (st.countTokens() != 4)
-                throw new NackFailedException(new Exception(
-                        "Wrong nack id format."));
-            String hostname = st.nextToken();
-            int port = Integer.parseInt(st.nextToken());
-            String messageId = st.nextToken();
-
-            HostParams hostInfo = new HostParams(hostname, port);
-            List<StompServerFetcher> connections = currentServers.get(hostInfo);
-            if (connections == null || connections.size() == 0) {
-                connections = new ArrayList<StompServerFetcher>();
-                StompServerFetcher server = new StompServerFetcher(hostname,
-                        port, config);
-                connections.add(server);
-                currentServers.put(hostInfo, connections);
-                serverList.add(server);
-            }
-
-            // We should send nack from one connection only.
-            try {
-                connections.get(0).nack(messageId);
-                // nullifies lastSentServer so default nack() won't double-ack
-                // this message
-                lastSentServer = null;
-                return true;
-            } catch (NackFailedException e) {
-                log.error("Nack failed to messageId " + messageId, e);
-            }
+            getAckServer(handle).nack(handle.messageId);
+            // clears the last received message so default nack() won't
+            // double-nack it
+            setLastReceived(null);
+            return true;
         } catch (NackFailedException e) {
-            log.error("nack failed to nackId " + ackId, e);
+            log.error("Nack failed to messageId " + handle.messageId, e);
+            return false;
+        } catch (AckFailedException e) {
+            log.error("Nack failed to messageId " + handle.messageId, e);
             return false;
         }
-        return false;
     }
 
     @Override
@@ -436,6 +555,16 @@ public class ConsumerImpl implements Consumer {
 
     @Override
     public boolean ackSafe(String ackId, long timeout) {
+        BrokerAckHandle handle = BrokerAckHandle.parse(ackId);
+        if (handle == null) {
+            log.error("Ack failed to ackId " + ackId + ", wrong ack id format.");
+            return false;
+        }
+        return ackSafe(handle, timeout);
+    }
+
+    @Override
+    public boolean ackSafe(AckHandle ackHandle, long timeout) {
         if (config.getAckType() == ConsumerAckType.AUTO_CLIENT_ACK) {
             log.warn("This consumer has auto ack type. No need to explicitly ack.");
             return false;
@@ -446,43 +575,229 @@ public class ConsumerImpl implements Consumer {
             return false;
         }
 
+        BrokerAckHandle handle = toBrokerAckHandle(ackHandle);
+        if (handle == null) {
+            return false;
+        }
+
+        // We should send ack from one connection only.
         try {
-            String clearText = Utils.decode(ackId);
-
-            StringTokenizer st = new StringTokenizer(clearText, ":");
-            if (st.countTokens() != 4)
-                throw new AckFailedException(new Exception(
-                        "Wrong ack id format."));
-            String hostname = st.nextToken();
-            int port = Integer.parseInt(st.nextToken());
-            String messageId = st.nextToken();
-            String connectionId = st.nextToken();
-
-            HostParams hostInfo = new HostParams(hostname, port);
-            List<StompServerFetcher> connections = currentServers.get(hostInfo);
-            if (connections == null || connections.size() == 0) {
-                connections = new ArrayList<StompServerFetcher>();
-                StompServerFetcher server = new StompServerFetcher(hostname,
-                        port, config);
-                connections.add(server);
-                currentServers.put(hostInfo, connections);
-                serverList.add(server);
-            }
-
-            // We should send ack from one connection only.
+            Transaction tx = transaction.get();
+            if (tx != null) {
+                tx.ack(getAckServer(handle), handle.messageId,
+                        handle.connectionId);
+            } else {
+                getAckServer(handle).ackSafe(handle.messageId,
+                        handle.connectionId, timeout);
+            }
+            // clears the last received message so default ackSafe() won't
+            // double-ack it
+            setLastReceived(null);
+            return true;
+        } catch (AckFailedException e) {
+            log.error("Ack failed to messageId " + handle.messageId, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean ackSafe(Collection<String> ackIds) {
+        return ackSafe(ackIds, ACKSAFE_TIMEOUT);
+    }
+
+    @Override
+    public boolean ackSafe(Collection<String> ackIds, long timeout) {
+        if (config.getAckType() == ConsumerAckType.AUTO_CLIENT_ACK) {
+            log.warn("This consumer has auto ack type. No need to explicitly ack.");
+            return false;
+        }
+
+        if (this.status != Status.RUNNING) {
+            log.warn("This consumer is not running, can not ack.");
+            return false;
+        }
+
+        // message ids and connection ids, grouped by broker connection
+        Map<StompServerFetcher, List<String>> messageIds = new LinkedHashMap<StompServerFetcher, List<String>>();
+        Map<StompServerFetcher, List<String>> connectionIds = new HashMap<StompServerFetcher, List<String>>();
+        for (String ackId : ackIds) {
+            BrokerAckHandle handle = BrokerAckHandle.parse(ackId);
+            if (handle == null) {
+                log.error("Ack failed to ackId " + ackId + ", wrong ack id format.");
+                return false;
+            }
+            StompServerFetcher server;
             try {
-                connections.get(0).ackSafe(messageId, connectionId, timeout);
-                // nullifies lastSentServer so default ackSafe() won't
-                // double-ack this message
-                lastSentServer = null;
-                return true;
+                server = getAckServer(handle);
             } catch (AckFailedException e) {
-                log.error("Ack failed to messageId " + messageId, e);
+                log.error("Ack failed to ackId " + ackId, e);
                 return false;
             }
+            if (!messageIds.containsKey(server)) {
+                messageIds.put(server, new ArrayList<String>());
+                connectionIds.put(server, new ArrayList<String>());
+            }
+            messageIds.get(server).add(handle.messageId);
+            connectionIds.get(server).add(handle.connectionId);
+        }
+
+        boolean result = true;
+        Transaction tx = transaction.get();
+        for (Entry<StompServerFetcher, List<String>> entry : messageIds.entrySet()) {
+            StompServerFetcher server = entry.getKey();
+            try {
+                if (tx != null) {
+                    for (int i = 0; i < entry.getValue().size(); i++) {
+                        tx.ack(server, entry.getValue().get(i), connectionIds
+                                .get(server).get(i));
+                    }
+                } else {
+                    server.ackSafe(entry.getValue(), connectionIds.get(server),
+                            timeout);
+                }
+            } catch (AckFailedException e) {
+                log.error("Ack failed to " + entry.getValue().size()
+                        + " messages on " + server, e);
+                result = false;
+            }
+        }
+        // clears the last received message so default ackSafe() won't
+        // double-ack it
+        setLastReceived(null);
+        return result;
+    }
+
+    @Override
+    public ReceiptFuture ackSafeAsync(String ackId) {
+        return ackSafeAsync(ackId, ACKSAFE_TIMEOUT);
+    }
+
+    @Override
+    public ReceiptFuture ackSafeAsync(String ackId, long timeout) {
+        BrokerAckHandle handle = BrokerAckHandle.parse(ackId);
+        if (handle == null) {
+            log.error("Ack failed to ackId " + ackId + ", wrong ack id format.");
+            return AckReceipt.failed(null, new AckFailedException(
+                    "Wrong ack id format."));
+        }
+        return ackSafeAsync(handle, timeout);
+    }
+
+    @Override
+    public ReceiptFuture ackSafeAsync(AckHandle ackHandle, long timeout) {
+        if (config.getAckType() == ConsumerAckType.AUTO_CLIENT_ACK) {
+            log.warn("This consumer has auto ack type. No need to explicitly ack.");
+            return AckReceipt.failed(null, new AckFailedException(
+                    "Consumer has auto ack type"));
+        }
+
+        if (this.status != Status.RUNNING) {
+            log.warn("This consumer is not running, can not ack.");
+            return AckReceipt.failed(null, new AckFailedException(
+                    "Consumer is not running. Status=" + this.status));
+        }
+
+        BrokerAckHandle handle = toBrokerAckHandle(ackHandle);
+        if (handle == null) {
+            return AckReceipt.failed(null, new AckFailedException(
+                    "Wrong ack id format."));
+        }
+
+        // clears the last received message so default ackSafe() won't
+        // double-ack it
+        setLastReceived(null);
+        Transaction tx = transaction.get();
+        if (tx != null) {
+            // Confirmed by commit() instead.
+            try {
+                tx.ack(getAckServer(handle), handle.messageId,
+                        handle.connectionId);
+                return AckReceipt.completed(null);
+            } catch (AckFailedException e) {
+                return AckReceipt.failed(null, e);
+            }
+        }
+        StompServerFetcher server;
+        try {
+            server = getAckServer(handle);
         } catch (AckFailedException e) {
-            log.error("Ack failed to ackId " + ackId, e);
-            return false;
+            return AckReceipt.failed(null, e);
+        }
+        return server.ackSafeAsync(
+                Collections.singletonList(handle.messageId),
+                Collections.singletonList(handle.connectionId), timeout);
+    }
+
+    @Override
+    public void beginBatch() {
+        if (config.getAckType() == ConsumerAckType.AUTO_CLIENT_ACK) {
+            throw new InvalidStatusException(
+                    "This consumer has auto ack type, there are no acks to batch.");
+        }
+        if (this.status != Status.RUNNING) {
+            throw new InvalidStatusException(
+                    "This consumer is not running and cannot begin a batch. Status="
+                            + this.status);
+        }
+        if (transaction.get() != null) {
+            throw new InvalidStatusException(
+                    "A batch is already open on this thread.");
+        }
+        transaction.set(new Transaction(UUID.randomUUID().toString()));
+    }
+
+    @Override
+    public boolean commit() {
+        return commit(ACKSAFE_TIMEOUT);
+    }
+
+    @Override
+    public boolean commit(long timeout) {
+        Transaction tx = endBatch();
+        boolean result = true;
+        for (StompServerFetcher server : tx.servers) {
+            try {
+                server.commit(tx.id, timeout);
+            } catch (AckFailedException e) {
+                log.error("Commit failed to server " + server, e);
+                result = false;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void abort() {
+        Transaction tx = endBatch();
+        for (StompServerFetcher server : tx.servers) {
+            try {
+                server.abort(tx.id);
+            } catch (AckFailedException e) {
+                // The broker drops the transaction with the connection anyway.
+                log.warn("Abort failed to server " + server, e);
+            }
+        }
+    }
+
+    private Transaction endBatch() {
+        Transaction tx = transaction.get();
+        if (tx == null) {
+            throw new InvalidStatusException("No batch is open on this thread.");
+        }
+        transaction.remove();
+        return tx;
+    }
+
+    /**
+     * Writes the acks held back by ConsumerConfig.ackBatchSize right away.
+     */
+    public void flushAcks() {
+        for (StompServerFetcher server : serverList) {
+            try {
+                server.flushAcks();
+            } catch (AckFailedException e) {
+                log.error("Failed to flush acks to server " + server, e);
+            }
         }
     }
 
@@ -503,13 +818,19 @@ public class ConsumerImpl implements Consumer {
             return false;
         }
 
-        if (lastSentServer != null) {
+        Received received = getLastReceived();
+        if (received != null) {
             try {
-                lastSentServer.ackSafe(timeout);
-                lastSentServer = null;
+                Transaction tx = transaction.get();
+                if (tx != null) {
+                    tx.ack(received);
+                } else {
+                    received.ackSafe(timeout);
+                }
+                setLastReceived(null);
                 return true;
             } catch (AckFailedException e) {
-                log.error("Ack failed to server " + lastSentServer, e);
+                log.error("Ack failed to server " + received.server, e);
                 return false;
             } catch (Exception e) {
                 log.error("Ack failed", e);
@@ -520,73 +841,448 @@ public class ConsumerImpl implements Consumer {
     }
 
     private Message receiveImpl(boolean blocking) {
+        return receiveImpl(blocking, 0);
+    }
+
+    /**
+     * @param deadline
+     *            time in ms after which a blocking receive gives up and
+     *            returns null, 0 to wait forever.
+     */
+    private Message receiveImpl(boolean blocking, long deadline) {
         if (this.status != Status.RUNNING) {
             log.warn("This consumer is not running, can not receive. Status="
                     + this.status);
             return null;
         }
 
-        StompFrame tmpFrame = null;
+        if (handOffQueue != null) {
+            return receiveFromHandOffQueue(blocking, deadline);
+        }
 
         do {
-            for (int idx = 0; idx < serverList.size(); idx++) {
-                int serverIdx = (lastContactedServerIdx + 1 + idx)
-                        % serverList.size();
-                StompServerFetcher server = serverList.get(serverIdx);
-                tmpFrame = server.receiveLast();
-                if (tmpFrame != null) {
-                    lastContactedServerIdx = serverIdx;
-                    lastSentServer = server;
-                    Message message = Utils.getMessageFromBytes(tmpFrame
-                            .getBody().getBytes());
-                    log.debug("Received message: " + message);
-                    log.debug("received message-id: "
-                            + message.getMessageId());
-                    // set ackId hashed from hostname and port
-
-                    if (message != null) {
-                        StringBuilder clearText = new StringBuilder(
-                                server.getHost() + ":");
-                        clearText.append("" + server.getPort() + ":");
-                        clearText.append(tmpFrame.getHeaders()
-                                .get("message-id") + ":");
-
-                        // bbansal: For backward compatibility connectionId is
-                        // not a required field here.
-                        String connectionId = (tmpFrame.getHeaders()
-                                .containsKey("connection-id")) ? tmpFrame
-                                .getHeaders().get("connection-id")
-                                : Utils.NULL_STRING;
-                        clearText.append(connectionId);
-
-                        message.setAckId(Utils.encode(clearText.toString()));
-                        message.setMessageProperties(tmpFrame.getHeaders());
+            // Read the count before polling, so a message cached while we
+            // sweep the servers cuts the wait short.
+            long seen = arrivalCount();
+            Message message = pollServers();
+            if (message != null || !blocking) {
+                return message;
+            }
+
+            long wait = MAX_ARRIVAL_WAIT;
+            if (deadline > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                wait = Math.min(wait, remaining);
+            }
+
+            try {
+                awaitArrival(seen, wait);
+            } catch (InterruptedException e) {
+                log.debug("receiveImpl blocking interrupted.");
+                Thread.currentThread().interrupt();
+                return null;
+            }
+
+        } while (this.status == Status.RUNNING);
+
+        return null;
+    }
+
+    private Message receiveFromHandOffQueue(boolean blocking, long deadline) {
+        try {
+            do {
+                long wait = blocking ? MAX_ARRIVAL_WAIT : 0;
+                if (blocking && deadline > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return null;
                     }
+                    wait = Math.min(wait, remaining);
+                }
+                Message message = pollHandOffQueue(wait);
+                if (message != null || !blocking) {
                     return message;
                 }
+            } while (this.status == Status.RUNNING);
+        } catch (InterruptedException e) {
+            log.debug("receiveImpl blocking interrupted.");
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    private Message pollServers() {
+        StompFrame tmpFrame = null;
+
+        StompServerFetcher[] servers = serverList.toArray(NO_SERVERS);
+        if (brokerSelector != null) {
+            return pollSelectedServer(servers);
+        }
+        int start = lastContactedServerIdx + 1;
+        for (int idx = 0; idx < servers.length; idx++) {
+            int serverIdx = (start + idx) % servers.length;
+            StompServerFetcher server = servers[serverIdx];
+            tmpFrame = server.receiveLast();
+            if (tmpFrame != null) {
+                lastContactedServerIdx = serverIdx;
+                return toMessage(server, tmpFrame);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Takes a message from the fetcher the selector picks among those with
+     * messages fetched, trying the others if another receiver got there
+     * first.
+     */
+    private Message pollSelectedServer(StompServerFetcher[] servers) {
+        List<StompServerFetcher> candidates = new ArrayList<StompServerFetcher>(
+                servers.length);
+        for (StompServerFetcher server : servers) {
+            if (server.getPrefetchedCount() > 0) {
+                candidates.add(server);
+            }
+        }
+        while (!candidates.isEmpty()) {
+            StompServerFetcher server = brokerSelector.select(candidates);
+            StompFrame tmpFrame = server.receiveLast();
+            if (tmpFrame != null) {
+                return toMessage(server, tmpFrame);
+            }
+            candidates.remove(server);
+        }
+        return null;
+    }
+
+    /**
+     * Takes the oldest message from the shared queue, whichever broker it
+     * came from.
+     * 
+     * @param timeout
+     *            in ms, 0 to return at once.
+     */
+    private Message pollHandOffQueue(long timeout) throws InterruptedException {
+        HandOffQueue.Entry entry = handOffQueue.poll(timeout);
+        if (entry == null) {
+            return null;
+        }
+        StompFrame tmpFrame = entry.source.handOut(entry.frame);
+        return tmpFrame == null ? null : toMessage(entry.source, tmpFrame);
+    }
+
+    private Message toMessage(StompServerFetcher server, StompFrame tmpFrame) {
+        setLastReceived(new Received(server, threadLastReceived != null ? tmpFrame
+                : null));
+        Message message = Utils.getMessageFromFrame(tmpFrame);
+        log.debug("Received message: " + message);
+        log.debug("received message-id: " + message.getMessageId());
+        // set ack handle, the ackId string is built from it on demand
+
+        if (message != null) {
+            // bbansal: For backward compatibility connectionId is
+            // not a required field here.
+            String connectionId = (tmpFrame.getHeaders()
+                    .containsKey("connection-id")) ? tmpFrame.getHeaders()
+                    .get("connection-id") : Utils.NULL_STRING;
+
+            message.setAckHandle(new BrokerAckHandle(this, server, tmpFrame
+                    .getHeaders().get("message-id"), connectionId));
+            message.setMessageProperties(tmpFrame.getHeaders());
+        }
+        return message;
+    }
+
+    private long arrivalCount() {
+        synchronized (arrivalLock) {
+            return arrivals;
+        }
+    }
+
+    private void awaitArrival(long seen, long timeout)
+            throws InterruptedException {
+        synchronized (arrivalLock) {
+            if (arrivals == seen && this.status == Status.RUNNING) {
+                arrivalLock.wait(timeout);
             }
+        }
+    }
+
+    /**
+     * Runs on a fetcher thread each time it caches a message.
+     */
+    private void onArrival() {
+        synchronized (arrivalLock) {
+            arrivals++;
+            arrivalLock.notifyAll();
+        }
+        Dispatch dispatch = listenerDispatch;
+        if (dispatch != null) {
+            dispatch.dispatch();
+        }
+    }
+
+    private synchronized void startListener() {
+        if (messageListener != null && listenerDispatch == null) {
+            if (config.isOrderedListenerLanes()) {
+                listenerDispatch = new LaneDispatch(messageListener);
+            } else {
+                listenerDispatch = new ListenerDispatch(messageListener,
+                        Math.max(1, config.getThreadPoolSize()));
+            }
+            // pick up whatever was cached before the listener was set
+            listenerDispatch.dispatch();
+        }
+    }
+
+    private synchronized void stopListener() {
+        if (listenerDispatch != null) {
+            listenerDispatch.close();
+            listenerDispatch = null;
+        }
+    }
+
+    /**
+     * Hands cached messages to a MessageListener. dispatch() runs on fetcher
+     * threads when a message arrives and on worker threads when a delivery
+     * completes, and never blocks either of them.
+     */
+    private abstract class Dispatch {
+        protected final MessageListener listener;
+        protected volatile boolean closed = false;
+
+        Dispatch(MessageListener aListener) {
+            listener = aListener;
+        }
 
+        abstract void dispatch();
+
+        abstract void close();
+
+        /**
+         * Runs the listener on the calling worker thread.
+         */
+        protected void deliver(Message message, Received received) {
+            // in thread-safe mode, let onMessage() ack with ack()
+            ThreadLocal<Received> context = threadLastReceived;
+            if (context != null) {
+                context.set(received);
+            }
             try {
-                if (blocking) {
-                    Thread.sleep(config.getReceiveSleepInterval());
-                } else {
-                    return null;
+                listener.onMessage(message);
+            } catch (RuntimeException e) {
+                failed(message, e);
+            } finally {
+                if (context != null) {
+                    context.remove();
                 }
+            }
+        }
 
-            } catch (InterruptedException e) {
-                log.debug("receiveImpl blocking timed out.");
-                return null;
+        protected void failed(Message message, Exception e) {
+            log.error("MessageListener failed on message-id "
+                    + message.getMessageId(), e);
+            if (config.getAckType() != ConsumerAckType.AUTO_CLIENT_ACK) {
+                nack(message.getAckHandle());
+            }
+        }
+    }
+
+    /**
+     * Delivers on a bounded worker pool, a message is only taken from the
+     * fetchers once a worker is free, the rest stay in the fetcher caches
+     * and hold back broker credit.
+     */
+    private class ListenerDispatch extends Dispatch {
+        private final ExecutorService workers;
+        private final Semaphore permits;
+
+        ListenerDispatch(MessageListener aListener, int poolSize) {
+            super(aListener);
+            permits = new Semaphore(poolSize);
+            final String prefix = "mbus-listener-"
+                    + config.getDestinationName() + "-";
+            workers = Executors.newFixedThreadPool(poolSize, ThreadFactories
+                    .newThreadFactory(prefix, config.isUseVirtualThreads()));
+        }
+
+        void dispatch() {
+            while (!closed && permits.tryAcquire()) {
+                long seen = arrivalCount();
+                Message message;
+                Received received;
+                synchronized (dispatchLock) {
+                    message = receiveImpl(false);
+                    received = getLastReceived();
+                }
+                if (message == null) {
+                    permits.release();
+                    // A message cached while we held the permit may have
+                    // found no free worker, go round again for it.
+                    if (arrivalCount() == seen) {
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    workers.execute(new Delivery(message, received));
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    failed(message, e);
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            closed = true;
+            workers.shutdown();
+        }
+
+        private class Delivery implements Runnable {
+            private final Message message;
+            private final Received received;
+
+            Delivery(Message aMessage, Received aReceived) {
+                message = aMessage;
+                received = aReceived;
+            }
+
+            public void run() {
+                try {
+                    deliver(message, received);
+                } finally {
+                    permits.release();
+                    dispatch();
+                }
+            }
+        }
+    }
+
+    /**
+     * Delivers each broker connection's messages on a lane of its own, a
+     * single thread taking them one at a time in the order they arrived.
+     * Messages from one broker, such as those sharing a partition key, are
+     * processed in order, while brokers are processed in parallel.
+     */
+    private class LaneDispatch extends Dispatch {
+        private final Map<StompServerFetcher, Lane> lanes = new ConcurrentHashMap<StompServerFetcher, Lane>();
+        private final ThreadFactory threadFactory;
+
+        LaneDispatch(MessageListener aListener) {
+            super(aListener);
+            threadFactory = ThreadFactories.newThreadFactory("mbus-lane-"
+                    + config.getDestinationName() + "-",
+                    config.isUseVirtualThreads());
+        }
+
+        void dispatch() {
+            for (StompServerFetcher server : serverList) {
+                if (closed) {
+                    return;
+                }
+                lane(server).dispatch();
+            }
+            if (lanes.size() > serverList.size()) {
+                // Let the lanes of removed brokers finish and go.
+                for (StompServerFetcher server : lanes.keySet()) {
+                    if (!serverList.contains(server)) {
+                        Lane lane = lanes.remove(server);
+                        if (lane != null) {
+                            lane.thread.shutdown();
+                        }
+                    }
+                }
+            }
+        }
+
+        private Lane lane(StompServerFetcher server) {
+            Lane lane = lanes.get(server);
+            if (lane == null) {
+                synchronized (lanes) {
+                    lane = lanes.get(server);
+                    if (lane == null && !closed) {
+                        lane = new Lane(server);
+                        lanes.put(server, lane);
+                    }
+                }
+            }
+            return lane;
+        }
+
+        void close() {
+            synchronized (lanes) {
+                closed = true;
+            }
+            for (Lane lane : lanes.values()) {
+                lane.thread.shutdown();
             }
+        }
+
+        private class Lane {
+            private final StompServerFetcher server;
+            private final ExecutorService thread = Executors
+                    .newSingleThreadExecutor(threadFactory);
+            // Set while a message of this lane is being delivered.
+            private final AtomicBoolean busy = new AtomicBoolean();
 
-        } while (blocking);
+            Lane(StompServerFetcher aServer) {
+                server = aServer;
+            }
 
-        return null; // make compiler happy
+            void dispatch() {
+                while (!closed && busy.compareAndSet(false, true)) {
+                    long seen = arrivalCount();
+                    Message message = null;
+                    Received received = null;
+                    synchronized (dispatchLock) {
+                        StompFrame frame = server.receiveLast();
+                        if (frame != null) {
+                            message = toMessage(server, frame);
+                            received = getLastReceived();
+                        }
+                    }
+                    if (message == null) {
+                        busy.set(false);
+                        // as in ListenerDispatch, go round again for a
+                        // message cached while the lane looked busy
+                        if (arrivalCount() == seen) {
+                            return;
+                        }
+                        continue;
+                    }
+                    final Message next = message;
+                    final Received nextReceived = received;
+                    try {
+                        thread.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    deliver(next, nextReceived);
+                                } finally {
+                                    busy.set(false);
+                                    Lane.this.dispatch();
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        busy.set(false);
+                        failed(next, e);
+                    }
+                    return;
+                }
+            }
+        }
     }
 
     private void startAndRegisterConnection(HostParams aHost)
             throws InvalidDestinationException, BrokerConnectionFailedException {
 
         String threadName = aHost.getHost();
+        removedHosts.remove(aHost);
 
         StompServerFetcher connection = getStompServerFetcher(aHost, config);
 
@@ -595,18 +1291,195 @@ public class ConsumerImpl implements Consumer {
         log.debug("opening connection for " + aHost.getHost() + " Port="
                 + aHost.getPort());
 
+        connection.setArrivalListener(arrivalSignal);
+        if (handOffQueue != null) {
+            connection.setHandOffQueue(handOffQueue);
+        }
         serverList.add(connection);
-        Thread thread = new Thread(connection, threadName);
-        thread.setDaemon(true);
-        thread.start();
+        connection.start(fetcherThreadFactory, threadName);
+
+        synchronized (currentServers) {
+            if (!currentServers.containsKey(aHost)) {
+                currentServers.put(aHost,
+                        new CopyOnWriteArrayList<StompServerFetcher>());
+            }
+
+            // Add connection to currentServers connection list.
+            currentServers.get(aHost).add(connection);
+        }
+
+    }
+
+    /**
+     * @return per broker, the number of messages fetched ahead and not yet
+     *         received.
+     */
+    public Map<HostParams, Integer> getPrefetchedCounts() {
+        Map<HostParams, Integer> counts = new HashMap<HostParams, Integer>();
+        for (Entry<HostParams, List<StompServerFetcher>> entry : new HashMap<HostParams, List<StompServerFetcher>>(
+                currentServers).entrySet()) {
+            int count = 0;
+            for (StompServerFetcher server : entry.getValue()) {
+                count += server.getPrefetchedCount();
+            }
+            counts.put(entry.getKey(), count);
+        }
+        return counts;
+    }
+
+    private Received getLastReceived() {
+        ThreadLocal<Received> context = threadLastReceived;
+        return context != null ? context.get() : lastReceived;
+    }
+
+    private void setLastReceived(Received received) {
+        ThreadLocal<Received> context = threadLastReceived;
+        if (context != null) {
+            context.set(received);
+        } else {
+            lastReceived = received;
+        }
+    }
+
+    /**
+     * A message handed out by receive(), with the fetcher it came from. The
+     * frame is only pinned in thread-safe mode; otherwise the fetcher's last
+     * handed out frame is the one acked, as before.
+     */
+    private static final class Received {
+        final StompServerFetcher server;
+        final StompFrame frame;
+
+        Received(StompServerFetcher aServer, StompFrame aFrame) {
+            server = aServer;
+            frame = aFrame;
+        }
+
+        void ack() throws AckFailedException {
+            if (frame == null) {
+                server.ack();
+            } else {
+                server.ack(frame);
+            }
+        }
+
+        void nack() throws NackFailedException {
+            if (frame == null) {
+                server.nack();
+            } else {
+                server.nack(frame);
+            }
+        }
+
+        void ackSafe(long timeout) throws AckFailedException,
+                InterruptedException {
+            if (frame == null) {
+                server.ackSafe(timeout);
+            } else {
+                server.ackSafe(frame, timeout);
+            }
+        }
+
+        StompFrame frameToAck() {
+            return frame != null ? frame : server.getLastSentMessage();
+        }
+    }
+
+    /**
+     * A batch of acks opened by beginBatch(). The transaction is begun on a
+     * broker connection when the batch first acks a message from it.
+     */
+    private static final class Transaction {
+        final String id;
+        final Set<StompServerFetcher> servers = new LinkedHashSet<StompServerFetcher>();
+
+        Transaction(String anId) {
+            id = anId;
+        }
 
-        if (!currentServers.containsKey(aHost)) {
-            currentServers.put(aHost, new ArrayList<StompServerFetcher>());
+        void ack(Received received) throws AckFailedException {
+            StompFrame frame = received.frameToAck();
+            if (frame == null) {
+                throw new AckFailedException("No message to ack");
+            }
+            ack(received.server, frame.getHeaders().get("message-id"), frame
+                    .getHeaders().get("connection-id"));
         }
 
-        // Add connection to currentServers connection list.
-        currentServers.get(aHost).add(connection);
+        void ack(StompServerFetcher server, String messageId,
+                String connectionId) throws AckFailedException {
+            if (!servers.contains(server)) {
+                server.begin(id);
+                servers.add(server);
+            }
+            server.ack(messageId, connectionId, id);
+        }
+    }
 
+    /**
+     * @return the handle as a BrokerAckHandle, decoding the ack id of a
+     *         foreign AckHandle implementation; null if it is not valid.
+     */
+    private BrokerAckHandle toBrokerAckHandle(AckHandle ackHandle) {
+        if (ackHandle instanceof BrokerAckHandle) {
+            return (BrokerAckHandle) ackHandle;
+        }
+        BrokerAckHandle handle = ackHandle == null ? null : BrokerAckHandle
+                .parse(ackHandle.getAckId());
+        if (handle == null) {
+            log.error("Ack failed to ack handle " + ackHandle
+                    + ", wrong ack id format.");
+        }
+        return handle;
+    }
+
+    /**
+     * @return the connection the message was received on if it belongs to
+     *         this consumer and is still open, else the connection for its
+     *         broker.
+     */
+    private StompServerFetcher getAckServer(BrokerAckHandle handle)
+            throws AckFailedException {
+        StompServerFetcher server = handle.getLiveServer(this);
+        return server != null ? server : getAckServer(handle.host, handle.port);
+    }
+
+    /**
+     * @return the connection to send acks and nacks for a broker on: one in
+     *         the server list, else one still draining after the broker left
+     *         the list. One is opened for a broker that was never in it.
+     * @throws AckFailedException
+     *             if the broker left the server list and its connections
+     *             are closed. It redelivers the message.
+     */
+    private StompServerFetcher getAckServer(String hostname, int port)
+            throws AckFailedException {
+        HostParams hostInfo = new HostParams(hostname, port);
+        List<StompServerFetcher> connections = currentServers.get(hostInfo);
+        if (connections == null || connections.size() == 0) {
+            for (StompServerFetcher server : drainingServers.keySet()) {
+                if (server.getHost().equals(hostname)
+                        && server.getPort() == port) {
+                    return server;
+                }
+            }
+            if (removedHosts.contains(hostInfo)) {
+                throw new AckFailedException("Broker " + hostInfo
+                        + " is no longer in the server list");
+            }
+            synchronized (currentServers) {
+                connections = currentServers.get(hostInfo);
+                if (connections == null || connections.size() == 0) {
+                    connections = new CopyOnWriteArrayList<StompServerFetcher>();
+                    StompServerFetcher server = new StompServerFetcher(
+                            hostname, port, config);
+                    connections.add(server);
+                    currentServers.put(hostInfo, connections);
+                    serverList.add(server);
+                }
+            }
+        }
+        return connections.get(0);
     }
 
     public StompServerFetcher getStompServerFetcher(HostParams aHost,
@@ -614,19 +1487,73 @@ public class ConsumerImpl implements Consumer {
         return new StompServerFetcher(aHost.getHost(), aHost.getPort(), aConfig);
     }
 
+    /**
+     * Drains the connections to a broker that left the list: they get no
+     * more credit but stay in serverList, and are closed once the messages
+     * they prefetched have been received and acked, or after
+     * ConsumerConfig.drainTimeout. Closing them at once would throw those
+     * messages away and have the broker redeliver them.
+     */
     private void stopHostAndUnregisterConnection(HostParams aHost) {
-        List<StompServerFetcher> tmpList = currentServers.get(aHost);
-        // remove all
-        if (tmpList != null) {
-            for (StompServerFetcher server : tmpList) {
-                serverList.remove(server);
-                server.close();
-                log.debug("Connection with the broker " + server.toString()
-                        + " closed successfully");
+        List<StompServerFetcher> tmpList = currentServers.remove(aHost);
+        if (tmpList == null) {
+            return;
+        }
+        removedHosts.add(aHost);
+        long deadline = System.currentTimeMillis() + config.getDrainTimeout();
+        for (StompServerFetcher server : tmpList) {
+            server.drain();
+            drainingServers.put(server, deadline);
+            log.debug("Draining connection with the broker " + server
+                    + ", " + server.getPrefetchedCount() + " messages prefetched");
+        }
+        closeDrainedServers();
+        synchronized (drainingServers) {
+            if (drainCheckTask == null && !drainingServers.isEmpty()) {
+                drainCheckTask = scheduler.scheduleWithFixedDelay(
+                        new Runnable() {
+                            public void run() {
+                                closeDrainedServers();
+                            }
+                        }, DRAIN_CHECK_INTERVAL, DRAIN_CHECK_INTERVAL,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Closes the draining fetchers that are done or out of time. Receivers
+     * sweep a snapshot of serverList, so removing them needs no index reset.
+     */
+    private void closeDrainedServers() {
+        long now = System.currentTimeMillis();
+        for (Entry<StompServerFetcher, Long> entry : drainingServers.entrySet()) {
+            StompServerFetcher server = entry.getKey();
+            boolean drained = server.isDrained();
+            if (!drained && now < entry.getValue()) {
+                continue;
+            }
+            if (drainingServers.remove(server) == null) {
+                continue;
+            }
+            if (!drained) {
+                log.warn("Closing connection with the broker " + server
+                        + " after drainTimeout with "
+                        + server.getPrefetchedCount()
+                        + " messages prefetched and "
+                        + server.getStats().getOutstanding() + " unacked");
+            }
+            serverList.remove(server);
+            server.close();
+            log.debug("Connection with the broker " + server.toString()
+                    + " closed successfully");
+        }
+        synchronized (drainingServers) {
+            if (drainingServers.isEmpty() && drainCheckTask != null) {
+                drainCheckTask.cancel(false);
+                drainCheckTask = null;
             }
         }
-        currentServers.remove(aHost);
-        lastContactedServerIdx = -1; // reset this guy
     }
 
     private void validateConfigs(ConsumerConfig aConfig)
@@ -636,6 +1563,17 @@ public class ConsumerImpl implements Consumer {
             throw new InvalidConfigException("Destination name can not be null");
 
         }
+        if (aConfig.getBrokerSelectionStrategy() == null) {
+            throw new InvalidConfigException(
+                    "Broker selection strategy can not be null");
+        }
+        if (aConfig.getDrainTimeout() < 0) {
+            throw new InvalidConfigException("drainTimeout can not be negative");
+        }
+        if (aConfig.isOrderedListenerLanes() && aConfig.isUseSharedReceiveQueue()) {
+            throw new InvalidConfigException(
+                    "orderedListenerLanes can not be used with useSharedReceiveQueue");
+        }
         if (aConfig.getDestinationType() == DestinationType.QUEUE) {
             if (config.getDestinationName().indexOf(QUEUE_NAME_PREFIX) != 0) {
                 String message = "Invalid destination/queue name: "
@@ -665,7 +1603,15 @@ public class ConsumerImpl implements Consumer {
     }
 
     public void refreshServers() {
+        synchronized (refreshLock) {
+            if (this.status == Status.STOPPED) {
+                return;
+            }
+            refreshServersLocked();
+        }
+    }
 
+    private void refreshServersLocked() {
         try {
             Set<HostParams> newServerSet = fetchHostList();
             StringBuffer logMessageBuffer = new StringBuffer(
@@ -716,10 +1662,14 @@ public class ConsumerImpl implements Consumer {
 
     }
 
+    /**
+     * @return the last good broker list of the dynamic server list URL, kept
+     *         up to date by the shared BrokerDiscoveryService.
+     */
     public Set<HostParams> fetchHostList() throws MalformedURLException,
             IOException {
-        return DynamicServerListGetter.fetchHostList(config
-                .getDynamicServerListFetchURL());
+        return BrokerDiscoveryService.getInstance().getBrokers(
+                config.getDynamicServerListFetchURL());
     }
 
 }
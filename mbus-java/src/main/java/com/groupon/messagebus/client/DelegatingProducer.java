@@ -0,0 +1,177 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.groupon.messagebus.api.Message;
+import com.groupon.messagebus.api.Producer;
+import com.groupon.messagebus.api.ReceiptFuture;
+import com.groupon.messagebus.api.exceptions.SendFailedException;
+import com.groupon.messagebus.api.exceptions.TooManyConnectionRetryAttemptsException;
+
+/**
+ * Base of the producers that do not talk to a broker themselves but hand
+ * each send on, to a member producer or to a spool. Writes the send
+ * overloads of {@link Producer} once and funnels them into
+ * {@link #dispatch}. A null destinationName or headers stands for the
+ * defaults, as it does for ProducerImpl.
+ */
+abstract class DelegatingProducer implements Producer {
+
+    /**
+     * Does one send of the Producer API.
+     * 
+     * @param messages
+     *            the message to send, or the messages of a batch.
+     * @param batch
+     *            whether it was one of the List overloads.
+     * @return the receipt of a SAFE_ASYNC send, else null.
+     */
+    abstract ReceiptFuture dispatch(SendMode mode, List<Message> messages,
+            boolean batch, String destinationName, Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException;
+
+    /**
+     * Makes the call dispatch() was given on producer.
+     */
+    static ReceiptFuture sendTo(Producer producer, SendMode mode,
+            List<Message> messages, boolean batch, String destinationName,
+            Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        if (batch) {
+            if (mode == SendMode.FIRE_AND_FORGET) {
+                producer.send(messages, destinationName, headers);
+            } else {
+                producer.sendSafe(messages, destinationName, headers);
+            }
+            return null;
+        }
+        Message message = messages.get(0);
+        switch (mode) {
+        case SAFE:
+            producer.sendSafe(message, destinationName, headers);
+            return null;
+        case SAFE_ASYNC:
+            return producer.sendSafeAsync(message, destinationName, headers);
+        default:
+            producer.send(message, destinationName, headers);
+            return null;
+        }
+    }
+
+    public void send(Message message)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        send(message, null, null);
+    }
+
+    public void send(Message message, Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        send(message, null, headers);
+    }
+
+    public void send(Message message, String destinationName,
+            Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        dispatch(SendMode.FIRE_AND_FORGET, Collections.singletonList(message),
+                false, destinationName, headers);
+    }
+
+    public void sendSafe(Message message)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        sendSafe(message, null, null);
+    }
+
+    public void sendSafe(Message message, Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        sendSafe(message, null, headers);
+    }
+
+    public void sendSafe(Message message, String destinationName,
+            Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        dispatch(SendMode.SAFE, Collections.singletonList(message), false,
+                destinationName, headers);
+    }
+
+    public ReceiptFuture sendSafeAsync(Message message)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        return sendSafeAsync(message, null, null);
+    }
+
+    public ReceiptFuture sendSafeAsync(Message message,
+            Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        return sendSafeAsync(message, null, headers);
+    }
+
+    public ReceiptFuture sendSafeAsync(Message message, String destinationName,
+            Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        return dispatch(SendMode.SAFE_ASYNC, Collections.singletonList(message),
+                false, destinationName, headers);
+    }
+
+    public void send(List<Message> messages)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        send(messages, null, null);
+    }
+
+    public void send(List<Message> messages, Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        send(messages, null, headers);
+    }
+
+    public void send(List<Message> messages, String destinationName,
+            Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        dispatch(SendMode.FIRE_AND_FORGET, messages, true, destinationName,
+                headers);
+    }
+
+    public void sendSafe(List<Message> messages)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        sendSafe(messages, null, null);
+    }
+
+    public void sendSafe(List<Message> messages, Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        sendSafe(messages, null, headers);
+    }
+
+    public void sendSafe(List<Message> messages, String destinationName,
+            Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        dispatch(SendMode.SAFE, messages, true, destinationName, headers);
+    }
+}
@@ -0,0 +1,174 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.groupon.stomp.StompFrame;
+
+/**
+ * Bounded queue shared by all fetchers of a consumer, used instead of the
+ * per-fetcher caches when ConsumerConfig.useSharedReceiveQueue is set.
+ * Fetcher threads put, the receiving thread takes without sweeping every
+ * broker.
+ *
+ * Each entry is tagged with the fetcher it came from. A fetcher may hold at
+ * most capacity / fetchers entries at a time, so a fast broker can not crowd
+ * slower ones out of the queue; past that its thread waits, which stops it
+ * reading from its broker. A fetcher never waits while it holds fewer than
+ * prefetchSize entries though: that is all its broker sends ahead, and its
+ * thread must keep reading the ack receipts that follow them.
+ */
+class HandOffQueue {
+
+    static class Entry {
+        final StompServerFetcher source;
+        final StompFrame frame;
+
+        Entry(StompServerFetcher aSource, StompFrame aFrame) {
+            source = aSource;
+            frame = aFrame;
+        }
+    }
+
+    private final int capacity;
+    private final int prefetchSize;
+    private final ArrayDeque<Entry> entries;
+    private final Map<StompServerFetcher, Integer> held = new HashMap<StompServerFetcher, Integer>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition slotFreed = lock.newCondition();
+
+    HandOffQueue(int aCapacity, int aPrefetchSize) {
+        capacity = Math.max(1, aCapacity);
+        prefetchSize = Math.max(1, aPrefetchSize);
+        entries = new ArrayDeque<Entry>(capacity);
+    }
+
+    void register(StompServerFetcher source) {
+        lock.lock();
+        try {
+            if (!held.containsKey(source)) {
+                held.put(source, 0);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the source and any entries it still has queued. Those messages
+     * were never handed out, the broker redelivers them once the source's
+     * connection is gone.
+     */
+    void unregister(StompServerFetcher source) {
+        lock.lock();
+        try {
+            Iterator<Entry> it = entries.iterator();
+            while (it.hasNext()) {
+                if (it.next().source == source) {
+                    it.remove();
+                }
+            }
+            held.remove(source);
+            slotFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void put(StompServerFetcher source, StompFrame frame)
+            throws InterruptedException {
+        lock.lock();
+        try {
+            while (held.containsKey(source)
+                    && held.get(source) >= prefetchSize
+                    && (entries.size() >= capacity || held.get(source) >= quota())) {
+                slotFreed.await();
+            }
+            if (!held.containsKey(source)) {
+                // unregistered while waiting, drop like its other entries
+                return;
+            }
+            entries.add(new Entry(source, frame));
+            held.put(source, held.get(source) + 1);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param timeout
+     *            in ms, 0 to return at once.
+     * @return the oldest entry, or null if none arrived in time.
+     */
+    Entry poll(long timeout) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (entries.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            Entry entry = entries.poll();
+            Integer count = held.get(entry.source);
+            if (count != null) {
+                held.put(entry.source, count - 1);
+            }
+            slotFreed.signalAll();
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int quota() {
+        return Math.max(1, capacity / Math.max(1, held.size()));
+    }
+}
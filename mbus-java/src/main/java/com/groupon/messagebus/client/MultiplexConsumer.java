@@ -0,0 +1,187 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.groupon.messagebus.api.Consumer;
+import com.groupon.messagebus.api.ConsumerConfig;
+import com.groupon.messagebus.api.HostParams;
+import com.groupon.messagebus.api.exceptions.BrokerConnectionFailedException;
+import com.groupon.messagebus.api.exceptions.InvalidConfigException;
+import com.groupon.messagebus.api.exceptions.InvalidStatusException;
+import com.groupon.messagebus.util.ThreadFactories;
+import com.groupon.stomp.StompConnection;
+
+/**
+ * Consumes many destinations over one connection per broker.
+ * <p/>
+ * Each subscribe() returns a running {@link Consumer} for one destination,
+ * with its own receive queue, acks and optional MessageListener, exactly like
+ * a ConsumerImpl. Instead of opening a connection and a reader thread per
+ * broker, the consumers of a MultiplexConsumer send their SUBSCRIBE frames,
+ * each with its own subscription id, over a connection per broker shared by
+ * all of them, and one reader thread per connection hands each MESSAGE to
+ * the consumer its subscription header names.
+ * <p/>
+ * The connections use the user name, password, subscription id (as client
+ * id), NIO transport and virtual thread settings of the ConsumerConfig given
+ * to the constructor. A connection closes when the last consumer on it
+ * stops, or on close().
+ */
+public class MultiplexConsumer {
+
+    private Logger log = Logger.getLogger(MultiplexConsumer.class);
+    private final ConsumerConfig connectionConfig;
+    private final ThreadFactory threadFactory;
+    // Guarded by this.
+    private final Map<HostParams, SharedConnection> connections = new HashMap<HostParams, SharedConnection>();
+    private final Map<String, ConsumerImpl> consumers = new LinkedHashMap<String, ConsumerImpl>();
+    private boolean closed = false;
+
+    public MultiplexConsumer(ConsumerConfig aConnectionConfig) {
+        connectionConfig = aConnectionConfig;
+        threadFactory = ThreadFactories.newThreadFactory("mbus-mux-",
+                aConnectionConfig.isUseVirtualThreads());
+    }
+
+    /**
+     * Starts consuming a destination over the shared connections.
+     * 
+     * @param config
+     *            destination, brokers and consumer settings. Its
+     *            subscriptionId tells the destination's messages apart on a
+     *            shared connection and must be unique within this
+     *            MultiplexConsumer; it defaults to the destination name.
+     * @return the started Consumer. Stopping it unsubscribes the destination.
+     */
+    public synchronized Consumer subscribe(ConsumerConfig config)
+            throws InvalidConfigException, BrokerConnectionFailedException {
+        if (closed) {
+            throw new InvalidStatusException("MultiplexConsumer is closed");
+        }
+        if (config.getSubscriptionId() == null) {
+            config.setSubscriptionId(config.getDestinationName());
+        }
+        String subscriptionId = config.getSubscriptionId();
+        ConsumerImpl existing = consumers.get(subscriptionId);
+        if (existing != null && existing.getStatus() == Consumer.Status.RUNNING) {
+            throw new InvalidConfigException("Subscription id "
+                    + subscriptionId + " is already in use");
+        }
+
+        ConsumerImpl consumer = new ConsumerImpl() {
+            @Override
+            public StompServerFetcher getStompServerFetcher(HostParams aHost,
+                    ConsumerConfig aConfig) {
+                return newFetcher(aHost, aConfig);
+            }
+        };
+        if (!consumer.start(config)) {
+            throw new BrokerConnectionFailedException(
+                    "Failed to get the broker list for "
+                            + config.getDestinationName());
+        }
+        consumers.put(subscriptionId, consumer);
+        log.debug("Subscribed " + config.getDestinationName() + " as "
+                + subscriptionId);
+        return consumer;
+    }
+
+    /**
+     * @return the number of open broker connections.
+     */
+    public synchronized int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Stops every consumer and closes the connections.
+     */
+    public void close() {
+        List<ConsumerImpl> running;
+        synchronized (this) {
+            closed = true;
+            running = new ArrayList<ConsumerImpl>(consumers.values());
+            consumers.clear();
+        }
+        for (ConsumerImpl consumer : running) {
+            if (consumer.getStatus() == Consumer.Status.RUNNING) {
+                consumer.stop();
+            }
+        }
+        List<SharedConnection> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<SharedConnection>(connections.values());
+            connections.clear();
+        }
+        // left open by fetchers that never got started
+        for (SharedConnection connection : remaining) {
+            connection.close();
+        }
+    }
+
+    ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    private synchronized StompServerFetcher newFetcher(HostParams host,
+            ConsumerConfig config) {
+        SharedConnection connection = connections.get(host);
+        if (connection == null) {
+            connection = new SharedConnection(this, host.getHost(),
+                    host.getPort(), connectionConfig, new StompConnection());
+            connections.put(host, connection);
+        }
+        connection.join();
+        return new StompServerFetcher(connection, config);
+    }
+
+    /**
+     * Called when a fetcher on connection closes.
+     */
+    synchronized void leave(SharedConnection connection) {
+        if (connection.leave()) {
+            HostParams host = new HostParams(connection.getHost(),
+                    connection.getPort());
+            if (connections.get(host) == connection) {
+                connections.remove(host);
+            }
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.log4j.Logger;
+
+import com.groupon.messagebus.api.HostParams;
+import com.groupon.messagebus.api.Message;
+import com.groupon.messagebus.api.Producer;
+import com.groupon.messagebus.api.ProducerConfig;
+import com.groupon.messagebus.api.ReceiptFuture;
+import com.groupon.messagebus.api.exceptions.BrokerConnectionCloseFailedException;
+import com.groupon.messagebus.api.exceptions.InvalidConfigException;
+import com.groupon.messagebus.api.exceptions.InvalidStatusException;
+import com.groupon.messagebus.api.exceptions.SendFailedException;
+import com.groupon.messagebus.api.exceptions.TooManyConnectionRetryAttemptsException;
+import com.groupon.stomp.StompConnection;
+
+/**
+ * A {@link Producer} that keeps several broker connections, so threads
+ * sharing it do not all queue on one connection lock.
+ * <p/>
+ * Each send takes an idle connection from a lock-free free-list and puts it
+ * back afterwards. When every connection is busy it shares one, picked round
+ * robin. Connections can be spread over several brokers.
+ * <p/>
+ * Connections are replaced one at a time, every connectionLifetime / size
+ * ms: the new connection is opened and put in service before the old one
+ * is closed, so sends never wait for a refresh.
+ */
+public class PooledProducer extends DelegatingProducer {
+
+    private Logger log = Logger.getLogger(PooledProducer.class);
+
+    private final int size;
+    private final List<HostParams> brokers;
+    private ProducerConfig config;
+    private volatile Status status = Status.INITIALIZED;
+
+    private AtomicReferenceArray<Member> slots;
+    // Idle members. Only a hint: a member may be listed twice or be busy.
+    private final ConcurrentLinkedQueue<Member> free = new ConcurrentLinkedQueue<Member>();
+    private final AtomicInteger stripe = new AtomicInteger();
+    private Timer refreshTimer;
+    private int nextRefresh = 0;
+    // Member the calling thread's open batch runs on.
+    private final ThreadLocal<Member> batchMember = new ThreadLocal<Member>();
+
+    /**
+     * @param size
+     *            number of connections to ProducerConfig.broker.
+     */
+    public PooledProducer(int size) {
+        this(size, null);
+    }
+
+    /**
+     * @param size
+     *            number of connections, assigned to the brokers round robin.
+     *            ProducerConfig.broker is ignored.
+     */
+    public PooledProducer(int size, Collection<HostParams> brokers) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        if (brokers != null && brokers.isEmpty()) {
+            throw new IllegalArgumentException("Broker list is empty");
+        }
+        this.size = size;
+        this.brokers = brokers == null ? null : new ArrayList<HostParams>(brokers);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void start(ProducerConfig aConfig) throws InvalidConfigException,
+            TooManyConnectionRetryAttemptsException, InvalidStatusException {
+        if (status != Status.INITIALIZED) {
+            throw new InvalidStatusException(
+                    "Producer cannot be started. Status=" + status);
+        }
+        config = aConfig;
+        slots = new AtomicReferenceArray<Member>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                Member member = startMember(i);
+                slots.set(i, member);
+                free.offer(member);
+            }
+        } catch (InvalidConfigException e) {
+            stopMembers();
+            throw e;
+        } catch (TooManyConnectionRetryAttemptsException e) {
+            stopMembers();
+            throw e;
+        }
+
+        long period = Math.max(1, config.getConnectionLifetime() / size);
+        refreshTimer = new Timer("pooled-producer-refresh", true);
+        refreshTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                refreshNext();
+            }
+        }, period, period);
+        status = Status.RUNNING;
+    }
+
+    /**
+     * Replaces every connection, one at a time.
+     */
+    public void refreshConnection()
+            throws TooManyConnectionRetryAttemptsException {
+        if (status != Status.RUNNING) {
+            log.warn("This producer is not running, skip refreshing connection.");
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            refreshNext();
+        }
+    }
+
+    public void stop() throws BrokerConnectionCloseFailedException,
+            InvalidStatusException {
+        switch (status) {
+        case RUNNING:
+            break;
+        case STOPPED:
+            log.info("Producer is already stopped, nothing to do.");
+            return;
+        case INITIALIZED:
+            throw new InvalidStatusException(
+                    "Producer cannot be stopped. Status=" + status);
+        }
+        status = Status.STOPPED;
+        refreshTimer.cancel();
+        stopMembers();
+    }
+
+    ReceiptFuture dispatch(SendMode mode, List<Message> messages,
+            boolean batch, String destinationName, Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        Member member = acquire();
+        try {
+            return sendTo(member.producer, mode, messages, batch,
+                    destinationName, headers);
+        } finally {
+            release(member);
+        }
+    }
+
+    /**
+     * Pins the calling thread to one connection until commit() or abort(),
+     * since a transaction lives on a single connection. A refresh retires
+     * the pinned connection only after the batch ends.
+     */
+    public void beginBatch() throws TooManyConnectionRetryAttemptsException,
+            SendFailedException {
+        if (batchMember.get() != null) {
+            throw new InvalidStatusException(
+                    "A batch is already open on this thread.");
+        }
+        Member member = acquire();
+        boolean begun = false;
+        try {
+            member.producer.beginBatch();
+            begun = true;
+        } finally {
+            if (!begun) {
+                release(member);
+            }
+        }
+        batchMember.set(member);
+    }
+
+    public void commit() throws SendFailedException {
+        Member member = endBatch();
+        try {
+            member.producer.commit();
+        } finally {
+            release(member);
+        }
+    }
+
+    public void abort() {
+        Member member = endBatch();
+        try {
+            member.producer.abort();
+        } finally {
+            release(member);
+        }
+    }
+
+    private Member endBatch() {
+        Member member = batchMember.get();
+        if (member == null) {
+            throw new InvalidStatusException("No batch is open on this thread.");
+        }
+        batchMember.remove();
+        return member;
+    }
+
+    /**
+     * @return the member of the calling thread's batch if it has one, else
+     *         an idle member if there is one, else one shared round robin.
+     *         Never a retired member outside a batch. Skips members whose
+     *         connection is down, unless all of them are.
+     */
+    private Member acquire() {
+        Member pinned = batchMember.get();
+        if (pinned != null) {
+            pinned.users.incrementAndGet();
+            return pinned;
+        }
+        int down = 0;
+        while (true) {
+            if (status != Status.RUNNING) {
+                throw new InvalidStatusException(
+                        "This producer is not running and cannot publish. Status="
+                                + status);
+            }
+            Member member = down > 0 ? null : free.poll();
+            if (member == null || member.retired) {
+                member = slots.get((stripe.getAndIncrement() & Integer.MAX_VALUE)
+                        % size);
+            }
+            member.users.incrementAndGet();
+            if (!member.retired
+                    && (member.producer.isConnected() || ++down >= size)) {
+                return member;
+            }
+            // Replaced while we picked it, and its slot holds the successor,
+            // or its connection is down and sends to it would fail.
+            release(member);
+        }
+    }
+
+    private void release(Member member) {
+        if (member.users.decrementAndGet() > 0) {
+            return;
+        }
+        if (member.retired) {
+            retireLater(member);
+        } else {
+            free.offer(member);
+        }
+    }
+
+    /**
+     * Closes the member on the refresh thread, so the sender that let go of
+     * it last does not wait for its receipts to drain.
+     */
+    private void retireLater(final Member member) {
+        try {
+            refreshTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    retire(member);
+                }
+            }, 0);
+        } catch (IllegalStateException e) {
+            // The pool is stopped and the timer with it.
+            retire(member);
+        }
+    }
+
+    private Member startMember(int slot) throws InvalidConfigException,
+            TooManyConnectionRetryAttemptsException {
+        ProducerConfig memberConfig = new ProducerConfig(config);
+        if (brokers != null) {
+            memberConfig.setBroker(brokers.get(slot % brokers.size()));
+        }
+        ProducerImpl producer = new ProducerImpl(new StompConnection(), false);
+        producer.start(memberConfig);
+        return new Member(producer);
+    }
+
+    /**
+     * Opens a replacement for the next slot, puts it in service and retires
+     * the old member once no send is using it.
+     */
+    private synchronized void refreshNext() {
+        if (status != Status.RUNNING) {
+            return;
+        }
+        int slot = nextRefresh;
+        nextRefresh = (nextRefresh + 1) % size;
+        Member replacement;
+        try {
+            replacement = startMember(slot);
+        } catch (Exception e) {
+            log.error("Failed to open replacement connection for slot " + slot
+                    + ", keeping the current one", e);
+            return;
+        }
+        Member old = slots.getAndSet(slot, replacement);
+        free.offer(replacement);
+        old.retired = true;
+        while (free.remove(old)) {
+            // drop every listing
+        }
+        if (old.users.get() == 0) {
+            retire(old);
+        }
+    }
+
+    private void retire(Member member) {
+        if (!member.stopped.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            member.producer.stop();
+        } catch (Exception e) {
+            log.warn("Error closing retired connection", e);
+        }
+    }
+
+    private void stopMembers() {
+        for (int i = 0; i < slots.length(); i++) {
+            Member member = slots.get(i);
+            if (member != null) {
+                member.retired = true;
+                retire(member);
+            }
+        }
+        free.clear();
+    }
+
+    private static class Member {
+        final ProducerImpl producer;
+        // Sends running on this member right now.
+        final AtomicInteger users = new AtomicInteger();
+        volatile boolean retired;
+        final AtomicBoolean stopped = new AtomicBoolean();
+
+        Member(ProducerImpl producer) {
+            this.producer = producer;
+        }
+    }
+}
@@ -1,22 +1,38 @@
 package com.groupon.messagebus.client;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
+import org.apache.thrift.TException;
 
 import com.google.gson.Gson;
 import com.groupon.messagebus.api.DestinationType;
 import com.groupon.messagebus.api.Message;
 import com.groupon.messagebus.api.Producer;
 import com.groupon.messagebus.api.ProducerConfig;
+import com.groupon.messagebus.api.ReceiptFuture;
 import com.groupon.messagebus.api.exceptions.BrokerConnectionCloseFailedException;
 import com.groupon.messagebus.api.exceptions.InvalidConfigException;
 import com.groupon.messagebus.api.exceptions.InvalidStatusException;
 import com.groupon.messagebus.api.exceptions.SendFailedException;
 import com.groupon.messagebus.api.exceptions.TooManyConnectionRetryAttemptsException;
+import com.groupon.messagebus.util.CircuitBreaker;
+import com.groupon.messagebus.util.ExponentialBackoff;
+import com.groupon.messagebus.util.ThreadFactories;
+import com.groupon.stomp.Stomp;
 import com.groupon.stomp.StompConnection;
 
 /**
@@ -64,12 +80,34 @@ public class ProducerImpl implements Producer {
     private static final String TOPIC_NAME_PREFIX = "jms.topic.";
     private static final String QUEUE_NAME_PREFIX = "jms.queue.";
     private final int MAX_RETRY_COUNT = 3;
-    private final long REST_INTERVAL = 1000;
+    // How long a connection refresh waits for outstanding sendSafeAsync() receipts.
+    private final long RECEIPT_DRAIN_TIMEOUT = 5000;
     private final StompConnection connection;
     private ProducerConfig config;
-    private Timer refreshConnectionTimer = new Timer();
+    private Timer refreshConnectionTimer;
+    // False for members of a PooledProducer, which staggers their refreshes.
+    private final boolean scheduleRefresh;
     private long sendStartTime = 0;
     private Status status;
+    // Transaction id of the calling thread's open batch.
+    private final ThreadLocal<String> batch = new ThreadLocal<String>();
+    private final AtomicInteger openBatches = new AtomicInteger();
+    // How often in a row the scheduled refresh may wait for open batches
+    // before it goes ahead and aborts them.
+    private static final int MAX_POSTPONED_REFRESHES = 3;
+    // Guarded by connectionAccessLock.
+    private int postponedRefreshes;
+    // Reopens failed connections of all producers in the background.
+    private static final ScheduledExecutorService RECONNECTS = Executors
+            .newSingleThreadScheduledExecutor(ThreadFactories.newThreadFactory(
+                    "mbus-producer-reconnect-", false));
+    private CircuitBreaker breaker;
+    private volatile boolean connected = false;
+    // Counts successful connects, so a sender whose write failed can tell
+    // whether another sender has replaced that connection since. Guarded by
+    // connectionAccessLock.
+    private int connectionGeneration;
+    private final AtomicBoolean reconnectScheduled = new AtomicBoolean();
 
     public Status getStatus() {
         return status;
@@ -82,7 +120,12 @@ public class ProducerImpl implements Producer {
     }
 
     public ProducerImpl(StompConnection connection) {
+        this(connection, true);
+    }
+
+    ProducerImpl(StompConnection connection, boolean scheduleRefresh) {
         this.connection = connection;
+        this.scheduleRefresh = scheduleRefresh;
         this.status = Status.INITIALIZED;
     }
 
@@ -105,10 +148,19 @@ public class ProducerImpl implements Producer {
 
         validateConfigs(config);
 
+        connection.setMaxPendingReceipts(config.getMaxInflightSafeSends());
+        connection.setUseNio(config.isUseNioTransport());
+        connection.setUseContentLength(config.isUseBinaryEncoding());
+        breaker = new CircuitBreaker(config.getCircuitBreakerThreshold(),
+                new ExponentialBackoff(config.getReconnectBackoffMin(),
+                        config.getReconnectBackoffMax()));
         startConnection();
 
-        refreshConnectionTimer.schedule(new RefreshConnectionTimerTask(this),
-                config.getConnectionLifetime(), config.getConnectionLifetime());
+        if (scheduleRefresh) {
+            refreshConnectionTimer = new Timer();
+            refreshConnectionTimer.schedule(new RefreshConnectionTimerTask(this),
+                    config.getConnectionLifetime(), config.getConnectionLifetime());
+        }
         this.status = Status.RUNNING;
     }
 
@@ -130,7 +182,9 @@ public class ProducerImpl implements Producer {
                     "Producer cannot be stopped. Status=" + this.status);
         }
 
-        refreshConnectionTimer.cancel();
+        if (refreshConnectionTimer != null) {
+            refreshConnectionTimer.cancel();
+        }
         stopConnection();
         this.status = Status.STOPPED;
     }
@@ -143,7 +197,7 @@ public class ProducerImpl implements Producer {
     @Override
     public void send(Message message)
             throws TooManyConnectionRetryAttemptsException, SendFailedException {
-        sendInternal(message, null, false, null);
+        sendInternal(message, null, SendMode.FIRE_AND_FORGET, null);
     }
 
     /**
@@ -154,14 +208,14 @@ public class ProducerImpl implements Producer {
     @Override
     public void send(Message message, Map<String, String> headers)
             throws TooManyConnectionRetryAttemptsException, SendFailedException {
-        sendInternal(message, headers, false, null);
+        sendInternal(message, headers, SendMode.FIRE_AND_FORGET, null);
     }
 
     @Override
     public void send(Message message, String destinationName,
             Map<String, String> headers)
             throws TooManyConnectionRetryAttemptsException, SendFailedException {
-        sendInternal(message, headers, false, destinationName);
+        sendInternal(message, headers, SendMode.FIRE_AND_FORGET, destinationName);
     }
 
     /**
@@ -175,7 +229,7 @@ public class ProducerImpl implements Producer {
     @Override
     public void sendSafe(Message message)
             throws TooManyConnectionRetryAttemptsException, SendFailedException {
-        sendInternal(message, null, true, null);
+        sendInternal(message, null, SendMode.SAFE, null);
     }
 
     /**
@@ -189,18 +243,206 @@ public class ProducerImpl implements Producer {
     @Override
     public void sendSafe(Message message, Map<String, String> headers)
             throws TooManyConnectionRetryAttemptsException, SendFailedException {
-        sendInternal(message, headers, true, null);
+        sendInternal(message, headers, SendMode.SAFE, null);
     }
 
     @Override
     public void sendSafe(Message message, String destinationName,
             Map<String, String> headers)
             throws TooManyConnectionRetryAttemptsException, SendFailedException {
-        sendInternal(message, headers, true, destinationName);
+        sendInternal(message, headers, SendMode.SAFE, destinationName);
     }
 
     /**
-     * Refreshes connection. Also reports connection statistics.
+     * Sends message with a receipt request and returns without waiting for the
+     * receipt. Retries only cover writing the frame; a failed receipt is
+     * reported through the returned future.
+     */
+    @Override
+    public ReceiptFuture sendSafeAsync(Message message)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        return sendInternal(message, null, SendMode.SAFE_ASYNC, null);
+    }
+
+    @Override
+    public ReceiptFuture sendSafeAsync(Message message,
+            Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        return sendInternal(message, headers, SendMode.SAFE_ASYNC, null);
+    }
+
+    @Override
+    public ReceiptFuture sendSafeAsync(Message message, String destinationName,
+            Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        return sendInternal(message, headers, SendMode.SAFE_ASYNC,
+                destinationName);
+    }
+
+    @Override
+    public void send(List<Message> messages)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        sendBatchInternal(messages, null, SendMode.FIRE_AND_FORGET, null);
+    }
+
+    @Override
+    public void send(List<Message> messages, Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        sendBatchInternal(messages, headers, SendMode.FIRE_AND_FORGET, null);
+    }
+
+    @Override
+    public void send(List<Message> messages, String destinationName,
+            Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        sendBatchInternal(messages, headers, SendMode.FIRE_AND_FORGET,
+                destinationName);
+    }
+
+    /**
+     * Sends the messages with a single flush and waits for all their receipts.
+     * A failed attempt resends the whole batch.
+     */
+    @Override
+    public void sendSafe(List<Message> messages)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        sendBatchInternal(messages, null, SendMode.SAFE, null);
+    }
+
+    @Override
+    public void sendSafe(List<Message> messages, Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        sendBatchInternal(messages, headers, SendMode.SAFE, null);
+    }
+
+    @Override
+    public void sendSafe(List<Message> messages, String destinationName,
+            Map<String, String> headers)
+            throws TooManyConnectionRetryAttemptsException, SendFailedException {
+        sendBatchInternal(messages, headers, SendMode.SAFE, destinationName);
+    }
+
+    /**
+     * Sends BEGIN for a new transaction and tags this thread's sends with it
+     * until commit() or abort().
+     */
+    @Override
+    public void beginBatch() throws TooManyConnectionRetryAttemptsException,
+            SendFailedException {
+        if (this.status != Status.RUNNING) {
+            throw new InvalidStatusException(
+                    "This producer is not running and cannot begin a batch. Status="
+                            + this.status);
+        }
+        if (batch.get() != null) {
+            throw new InvalidStatusException(
+                    "A batch is already open on this thread.");
+        }
+
+        String transaction = UUID.randomUUID().toString();
+        int attempt = 0;
+        int generation = -1;
+        while (true) {
+            try {
+                synchronized (connectionAccessLock) {
+                    generation = connectionGeneration;
+                    connection.begin(transaction);
+                    // under the lock, so a scheduled refresh either sees
+                    // the batch or has already replaced the connection
+                    openBatches.incrementAndGet();
+                }
+                break;
+            } catch (IOException e) {
+                if (++attempt >= config.getPublishMaxRetryAttempts()) {
+                    throw new SendFailedException(e);
+                }
+                log.warn("Failed to begin batch on the broker "
+                        + config.getBroker() + ". Reconnecting.", e);
+                recoverConnection(generation);
+            }
+        }
+        batch.set(transaction);
+    }
+
+    /**
+     * Sends COMMIT with a receipt and waits for it. The batch is closed
+     * either way.
+     */
+    @Override
+    public void commit() throws SendFailedException {
+        String transaction = endBatch();
+        try {
+            synchronized (connectionAccessLock) {
+                connection.commitSafe(transaction);
+            }
+        } catch (IOException e) {
+            throw new SendFailedException(e);
+        }
+    }
+
+    @Override
+    public void abort() {
+        String transaction = endBatch();
+        try {
+            synchronized (connectionAccessLock) {
+                connection.abort(transaction);
+            }
+        } catch (IOException e) {
+            // The broker drops the transaction with the connection anyway.
+            log.warn("Failed to abort batch on the broker "
+                    + config.getBroker(), e);
+        }
+    }
+
+    private String endBatch() {
+        String transaction = batch.get();
+        if (transaction == null) {
+            throw new InvalidStatusException("No batch is open on this thread.");
+        }
+        batch.remove();
+        openBatches.decrementAndGet();
+        return transaction;
+    }
+
+    /**
+     * @return true while some thread has a batch open, which a connection
+     *         refresh would abort.
+     */
+    boolean hasOpenBatches() {
+        return openBatches.get() > 0;
+    }
+
+    /**
+     * Runs the scheduled connection refresh, unless a batch is open, which
+     * the refresh would abort. After MAX_POSTPONED_REFRESHES postponements in
+     * a row it goes ahead anyway, so a producer that always has a batch open
+     * still gets its connection replaced.
+     */
+    void refreshConnectionIfIdle()
+            throws TooManyConnectionRetryAttemptsException {
+        synchronized (connectionAccessLock) {
+            if (hasOpenBatches()) {
+                if (postponedRefreshes < MAX_POSTPONED_REFRESHES) {
+                    postponedRefreshes++;
+                    log.debug("Batches are open, postponing connection refresh");
+                    return;
+                }
+                log.warn("Refreshing connection with the broker "
+                        + config.getBroker() + " after " + postponedRefreshes
+                        + " postponements, aborting " + openBatches.get()
+                        + " open batches");
+            }
+            postponedRefreshes = 0;
+            refreshConnection();
+        }
+    }
+
+    /**
+     * Refreshes connection at the end of its lifetime. Waits for outstanding
+     * sendSafeAsync() receipts before closing it, then makes one attempt to
+     * reopen it, unless the circuit to the broker is open, and leaves further
+     * attempts to the background reconnect task so the caller does not wait
+     * them out.
      */
     public void refreshConnection()
             throws TooManyConnectionRetryAttemptsException {
@@ -208,22 +450,125 @@ public class ProducerImpl implements Producer {
             log.warn("This producer is not running, skip refreshing connection.");
             return;
         }
-        try {
-            log.debug("Refreshing connection with the broker "
-                    + config.getBroker());
-            synchronized (connectionAccessLock) {
-                stopConnection();
-                startConnection();
-            }
-        } catch (Exception e) {
+        log.debug("Refreshing connection with the broker "
+                + config.getBroker());
+        boolean done;
+        synchronized (connectionAccessLock) {
+            stopConnection();
+            done = breaker.allowRequest() && connectOnce();
+        }
+        if (!done) {
             log.error("Failed to refresh connection with the broker for config:"
-                    + gson.toJson(config));
+                    + gson.toJson(config) + ", retrying in "
+                    + breaker.getRetryDelay() + " ms");
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Replaces a connection a send failed on, unless another sender already
+     * has. The broken connection is closed without waiting for its
+     * outstanding receipts, which fail. One attempt is made to reopen it,
+     * unless the circuit to the broker is open, further ones are left to the
+     * background reconnect task.
+     * 
+     * @param failedGeneration
+     *            connectionGeneration of the connection that failed, or -1
+     *            if it was only seen to be down.
+     */
+    private void recoverConnection(int failedGeneration) {
+        if (this.status != Status.RUNNING) {
+            return;
+        }
+        boolean done;
+        synchronized (connectionAccessLock) {
+            if (connected && failedGeneration != connectionGeneration) {
+                return;
+            }
+            log.debug("Reconnecting to the broker " + config.getBroker());
+            connected = false;
+            closeConnection();
+            done = breaker.allowRequest() && connectOnce();
+        }
+        if (!done) {
+            log.error("Failed to reconnect to the broker for config:"
+                    + gson.toJson(config) + ", retrying in "
+                    + breaker.getRetryDelay() + " ms");
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * @return false while the connection is down and being reopened in the
+     *         background. Sends fail right away until it is back.
+     */
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return the sendSafeAsync() receipts not confirmed yet.
+     */
+    int getPendingReceiptCount() {
+        return connection.getPendingReceiptCount();
+    }
+
+    /**
+     * @return true once connection attempts have failed
+     *         circuitBreakerThreshold times in a row, until one succeeds.
+     */
+    boolean isCircuitOpen() {
+        return breaker != null
+                && breaker.getState() != CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * Reopens the connection after the breaker's backoff delay, unless an
+     * attempt is already scheduled.
+     */
+    private void scheduleReconnect() {
+        if (status != Status.RUNNING
+                || !reconnectScheduled.compareAndSet(false, true)) {
+            return;
         }
+        RECONNECTS.schedule(new Runnable() {
+            public void run() {
+                reconnectScheduled.set(false);
+                boolean done;
+                synchronized (connectionAccessLock) {
+                    if (status != Status.RUNNING || connected) {
+                        return;
+                    }
+                    done = breaker.allowRequest() && connectOnce();
+                }
+                if (done) {
+                    log.info("Reconnected to the broker " + config.getBroker());
+                } else {
+                    scheduleReconnect();
+                }
+            }
+        }, breaker.getRetryDelay(), TimeUnit.MILLISECONDS);
+    }
 
+    /**
+     * Tries to reopen a connection that is down once. Fails fast without
+     * trying while the circuit is open.
+     */
+    private void ensureConnected() throws SendFailedException {
+        if (connected) {
+            return;
+        }
+        recoverConnection(-1);
+        if (!connected) {
+            throw new SendFailedException("Connection to the broker "
+                    + config.getBroker() + " is down, circuit "
+                    + breaker.getState() + ", next attempt in "
+                    + breaker.getRetryDelay() + " ms");
+        }
     }
 
-    private void sendInternal(Message message, Map<String, String> headers,
-            boolean isSafeSend, String destinationName)
+    private ReceiptFuture sendInternal(Message message,
+            Map<String, String> headers, SendMode mode, String destinationName)
             throws SendFailedException, TooManyConnectionRetryAttemptsException {
         if (this.status != Status.RUNNING) {
             throw new InvalidStatusException(
@@ -234,11 +579,23 @@ public class ProducerImpl implements Producer {
 
         if (destinationName == null)
             destinationName = config.getDestinationName();
+        String transaction = batch.get();
+        headers = withPartitionKeyHeader(
+                withTransactionHeader(withEncodingHeader(headers), transaction),
+                message.getPartitionKey());
+        int maxAttempts = maxAttempts(transaction);
         int attempt = 0;
+        int generation = -1;
         boolean done = false;
-        while (!done && attempt++ < config.getPublishMaxRetryAttempts()) {
+        ReceiptFuture receipt = null;
+        while (!done && attempt++ < maxAttempts) {
+            ensureConnected();
+            if (mode == SendMode.SAFE_ASYNC) {
+                reserveReceiptSlot();
+            }
             try {
                 synchronized (connectionAccessLock) {
+                    generation = connectionGeneration;
 
                     sendStartTime = System.currentTimeMillis();
                     if (config.isVerboseLog()) {
@@ -247,12 +604,18 @@ public class ProducerImpl implements Producer {
                                 + ", message_id="+ message.getMessageId()
                                 + ", message contents=" + message.getMessageInternal().toString());
                     }
-                    if (isSafeSend) {
+                    switch (mode) {
+                    case SAFE:
                         connection.sendSafe(destinationName,
-                                Utils.getThriftDataAsBytes(message), headers);
-                    } else {
+                                encode(message), headers);
+                        break;
+                    case SAFE_ASYNC:
+                        receipt = connection.sendSafeAsync(destinationName,
+                                encode(message), headers);
+                        break;
+                    default:
                         connection.send(destinationName,
-                                Utils.getThriftDataAsBytes(message), headers);
+                                encode(message), headers);
                     }
                     if (config.isVerboseLog()) {
                         log.info("result=success destination_name=" + destinationName
@@ -264,12 +627,13 @@ public class ProducerImpl implements Producer {
                 }
             } catch (Exception e) {
                 log.warn(
-                        "Failed attempt (" + attempt + "/"
-                                + config.getPublishMaxRetryAttempts()
+                        "Failed attempt (" + attempt + "/" + maxAttempts
                                 + ") sending message to the broker "
                                 + config.getBroker()
-                                + ". Refreshing connection.", e);
-                refreshConnection();
+                                + ". Reconnecting.", e);
+                recoverConnection(generation);
+            } finally {
+                connection.releaseReceiptSlot();
             }
         }
 
@@ -280,12 +644,182 @@ public class ProducerImpl implements Producer {
                     + "ms" 
                     + ", message_contents=" + message.getMessageInternal());
             throw new SendFailedException("Failed to send message in "
-                    + config.getPublishMaxRetryAttempts()
+                    + maxAttempts + " attempts to broker:" + config.getBroker());
+        }
+        return receipt;
+    }
+
+    /**
+     * Waits for room among the outstanding sendSafeAsync() receipts before
+     * the caller takes connectionAccessLock, so a full window only holds up
+     * this sender.
+     * 
+     * @throws SendFailedException
+     *             if no receipt made room in time.
+     */
+    private void reserveReceiptSlot() throws SendFailedException {
+        try {
+            connection.reserveReceiptSlot(StompConnection.RECEIVE_TIMEOUT);
+        } catch (IOException e) {
+            // Not connected: the send fails under the lock and reconnects.
+        }
+    }
+
+    private void sendBatchInternal(List<Message> messages,
+            Map<String, String> headers, SendMode mode, String destinationName)
+            throws SendFailedException, TooManyConnectionRetryAttemptsException {
+        if (this.status != Status.RUNNING) {
+            throw new InvalidStatusException(
+                    "This producer is not running and cannot publish. Status="
+                            + this.status);
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        if (destinationName == null)
+            destinationName = config.getDestinationName();
+        String transaction = batch.get();
+        headers = withPartitionKeyHeader(
+                withTransactionHeader(withEncodingHeader(headers), transaction),
+                commonPartitionKey(messages));
+        int maxAttempts = maxAttempts(transaction);
+
+        // Serialize outside the connection lock.
+        List<byte[]> payloads = new ArrayList<byte[]>(messages.size());
+        try {
+            for (Message message : messages) {
+                payloads.add(encode(message));
+            }
+        } catch (Exception e) {
+            throw new SendFailedException(e);
+        }
+
+        int attempt = 0;
+        int generation = -1;
+        boolean done = false;
+        while (!done && attempt++ < maxAttempts) {
+            ensureConnected();
+            try {
+                synchronized (connectionAccessLock) {
+                    generation = connectionGeneration;
+                    sendStartTime = System.currentTimeMillis();
+                    if (mode == SendMode.SAFE) {
+                        connection.sendSafe(destinationName, payloads, headers);
+                    } else {
+                        connection.send(destinationName, payloads, headers);
+                    }
+                    if (config.isVerboseLog()) {
+                        log.info("result=success destination_name=" + destinationName
+                                + ", batch_size=" + messages.size()
+                                + ", duration=" + (System.currentTimeMillis() - sendStartTime)
+                                + "ms");
+                    }
+                    done = true;
+                }
+            } catch (Exception e) {
+                log.warn(
+                        "Failed attempt (" + attempt + "/" + maxAttempts
+                                + ") sending a batch of " + messages.size()
+                                + " messages to the broker "
+                                + config.getBroker()
+                                + ". Reconnecting.", e);
+                recoverConnection(generation);
+            }
+        }
+
+        if (!done) {
+            log.error("Failed to publish result=fail destination_name=" + destinationName
+                    + ", batch_size=" + messages.size()
+                    + ", duration=" + (System.currentTimeMillis() - sendStartTime)
+                    + "ms");
+            throw new SendFailedException("Failed to send batch of "
+                    + messages.size() + " messages in " + maxAttempts
                     + " attempts to broker:" + config.getBroker());
         }
     }
 
+    private byte[] encode(Message message) throws TException,
+            UnsupportedEncodingException {
+        return config.isUseBinaryEncoding() ? Utils.getThriftData(message)
+                : Utils.getThriftDataAsBytes(message);
+    }
+
+    /**
+     * Tags binary bodies so consumers know not to Base64 decode them.
+     */
+    private Map<String, String> withEncodingHeader(Map<String, String> headers) {
+        if (!config.isUseBinaryEncoding()) {
+            return headers;
+        }
+        Map<String, String> result = headers == null ? new HashMap<String, String>()
+                : new HashMap<String, String>(headers);
+        result.put(Utils.MESSAGE_ENCODING_HEADER, Utils.BINARY_ENCODING);
+        return result;
+    }
+
+    /**
+     * Tags sends that are part of a batch with its transaction id.
+     */
+    private Map<String, String> withTransactionHeader(
+            Map<String, String> headers, String transaction) {
+        if (transaction == null) {
+            return headers;
+        }
+        Map<String, String> result = headers == null ? new HashMap<String, String>()
+                : new HashMap<String, String>(headers);
+        result.put(Stomp.Headers.TRANSACTION, transaction);
+        return result;
+    }
+
+    /**
+     * Tags sends with their message's partition key, unless the caller's
+     * headers already carry one.
+     */
+    private Map<String, String> withPartitionKeyHeader(
+            Map<String, String> headers, String key) {
+        if (key == null || headers != null
+                && headers.containsKey(Message.PARTITION_KEY_HEADER)) {
+            return headers;
+        }
+        Map<String, String> result = headers == null ? new HashMap<String, String>()
+                : new HashMap<String, String>(headers);
+        result.put(Message.PARTITION_KEY_HEADER, key);
+        return result;
+    }
+
+    /**
+     * A batch shares one set of headers, so it is tagged only when all of
+     * its messages have the same key.
+     */
+    private static String commonPartitionKey(List<Message> messages) {
+        String key = messages.get(0).getPartitionKey();
+        for (Message message : messages) {
+            if (key == null || !key.equals(message.getPartitionKey())) {
+                return null;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * A retry would go out on a new connection, where the broker no longer
+     * knows the batch's transaction, so sends inside a batch get one attempt.
+     */
+    private int maxAttempts(String transaction) {
+        return transaction == null ? config.getPublishMaxRetryAttempts() : 1;
+    }
+
     private void stopConnection() {
+        connected = false;
+        if (!connection.awaitPendingReceipts(RECEIPT_DRAIN_TIMEOUT)) {
+            log.warn("Closing connection with " + connection.getPendingReceiptCount()
+                    + " receipts still outstanding from broker " + config.getBroker());
+        }
+        closeConnection();
+    }
+
+    private void closeConnection() {
         try {
             connection.close();
         } catch (IOException e) {
@@ -299,16 +833,9 @@ public class ProducerImpl implements Producer {
         int retryCount = 0;
         boolean done = false;
         while (!done && retryCount++ < MAX_RETRY_COUNT) {
-            try {
-                connection.open(config.getBroker().getHost(), config
-                        .getBroker().getPort());
-                connection.connect(config.getUserName(), config.getPassword());
-                done = true;
-            } catch (Exception e) {
-                log.debug(
-                        "Exception connecting to the broker " + config.getBroker()
-                                + " retrying attempt:" + retryCount, e);
-                Utils.sleep(REST_INTERVAL);
+            done = connectOnce();
+            if (!done && retryCount < MAX_RETRY_COUNT) {
+                Utils.sleep(breaker.getRetryDelay());
             }
         }
 
@@ -319,31 +846,62 @@ public class ProducerImpl implements Producer {
         }
     }
 
-    private void validateConfigs(ProducerConfig aConfig)
+    /**
+     * Opens the connection and reports the outcome to the breaker.
+     */
+    private boolean connectOnce() {
+        try {
+            connection.open(config.getBroker().getHost(), config.getBroker()
+                    .getPort());
+            connection.connect(config.getUserName(), config.getPassword());
+            connectionGeneration++;
+            connected = true;
+            breaker.onSuccess();
+            return true;
+        } catch (Exception e) {
+            breaker.onFailure();
+            log.debug("Exception connecting to the broker "
+                    + config.getBroker() + ", circuit " + breaker.getState(),
+                    e);
+            return false;
+        }
+    }
+
+    void validateConfigs(ProducerConfig aConfig)
             throws InvalidConfigException {
         if (aConfig.getDestinationName() == null) {
             throw new InvalidConfigException("Destination name can not be null");
 
         }
         if (aConfig.getDestinationType() == DestinationType.QUEUE) {
-            if (config.getDestinationName().indexOf(QUEUE_NAME_PREFIX) != 0) {
+            if (aConfig.getDestinationName().indexOf(QUEUE_NAME_PREFIX) != 0) {
                 String message = "Invalid destination/queue name: "
-                        + config.getDestinationName()
+                        + aConfig.getDestinationName()
                         + ". Queue name must start with " + QUEUE_NAME_PREFIX;
                 log.error(message);
                 throw new InvalidConfigException(message);
             }
         }
         if (aConfig.getDestinationType() == DestinationType.TOPIC) {
-            if (config.getDestinationName().indexOf(TOPIC_NAME_PREFIX) != 0) {
+            if (aConfig.getDestinationName().indexOf(TOPIC_NAME_PREFIX) != 0) {
                 String message = "Invalid destination/topic name: "
-                        + config.getDestinationName()
+                        + aConfig.getDestinationName()
                         + ". Topic name must start with " + TOPIC_NAME_PREFIX;
                 log.error(message);
                 throw new InvalidConfigException(message);
 
             }
         }
+        if (aConfig.getReconnectBackoffMin() < 1
+                || aConfig.getReconnectBackoffMax() < aConfig
+                        .getReconnectBackoffMin()) {
+            throw new InvalidConfigException(
+                    "Need 0 < reconnectBackoffMin <= reconnectBackoffMax");
+        }
+        if (aConfig.getCircuitBreakerThreshold() < 1) {
+            throw new InvalidConfigException(
+                    "circuitBreakerThreshold must be at least 1");
+        }
     }
 }
 
@@ -364,7 +922,7 @@ class RefreshConnectionTimerTask extends TimerTask {
     @Override
     public void run() {
         try {
-            producer.refreshConnection();
+            producer.refreshConnectionIfIdle();
         } catch (Exception e) {
             log.error("Could not refresh connection", e);
         }
@@ -0,0 +1,378 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.groupon.messagebus.api.ConsumerConfig;
+import com.groupon.messagebus.api.exceptions.BrokerConnectionFailedException;
+import com.groupon.messagebus.api.exceptions.TooManyConnectionRetryAttemptsException;
+import com.groupon.messagebus.util.CircuitBreaker;
+import com.groupon.stomp.Stomp;
+import com.groupon.stomp.StompConnection;
+import com.groupon.stomp.StompFrame;
+
+/**
+ * One connection to a broker carrying the subscriptions of several
+ * destinations. Each subscription is a StompServerFetcher sending its own
+ * SUBSCRIBE, ACK and CREDIT frames; the single reader thread here routes
+ * MESSAGE frames to them by their subscription header.
+ *
+ * Broker credit is per connection, so a subscription nobody receives from
+ * keeps its prefetched messages' credit until it is closed.
+ */
+class SharedConnection implements Runnable {
+
+    private static long FETCHER_TIMEOUT = 300000;
+    private static final int MAX_RETRY_COUNT = 3;
+
+    private Logger log = Logger.getLogger(SharedConnection.class);
+    private final MultiplexConsumer owner;
+    private final String host;
+    private final int port;
+    private final ConsumerConfig config;
+    private final StompConnection connection;
+    private final Object lock = new Object();
+    private final AckReceiptRegistry ackReceipts = new AckReceiptRegistry();
+    private final CircuitBreaker breaker;
+    // Subscribed fetchers by subscription id.
+    private final Map<String, StompServerFetcher> subscriptions = new ConcurrentHashMap<String, StompServerFetcher>();
+    // Fetchers created on this connection and not closed yet. Guarded by
+    // owner.
+    private int members = 0;
+    private volatile boolean keepRunning = true;
+    // Counts successful connects. Only written with the lock held.
+    private volatile int generation = 0;
+    private boolean readerStarted = false;
+
+    SharedConnection(MultiplexConsumer aOwner, String aHost, int aPort,
+            ConsumerConfig aConfig, StompConnection aConnection) {
+        owner = aOwner;
+        host = aHost;
+        port = aPort;
+        config = aConfig;
+        connection = aConnection;
+        breaker = StompServerFetcher.newCircuitBreaker(aConfig);
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    StompConnection getConnection() {
+        return connection;
+    }
+
+    Object getLock() {
+        return lock;
+    }
+
+    /**
+     * @return a number that changes every time the connection is reopened,
+     *         see reconnect().
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    AckReceiptRegistry getAckReceipts() {
+        return ackReceipts;
+    }
+
+    /**
+     * @return the number of destinations subscribed over this connection.
+     */
+    int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Counts a fetcher created on this connection. Called with the owner
+     * locked.
+     */
+    void join() {
+        members++;
+    }
+
+    /**
+     * Subscribes a fetcher, connecting and starting the reader thread on the
+     * first one.
+     */
+    void subscribe(StompServerFetcher fetcher) {
+        synchronized (lock) {
+            subscriptions.put(fetcher.getConfig().getSubscriptionId(), fetcher);
+            if (connection.isConnected()) {
+                try {
+                    fetcher.sendSubscribe();
+                } catch (IOException e) {
+                    // subscribed again on reconnect
+                    log.warn("Failed to subscribe to "
+                            + fetcher.getConfig().getDestinationName() + " on "
+                            + this, e);
+                    closeQuietly();
+                }
+            }
+            if (!readerStarted) {
+                readerStarted = true;
+                Thread thread = owner.getThreadFactory().newThread(this);
+                thread.setName("mbus-mux-" + host + ":" + port);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Unsubscribes a closed fetcher, and closes the connection once no
+     * fetcher is left on it.
+     */
+    void unsubscribe(StompServerFetcher fetcher) {
+        synchronized (lock) {
+            if (subscriptions.remove(fetcher.getConfig().getSubscriptionId()) != null
+                    && connection.isConnected()) {
+                try {
+                    fetcher.sendUnsubscribe();
+                } catch (IOException e) {
+                    log.debug("Failed to unsubscribe on " + this, e);
+                }
+            }
+        }
+        owner.leave(this);
+    }
+
+    /**
+     * Called by the owner, with the owner locked, when a fetcher closes.
+     * 
+     * @return true if this was the last fetcher and the connection closed.
+     */
+    boolean leave() {
+        if (--members > 0) {
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    void close() {
+        keepRunning = false;
+        ackReceipts.failAll("Connection closed before receipt arrived");
+        synchronized (lock) {
+            try {
+                if (connection.isConnected()) {
+                    connection.disconnect();
+                    connection.close();
+                }
+            } catch (IOException e) {
+                log.error("Error while closing the connection " + this, e);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (keepRunning) {
+            try {
+                refreshConnection();
+                readFrame();
+            } catch (BrokerConnectionFailedException be) {
+                long delay = breaker.getRetryDelay();
+                log.info(be.getMessage() + " going to sleep for " + delay
+                        + " ms", be);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    log.info("Interrupted: ", e);
+                }
+            } catch (Exception e) {
+                log.info("Exception in thread:", e);
+            }
+        }
+    }
+
+    private void readFrame() throws IOException,
+            TooManyConnectionRetryAttemptsException, InterruptedException {
+        StompFrame frame;
+        int seenGeneration = generation;
+        try {
+            frame = connection.receive(FETCHER_TIMEOUT);
+        } catch (IOException e) {
+            if (keepRunning) {
+                log.debug("IOException received, server may have dropped the connection. Refreshing");
+                reconnect(MAX_RETRY_COUNT, seenGeneration);
+            }
+            return;
+        }
+        if (frame == null || frame.getAction() == null) {
+            return;
+        }
+
+        String receiptId = frame.getHeaders().get("receipt-id");
+        if (receiptId != null && ackReceipts.dispatch(receiptId, frame)) {
+            return;
+        }
+        if (frame.getAction().equals("ERROR")) {
+            log.warn("Error frame received from server:" + this + "\n"
+                    + frame.getBody());
+        } else if (frame.getAction().equalsIgnoreCase(Stomp.Responses.MESSAGE)) {
+            String subscriptionId = frame.getHeaders().get(
+                    Stomp.Headers.Message.SUBSCRIPTION);
+            StompServerFetcher fetcher = subscriptionId == null ? null
+                    : subscriptions.get(subscriptionId);
+            if (fetcher != null) {
+                fetcher.deliver(frame);
+            } else {
+                returnMessage(frame, subscriptionId);
+            }
+        }
+    }
+
+    /**
+     * Hands back a message for a subscription that was closed while it was
+     * on its way, and the credit it used.
+     */
+    private void returnMessage(StompFrame frame, String subscriptionId)
+            throws IOException {
+        String messageId = frame.getHeaders().get(
+                Stomp.Headers.Message.MESSAGE_ID);
+        log.debug("Returning message " + messageId
+                + " for unknown subscription " + subscriptionId + " on "
+                + this);
+        synchronized (lock) {
+            connection.nack(messageId, subscriptionId);
+            connection.credit(messageId);
+        }
+    }
+
+    private void refreshConnection() throws BrokerConnectionFailedException {
+        try {
+            boolean stale;
+            synchronized (lock) {
+                stale = keepRunning && !connection.isConnected();
+            }
+            if (stale) {
+                log.debug("Refreshing the connection with broker " + this
+                        + " ...");
+                reconnect(MAX_RETRY_COUNT, generation);
+            }
+        } catch (IOException e) {
+            throw new BrokerConnectionFailedException(e.getMessage());
+        } catch (TooManyConnectionRetryAttemptsException e) {
+            throw new BrokerConnectionFailedException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reopens the connection and subscribes every fetcher on it again. Makes
+     * up to maxAttempts attempts, waiting out the breaker's backoff delay
+     * between them without holding the lock; fetchers pass 1 so their
+     * callers do not wait, and the reader thread keeps trying.
+     * 
+     * @param failedGeneration
+     *            getGeneration() taken before the read or write that failed.
+     *            If the connection has been reopened since, it is left
+     *            alone: each reopen subscribes every destination again and
+     *            loses the messages in flight, so several fetchers failing
+     *            on the same connection must not reopen it once each.
+     */
+    void reconnect(int maxAttempts, int failedGeneration) throws IOException,
+            TooManyConnectionRetryAttemptsException {
+        for (int attempt = 1;; attempt++) {
+            synchronized (lock) {
+                // Another thread may have reconnected since the failure, or
+                // while we waited.
+                if ((attempt > 1 || generation != failedGeneration)
+                        && connection.isConnected()) {
+                    return;
+                }
+                connection.close();
+                if (!keepRunning) {
+                    return;
+                }
+                if (breaker.allowRequest() && connect()) {
+                    return;
+                }
+            }
+            if (attempt >= maxAttempts) {
+                throw new TooManyConnectionRetryAttemptsException(
+                        "Can not connect to the broker " + this + " after "
+                                + attempt + " attempts, circuit "
+                                + breaker.getState());
+            }
+            Utils.sleep(breaker.getRetryDelay());
+        }
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private boolean connect() {
+        try {
+            connection.setUseNio(config.isUseNioTransport());
+            connection.open(host, port);
+            connection.connect(config.getUserName(), config.getPassword(),
+                    config.getSubscriptionId());
+            for (StompServerFetcher fetcher : subscriptions.values()) {
+                fetcher.sendSubscribe();
+            }
+            generation++;
+            breaker.onSuccess();
+            log.debug("Connection established successfully with the broker "
+                    + this);
+            return true;
+        } catch (Exception e) {
+            breaker.onFailure();
+            log.debug("Error connecting broker " + this + ", circuit "
+                    + breaker.getState(), e);
+            closeQuietly();
+            return false;
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            log.debug("Error closing connection " + this, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,515 @@
+package com.groupon.messagebus.client;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.thrift.TException;
+
+import com.groupon.messagebus.api.Message;
+import com.groupon.messagebus.api.Producer;
+import com.groupon.messagebus.api.ProducerConfig;
+import com.groupon.messagebus.api.ReceiptFuture;
+import com.groupon.messagebus.api.exceptions.BrokerConnectionCloseFailedException;
+import com.groupon.messagebus.api.exceptions.InvalidConfigException;
+import com.groupon.messagebus.api.exceptions.InvalidStatusException;
+import com.groupon.messagebus.api.exceptions.SendFailedException;
+import com.groupon.messagebus.api.exceptions.TooManyConnectionRetryAttemptsException;
+import com.groupon.messagebus.util.SpoolJournal;
+import com.groupon.messagebus.util.ThreadFactories;
+
+/**
+ * A store-and-forward {@link Producer}. Sends append the message to a
+ * journal of memory-mapped files in a local directory and return without
+ * talking to the broker; a background thread replays the journal to the
+ * broker in batches of safe sends and deletes journal segments once their
+ * receipts are in. Send latency does not depend on the broker being up.
+ * <p/>
+ * send() leaves flushing the journal to the OS. sendSafe() and
+ * sendSafeAsync() force it to disk before returning, so a spooled message
+ * survives a crash of the machine; the returned ReceiptFuture is already
+ * complete. Messages still spooled when the producer stops are sent by the
+ * next SpoolingProducer started on the same directory. Delivery is at least
+ * once: a batch whose receipts did not all arrive is sent again.
+ * <p/>
+ * A spooled message that cannot be read back, or that the broker turned
+ * down maxDeliveryAttempts times in a row while it was reachable, is moved
+ * to the spool directory's dead letter file (see
+ * {@link SpoolJournal#DEAD_LETTER_FILE}) so it does not hold up the rest.
+ * <p/>
+ * A batch (beginBatch() to commit()) is held in memory and spooled as a
+ * whole on commit, but is not sent to the broker as one transaction.
+ */
+public class SpoolingProducer extends DelegatingProducer {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_MAX_SPOOL_SIZE = 1024L * 1024 * 1024;
+    public static final int DEFAULT_DRAIN_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_DELIVERY_ATTEMPTS = 5;
+
+    private static final long IDLE_WAIT = 1000;
+    private static final long REST_INTERVAL = 1000;
+    private static final long STOP_TIMEOUT = 10000;
+
+    private Logger log = Logger.getLogger(SpoolingProducer.class);
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxSpoolSize;
+    private final ProducerImpl delegate = new ProducerImpl();
+    // Held to stop the delegate, so the drainer and stop() do it once.
+    private final Object delegateLock = new Object();
+    private ProducerConfig config;
+    private volatile Status status = Status.INITIALIZED;
+    private SpoolJournal journal;
+    private Thread drainer;
+    private int drainBatchSize = DEFAULT_DRAIN_BATCH_SIZE;
+    private int maxDeliveryAttempts = DEFAULT_MAX_DELIVERY_ATTEMPTS;
+    // Records of the calling thread's open batch.
+    private final ThreadLocal<List<byte[]>> batch = new ThreadLocal<List<byte[]>>();
+
+    public SpoolingProducer(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SPOOL_SIZE);
+    }
+
+    /**
+     * @param segmentSize
+     *            bytes per journal file.
+     * @param maxSpoolSize
+     *            bytes the journal may take on disk; sends fail once it is
+     *            full.
+     */
+    public SpoolingProducer(File directory, int segmentSize, long maxSpoolSize) {
+        if (segmentSize < 1 || maxSpoolSize < segmentSize) {
+            throw new IllegalArgumentException(
+                    "Need 0 < segmentSize <= maxSpoolSize");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSpoolSize = maxSpoolSize;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public int getDrainBatchSize() {
+        return drainBatchSize;
+    }
+
+    /**
+     * Sets how many spooled messages are sent to the broker per safe batch.
+     * Set before start().
+     */
+    public void setDrainBatchSize(int drainBatchSize) {
+        this.drainBatchSize = drainBatchSize;
+    }
+
+    public int getMaxDeliveryAttempts() {
+        return maxDeliveryAttempts;
+    }
+
+    /**
+     * Sets how many times in a row the broker may turn a spooled message
+     * down before it is moved to the dead letter file. Set before start().
+     */
+    public void setMaxDeliveryAttempts(int maxDeliveryAttempts) {
+        this.maxDeliveryAttempts = maxDeliveryAttempts;
+    }
+
+    /**
+     * @return the number of spooled messages the broker has not confirmed.
+     */
+    public int getSpooledCount() {
+        return journal == null ? 0 : journal.getPendingCount();
+    }
+
+    /**
+     * Waits up to timeout ms for every spooled message to reach the broker.
+     *
+     * @return true if nothing is left in the spool.
+     */
+    public boolean awaitDrained(long timeout) throws InterruptedException {
+        return journal == null || journal.awaitEmpty(timeout);
+    }
+
+    /**
+     * Opens the spool and starts draining it. Does not wait for the broker.
+     */
+    public void start(ProducerConfig aConfig) throws InvalidConfigException,
+            TooManyConnectionRetryAttemptsException, InvalidStatusException {
+        if (status != Status.INITIALIZED) {
+            throw new InvalidStatusException(
+                    "Producer cannot be started. Status=" + status);
+        }
+        delegate.validateConfigs(aConfig);
+        config = new ProducerConfig(aConfig);
+        try {
+            journal = new SpoolJournal(directory, segmentSize, maxSpoolSize);
+        } catch (IOException e) {
+            log.error("Cannot open spool directory " + directory, e);
+            throw new InvalidConfigException("Cannot open spool directory "
+                    + directory + ": " + e.getMessage());
+        }
+        status = Status.RUNNING;
+        drainer = ThreadFactories.newThreadFactory("mbus-spool-drainer-", false)
+                .newThread(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                });
+        drainer.start();
+    }
+
+    public void refreshConnection()
+            throws TooManyConnectionRetryAttemptsException {
+        if (delegate.getStatus() == Status.RUNNING) {
+            delegate.refreshConnection();
+        }
+    }
+
+    /**
+     * Stops the drainer after its current batch and closes the spool. What
+     * is still spooled stays on disk.
+     */
+    public void stop() throws BrokerConnectionCloseFailedException,
+            InvalidStatusException {
+        switch (status) {
+        case RUNNING:
+            break;
+        case STOPPED:
+            log.info("Producer is already stopped, nothing to do.");
+            return;
+        case INITIALIZED:
+            throw new InvalidStatusException(
+                    "Producer cannot be stopped. Status=" + status);
+        }
+        status = Status.STOPPED;
+        try {
+            drainer.join(STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (drainer.isAlive()) {
+            log.warn("Spool drainer still busy after " + STOP_TIMEOUT
+                    + "ms, interrupting it");
+            // It stops the delegate itself if it is still starting it.
+            drainer.interrupt();
+        }
+        journal.close();
+        stopDelegate();
+    }
+
+    private void stopDelegate() throws BrokerConnectionCloseFailedException {
+        synchronized (delegateLock) {
+            if (delegate.getStatus() == Status.RUNNING) {
+                delegate.stop();
+            }
+        }
+    }
+
+    ReceiptFuture dispatch(SendMode mode, List<Message> messages,
+            boolean batch, String destinationName, Map<String, String> headers)
+            throws SendFailedException {
+        spool(messages, destinationName, headers,
+                mode != SendMode.FIRE_AND_FORGET);
+        return mode == SendMode.SAFE_ASYNC ? SPOOLED : null;
+    }
+
+    public void beginBatch() {
+        checkRunning();
+        if (batch.get() != null) {
+            throw new InvalidStatusException(
+                    "A batch is already open on this thread.");
+        }
+        batch.set(new ArrayList<byte[]>());
+    }
+
+    /**
+     * Spools the batch and forces it to disk.
+     */
+    public void commit() throws SendFailedException {
+        List<byte[]> records = endBatch();
+        try {
+            journal.append(records, true);
+        } catch (IOException e) {
+            throw new SendFailedException(e);
+        }
+    }
+
+    public void abort() {
+        endBatch();
+    }
+
+    private List<byte[]> endBatch() {
+        List<byte[]> records = batch.get();
+        if (records == null) {
+            throw new InvalidStatusException("No batch is open on this thread.");
+        }
+        batch.remove();
+        return records;
+    }
+
+    private void spool(List<Message> messages, String destinationName,
+            Map<String, String> headers, boolean force)
+            throws SendFailedException {
+        checkRunning();
+        if (destinationName == null) {
+            destinationName = config.getDestinationName();
+        }
+        List<byte[]> records = new ArrayList<byte[]>(messages.size());
+        try {
+            for (Message message : messages) {
+                records.add(encode(destinationName, headers, message));
+            }
+        } catch (Exception e) {
+            throw new SendFailedException(e);
+        }
+        List<byte[]> open = batch.get();
+        if (open != null) {
+            open.addAll(records);
+            return;
+        }
+        try {
+            journal.append(records, force);
+        } catch (IOException e) {
+            throw new SendFailedException(e);
+        }
+    }
+
+    private void checkRunning() {
+        if (status != Status.RUNNING) {
+            throw new InvalidStatusException(
+                    "This producer is not running and cannot publish. Status="
+                            + status);
+        }
+    }
+
+    /**
+     * Sends the spool to the broker until the producer stops. A batch that
+     * fails is retried after a pause. If the broker was reachable and turned
+     * it down, the following records go one at a time until the one it
+     * failed on is found, which is dead lettered after maxDeliveryAttempts.
+     */
+    private void drain() {
+        // Records left to send one at a time, and how often in a row the
+        // broker has turned down the oldest one.
+        int isolate = 0;
+        int rejections = 0;
+        while (status == Status.RUNNING) {
+            List<SpoolJournal.Record> records = null;
+            try {
+                records = journal.peek(isolate > 0 ? 1 : drainBatchSize,
+                        IDLE_WAIT);
+                if (records.isEmpty()) {
+                    continue;
+                }
+                if (delegate.getStatus() != Status.RUNNING) {
+                    delegate.start(config);
+                    if (status != Status.RUNNING) {
+                        // stop() gave up waiting while we connected
+                        stopDelegate();
+                        return;
+                    }
+                }
+                replay(records);
+                rejections = 0;
+                isolate = Math.max(0, isolate - records.size());
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (status != Status.RUNNING) {
+                    continue;
+                }
+                if (records != null && isRejection()) {
+                    if (isolate == 0 && records.size() > 1) {
+                        isolate = drainBatchSize;
+                    } else if (++rejections >= maxDeliveryAttempts) {
+                        rejections = 0;
+                        deadLetter(records.get(0), "turned down "
+                                + maxDeliveryAttempts + " times", e);
+                        continue;
+                    }
+                }
+                log.warn("Failed to forward spooled messages to the broker "
+                        + config.getBroker() + ", " + getSpooledCount()
+                        + " waiting. Retrying.", e);
+                Utils.sleep(REST_INTERVAL);
+            }
+        }
+    }
+
+    /**
+     * @return true if a send failed while the broker could be reached, so
+     *         it was the broker that turned the messages down.
+     */
+    private boolean isRejection() {
+        return delegate.getStatus() == Status.RUNNING
+                && delegate.isConnected();
+    }
+
+    private void deadLetter(SpoolJournal.Record record, String reason,
+            Exception cause) {
+        log.error("Moving a spooled message " + reason + " to "
+                + journal.getDeadLetterFile(), cause);
+        try {
+            journal.deadLetter(record);
+        } catch (IOException e) {
+            log.error("Failed to dead letter a spooled message", e);
+        }
+    }
+
+    /**
+     * Sends runs of records with the same destination and headers as safe
+     * batches, marking each run delivered once its receipts are in.
+     */
+    private void replay(List<SpoolJournal.Record> records) throws Exception {
+        List<Entry> entries = new ArrayList<Entry>(records.size());
+        for (SpoolJournal.Record record : records) {
+            try {
+                entries.add(decode(record.getData()));
+            } catch (Exception e) {
+                if (entries.isEmpty()) {
+                    // would fail the same way on every retry
+                    deadLetter(record, "that cannot be read", e);
+                    return;
+                }
+                // sent once the records before it are delivered
+                break;
+            }
+        }
+        int start = 0;
+        while (start < entries.size()) {
+            Entry first = entries.get(start);
+            List<Message> messages = new ArrayList<Message>();
+            messages.add(first.message);
+            int end = start + 1;
+            while (end < entries.size()) {
+                Entry next = entries.get(end);
+                if (!next.destination.equals(first.destination)
+                        || !next.headers.equals(first.headers)) {
+                    break;
+                }
+                messages.add(next.message);
+                end++;
+            }
+            delegate.sendSafe(messages, first.destination,
+                    first.headers.isEmpty() ? null : first.headers);
+            journal.delivered(records.get(end - 1));
+            start = end;
+        }
+    }
+
+    private static byte[] encode(String destination,
+            Map<String, String> headers, Message message) throws IOException,
+            TException {
+        byte[] body = Utils.getThriftData(message);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(destination);
+        out.writeInt(headers == null ? 0 : headers.size());
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                out.writeUTF(header.getKey());
+                out.writeUTF(header.getValue());
+            }
+        }
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        String destination = in.readUTF();
+        int count = in.readInt();
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            headers.put(in.readUTF(), in.readUTF());
+        }
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return new Entry(destination, headers,
+                Utils.getMessageFromThriftBytes(body));
+    }
+
+    private static final class Entry {
+        final String destination;
+        final Map<String, String> headers;
+        final Message message;
+
+        Entry(String aDestination, Map<String, String> aHeaders,
+                Message aMessage) {
+            destination = aDestination;
+            headers = aHeaders;
+            message = aMessage;
+        }
+    }
+
+    // Returned by sendSafeAsync(): the message is already on disk.
+    private static final ReceiptFuture SPOOLED = new ReceiptFuture() {
+        public String getReceiptId() {
+            return null;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return true;
+        }
+
+        public Void get() {
+            return null;
+        }
+
+        public Void get(long timeout, TimeUnit unit) {
+            return null;
+        }
+    };
+}
@@ -1,21 +1,28 @@
 package com.groupon.messagebus.client;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Hashtable;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
 
 import com.groupon.messagebus.api.ConsumerAckType;
 import com.groupon.messagebus.api.ConsumerConfig;
 import com.groupon.messagebus.api.DestinationType;
+import com.groupon.messagebus.api.ReceiptFuture;
 import com.groupon.messagebus.api.exceptions.AckFailedException;
 import com.groupon.messagebus.api.exceptions.BrokerConnectionFailedException;
 import com.groupon.messagebus.api.exceptions.InvalidDestinationException;
 import com.groupon.messagebus.api.exceptions.KeepAliveFailedException;
 import com.groupon.messagebus.api.exceptions.NackFailedException;
 import com.groupon.messagebus.api.exceptions.TooManyConnectionRetryAttemptsException;
+import com.groupon.messagebus.util.CircuitBreaker;
+import com.groupon.messagebus.util.ExponentialBackoff;
 import com.groupon.stomp.Stomp;
 import com.groupon.stomp.Stomp.Headers.Subscribe;
 import com.groupon.stomp.StompConnection;
@@ -59,9 +66,10 @@ public class StompServerFetcher implements Runnable {
     private Logger log = Logger.getLogger(StompServerFetcher.class);
     private String host;
     private static long FETCHER_TIMEOUT = 300000;
-    private static long FAILURE_RETRY_INTERVAL = 60000;
-    private Map<String, Object> ackSafeLockMap = new Hashtable<String, Object>();
-    private Map<String, StompFrame> receiptFrameMap = new Hashtable<String, StompFrame>();
+    private final AckReceiptRegistry ackReceipts;
+    // Set when this fetcher is one subscription on a connection shared with
+    // other destinations.
+    private final SharedConnection shared;
 
     public String getHost() {
         return host;
@@ -82,8 +90,22 @@ public class StompServerFetcher implements Runnable {
     private int port;
     private ConsumerConfig config = null;
     private long receiveStartTime = 0;
+    // When SUBSCRIBE or credit last asked the broker for messages, 0 once
+    // the next MESSAGE answered it. Fetch latency is timed from here.
+    private volatile long creditRequestTime = 0;
     private long connStartTime = 0;
     private volatile boolean keepRunning = false;
+    // Set once the broker left the server list: no more credit and no
+    // reconnects, the messages already fetched are still handed out.
+    private volatile boolean draining = false;
+    // Counts successful connects of a connection this fetcher does not
+    // share, see connectionGeneration().
+    private volatile int generation = 0;
+    // When draining started or a message last arrived, whichever is later.
+    private volatile long lastDrainActivity;
+    // Time with no message arriving after which those credited before
+    // draining started are taken to be all in.
+    private static final long DRAIN_QUIET_PERIOD = 500;
     private StompConnection connection = null;
 
     public StompConnection getConnection() {
@@ -94,12 +116,25 @@ public class StompServerFetcher implements Runnable {
         this.connection = connection;
     }
 
-    private Object connectionAccessLock = new Object();
-    private final long REST_INTERVAL = 1000;
+    private final Object connectionAccessLock;
     private final int MAX_RETRY_COUNT = 3;
+    // Spaces out attempts to reopen the connection, and fails them fast
+    // while the broker is down.
+    private final CircuitBreaker breaker;
+    // Latency and load seen by this fetcher, for broker selection.
+    private final BrokerStats stats = new BrokerStats();
 
     private LinkedBlockingQueue<StompFrame> preFetchedCache = new LinkedBlockingQueue<StompFrame>();
     private volatile StompFrame lastSentMessage;
+    private volatile Runnable arrivalListener;
+    private volatile HandOffQueue handOffQueue;
+    // Messages fetched and not yet handed to the client, in either queue.
+    private final AtomicInteger prefetched = new AtomicInteger();
+    // Message ids handed out but not credited yet. Guarded by
+    // connectionAccessLock.
+    private final List<String> pendingCredits = new ArrayList<String>();
+    // Set when ConsumerConfig.ackBatchSize is greater than one.
+    private final AckBatcher ackBatcher;
 
     /**
      * Creates StompServerFetcher. You need to specify which specific host/port
@@ -120,7 +155,132 @@ public class StompServerFetcher implements Runnable {
         port = aPort;
         config = aConfig;
         connection = aConnection;
+        shared = null;
+        connectionAccessLock = new Object();
+        ackReceipts = new AckReceiptRegistry();
         keepRunning = true;
+        breaker = newCircuitBreaker(aConfig);
+        ackBatcher = aConfig != null && aConfig.getAckBatchSize() > 1 ? new AckBatcher(
+                aConfig.getAckBatchSize()) : null;
+    }
+
+    /**
+     * Creates a fetcher subscribing over a shared connection. The shared
+     * connection reads the frames and hands this fetcher the MESSAGE frames
+     * carrying its subscription id, ConsumerConfig.subscriptionId.
+     */
+    StompServerFetcher(SharedConnection aShared, ConsumerConfig aConfig) {
+        host = aShared.getHost();
+        port = aShared.getPort();
+        config = aConfig;
+        connection = aShared.getConnection();
+        shared = aShared;
+        connectionAccessLock = aShared.getLock();
+        ackReceipts = aShared.getAckReceipts();
+        keepRunning = true;
+        breaker = null;
+        ackBatcher = aConfig.getAckBatchSize() > 1 ? new AckBatcher(
+                aConfig.getAckBatchSize()) : null;
+    }
+
+    /**
+     * Starts fetching: runs this fetcher on a new thread from factory, or
+     * subscribes it on its shared connection.
+     */
+    void start(ThreadFactory factory, String threadName) {
+        if (shared != null) {
+            shared.subscribe(this);
+            return;
+        }
+        Thread thread = factory.newThread(this);
+        thread.setName(threadName);
+        thread.start();
+    }
+
+    static CircuitBreaker newCircuitBreaker(ConsumerConfig config) {
+        if (config == null) {
+            config = new ConsumerConfig();
+        }
+        return new CircuitBreaker(config.getCircuitBreakerThreshold(),
+                new ExponentialBackoff(config.getReconnectBackoffMin(),
+                        config.getReconnectBackoffMax()));
+    }
+
+    BrokerStats getStats() {
+        return stats;
+    }
+
+    ConsumerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Registers a callback run on the fetcher thread every time a message is
+     * added to the internal cache, so readers can wait instead of polling.
+     * 
+     * @param listener
+     */
+    public void setArrivalListener(Runnable listener) {
+        this.arrivalListener = listener;
+    }
+
+    /**
+     * Makes the fetcher feed the consumer's shared queue instead of its own
+     * cache.
+     * 
+     * @param queue
+     */
+    void setHandOffQueue(HandOffQueue queue) {
+        queue.register(this);
+        this.handOffQueue = queue;
+    }
+
+    /**
+     * @return the number of messages fetched from the broker that the client
+     *         has not received yet. Bounded by ConsumerConfig.prefetchSize.
+     */
+    public int getPrefetchedCount() {
+        return prefetched.get();
+    }
+
+    /**
+     * @return false once the fetcher has been closed.
+     */
+    boolean isRunning() {
+        return keepRunning;
+    }
+
+    /**
+     * Stops asking the broker for more messages, so the fetcher can be
+     * closed once the client has received and acked the ones it already
+     * fetched instead of having the broker redeliver them.
+     */
+    void drain() {
+        lastDrainActivity = System.currentTimeMillis();
+        draining = true;
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * @return true once a draining fetcher has nothing left to hand out,
+     *         wait an ack for or wait an ack receipt for, and no message has
+     *         arrived for a while, or once it has lost its connection and
+     *         with it the unacked messages.
+     */
+    boolean isDrained() {
+        if (!draining) {
+            return false;
+        }
+        if (!connection.isConnected()) {
+            return true;
+        }
+        // A shared connection's receipts are those of every subscription.
+        return prefetched.get() <= 0 && stats.getOutstanding() == 0
+                && (shared != null || ackReceipts.getPendingCount() == 0)
+                && System.currentTimeMillis() - lastDrainActivity >= DRAIN_QUIET_PERIOD;
     }
 
     /**
@@ -134,11 +294,11 @@ public class StompServerFetcher implements Runnable {
                 refreshConnection();
                 preFetchMessage();
             } catch (TooManyConnectionRetryAttemptsException tme) {
-                log.info(
-                        tme.getMessage() + " going to sleep for "
-                                + FAILURE_RETRY_INTERVAL + " ms", tme);
+                long delay = breaker.getRetryDelay();
+                log.info(tme.getMessage() + " going to sleep for " + delay
+                        + " ms", tme);
                 try {
-                    Thread.sleep(FAILURE_RETRY_INTERVAL);
+                    Thread.sleep(delay);
                 } catch (InterruptedException e) {
                     log.info("Interrupted: ", e);
                 }
@@ -160,33 +320,57 @@ public class StompServerFetcher implements Runnable {
      */
     public StompFrame receiveLast() {
         StompFrame result = preFetchedCache.poll();
-        if (result != null) {
-            lastSentMessage = result;
+        return result == null ? null : handOut(result);
+    }
+
+    /**
+     * Hands a frame this fetcher received over to the client: keeps the
+     * pointer for ack, sends credit for the next message and acks it in
+     * auto-ack mode.
+     * 
+     * @return the frame, or null if the auto-ack failed.
+     */
+    StompFrame handOut(StompFrame result) {
+        prefetched.decrementAndGet();
+        stats.onHandOut();
+        lastSentMessage = result;
+        // A draining fetcher asks the broker for nothing more.
+        if (!draining) {
             try {
                 synchronized (this.connectionAccessLock) {
-                    try {
-                        connection.credit(result);
-                    } catch (IOException ie) {
-                        log.warn(
-                                "IOException received while sending credit. Retrying connection.",
-                                ie);
-                        retryConnection();
-                        connection.credit(result);
+                    int generation = connectionGeneration();
+                    pendingCredits.add(result.getHeaders().get("message-id"));
+                    // Credit in batches of half the window. Credit right
+                    // away when nothing is left locally, so a broker that
+                    // does not honor prefetch-size still gets asked for the
+                    // next message.
+                    if (pendingCredits.size() >= Math.max(1,
+                            config.getPrefetchSize() / 2)
+                            || prefetched.get() <= 0) {
+                        try {
+                            sendPendingCredits();
+                        } catch (IOException ie) {
+                            log.warn(
+                                    "IOException received while sending credit. Retrying connection.",
+                                    ie);
+                            // The new subscription starts with a full window.
+                            retryConnection(generation);
+                        }
                     }
                 }
             } catch (Exception e) {
                 log.error("Exception while sending credit message.", e);
             }
-            if (config.getAckType() == ConsumerAckType.AUTO_CLIENT_ACK) {
-                try {
-                    ack();
-                } catch (AckFailedException e) {
-                    log.error(
-                            "Failed to auto-ack message:\n" + result.getBody()
-                                    + "\nExpect to receive this message again",
-                            e);
-                    return null;
-                }
+        }
+        if (config.getAckType() == ConsumerAckType.AUTO_CLIENT_ACK) {
+            try {
+                ack(result);
+            } catch (AckFailedException e) {
+                log.error(
+                        "Failed to auto-ack message:\n" + result.getBody()
+                                + "\nExpect to receive this message again",
+                        e);
+                return null;
             }
         }
 
@@ -204,24 +388,38 @@ public class StompServerFetcher implements Runnable {
     public void ack() throws AckFailedException {
 
         if (null != lastSentMessage)
-            ack(lastSentMessage.getHeaders().get(
-                    Stomp.Headers.Message.MESSAGE_ID), lastSentMessage
-                    .getHeaders().get("connection-id"));
+            ack(lastSentMessage);
         else {
             log.warn("WARNING: Unidentified ack message. This may happen in case client sends ack before receiving the message, ignoring ...");
         }
     }
 
+    /**
+     * Acks a frame handed out by this fetcher.
+     */
+    void ack(StompFrame frame) throws AckFailedException {
+        ack(frame.getHeaders().get(Stomp.Headers.Message.MESSAGE_ID), frame
+                .getHeaders().get("connection-id"));
+    }
+
     public void ack(String messageId, String connectionId)
             throws AckFailedException {
+        stats.onAcked(1);
+        if (ackBatcher != null) {
+            if (ackBatcher.add(messageId, connectionId)) {
+                flushAcks();
+            }
+            return;
+        }
         try {
             synchronized (connectionAccessLock) {
+                int generation = connectionGeneration();
                 try {
                     connection.ack(messageId, null, config.getSubscriptionId(),
                             connectionId, null);
                 } catch (IOException ie) {
                     log.warn("IOException received while sending ack. Retrying connection.",ie);
-                    retryConnection();
+                    retryConnection(generation);
                     connection.ack(messageId, null, config.getSubscriptionId(),
                             connectionId, null);
                 }
@@ -231,71 +429,243 @@ public class StompServerFetcher implements Runnable {
         }
     }
 
+    /**
+     * Writes the acks held back by ConsumerConfig.ackBatchSize. Runs when a
+     * batch fills up, from the consumer's flush timer and on close.
+     * 
+     * @throws AckFailedException
+     */
+    public void flushAcks() throws AckFailedException {
+        if (ackBatcher == null) {
+            return;
+        }
+        AckBatcher.Batch batch = ackBatcher.drain();
+        if (batch == null) {
+            return;
+        }
+        try {
+            synchronized (connectionAccessLock) {
+                int generation = connectionGeneration();
+                try {
+                    writeAcks(batch.messageIds, batch.connectionIds, null);
+                } catch (IOException ie) {
+                    log.warn("IOException received while sending acks. Retrying connection.",ie);
+                    retryConnection(generation);
+                    writeAcks(batch.messageIds, batch.connectionIds, null);
+                }
+            }
+        } catch (Exception e) {
+            throw new AckFailedException(e);
+        }
+    }
+
+    /**
+     * Last flush of batched acks before disconnecting. Does not reconnect on
+     * failure, the broker redelivers what was not acked.
+     */
+    private void writePendingAcks() {
+        AckBatcher.Batch batch = ackBatcher == null ? null : ackBatcher
+                .drain();
+        if (batch != null) {
+            try {
+                writeAcks(batch.messageIds, batch.connectionIds, null);
+            } catch (IOException e) {
+                log.warn("Failed to write " + batch.messageIds.size()
+                        + " pending acks on close", e);
+            }
+        }
+    }
+
+    private void writeAcks(List<String> messageIds,
+            List<String> connectionIds, String receiptId) throws IOException {
+        if (messageIds.size() == 1) {
+            connection.ack(messageIds.get(0), null, config.getSubscriptionId(),
+                    connectionIds.get(0), receiptId);
+        } else {
+            connection.ack(messageIds, config.getSubscriptionId(),
+                    connectionIds, receiptId);
+        }
+    }
+
     public void ackSafe(long timeout) throws AckFailedException,
             InterruptedException {
        
         if (null != lastSentMessage) {
-            ackSafe(lastSentMessage.getHeaders().get(Stomp.Headers.Message.MESSAGE_ID), null, timeout);
+            ackSafe(lastSentMessage, timeout);
         }
           else {
             log.warn("WARNING: Unidentiefied ack message. This may happen in case client sends ack before receiving the message, ignoring ...");
         }
     }
 
+    void ackSafe(StompFrame frame, long timeout) throws AckFailedException {
+        ackSafe(frame.getHeaders().get(Stomp.Headers.Message.MESSAGE_ID),
+                null, timeout);
+    }
+
     public void ackSafe(String messageId, String connectionId,
             long timeout) throws AckFailedException {
-        String receipt_id = java.util.UUID.nameUUIDFromBytes(
-                messageId.getBytes()).toString();
-        try {
-           
-            Object ackLock = new Object();
+        ackSafe(Collections.singletonList(messageId),
+                Collections.singletonList(connectionId), timeout);
+    }
 
-            ackSafeLockMap.put(receipt_id, ackLock);
+    /**
+     * Acks several messages in one flush and waits for a single RECEIPT,
+     * requested on the last ACK, that covers them all.
+     * 
+     * @throws AckFailedException
+     */
+    public void ackSafe(List<String> messageIds, List<String> connectionIds,
+            long timeout) throws AckFailedException {
+        long start = System.currentTimeMillis();
+        ReceiptFuture receipt = ackSafeAsync(messageIds, connectionIds, timeout);
+        try {
+            receipt.get();
+            stats.recordAck(System.currentTimeMillis() - start);
+        } catch (ExecutionException e) {
+            throw ackFailure(e);
+        } catch (InterruptedException e) {
+            receipt.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new AckFailedException(e);
+        }
+    }
 
-            synchronized (ackLock) {
-                synchronized (connectionAccessLock) {
-                    try {
-                        connection.ack(messageId, null, config.getSubscriptionId(),
-                                connectionId, receipt_id);
-                    } catch (IOException ie) {
-                        log.warn(
-                                "IOException received while sending ack. Retrying connection.",
-                                ie);
-                        retryConnection();
-                        connection.ack(messageId, null, config.getSubscriptionId(),
-                                connectionId, receipt_id);
-                    }
+    /**
+     * Acks several messages in one flush without waiting for the broker. The
+     * returned future completes when the RECEIPT, requested on the last ACK,
+     * arrives, and fails on an ERROR, after timeout ms or when the connection
+     * closes.
+     */
+    public ReceiptFuture ackSafeAsync(List<String> messageIds,
+            List<String> connectionIds, long timeout) {
+        stats.onAcked(messageIds.size());
+        // Unique per attempt, so a late RECEIPT or ERROR for an earlier
+        // attempt at the same ack can not settle this one.
+        String receipt_id = java.util.UUID.randomUUID().toString();
+        AckReceipt receipt = ackReceipts.register(receipt_id, timeout);
+        try {
+            synchronized (connectionAccessLock) {
+                int generation = connectionGeneration();
+                try {
+                    writeAcks(messageIds, connectionIds, receipt_id);
+                } catch (IOException ie) {
+                    log.warn(
+                            "IOException received while sending ack. Retrying connection.",
+                            ie);
+                    retryConnection(generation);
+                    writeAcks(messageIds, connectionIds, receipt_id);
                 }
-                ackLock.wait(timeout);
-            }
-            StompFrame receivedFrame = receiptFrameMap.get(receipt_id);
-            if (null == receivedFrame)
-                throw new AckFailedException(
-                        "Ack timed out. Failed to receive RECEIPT from server in "
-                                + timeout + "ms.");
-            else if (null != receivedFrame
-                    && !receivedFrame.getAction().equals(
-                            Stomp.Responses.RECEIPT)) {
-                throw new AckFailedException("Failed to receive RECEIPT: "
-                        + receivedFrame.getBody());
             }
-            receiptFrameMap.remove(receipt_id);
-            ackSafeLockMap.remove(receipt_id);
         } catch (Exception e) {
+            receipt.fail(new AckFailedException(e));
+        }
+        return receipt;
+    }
+
+    /**
+     * Starts a transaction on this connection. The broker drops open
+     * transactions with their connection, so the transactional calls here
+     * fail instead of reconnecting.
+     * 
+     * @throws AckFailedException
+     */
+    void begin(String transaction) throws AckFailedException {
+        try {
+            synchronized (connectionAccessLock) {
+                connection.begin(transaction);
+            }
+        } catch (IOException e) {
             throw new AckFailedException(e);
         }
     }
 
+    /**
+     * Acks a message as part of a transaction. Bypasses ack batching, the
+     * commit already groups the acks.
+     * 
+     * @throws AckFailedException
+     */
+    void ack(String messageId, String connectionId, String transaction)
+            throws AckFailedException {
+        stats.onAcked(1);
+        try {
+            synchronized (connectionAccessLock) {
+                connection.ack(messageId, transaction,
+                        config.getSubscriptionId(), connectionId, null);
+            }
+        } catch (IOException e) {
+            throw new AckFailedException(e);
+        }
+    }
+
+    /**
+     * Commits a transaction and waits up to timeout ms for its receipt.
+     * 
+     * @throws AckFailedException
+     */
+    void commit(String transaction, long timeout) throws AckFailedException {
+        String receipt_id = java.util.UUID.randomUUID().toString();
+        AckReceipt receipt = ackReceipts.register(receipt_id, timeout);
+        try {
+            synchronized (connectionAccessLock) {
+                connection.commit(transaction, receipt_id);
+            }
+        } catch (IOException e) {
+            receipt.fail(new AckFailedException(e));
+        }
+        try {
+            receipt.get();
+        } catch (ExecutionException e) {
+            throw ackFailure(e);
+        } catch (InterruptedException e) {
+            receipt.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new AckFailedException(e);
+        }
+    }
+
+    /**
+     * @return the AckFailedException an ack receipt failed with, else one
+     *         wrapping whatever else did.
+     */
+    private static AckFailedException ackFailure(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof AckFailedException) {
+            return (AckFailedException) cause;
+        }
+        return new AckFailedException(
+                cause instanceof Exception ? (Exception) cause : e);
+    }
+
+    void abort(String transaction) throws AckFailedException {
+        try {
+            synchronized (connectionAccessLock) {
+                connection.abort(transaction);
+            }
+        } catch (IOException e) {
+            throw new AckFailedException(e);
+        }
+    }
+
+    /**
+     * @return the frame last handed out to the client, which ack() acks.
+     */
+    StompFrame getLastSentMessage() {
+        return lastSentMessage;
+    }
+
     public void keepAlive() throws KeepAliveFailedException {
         try {
             synchronized (connectionAccessLock) {
+                int generation = connectionGeneration();
                 try {
                     connection.keepAlive();
                 } catch (IOException ie) {
                     log.warn(
                             "IOException received while sending keepalive. Retrying connection.",
                             ie);
-                    retryConnection();
+                    retryConnection(generation);
                     connection.keepAlive();
                 }
             }
@@ -307,22 +677,28 @@ public class StompServerFetcher implements Runnable {
 
     public void nack() throws NackFailedException {
         if (null != lastSentMessage) {
-           nack(lastSentMessage.getHeaders().get(Stomp.Headers.Message.MESSAGE_ID));
+           nack(lastSentMessage);
         } else {
             log.warn("WARNING: Unidentiefied nack message. This may happen in case client sends nack before receiving the message, ignoring ...");
         }
     }
 
+    void nack(StompFrame frame) throws NackFailedException {
+        nack(frame.getHeaders().get(Stomp.Headers.Message.MESSAGE_ID));
+    }
+
     public void nack(String messageId) throws NackFailedException {
+        stats.onAcked(1);
         try {
             synchronized (connectionAccessLock) {
+                int generation = connectionGeneration();
                 try {
                     connection.nack(messageId, config.getSubscriptionId());
                 } catch (IOException ie) {
                     log.warn(
                             "IOException received while sending nack. Retrying connection.",
                             ie);
-                    retryConnection();
+                    retryConnection(generation);
                     connection.nack(messageId, config.getSubscriptionId());
                 }
             }
@@ -339,9 +715,28 @@ public class StompServerFetcher implements Runnable {
     public boolean close() {
         try {
             keepRunning = false;
+            if (handOffQueue != null) {
+                handOffQueue.unregister(this);
+            }
+            if (shared != null) {
+                // Other subscriptions keep using the connection and its
+                // receipts.
+                synchronized (connectionAccessLock) {
+                    this.preFetchedCache.clear();
+                    prefetched.set(0);
+                    if (connection.isConnected()) {
+                        writePendingAcks();
+                    }
+                }
+                shared.unsubscribe(this);
+                return true;
+            }
+            ackReceipts.failAll("Connection closed before receipt arrived");
             synchronized (connectionAccessLock) {
                 this.preFetchedCache.clear();
+                prefetched.set(0);
                 if (connection.isConnected()) {
+                    writePendingAcks();
                     connection.disconnect();
                     connection.close();
                 }
@@ -356,13 +751,63 @@ public class StompServerFetcher implements Runnable {
         }
     }
 
-    private void retryConnection() throws IOException,
+    /**
+     * @return a number that changes every time the connection is reopened.
+     *         Taken before a write or read, it tells whether a failure of
+     *         that write or read is still news when the reconnect gets the
+     *         lock.
+     */
+    private int connectionGeneration() {
+        return shared != null ? shared.getGeneration() : generation;
+    }
+
+    /**
+     * Reopens the connection once, for client threads, which should not wait
+     * out the backoff between attempts. The fetcher thread keeps trying.
+     */
+    private void retryConnection(int failedGeneration) throws IOException,
             TooManyConnectionRetryAttemptsException {
-        synchronized (connectionAccessLock) {
-            connection.close();
-            connect(MAX_RETRY_COUNT); // retries if fails
-        }
+        reconnect(1, failedGeneration);
+    }
 
+    /**
+     * Makes up to maxAttempts attempts to reopen the connection, waiting out
+     * the breaker's backoff delay between them without holding the
+     * connection lock. Returns right away if the connection that failed,
+     * failedGeneration, has been replaced already.
+     */
+    private void reconnect(int maxAttempts, int failedGeneration)
+            throws TooManyConnectionRetryAttemptsException, IOException {
+        if (shared != null) {
+            shared.reconnect(maxAttempts, failedGeneration);
+            return;
+        }
+        if (draining) {
+            // A new subscription would fetch more from a broker that left.
+            throw new TooManyConnectionRetryAttemptsException(
+                    "Not reconnecting to draining broker " + host + ":" + port);
+        }
+        for (int attempt = 1;; attempt++) {
+            synchronized (connectionAccessLock) {
+                // Another thread may have reconnected since the failure, or
+                // while we waited.
+                if ((attempt > 1 || generation != failedGeneration)
+                        && connection.isConnected()) {
+                    return;
+                }
+                connection.close();
+                if (breaker.allowRequest() && connect()) {
+                    return;
+                }
+            }
+            if (attempt >= maxAttempts || !keepRunning) {
+                throw new TooManyConnectionRetryAttemptsException(
+                        "Can not connect to the broker " + host + ":" + port
+                                + " after " + attempt
+                                + " attempts, circuit " + breaker.getState());
+            }
+            Utils.sleep(breaker.getRetryDelay());
+        }
     }
 
     private void preFetchMessage() throws BrokerConnectionFailedException {
@@ -370,6 +815,7 @@ public class StompServerFetcher implements Runnable {
         try {
             receiveStartTime = System.currentTimeMillis();
             StompFrame tmpFrame = null;
+            int seenGeneration = generation;
 
             // There may be a race condition with the refresh thread, which
             // nulls connection's StompSocket occationally.
@@ -380,19 +826,14 @@ public class StompServerFetcher implements Runnable {
                 if (null != tmpFrame
                         && tmpFrame.getHeaders().get("receipt-id") != null) {
                     String receipt_id = tmpFrame.getHeaders().get("receipt-id");
-                    Object ackLock = ackSafeLockMap.get(receipt_id);
-                    receiptFrameMap.put(receipt_id, tmpFrame);
-                    if (ackLock != null) {
-                        synchronized (ackLock) {
-                            ackLock.notifyAll();
-                        }
+                    if (ackReceipts.dispatch(receipt_id, tmpFrame)) {
                         return;
                     }
                 }
             } catch (IOException ee) {
                 if (keepRunning) {
                     log.debug("IOException received, server may have dropped the connection. Refreshing");
-                    retryConnection();
+                    reconnect(MAX_RETRY_COUNT, seenGeneration);
                 }
                 return;
             } catch (NullPointerException e) {
@@ -412,11 +853,16 @@ public class StompServerFetcher implements Runnable {
 
                 else if (tmpFrame.getAction().equalsIgnoreCase(
                         Stomp.Responses.MESSAGE)) {
+                    long now = System.currentTimeMillis();
+                    long requested = creditRequestTime;
+                    if (requested != 0) {
+                        creditRequestTime = 0;
+                        stats.recordFetch(now - requested);
+                    }
                     log.debug("Server: " + host + ":" + port
                             + " , pre-fetch request took "
-                            + (System.currentTimeMillis() - receiveStartTime)
-                            + " ms");
-                    preFetchedCache.put(tmpFrame);
+                            + (now - receiveStartTime) + " ms");
+                    deliver(tmpFrame);
                 }
             }
         } catch (Exception e) {
@@ -427,6 +873,44 @@ public class StompServerFetcher implements Runnable {
         }
     }
 
+    /**
+     * Caches a MESSAGE frame read from the broker for the client.
+     */
+    void deliver(StompFrame frame) throws InterruptedException {
+        prefetched.incrementAndGet();
+        if (draining) {
+            lastDrainActivity = System.currentTimeMillis();
+        }
+        HandOffQueue queue = handOffQueue;
+        if (queue != null) {
+            queue.put(this, frame);
+        } else {
+            preFetchedCache.put(frame);
+        }
+        notifyArrival();
+    }
+
+    private void sendPendingCredits() throws IOException {
+        if (pendingCredits.size() == 1) {
+            connection.credit(pendingCredits.get(0));
+        } else {
+            connection.credit(new ArrayList<String>(pendingCredits));
+        }
+        pendingCredits.clear();
+        creditRequestTime = System.currentTimeMillis();
+    }
+
+    private void notifyArrival() {
+        Runnable listener = arrivalListener;
+        if (listener != null) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                log.error("Arrival listener failed", e);
+            }
+        }
+    }
+
     private boolean isStaleConnection() throws InterruptedException {
 
         synchronized (this.connectionAccessLock) {
@@ -436,12 +920,16 @@ public class StompServerFetcher implements Runnable {
     }
 
     public void refreshConnection() throws BrokerConnectionFailedException {
+        // the shared connection's reader thread keeps itself connected
+        if (shared != null) {
+            return;
+        }
         try {
             if (keepRunning && isStaleConnection()) {
 
                 log.debug("Refreshing the connection with broker " + host + ":"
                         + port + " ...");
-                retryConnection();
+                reconnect(MAX_RETRY_COUNT, generation);
             }
         } catch (InterruptedException e) {
             throw new BrokerConnectionFailedException(e.getMessage());
@@ -450,47 +938,77 @@ public class StompServerFetcher implements Runnable {
         }
     }
 
-    private void connect(int retryAttemptLeft)
-            throws TooManyConnectionRetryAttemptsException {
+    /**
+     * Opens and subscribes the connection once and reports the outcome to
+     * the breaker. Called with connectionAccessLock held.
+     */
+    private boolean connect() {
+        try {
+            HashMap<String, String> headers = subscribeHeaders();
+            pendingCredits.clear();
+
+            connection.setUseNio(config.isUseNioTransport());
+            connection.open(host, port);
+            connection.connect(config.getUserName(), config.getPassword(),
+                    config.getSubscriptionId());
+            connection.subscribe(config.getDestinationName(),
+                    Subscribe.AckModeValues.CLIENT, headers);
+            creditRequestTime = System.currentTimeMillis();
+
+            generation++;
+            connStartTime = System.currentTimeMillis();
+            stats.onReconnect();
+            breaker.onSuccess();
+            log.debug("Connection established successfully with the broker "
+                    + host + ":" + port);
+            return true;
+        } catch (Exception e) {
+            breaker.onFailure();
+            log.debug("Error connecting broker " + host + ":" + port
+                    + ", circuit " + breaker.getState(), e);
+            return false;
+        }
+    }
 
-        synchronized (connectionAccessLock) {
-            while (retryAttemptLeft != 0) {
-                try {
-                    retryAttemptLeft--;
-                    HashMap<String, String> headers = new HashMap<String, String>();
-
-                    // Add information about durable subscription for topics.
-                    if (config.getDestinationType() == DestinationType.TOPIC) {
-                        headers.put("durable-subscriber-name",
-                                config.getSubscriptionId());
-                        headers.put("id", config.getSubscriptionId());
-                        headers.put("client-id", config.getSubscriptionId());
-                    }
+    private HashMap<String, String> subscribeHeaders() {
+        HashMap<String, String> headers = new HashMap<String, String>();
 
-                    connection.open(host, port);
-                    connection.connect(config.getUserName(),
-                            config.getPassword(), config.getSubscriptionId());
-                    connection.subscribe(config.getDestinationName(),
-                            Subscribe.AckModeValues.CLIENT, headers);
-
-                    connStartTime = System.currentTimeMillis();
-                    log.debug("Connection established successfully with the broker "
-                            + host + ":" + port);
-                    break; // on successful connection
-                } catch (Exception e) {
-                    log.debug("Error connecting broker " + host + ":" + port
-                            + " Retyring attempt no " + (retryAttemptLeft + 1),
-                            e);
-                    Utils.sleep(REST_INTERVAL);
-
-                    if (0 == retryAttemptLeft) {
-                        throw new TooManyConnectionRetryAttemptsException(
-                                "Can not connect to the broker after "
-                                        + MAX_RETRY_COUNT + "retry attempts");
-                    }
-                }
-            }
+        // Add information about durable subscription for topics.
+        if (config.getDestinationType() == DestinationType.TOPIC) {
+            headers.put("durable-subscriber-name", config.getSubscriptionId());
+            headers.put("id", config.getSubscriptionId());
+            headers.put("client-id", config.getSubscriptionId());
+        }
+        // MESSAGE frames on a shared connection are routed by this id.
+        if (shared != null) {
+            headers.put("id", config.getSubscriptionId());
         }
+        if (config.getPrefetchSize() > 1) {
+            headers.put("prefetch-size",
+                    String.valueOf(config.getPrefetchSize()));
+        }
+        return headers;
+    }
+
+    /**
+     * Sends SUBSCRIBE on the shared connection. Called with the connection
+     * lock held, after every (re)connect.
+     */
+    void sendSubscribe() throws IOException {
+        pendingCredits.clear();
+        stats.onReconnect();
+        connection.subscribe(config.getDestinationName(),
+                Subscribe.AckModeValues.CLIENT, subscribeHeaders());
+        creditRequestTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Sends UNSUBSCRIBE on the shared connection, with the lock held.
+     */
+    void sendUnsubscribe() throws IOException {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("id", config.getSubscriptionId());
+        connection.unsubscribe(config.getDestinationName(), headers);
     }
 
     @Override
@@ -38,6 +38,7 @@ import org.apache.thrift.TException;
 import org.apache.thrift.TSerializer;
 import com.groupon.messagebus.api.Message;
 import com.groupon.messagebus.thrift.api.MessageInternal;
+import com.groupon.stomp.StompFrame;
 
 public class Utils{
 
@@ -49,6 +50,14 @@ public class Utils{
 
     public static final String NULL_STRING = "null";
 
+    /**
+     * Header telling how a message body is encoded. Without it the body is
+     * Base64 text of the Thrift bytes, as sent by clients before 1.2.7.
+     */
+    public static final String MESSAGE_ENCODING_HEADER = "message_encoding";
+    // Raw Thrift bytes, framed by a content-length header.
+    public static final String BINARY_ENCODING = "binary";
+
     
     static String encode( String clearText){
         String ret = "";
@@ -77,9 +86,23 @@ public class Utils{
         return ret;
     }
     public static Message getMessageFromBytes(byte[] bytes) {
+        return getMessageFromThriftBytes(Base64.decodeBase64(bytes));
+    }
+
+    /**
+     * Decodes a MESSAGE frame body in whichever encoding its
+     * {@link #MESSAGE_ENCODING_HEADER} names.
+     */
+    public static Message getMessageFromFrame(StompFrame frame) {
+        if (BINARY_ENCODING.equals(frame.getHeaders().get(MESSAGE_ENCODING_HEADER))) {
+            return getMessageFromThriftBytes(frame.getContent());
+        }
+        return getMessageFromBytes(frame.getContent());
+    }
+
+    public static Message getMessageFromThriftBytes(byte[] bytes) {
         try {
             MessageInternal messageInternal = new MessageInternal();
-            bytes = Base64.decodeBase64(bytes);
             synchronized(deserializer){
                 deserializer.deserialize(messageInternal, bytes);
             }
@@ -91,14 +114,16 @@ public class Utils{
 
     
     public static byte[] getThriftDataAsBytes(Message message) throws TException, UnsupportedEncodingException {
-        byte[] bytes = null;
+        return Base64.encodeBase64(getThriftData(message));
+    }
+
+    /**
+     * @return the raw Thrift bytes of the message, for binary encoding.
+     */
+    public static byte[] getThriftData(Message message) throws TException {
         synchronized(serializer){
-            bytes = serializer.serialize(message.getMessageInternal());
+            return serializer.serialize(message.getMessageInternal());
         }
-        
-        bytes = Base64.encodeBase64(bytes);
-        return bytes;
-        
     }
 
 
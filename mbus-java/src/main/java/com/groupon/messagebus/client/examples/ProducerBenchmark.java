@@ -31,6 +31,9 @@ package com.groupon.messagebus.client.examples;
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  * 
  */
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -40,6 +43,7 @@ import com.groupon.messagebus.api.HostParams;
 import com.groupon.messagebus.api.Message;
 import com.groupon.messagebus.api.Producer;
 import com.groupon.messagebus.api.ProducerConfig;
+import com.groupon.messagebus.api.ReceiptFuture;
 import com.groupon.messagebus.api.exceptions.BrokerConnectionCloseFailedException;
 import com.groupon.messagebus.api.exceptions.InvalidConfigException;
 import com.groupon.messagebus.api.exceptions.MessageBusException;
@@ -55,6 +59,8 @@ public class ProducerBenchmark {
         int msgCount = 1000;
         if(args.length >0 )
             msgCount = Integer.parseInt(args[0]);
+        // "async" pipelines sendSafeAsync() instead of waiting on each receipt.
+        boolean async = args.length > 1 && "async".equals(args[1]);
         // 61613 is default port for connecting over stomp. Here we either
         // provide direct broker name as host, or DNS name space
 
@@ -80,16 +86,27 @@ public class ProducerBenchmark {
         
         System.out.println( messageStr.length());
         long start = System.currentTimeMillis();
+        List<ReceiptFuture> receipts = new ArrayList<ReceiptFuture>();
         for (int i = 0; i < msgCount; i++) {
 
             try {
-                producer.sendSafe(message, null);
+                if (async)
+                    receipts.add(producer.sendSafeAsync(message, null));
+                else
+                    producer.sendSafe(message, null);
             } catch (Exception e) {            
                 e.printStackTrace();
             }
                                     
             //System.out.println("Sent:" + message.getStringPayload());
         }
+        for (ReceiptFuture receipt : receipts) {
+            try {
+                receipt.get();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
         
         long end = System.currentTimeMillis();
         
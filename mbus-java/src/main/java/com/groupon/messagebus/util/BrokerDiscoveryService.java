@@ -0,0 +1,397 @@
+package com.groupon.messagebus.util;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.Logger;
+
+import com.groupon.messagebus.api.HostParams;
+
+/**
+ * Broker lists fetched from dynamic server list URLs, shared by every
+ * consumer and producer in the JVM. Each URL is polled by one background
+ * task however many clients use it, at the shortest interval any of them
+ * asked for, with If-None-Match / If-Modified-Since so an unchanged list
+ * costs a 304. Subscribers are told about brokers added and removed.
+ * <p/>
+ * The last good list of a URL is kept when a fetch fails or comes back
+ * empty, and failed fetches are retried with exponential backoff instead of
+ * waiting out the whole interval. With a cache directory set, the last good
+ * lists are also written to files there, so a restarted client starts from
+ * them at once and picks up changes from the first fetch.
+ */
+public class BrokerDiscoveryService {
+
+    /**
+     * Told about changes to a broker list, on the discovery thread; hand
+     * anything slow to another thread.
+     */
+    public interface Listener {
+        void onBrokersChanged(String url, Set<HostParams> brokers,
+                Set<HostParams> added, Set<HostParams> removed);
+    }
+
+    private static final BrokerDiscoveryService INSTANCE = new BrokerDiscoveryService();
+    private static final int MAX_READ_TIMEOUT = 5000;
+    private static final int MAX_CONNECT_TIMEOUT = 1000;
+    private static final long MIN_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 60000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Logger log = Logger.getLogger(BrokerDiscoveryService.class);
+    private final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor(ThreadFactories.newThreadFactory(
+                    "mbus-discovery-", false));
+    private final Map<String, Source> sources = new ConcurrentHashMap<String, Source>();
+    private volatile File cacheDirectory;
+
+    public static BrokerDiscoveryService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Directory to keep the last good list of each URL in, null to keep
+     * them in memory only. Lists already loaded are not read again.
+     */
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * @return the last good list of url. Fetched on the calling thread when
+     *         there is none yet, in memory or in the cache directory.
+     * @throws IOException
+     *             if there is no list yet and the fetch failed.
+     */
+    public Set<HostParams> getBrokers(String url) throws IOException {
+        Source source = source(url);
+        Set<HostParams> brokers = source.brokers;
+        if (brokers != null) {
+            return brokers;
+        }
+        synchronized (source) {
+            // Clients starting together wait for one fetch.
+            if (source.brokers == null) {
+                source.fetch();
+            }
+            return source.brokers;
+        }
+    }
+
+    /**
+     * Polls url at least every interval ms until the subscription is
+     * cancelled, and tells listener about every change.
+     */
+    public Subscription subscribe(String url, long interval, Listener listener) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Need interval > 0");
+        }
+        Source source = source(url);
+        Subscription subscription = new Subscription(source, interval,
+                listener);
+        source.subscriptions.add(subscription);
+        synchronized (source) {
+            if (source.poll == null) {
+                // The list may be old, from an earlier subscription or the
+                // cache directory.
+                source.schedule(Math.max(0, source.fetchedAt + interval
+                        - System.currentTimeMillis()));
+            }
+        }
+        return subscription;
+    }
+
+    private Source source(String url) {
+        Source source = sources.get(url);
+        if (source == null) {
+            synchronized (sources) {
+                source = sources.get(url);
+                if (source == null) {
+                    source = new Source(url);
+                    sources.put(url, source);
+                }
+            }
+        }
+        return source;
+    }
+
+    public static class Subscription {
+        private final Source source;
+        private final long interval;
+        private final Listener listener;
+
+        private Subscription(Source source, long interval, Listener listener) {
+            this.source = source;
+            this.interval = interval;
+            this.listener = listener;
+        }
+
+        /**
+         * Stops the notifications. The URL is no longer polled once no
+         * subscription is left on it.
+         */
+        public void cancel() {
+            source.unsubscribe(this);
+        }
+    }
+
+    private class Source implements Runnable {
+        private final String url;
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+        private final ExponentialBackoff backoff = new ExponentialBackoff(
+                MIN_RETRY_DELAY, MAX_RETRY_DELAY);
+        // Last good list, unmodifiable.
+        private volatile Set<HostParams> brokers;
+        // When the URL last answered, 0 while the list is from the cache
+        // directory.
+        private volatile long fetchedAt = 0;
+        private String etag;
+        private String lastModified;
+        // Guarded by this.
+        private ScheduledFuture<?> poll;
+
+        Source(String url) {
+            this.url = url;
+            brokers = load();
+        }
+
+        public void run() {
+            long delay;
+            try {
+                fetch();
+                backoff.reset();
+                delay = interval();
+            } catch (IOException e) {
+                delay = Math.min(backoff.nextDelay(), interval());
+                log.warn("Failed to fetch the broker list from " + url
+                        + ", keeping " + brokers + ", retrying in " + delay
+                        + " ms: " + e);
+            } catch (RuntimeException e) {
+                delay = Math.min(backoff.nextDelay(), interval());
+                log.warn("Failed to fetch the broker list from " + url
+                        + ", retrying in " + delay + " ms", e);
+            }
+            synchronized (this) {
+                if (poll != null) {
+                    schedule(delay);
+                }
+            }
+        }
+
+        /**
+         * Called with this locked.
+         */
+        void schedule(long delay) {
+            poll = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        long interval() {
+            long interval = Long.MAX_VALUE;
+            for (Subscription subscription : subscriptions) {
+                interval = Math.min(interval, subscription.interval);
+            }
+            return interval;
+        }
+
+        void unsubscribe(Subscription subscription) {
+            subscriptions.remove(subscription);
+            synchronized (this) {
+                if (subscriptions.isEmpty() && poll != null) {
+                    poll.cancel(false);
+                    poll = null;
+                }
+            }
+        }
+
+        /**
+         * Fetches the list, unless the server says it has not changed, and
+         * tells the subscribers what changed.
+         */
+        void fetch() throws IOException {
+            URLConnection connection = new URL(url).openConnection();
+            connection.setConnectTimeout(MAX_CONNECT_TIMEOUT);
+            connection.setReadTimeout(MAX_READ_TIMEOUT);
+            synchronized (this) {
+                if (fetchedAt > 0 && etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (fetchedAt > 0 && lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since",
+                            lastModified);
+                }
+            }
+            if (connection instanceof HttpURLConnection
+                    && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                log.debug("Broker list at " + url + " has not changed");
+                fetchedAt = System.currentTimeMillis();
+                return;
+            }
+            String content = read(connection.getInputStream());
+            Set<HostParams> update = Collections
+                    .unmodifiableSet(new LinkedHashSet<HostParams>(
+                            DynamicServerListGetter.parseAndReturnHosts(content
+                                    .trim())));
+            Set<HostParams> previous = brokers;
+            if (update.isEmpty() && previous != null && !previous.isEmpty()) {
+                throw new IOException("Empty broker list");
+            }
+            synchronized (this) {
+                etag = connection.getHeaderField("ETag");
+                lastModified = connection.getHeaderField("Last-Modified");
+                fetchedAt = System.currentTimeMillis();
+            }
+            if (update.equals(previous)) {
+                return;
+            }
+            brokers = update;
+            store(content.trim());
+            notifyChange(previous == null ? Collections.<HostParams> emptySet()
+                    : previous, update);
+        }
+
+        private void notifyChange(Set<HostParams> previous,
+                Set<HostParams> update) {
+            Set<HostParams> added = new LinkedHashSet<HostParams>(update);
+            added.removeAll(previous);
+            Set<HostParams> removed = new LinkedHashSet<HostParams>(previous);
+            removed.removeAll(update);
+            log.info("Broker list at " + url + " is now " + update
+                    + ", added " + added + ", removed " + removed);
+            for (Subscription subscription : subscriptions) {
+                try {
+                    subscription.listener.onBrokersChanged(url, update, added,
+                            removed);
+                } catch (RuntimeException e) {
+                    log.error("Broker list listener failed", e);
+                }
+            }
+        }
+
+        private File file() {
+            File directory = cacheDirectory;
+            return directory == null ? null : new File(directory, "brokers-"
+                    + DigestUtils.md5Hex(url) + ".txt");
+        }
+
+        private Set<HostParams> load() {
+            File file = file();
+            if (file == null || !file.isFile()) {
+                return null;
+            }
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    Set<HostParams> loaded = DynamicServerListGetter
+                            .parseAndReturnHosts(read(in).trim());
+                    log.info("Starting from broker list " + loaded + " of "
+                            + url + " cached in " + file);
+                    return loaded.isEmpty() ? null : Collections
+                            .unmodifiableSet(new LinkedHashSet<HostParams>(
+                                    loaded));
+                } finally {
+                    in.close();
+                }
+            } catch (Exception e) {
+                log.warn("Ignoring unreadable broker list cache " + file, e);
+                return null;
+            }
+        }
+
+        private void store(String content) {
+            File file = file();
+            if (file == null) {
+                return;
+            }
+            // Written aside and renamed, so a crash never leaves half a list.
+            File temp = new File(file.getPath() + ".tmp");
+            try {
+                OutputStream out = new FileOutputStream(temp);
+                try {
+                    out.write(content.getBytes(UTF8));
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(file)) {
+                    file.delete();
+                    if (!temp.renameTo(file)) {
+                        throw new IOException("Can not rename " + temp);
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Failed to cache the broker list of " + url + " in "
+                        + file, e);
+            }
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            Reader reader = new InputStreamReader(in, UTF8);
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[1024];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, n);
+            }
+            return content.toString();
+        } finally {
+            in.close();
+        }
+    }
+}
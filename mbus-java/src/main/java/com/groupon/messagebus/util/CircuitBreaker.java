@@ -0,0 +1,111 @@
+package com.groupon.messagebus.util;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * Tracks the health of one broker connection so that callers fail fast
+ * while it is down instead of each waiting out its own reconnect attempts.
+ * <p/>
+ * Every failed attempt schedules the next one after a delay from an
+ * {@link ExponentialBackoff}. After failureThreshold failures in a row the
+ * circuit opens: allowRequest() returns false until the delay is over, then
+ * lets exactly one caller through to try (half open). That trial's success
+ * closes the circuit and resets the backoff; its failure opens it again
+ * for a longer delay.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final ExponentialBackoff backoff;
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long retryAt = 0;
+
+    public CircuitBreaker(int failureThreshold, ExponentialBackoff backoff) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException(
+                    "failureThreshold must be at least 1");
+        }
+        this.failureThreshold = failureThreshold;
+        this.backoff = backoff;
+    }
+
+    /**
+     * @return true if the caller may use the connection or try to reopen
+     *         it. Once an open circuit's delay is over, returns true to one
+     *         caller only, until that caller reports back.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.currentTimeMillis() >= retryAt) {
+                state = State.HALF_OPEN;
+                return true;
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        retryAt = 0;
+        backoff.reset();
+    }
+
+    public synchronized void onFailure() {
+        failures++;
+        retryAt = System.currentTimeMillis() + backoff.nextDelay();
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return ms until the next attempt is due after the last failure, 0 if
+     *         it is due now.
+     */
+    public synchronized long getRetryDelay() {
+        return Math.max(0, retryAt - System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,82 @@
+package com.groupon.messagebus.util;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.Random;
+
+/**
+ * Delays between reconnect attempts that double with each failure, from
+ * initialDelay up to maxDelay, with jitter so that clients cut off by the
+ * same outage do not all come back at the same moment. Each delay is
+ * picked at random from the upper half of its exponential step.
+ */
+public class ExponentialBackoff {
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+    private int attempts = 0;
+
+    public ExponentialBackoff(long initialDelay, long maxDelay) {
+        if (initialDelay < 1 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException(
+                    "Need 0 < initialDelay <= maxDelay");
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return ms to wait before the next attempt. Grows with each call until
+     *         reset().
+     */
+    public synchronized long nextDelay() {
+        long step = initialDelay;
+        for (int i = 0; i < attempts && step < maxDelay; i++) {
+            step *= 2;
+        }
+        step = Math.min(step, maxDelay);
+        attempts++;
+        long half = step / 2;
+        return step - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    /**
+     * Starts over from initialDelay, after a successful attempt.
+     */
+    public synchronized void reset() {
+        attempts = 0;
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+}
@@ -0,0 +1,231 @@
+package com.groupon.messagebus.util;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Timer for large numbers of short, mostly cancelled timeouts, such as one
+ * per pending receipt. Scheduling and cancelling are O(1) and lock free; a
+ * single daemon thread advances a wheel of buckets once per tick and runs the
+ * tasks that came due, so a timeout fires up to one tick late.
+ *
+ * The thread starts with the first timeout and sleeps while none are
+ * pending. Tasks run on that thread and must be short.
+ */
+public class HashedWheelTimer {
+
+    /**
+     * Handle to a scheduled task.
+     */
+    public interface Timeout {
+        /**
+         * @return true if the task had neither run nor been cancelled yet.
+         */
+        public boolean cancel();
+
+        public boolean isCancelled();
+
+        public boolean isExpired();
+    }
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private Logger log = Logger.getLogger(HashedWheelTimer.class);
+    private final String name;
+    private final long tickNanos;
+    private final List<LinkedList<WheelTimeout>> wheel;
+    private final ConcurrentLinkedQueue<WheelTimeout> added = new ConcurrentLinkedQueue<WheelTimeout>();
+    // timeouts the worker still has to run or drop
+    private final AtomicInteger live = new AtomicInteger();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final long startTime = System.nanoTime();
+    private volatile boolean stopped = false;
+    // Only touched by the worker thread.
+    private long lastTick = -1;
+
+    /**
+     * @param aName
+     *            name of the worker thread.
+     * @param tickMillis
+     *            resolution of the timer.
+     * @param wheelSize
+     *            number of buckets. Timeouts further out than
+     *            tickMillis * wheelSize are looked at once per revolution.
+     */
+    public HashedWheelTimer(String aName, long tickMillis, int wheelSize) {
+        name = aName;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        wheel = new ArrayList<LinkedList<WheelTimeout>>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new LinkedList<WheelTimeout>());
+        }
+    }
+
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (stopped) {
+            throw new IllegalStateException("Timer " + name + " is stopped");
+        }
+        // round up, so a task never runs early
+        long deadline = System.nanoTime() - startTime + unit.toNanos(delay);
+        WheelTimeout timeout = new WheelTimeout(task, (deadline + tickNanos - 1)
+                / tickNanos);
+        added.add(timeout);
+        if (live.getAndIncrement() == 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        if (!started.get() && started.compareAndSet(false, true)) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        return timeout;
+    }
+
+    /**
+     * @return the number of timeouts that have not run or been dropped yet.
+     */
+    public int getPendingCount() {
+        return live.get();
+    }
+
+    /**
+     * Stops the worker. Pending tasks never run.
+     */
+    public void stop() {
+        stopped = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void work() {
+        while (!stopped) {
+            try {
+                synchronized (this) {
+                    while (live.get() == 0 && !stopped) {
+                        wait();
+                    }
+                }
+                long tick = (System.nanoTime() - startTime) / tickNanos;
+                transferAdded();
+                // Catch up on ticks missed while idle or busy, each bucket
+                // at most once.
+                for (long t = Math.max(lastTick + 1, tick - wheel.size() + 1); t <= tick; t++) {
+                    expire(t);
+                }
+                lastTick = tick;
+
+                long sleepNanos = startTime + (tick + 1) * tickNanos
+                        - System.nanoTime();
+                if (sleepNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+            } catch (InterruptedException e) {
+                log.debug("Timer " + name + " interrupted", e);
+            }
+        }
+    }
+
+    private void transferAdded() {
+        WheelTimeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() == CANCELLED) {
+                live.decrementAndGet();
+                continue;
+            }
+            long tick = Math.max(timeout.deadlineTick, lastTick + 1);
+            wheel.get((int) (tick % wheel.size())).add(timeout);
+        }
+    }
+
+    private void expire(long tick) {
+        Iterator<WheelTimeout> it = wheel.get((int) (tick % wheel.size()))
+                .iterator();
+        while (it.hasNext()) {
+            WheelTimeout timeout = it.next();
+            if (timeout.state.get() == CANCELLED) {
+                it.remove();
+                live.decrementAndGet();
+            } else if (timeout.deadlineTick <= tick) {
+                it.remove();
+                live.decrementAndGet();
+                if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable t) {
+                        log.error("Timer task failed", t);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class WheelTimeout implements Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        WheelTimeout(Runnable aTask, long aDeadlineTick) {
+            task = aTask;
+            deadlineTick = aDeadlineTick;
+        }
+
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+}
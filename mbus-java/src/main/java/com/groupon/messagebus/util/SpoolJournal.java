@@ -0,0 +1,482 @@
+package com.groupon.messagebus.util;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only journal of outbound messages for
+ * {@link com.groupon.messagebus.client.SpoolingProducer}, kept in
+ * memory-mapped segment files of a local directory.
+ *
+ * A segment starts with a magic number and the offset up to which its
+ * records have been delivered. Each record is its length, a CRC32 of its
+ * data and the data; the length is written last, so a record cut short by
+ * a crash reads as the end of the segment. Appends go to the newest
+ * segment and a new one is started when it is full. A full segment is
+ * deleted once all its records are delivered.
+ *
+ * Records that can never be delivered are moved to a dead letter file in
+ * the same directory, in the same record format.
+ */
+public class SpoolJournal {
+
+    private static final int MAGIC = 0x4d425350;
+    private static final int HEADER_SIZE = 8;
+    private static final int DELIVERED_OFFSET = 4;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String PREFIX = "spool-";
+    private static final String SUFFIX = ".log";
+    public static final String DEAD_LETTER_FILE = "dead-letter.log";
+
+    private Logger log = Logger.getLogger(SpoolJournal.class);
+    private final File directory;
+    private final int segmentSize;
+    private final long maxSize;
+    // Oldest first. Only the last one, if not sealed, takes appends.
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private long nextSequence = 0;
+    private long size = 0;
+    private int pending = 0;
+    private boolean closed = false;
+
+    /**
+     * Opens the journal in directory, picking up the undelivered records of
+     * segments left there by an earlier run.
+     *
+     * @param segmentSize
+     *            bytes per segment file.
+     * @param maxSize
+     *            bytes all segment files together may take.
+     */
+    public SpoolJournal(File directory, int segmentSize, long maxSize)
+            throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + directory);
+        }
+        recover();
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param force
+     *            whether to write the segment to disk before returning.
+     * @throws IOException
+     *             if the journal is full or closed.
+     */
+    public synchronized void append(byte[] data, boolean force)
+            throws IOException {
+        append(Arrays.asList(data), force);
+    }
+
+    /**
+     * Appends several records, forcing them to disk at most once.
+     */
+    public synchronized void append(List<byte[]> records, boolean force)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Spool journal is closed");
+        }
+        Segment segment = null;
+        for (byte[] data : records) {
+            segment = writableSegment(RECORD_HEADER_SIZE + data.length);
+            segment.write(data);
+            pending++;
+        }
+        if (force && segment != null) {
+            segment.buffer.force();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits up to timeout ms for undelivered records.
+     *
+     * @return up to max of the oldest undelivered records, in order, or an
+     *         empty list if there were none in time.
+     */
+    public synchronized List<Record> peek(int max, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long left = timeout;
+        while (pending == 0 && !closed && left > 0) {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+        List<Record> result = new ArrayList<Record>();
+        for (Segment segment : segments) {
+            int position = segment.delivered;
+            while (result.size() < max && position < segment.end) {
+                Record record = segment.read(position);
+                result.add(record);
+                position = record.end;
+            }
+            if (result.size() >= max) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Marks everything up to and including record as delivered, deleting
+     * the segments that are done with.
+     */
+    public synchronized void delivered(Record record) throws IOException {
+        if (closed) {
+            throw new IOException("Spool journal is closed");
+        }
+        while (!segments.isEmpty()) {
+            Segment segment = segments.getFirst();
+            int upTo = segment == record.segment ? record.end : segment.end;
+            pending -= segment.countRecords(segment.delivered, upTo);
+            segment.setDelivered(upTo);
+            if (segment.sealed && segment.delivered == segment.end) {
+                segments.removeFirst();
+                delete(segment);
+            }
+            if (segment == record.segment) {
+                break;
+            }
+        }
+        if (pending == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Moves the oldest undelivered record to the dead letter file, forced to
+     * disk, and marks it delivered. A crash in between leaves it in both.
+     *
+     * @throws IllegalArgumentException
+     *             if record is not the oldest undelivered one.
+     */
+    public synchronized void deadLetter(Record record) throws IOException {
+        if (closed) {
+            throw new IOException("Spool journal is closed");
+        }
+        Segment first = segments.isEmpty() ? null : segments.getFirst();
+        if (first != record.segment || first.delivered == first.end
+                || first.read(first.delivered).end != record.end) {
+            throw new IllegalArgumentException(
+                    "Only the oldest undelivered record can be dead lettered");
+        }
+        FileOutputStream out = new FileOutputStream(getDeadLetterFile(), true);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(record.data);
+            header.putInt(record.data.length);
+            header.putInt((int) crc.getValue());
+            out.write(header.array());
+            out.write(record.data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        delivered(record);
+    }
+
+    /**
+     * @return the file records that could not be delivered are moved to.
+     */
+    public File getDeadLetterFile() {
+        return new File(directory, DEAD_LETTER_FILE);
+    }
+
+    /**
+     * @return the number of records not delivered yet.
+     */
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * Waits up to timeout ms for every record to be delivered.
+     *
+     * @return true if none is left.
+     */
+    public synchronized boolean awaitEmpty(long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long left = timeout;
+        while (pending > 0 && !closed && left > 0) {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+        return pending == 0;
+    }
+
+    /**
+     * Writes every segment to disk and stops using the journal. Undelivered
+     * records stay in the directory for the next run.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        segments.clear();
+        notifyAll();
+    }
+
+    private Segment writableSegment(int recordSize) throws IOException {
+        Segment last = segments.isEmpty() ? null : segments.getLast();
+        if (last != null && !last.sealed
+                && last.end + recordSize <= last.buffer.capacity()) {
+            return last;
+        }
+        int newSize = Math.max(segmentSize, HEADER_SIZE + recordSize);
+        if (size + newSize > maxSize) {
+            throw new IOException("Spool directory " + directory
+                    + " is full, " + pending + " records waiting");
+        }
+        if (last != null) {
+            last.sealed = true;
+            if (last.delivered == last.end) {
+                segments.removeLast();
+                delete(last);
+            }
+        }
+        Segment segment = Segment.create(new File(directory, PREFIX
+                + nextSequence++ + SUFFIX), newSize);
+        size += newSize;
+        segments.add(segment);
+        return segment;
+    }
+
+    private void delete(Segment segment) {
+        size -= segment.buffer.capacity();
+        if (!segment.file.delete()) {
+            log.warn("Failed to delete spool segment " + segment.file);
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return sequenceOf(name) >= 0;
+            }
+        });
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long x = sequenceOf(a.getName());
+                long y = sequenceOf(b.getName());
+                return x < y ? -1 : x == y ? 0 : 1;
+            }
+        });
+        for (File file : files) {
+            nextSequence = Math.max(nextSequence, sequenceOf(file.getName()) + 1);
+            Segment segment = Segment.open(file);
+            if (segment == null) {
+                log.warn("Ignoring spool file " + file + ", not a spool segment");
+                continue;
+            }
+            segment.sealed = true;
+            int records = segment.countRecords(segment.delivered, segment.end);
+            size += segment.buffer.capacity();
+            if (records == 0) {
+                delete(segment);
+                continue;
+            }
+            pending += records;
+            segments.add(segment);
+        }
+        if (pending > 0) {
+            log.info("Recovered " + pending + " undelivered records from "
+                    + directory);
+        }
+    }
+
+    private static long sequenceOf(String name) {
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(),
+                    name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A record read from the journal, with where it ends in its segment.
+     */
+    public static final class Record {
+        final byte[] data;
+        final Segment segment;
+        final int end;
+
+        Record(byte[] aData, Segment aSegment, int anEnd) {
+            data = aData;
+            segment = aSegment;
+            end = anEnd;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int delivered;
+        // Offset after the last complete record.
+        int end;
+        boolean sealed;
+
+        private Segment(File aFile, MappedByteBuffer aBuffer) {
+            file = aFile;
+            buffer = aBuffer;
+        }
+
+        static Segment create(File file, int size) throws IOException {
+            Segment segment = new Segment(file, map(file, size));
+            segment.buffer.putInt(0, MAGIC);
+            segment.setDelivered(HEADER_SIZE);
+            segment.end = HEADER_SIZE;
+            return segment;
+        }
+
+        /**
+         * @return the segment in file, or null if it is not one.
+         */
+        static Segment open(File file) throws IOException {
+            if (file.length() < HEADER_SIZE
+                    || file.length() > Integer.MAX_VALUE) {
+                return null;
+            }
+            Segment segment = new Segment(file, map(file, (int) file.length()));
+            if (segment.buffer.getInt(0) != MAGIC) {
+                return null;
+            }
+            segment.end = HEADER_SIZE;
+            int position = HEADER_SIZE;
+            while (segment.isValidRecord(position)) {
+                position += RECORD_HEADER_SIZE + segment.buffer.getInt(position);
+            }
+            segment.end = position;
+            int delivered = segment.buffer.getInt(DELIVERED_OFFSET);
+            segment.delivered = delivered < HEADER_SIZE || delivered > position ? HEADER_SIZE
+                    : delivered;
+            return segment;
+        }
+
+        private static MappedByteBuffer map(File file, int size)
+                throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // The mapping stays valid after the channel is closed.
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        size);
+            } finally {
+                raf.close();
+            }
+        }
+
+        void write(byte[] data) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            buffer.putInt(end + 4, (int) crc.getValue());
+            ByteBuffer view = buffer.duplicate();
+            view.position(end + RECORD_HEADER_SIZE);
+            view.put(data);
+            // Length last: until it is written the record does not exist.
+            buffer.putInt(end, data.length);
+            end += RECORD_HEADER_SIZE + data.length;
+        }
+
+        Record read(int position) {
+            int length = buffer.getInt(position);
+            return new Record(data(position, length), this, position
+                    + RECORD_HEADER_SIZE + length);
+        }
+
+        private byte[] data(int position, int length) {
+            byte[] data = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + RECORD_HEADER_SIZE);
+            view.get(data);
+            return data;
+        }
+
+        void setDelivered(int offset) {
+            delivered = offset;
+            buffer.putInt(DELIVERED_OFFSET, offset);
+        }
+
+        int countRecords(int from, int to) {
+            int count = 0;
+            for (int position = from; position < to; count++) {
+                position += RECORD_HEADER_SIZE + buffer.getInt(position);
+            }
+            return count;
+        }
+
+        private boolean isValidRecord(int position) {
+            if (position + RECORD_HEADER_SIZE > buffer.capacity()) {
+                return false;
+            }
+            int length = buffer.getInt(position);
+            if (length <= 0
+                    || length > buffer.capacity() - position - RECORD_HEADER_SIZE) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data(position, length));
+            return (int) crc.getValue() == buffer.getInt(position + 4);
+        }
+    }
+}
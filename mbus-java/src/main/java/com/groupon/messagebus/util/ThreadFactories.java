@@ -0,0 +1,135 @@
+package com.groupon.messagebus.util;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Thread factories for the client's long lived threads. Virtual threads are
+ * used when asked for and the JVM has them (Java 21 and later); they are
+ * looked up reflectively since the client is built for older JVMs. Anywhere
+ * else the factory falls back to platform threads, daemon unless asked
+ * otherwise.
+ */
+public final class ThreadFactories {
+
+    private static Logger log = Logger.getLogger(ThreadFactories.class);
+
+    // Thread.ofVirtual() and the Thread.Builder methods, null before Java 21
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_FACTORY = factory;
+    }
+
+    private ThreadFactories() {
+    }
+
+    /**
+     * @return true if this JVM can run virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param prefix
+     *            thread names are prefix followed by a counter from 1.
+     * @param virtual
+     *            true for virtual threads when the JVM supports them.
+     * @return a factory for daemon threads.
+     */
+    public static ThreadFactory newThreadFactory(String prefix, boolean virtual) {
+        return newThreadFactory(prefix, virtual, true);
+    }
+
+    /**
+     * @param prefix
+     *            thread names are prefix followed by a counter from 1.
+     * @param virtual
+     *            true for virtual threads when the JVM supports them.
+     * @param daemon
+     *            whether platform threads are daemon threads. Virtual
+     *            threads always are.
+     * @return a factory for the threads.
+     */
+    public static ThreadFactory newThreadFactory(String prefix,
+            boolean virtual, boolean daemon) {
+        if (virtual) {
+            if (isVirtualThreadSupported()) {
+                try {
+                    Object builder = OF_VIRTUAL.invoke(null);
+                    builder = BUILDER_NAME.invoke(builder, prefix, 1L);
+                    return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+                } catch (Exception e) {
+                    log.warn("Failed to create virtual thread factory, using platform threads for "
+                            + prefix, e);
+                }
+            } else {
+                log.info("Virtual threads need Java 21 or later, using platform threads for "
+                        + prefix);
+            }
+        }
+        return newPlatformThreadFactory(prefix, daemon);
+    }
+
+    private static ThreadFactory newPlatformThreadFactory(final String prefix,
+            final boolean daemon) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(daemon);
+                return thread;
+            }
+        };
+    }
+}
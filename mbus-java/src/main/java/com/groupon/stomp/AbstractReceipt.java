@@ -0,0 +1,125 @@
+package com.groupon.stomp;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.groupon.messagebus.api.ReceiptFuture;
+
+/**
+ * State of a receipt being waited for, shared by send and ack receipts.
+ * Finished exactly once, by a RECEIPT, an ERROR, a timeout, the connection
+ * going away or cancel(); the first of them wins and the others are
+ * ignored.
+ */
+public abstract class AbstractReceipt implements ReceiptFuture {
+
+    private final String receiptId;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+    private volatile Exception failure;
+    private volatile boolean cancelled;
+
+    protected AbstractReceipt(String receiptId) {
+        this.receiptId = receiptId;
+    }
+
+    public String getReceiptId() {
+        return receiptId;
+    }
+
+    /**
+     * @param cause
+     *            null on success.
+     * @return false if the receipt was already finished.
+     */
+    protected boolean finish(Exception cause, boolean cancel) {
+        if (!completed.compareAndSet(false, true)) {
+            return false;
+        }
+        failure = cause;
+        cancelled = cancel;
+        done.countDown();
+        onFinish();
+        return true;
+    }
+
+    /**
+     * Called once, after the receipt finished, to let go of whatever was
+     * tracking it.
+     */
+    protected abstract void onFinish();
+
+    /**
+     * Stops waiting for the receipt. The frame has already been written, so
+     * this does not undo it.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, true);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public Void get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("No receipt " + receiptId + " after "
+                    + unit.toMillis(timeout) + "ms");
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return null;
+    }
+}
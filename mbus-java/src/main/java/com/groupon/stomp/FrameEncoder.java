@@ -0,0 +1,130 @@
+package com.groupon.stomp;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Encodes the command and header block of a {@link StompFrame} as UTF-8
+ * straight into a ByteBuffer, without building an intermediate String. The
+ * body is written by the caller as-is, so it goes out byte for byte.
+ */
+final class FrameEncoder {
+
+    static final byte NULL = 0;
+    static final byte NEWLINE = '\n';
+    static final byte SEPARATOR = ':';
+
+    private FrameEncoder() {
+    }
+
+    /**
+     * @return the number of bytes {@link #encodeHead(StompFrame, ByteBuffer)}
+     *         will write for this frame.
+     */
+    static int headLength(StompFrame frame) {
+        int length = utf8Length(frame.getAction()) + 2;
+        for (Map.Entry<String, String> entry : frame.getHeaders().entrySet()) {
+            length += utf8Length(entry.getKey())
+                    + utf8Length(String.valueOf(entry.getValue())) + 2;
+        }
+        return length;
+    }
+
+    /**
+     * Writes the command line, the headers and the blank line that separates
+     * them from the body. The buffer must have headLength(frame) bytes left.
+     */
+    static void encodeHead(StompFrame frame, ByteBuffer buffer) {
+        putUtf8(frame.getAction(), buffer);
+        buffer.put(NEWLINE);
+        for (Map.Entry<String, String> entry : frame.getHeaders().entrySet()) {
+            putUtf8(entry.getKey(), buffer);
+            buffer.put(SEPARATOR);
+            putUtf8(String.valueOf(entry.getValue()), buffer);
+            buffer.put(NEWLINE);
+        }
+        buffer.put(NEWLINE);
+    }
+
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static void putUtf8(String s, ByteBuffer buffer) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (isSurrogate(c)) {
+                // Unpaired surrogates come out as '?', like String.getBytes().
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+}
@@ -0,0 +1,269 @@
+package com.groupon.stomp;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * Non-blocking {@link SocketChannel} transport.
+ *
+ * Outgoing frames are encoded straight into pooled direct buffers. Small
+ * frames go out with one write; larger bodies are sent with a gathering write
+ * of head, body and terminator, so the body is never copied into a String.
+ *
+ * Incoming bytes are read in bulk into a direct read buffer and fed to an
+ * incremental {@link StompFrameParser}, so a read timeout in the middle of a
+ * frame loses nothing.
+ */
+class NioTransport implements StompTransport {
+
+    static final int WRITE_BUFFER_SIZE = 8192;
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long WRITE_TIMEOUT = 30000;
+
+    // Shared by all connections; writes are short, so few buffers are needed.
+    private static final ByteBufferPool WRITE_BUFFERS = new ByteBufferPool(
+            WRITE_BUFFER_SIZE, 64);
+
+    private final SocketChannel channel;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final StompWireFormat wireFormat = new StompWireFormat();
+
+    private final Object writeLock = new Object();
+    private final ByteBuffer terminator = ByteBuffer.allocateDirect(1);
+    private final ByteBuffer[] gather = new ByteBuffer[3];
+
+    // Unconsumed input lies between position and limit.
+    private final ByteBuffer readBuffer = ByteBuffer
+            .allocateDirect(READ_BUFFER_SIZE);
+
+    NioTransport(String host, int port) throws IOException {
+        channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.connect(new InetSocketAddress(host, port));
+            channel.configureBlocking(false);
+            readSelector = Selector.open();
+            writeSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        terminator.put(FrameEncoder.NULL);
+        readBuffer.flip();
+    }
+
+    public void writeFrame(StompFrame frame) throws IOException {
+        byte[] body = frame.getContent();
+        int headLength = FrameEncoder.headLength(frame);
+        synchronized (writeLock) {
+            ByteBuffer head = headLength <= WRITE_BUFFER_SIZE ? WRITE_BUFFERS
+                    .acquire() : ByteBuffer.allocate(headLength);
+            try {
+                FrameEncoder.encodeHead(frame, head);
+                if (head.remaining() > body.length) {
+                    head.put(body);
+                    head.put(FrameEncoder.NULL);
+                    head.flip();
+                    gather[0] = head;
+                    writeFully(gather, 1);
+                } else {
+                    head.flip();
+                    gather[0] = head;
+                    gather[1] = ByteBuffer.wrap(body);
+                    gather[2] = terminator;
+                    terminator.clear();
+                    writeFully(gather, 3);
+                }
+            } finally {
+                gather[0] = gather[1] = gather[2] = null;
+                WRITE_BUFFERS.release(head);
+            }
+        }
+    }
+
+    /**
+     * Packs as many frames as fit into one pooled buffer per write. A frame
+     * too large for the buffer goes out on its own through writeFrame().
+     */
+    public void writeFrames(List<StompFrame> frames) throws IOException {
+        synchronized (writeLock) {
+            ByteBuffer buffer = WRITE_BUFFERS.acquire();
+            try {
+                for (StompFrame frame : frames) {
+                    byte[] body = frame.getContent();
+                    int length = FrameEncoder.headLength(frame) + body.length + 1;
+                    if (buffer.remaining() < length) {
+                        drain(buffer);
+                    }
+                    if (buffer.remaining() < length) {
+                        writeFrame(frame);
+                        continue;
+                    }
+                    FrameEncoder.encodeHead(frame, buffer);
+                    buffer.put(body);
+                    buffer.put(FrameEncoder.NULL);
+                }
+                drain(buffer);
+            } finally {
+                WRITE_BUFFERS.release(buffer);
+            }
+        }
+    }
+
+    private void drain(ByteBuffer buffer) throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        gather[0] = buffer;
+        try {
+            writeFully(gather, 1);
+        } finally {
+            gather[0] = null;
+        }
+        buffer.clear();
+    }
+
+    public void writeFrame(byte[] head, byte[] body) throws IOException {
+        synchronized (writeLock) {
+            try {
+                int n = 0;
+                gather[n++] = ByteBuffer.wrap(head);
+                if (body != null) {
+                    gather[n++] = ByteBuffer.wrap(body);
+                }
+                terminator.clear();
+                gather[n++] = terminator;
+                writeFully(gather, n);
+            } finally {
+                gather[0] = gather[1] = gather[2] = null;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer[] buffers, int count)
+            throws IOException {
+        ByteBuffer last = buffers[count - 1];
+        long deadline = System.currentTimeMillis() + WRITE_TIMEOUT;
+        while (last.hasRemaining()) {
+            if (channel.write(buffers, 0, count) == 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Write timed out");
+                }
+                select(writeSelector, remaining);
+            }
+        }
+    }
+
+    public StompFrame readFrame(long timeout) throws IOException {
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout
+                : Long.MAX_VALUE;
+        while (true) {
+            StompFrame frame = (StompFrame) wireFormat.unmarshal(readBuffer);
+            if (frame != null) {
+                return frame;
+            }
+            if (fill() == 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                select(readSelector, timeout > 0 ? remaining : 0);
+            }
+        }
+    }
+
+    /**
+     * Reads whatever the socket has into the read buffer. The parser has
+     * consumed everything read before, so the buffer starts out empty.
+     *
+     * @return the number of bytes read, possibly 0.
+     */
+    private int fill() throws IOException {
+        readBuffer.clear();
+        int n;
+        try {
+            n = channel.read(readBuffer);
+        } finally {
+            readBuffer.flip();
+        }
+        if (n < 0) {
+            throw new EOFException("socket closed.");
+        }
+        return n;
+    }
+
+    private void select(Selector selector, long timeout) throws IOException {
+        try {
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new ClosedChannelException();
+        }
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    public boolean isConnected() {
+        return channel.isOpen() && channel.isConnected();
+    }
+
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            readSelector.close();
+            writeSelector.close();
+        }
+    }
+}
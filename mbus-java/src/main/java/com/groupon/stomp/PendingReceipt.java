@@ -0,0 +1,69 @@
+package com.groupon.stomp;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/**
+ * A receipt the connection is still waiting for. Completed exactly once,
+ * either by the receipt reader or by the connection being torn down.
+ */
+class PendingReceipt extends AbstractReceipt {
+
+    private final long sequence;
+    private final ReceiptDispatcher dispatcher;
+
+    PendingReceipt(long sequence, ReceiptDispatcher dispatcher) {
+        super(Long.toString(sequence));
+        this.sequence = sequence;
+        this.dispatcher = dispatcher;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    boolean complete() {
+        return finish(null, false);
+    }
+
+    boolean fail(Exception cause) {
+        return finish(cause, false);
+    }
+
+    @Override
+    protected void onFinish() {
+        dispatcher.release(this);
+    }
+
+    @Override
+    public String toString() {
+        return "receipt:" + getReceiptId();
+    }
+}
@@ -0,0 +1,234 @@
+package com.groupon.stomp;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.groupon.messagebus.api.exceptions.SendFailedException;
+
+/**
+ * Reads RECEIPT and ERROR frames off a connection and completes the matching
+ * {@link PendingReceipt}. Lets many receipted frames be in flight on one
+ * connection instead of blocking on each receipt in turn.
+ *
+ * The number of outstanding receipts is bounded by a window; callers block in
+ * register() while the window is full.
+ */
+class ReceiptDispatcher implements Runnable {
+
+    // Read timeout, so the reader notices shutdown even on an idle connection.
+    private static final long POLL_INTERVAL = 1000;
+
+    private Logger log = Logger.getLogger(ReceiptDispatcher.class);
+    private final StompConnection connection;
+    private final Semaphore window;
+    private final ConcurrentSkipListMap<Long, PendingReceipt> pending = new ConcurrentSkipListMap<Long, PendingReceipt>();
+    private volatile boolean running = true;
+
+    ReceiptDispatcher(StompConnection connection, int windowSize) {
+        this.connection = connection;
+        this.window = new Semaphore(windowSize);
+    }
+
+    void start(String name) {
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Reserves a slot in the window and registers a receipt for the given
+     * sequence number. Must be called before the frame is written.
+     */
+    PendingReceipt register(long sequence, long timeout)
+            throws SendFailedException {
+        acquireSlot(timeout);
+        return register(sequence);
+    }
+
+    /**
+     * Waits up to timeout ms for a free slot in the window and takes it.
+     */
+    void acquireSlot(long timeout) throws SendFailedException {
+        try {
+            if (!window.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new SendFailedException("Timed out after " + timeout
+                        + "ms waiting for one of " + pending.size()
+                        + " pending receipts");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SendFailedException(e);
+        }
+    }
+
+    /**
+     * Gives back a slot taken by acquireSlot() and never registered.
+     */
+    void releaseSlot() {
+        window.release();
+    }
+
+    /**
+     * Registers a receipt in a slot already taken by acquireSlot().
+     */
+    PendingReceipt register(long sequence) {
+        PendingReceipt receipt = new PendingReceipt(sequence, this);
+        pending.put(sequence, receipt);
+        if (!running) {
+            receipt.fail(new SendFailedException("Connection closed"));
+        }
+        return receipt;
+    }
+
+    void release(PendingReceipt receipt) {
+        if (pending.remove(receipt.getSequence()) != null) {
+            window.release();
+        }
+        if (pending.isEmpty()) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Waits up to timeout ms for all outstanding receipts to arrive.
+     *
+     * @return true if nothing is pending any more.
+     */
+    boolean awaitPending(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (!pending.isEmpty()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the reader and fails everything still waiting for a receipt.
+     */
+    void shutdown(Exception cause) {
+        running = false;
+        failAll(cause);
+    }
+
+    private void failAll(Exception cause) {
+        for (Map.Entry<Long, PendingReceipt> entry : pending.entrySet()) {
+            entry.getValue().fail(cause);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                dispatch(connection.receive(POLL_INTERVAL));
+            } catch (SocketTimeoutException e) {
+                // nothing to read, check whether we are still running
+            } catch (Exception e) {
+                if (running) {
+                    log.warn("Receipt reader lost connection, failing "
+                            + pending.size() + " pending receipts", e);
+                    shutdown(new SendFailedException(e));
+                }
+            }
+        }
+    }
+
+    void dispatch(StompFrame frame) {
+        if (frame == null || frame.getAction() == null) {
+            log.warn("Unreadable frame received while waiting for receipts: "
+                    + frame);
+            return;
+        }
+        String receiptId = frame.getHeaders().get(
+                Stomp.Headers.Response.RECEIPT_ID);
+        PendingReceipt receipt = lookup(receiptId);
+
+        if (Stomp.Responses.RECEIPT.equals(frame.getAction())) {
+            if (receipt != null) {
+                receipt.complete();
+            } else {
+                log.debug("Ignoring receipt for unknown receipt-id " + receiptId);
+            }
+        } else if (Stomp.Responses.ERROR.equals(frame.getAction())) {
+            // The broker handles frames in order, so an ERROR that does not
+            // name a receipt belongs to the oldest frame still waiting.
+            if (receipt == null && receiptId == null) {
+                Map.Entry<Long, PendingReceipt> oldest = pending.firstEntry();
+                receipt = oldest == null ? null : oldest.getValue();
+            }
+            if (receipt != null) {
+                receipt.fail(new SendFailedException("Failed to receive RECEIPT: "
+                        + frame.getBody()));
+            } else {
+                log.warn("Error frame received with no pending receipt: "
+                        + frame.getBody());
+            }
+        } else {
+            log.debug("Ignoring " + frame.getAction()
+                    + " frame while waiting for receipts");
+        }
+    }
+
+    private PendingReceipt lookup(String receiptId) {
+        if (receiptId == null) {
+            return null;
+        }
+        try {
+            return pending.get(Long.valueOf(receiptId.trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
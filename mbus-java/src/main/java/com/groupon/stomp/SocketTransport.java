@@ -0,0 +1,143 @@
+package com.groupon.stomp;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Blocking {@link Socket} transport. The streams and the wire format are
+ * created once per socket and buffered, so a frame is written with a single
+ * flush. Input is read in bulk and fed to an incremental
+ * {@link StompFrameParser}, so a read timeout mid-frame loses nothing.
+ */
+class SocketTransport implements StompTransport {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final StompWireFormat wireFormat = new StompWireFormat();
+    private final Object writeLock = new Object();
+    private ByteBuffer head = ByteBuffer.allocate(BUFFER_SIZE);
+    // Unconsumed input lies between position and limit.
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private int soTimeout = -1;
+
+    SocketTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = new BufferedOutputStream(socket.getOutputStream(),
+                BUFFER_SIZE);
+        readBuffer.flip();
+    }
+
+    public void writeFrame(StompFrame frame) throws IOException {
+        synchronized (writeLock) {
+            encode(frame);
+            out.flush();
+        }
+    }
+
+    public void writeFrames(List<StompFrame> frames) throws IOException {
+        synchronized (writeLock) {
+            for (StompFrame frame : frames) {
+                encode(frame);
+            }
+            out.flush();
+        }
+    }
+
+    private void encode(StompFrame frame) throws IOException {
+        int length = FrameEncoder.headLength(frame);
+        if (head.capacity() < length) {
+            head = ByteBuffer.allocate(length);
+        }
+        head.clear();
+        FrameEncoder.encodeHead(frame, head);
+        out.write(head.array(), 0, head.position());
+        out.write(frame.getContent());
+        out.write(FrameEncoder.NULL);
+    }
+
+    public void writeFrame(byte[] headBytes, byte[] body) throws IOException {
+        synchronized (writeLock) {
+            out.write(headBytes);
+            if (body != null) {
+                out.write(body);
+            }
+            out.write(FrameEncoder.NULL);
+            out.flush();
+        }
+    }
+
+    public StompFrame readFrame(long timeout) throws IOException {
+        if (soTimeout != (int) timeout) {
+            socket.setSoTimeout((int) timeout);
+            soTimeout = (int) timeout;
+        }
+        while (true) {
+            StompFrame frame = (StompFrame) wireFormat.unmarshal(readBuffer);
+            if (frame != null) {
+                return frame;
+            }
+            // The parser consumed everything, so refill from the start.
+            int n = in.read(readBuffer.array(), 0, readBuffer.capacity());
+            if (n < 0) {
+                throw new EOFException("socket closed.");
+            }
+            readBuffer.position(0);
+            readBuffer.limit(n);
+        }
+    }
+
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public void close() throws IOException {
+        if (!socket.isClosed()) {
+            socket.close();
+        }
+    }
+}
@@ -30,17 +30,23 @@ package com.groupon.stomp;
  * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.log4j.Logger;
 
+import com.groupon.messagebus.api.ReceiptFuture;
 import com.groupon.messagebus.api.exceptions.InvalidDestinationException;
 import com.groupon.messagebus.api.exceptions.MessageBusException;
 import com.groupon.messagebus.api.exceptions.SendFailedException;
@@ -50,49 +56,107 @@ public class StompConnection {
 
     // Set this to appropriate value for now set to infinity
     public static final long RECEIVE_TIMEOUT = 30000;
+    public static final int DEFAULT_MAX_PENDING_RECEIPTS = 1000;
 
     private Logger log = Logger.getLogger(StompConnection.class);
     private boolean connected = false;
-    private Socket stompSocket;
-    private ByteArrayOutputStream inputBuffer = new ByteArrayOutputStream();
+    private volatile StompTransport transport;
+    private boolean useNio = false;
+    private boolean useContentLength = false;
+
+    // Receipt ids are unique for the lifetime of this object, across reconnects.
+    private final AtomicLong receiptSequence = new AtomicLong();
+    private int maxPendingReceipts = DEFAULT_MAX_PENDING_RECEIPTS;
+    private volatile ReceiptDispatcher receiptDispatcher;
+    // The reader whose window holds a slot reserveReceiptSlot() kept for
+    // the calling thread.
+    private final ThreadLocal<ReceiptDispatcher> reservedSlot = new ThreadLocal<ReceiptDispatcher>();
 
     public void open(String host, int port) throws IOException,
             UnknownHostException {
-        Socket sock = new Socket(host, port);
-        sock.setTcpNoDelay(true);
-        open(sock);
+        if (useNio) {
+            transport = new NioTransport(host, port);
+            connected = true;
+        } else {
+            Socket sock = new Socket(host, port);
+            sock.setTcpNoDelay(true);
+            open(sock);
+        }
     }
 
-    public void open(Socket socket) {
-        stompSocket = socket;
+    public void open(Socket socket) throws IOException {
+        transport = new SocketTransport(socket);
         connected = true;
+    }
+
+    public boolean isUseNio() {
+        return useNio;
+    }
+
+    /**
+     * Selects the transport used by the next open(host, port): a non-blocking
+     * SocketChannel with pooled direct buffers, or a plain blocking Socket.
+     */
+    public void setUseNio(boolean useNio) {
+        this.useNio = useNio;
+    }
 
+    public boolean isUseContentLength() {
+        return useContentLength;
+    }
+
+    /**
+     * When set, every SEND carries a content-length header, so message bodies
+     * may contain NUL bytes.
+     */
+    public void setUseContentLength(boolean useContentLength) {
+        this.useContentLength = useContentLength;
     }
 
     public void close() throws IOException {
-        if (stompSocket != null) {
-            if (!stompSocket.isClosed())
-                stompSocket.close();
-            stompSocket = null;
+        ReceiptDispatcher dispatcher = receiptDispatcher;
+        receiptDispatcher = null;
+        if (dispatcher != null) {
+            dispatcher.shutdown(new SendFailedException(
+                    "Connection closed before receipt arrived"));
+        }
+        StompTransport current = transport;
+        if (current != null) {
+            transport = null;
             connected = false;
+            current.close();
         }
     }
 
     public void sendFrame(String data) throws IOException {
-        byte[] bytes = data.getBytes("UTF-8");
-        OutputStream outputStream = stompSocket.getOutputStream();
-        outputStream.write(bytes);
-        outputStream.write(0);
-        outputStream.flush();
+        getTransport().writeFrame(data.getBytes("UTF-8"), null);
     }
 
     public void sendFrame(String frame, byte[] data) throws IOException {
-        byte[] bytes = frame.getBytes("UTF-8");
-        OutputStream outputStream = stompSocket.getOutputStream();
-        outputStream.write(bytes);
-        outputStream.write(data);
-        outputStream.write(0);
-        outputStream.flush();
+        getTransport().writeFrame(frame.getBytes("UTF-8"), data);
+    }
+
+    /**
+     * Writes the frame without going through a String, so the body goes on
+     * the wire byte for byte.
+     */
+    public void sendFrame(StompFrame frame) throws IOException {
+        getTransport().writeFrame(frame);
+    }
+
+    /**
+     * Writes the frames back to back and flushes once.
+     */
+    public void sendFrames(List<StompFrame> frames) throws IOException {
+        getTransport().writeFrames(frames);
+    }
+
+    private StompTransport getTransport() throws IOException {
+        StompTransport current = transport;
+        if (current == null) {
+            throw new IOException("Not connected");
+        }
+        return current;
     }
 
     public StompFrame receive() throws IOException {
@@ -100,61 +164,36 @@ public class StompConnection {
     }
 
     public StompFrame receive(long timeOut) throws IOException {
-        stompSocket.setSoTimeout((int) timeOut);
-        InputStream is = stompSocket.getInputStream();
-        StompWireFormat wf = new StompWireFormat();
-        DataInputStream dis = new DataInputStream(is);
-        return (StompFrame) wf.unmarshal(dis);
+        return getTransport().readFrame(timeOut);
     }
 
     public String receiveFrame() throws IOException {
         return receiveFrame(RECEIVE_TIMEOUT);
     }
 
+    /**
+     * Returns the next frame in its text form (see {@link StompFrame#format()}).
+     */
     public String receiveFrame(long timeOut) throws IOException {
-        stompSocket.setSoTimeout((int) timeOut);
-        InputStream is = stompSocket.getInputStream();
-        int c = 0;
-        for (;;) {
-            c = is.read();
-            if (c < 0) {
-                throw new IOException("socket closed.");
-            } else if (c == 0) {
-                c = is.read();
-                if (c == '\n') {
-                    // end of frame
-                    return stringFromBuffer(inputBuffer);
-                } else {
-                    inputBuffer.write(0);
-                    inputBuffer.write(c);
-                }
-            } else {
-                inputBuffer.write(c);
-            }
-        }
+        return receive(timeOut).format();
     }
 
     public boolean isConnected() {
-        if (stompSocket == null || !stompSocket.isConnected()) {
+        StompTransport current = transport;
+        if (current == null || !current.isConnected()) {
             connected = false;
         }
 
         return connected;
     }
 
-    private String stringFromBuffer(ByteArrayOutputStream inputBuffer)
-            throws IOException {
-        byte[] ba = inputBuffer.toByteArray();
-        inputBuffer.reset();
-        return new String(ba, "UTF-8");
-    }
-
     public Socket getStompSocket() {
-        return stompSocket;
+        StompTransport current = transport;
+        return current == null ? null : current.getSocket();
     }
 
-    public void setStompSocket(Socket stompSocket) {
-        this.stompSocket = stompSocket;
+    public void setStompSocket(Socket stompSocket) throws IOException {
+        open(stompSocket);
     }
 
     public void connect(String username, String password) throws IOException,
@@ -171,7 +210,7 @@ public class StompConnection {
             headers.put("client-id", client);
         }
         StompFrame frame = new StompFrame("CONNECT", headers);
-        sendFrame(frame.format());
+        sendFrame(frame);
 
         StompFrame connect = receive();
         if (!connect.getAction().equals(Stomp.Responses.CONNECTED)) {
@@ -183,7 +222,7 @@ public class StompConnection {
     public void disconnect() throws IOException {
 
         StompFrame frame = new StompFrame("DISCONNECT");
-        sendFrame(frame.format());
+        sendFrame(frame);
     }
 
     public void sendSafe(String destination, String message,
@@ -195,17 +234,30 @@ public class StompConnection {
     public void sendSafe(String destination, byte[] message,
             Map<String, String> headers) throws IOException,
             SendFailedException {
+        if (receiptDispatcher != null) {
+            // The receipt reader owns the input stream once it is started.
+            awaitReceipt(sendSafeAsync(destination, message, headers),
+                    RECEIVE_TIMEOUT);
+            return;
+        }
+
         // Add receipt header to the headers.
         if (headers == null) {
             headers = new HashMap<String, String>();
         }
-        headers.put("receipt", "1");
+        String receiptId = Long.toString(receiptSequence.incrementAndGet());
+        headers.put(Stomp.Headers.RECEIPT_REQUESTED, receiptId);
 
         // send the message.
         send(destination, message, headers);
 
-        // Wait for the
+        // Wait for the receipt, skipping stale ones left over from an earlier
+        // send that timed out.
         StompFrame connect = receive();
+        while (Stomp.Responses.RECEIPT.equals(connect.getAction())
+                && isStaleReceipt(connect, receiptId)) {
+            connect = receive();
+        }
         if (!connect.getAction().equals(Stomp.Responses.RECEIPT)) {
             throw new SendFailedException("Failed to receive RECEIPT: "
                     + connect.getBody());
@@ -214,6 +266,250 @@ public class StompConnection {
                 + destination);
     }
 
+    /**
+     * Sends the messages to one destination as SEND frames written with a
+     * single flush, each with its own receipt id, and waits until the broker
+     * has acknowledged all of them. The headers go on every frame.
+     *
+     * Frames go out in groups of at most {@link #getMaxPendingReceipts()},
+     * and each group's receipts are collected before the next is written.
+     * On failure some messages of the batch may have been accepted.
+     */
+    public void sendSafe(String destination, List<byte[]> messages,
+            Map<String, String> headers) throws IOException,
+            SendFailedException {
+        int groupSize = Math.max(1, maxPendingReceipts);
+        for (int start = 0; start < messages.size(); start += groupSize) {
+            List<byte[]> group = messages.subList(start,
+                    Math.min(messages.size(), start + groupSize));
+            if (receiptDispatcher != null) {
+                // The receipt reader owns the input stream once it is started.
+                sendSafeGroupAsync(destination, group, headers);
+            } else {
+                sendSafeGroup(destination, group, headers);
+            }
+        }
+        log.info(messages.size()
+                + " messages sent, receipts acknowledged for destination:"
+                + destination);
+    }
+
+    private void sendSafeGroup(String destination, List<byte[]> messages,
+            Map<String, String> headers) throws IOException,
+            SendFailedException {
+        List<StompFrame> frames = new ArrayList<StompFrame>(messages.size());
+        Set<String> waiting = new LinkedHashSet<String>();
+        for (byte[] message : messages) {
+            Map<String, String> frameHeaders = sendHeaders(destination, null,
+                    headers, message);
+            String receiptId = Long.toString(receiptSequence.incrementAndGet());
+            frameHeaders.put(Stomp.Headers.RECEIPT_REQUESTED, receiptId);
+            waiting.add(receiptId);
+            frames.add(new StompFrame(Stomp.Commands.SEND, frameHeaders, message));
+        }
+        sendFrames(frames);
+
+        // Receipts of an earlier send that timed out are not in the set and
+        // are skipped. One without an id stands for the oldest one we wait on.
+        while (!waiting.isEmpty()) {
+            StompFrame reply = receive();
+            if (!Stomp.Responses.RECEIPT.equals(reply.getAction())) {
+                throw new SendFailedException("Failed to receive RECEIPT: "
+                        + reply.getBody());
+            }
+            String id = reply.getHeaders().get(Stomp.Headers.Response.RECEIPT_ID);
+            if (id == null) {
+                waiting.remove(waiting.iterator().next());
+            } else {
+                waiting.remove(id);
+            }
+        }
+    }
+
+    private void sendSafeGroupAsync(String destination, List<byte[]> messages,
+            Map<String, String> headers) throws IOException,
+            SendFailedException {
+        ReceiptDispatcher dispatcher = getReceiptDispatcher();
+        List<StompFrame> frames = new ArrayList<StompFrame>(messages.size());
+        List<PendingReceipt> receipts = new ArrayList<PendingReceipt>(
+                messages.size());
+        try {
+            for (byte[] message : messages) {
+                PendingReceipt receipt = dispatcher.register(
+                        receiptSequence.incrementAndGet(), RECEIVE_TIMEOUT);
+                receipts.add(receipt);
+                Map<String, String> frameHeaders = sendHeaders(destination,
+                        null, headers, message);
+                frameHeaders.put(Stomp.Headers.RECEIPT_REQUESTED,
+                        receipt.getReceiptId());
+                frames.add(new StompFrame(Stomp.Commands.SEND, frameHeaders,
+                        message));
+            }
+            sendFrames(frames);
+        } catch (IOException e) {
+            failAll(receipts, e);
+            throw e;
+        } catch (SendFailedException e) {
+            failAll(receipts, e);
+            throw e;
+        }
+        for (PendingReceipt receipt : receipts) {
+            awaitReceipt(receipt, RECEIVE_TIMEOUT);
+        }
+    }
+
+    private void failAll(List<PendingReceipt> receipts, Exception cause) {
+        for (PendingReceipt receipt : receipts) {
+            receipt.fail(cause);
+        }
+    }
+
+    private boolean isStaleReceipt(StompFrame receipt, String receiptId) {
+        String id = receipt.getHeaders().get(Stomp.Headers.Response.RECEIPT_ID);
+        return id != null && !id.equals(receiptId);
+    }
+
+    /**
+     * Sends a message with a unique receipt id and returns without waiting for
+     * the receipt. A background reader matches RECEIPT/ERROR frames to the
+     * returned future, so many sends can wait on receipts at the same time.
+     *
+     * Blocks while {@link #getMaxPendingReceipts()} receipts are outstanding,
+     * unless the calling thread reserved a slot with reserveReceiptSlot().
+     * Once this has been called, the connection's input stream belongs to
+     * the receipt reader until the connection is closed.
+     */
+    public ReceiptFuture sendSafeAsync(String destination, byte[] message,
+            Map<String, String> headers) throws IOException,
+            SendFailedException {
+        ReceiptDispatcher dispatcher = getReceiptDispatcher();
+        ReceiptDispatcher reserved = reservedSlot.get();
+        reservedSlot.remove();
+        PendingReceipt receipt;
+        if (reserved == dispatcher) {
+            receipt = dispatcher.register(receiptSequence.incrementAndGet());
+        } else {
+            if (reserved != null) {
+                // reserved before a reconnect replaced the reader
+                reserved.releaseSlot();
+            }
+            receipt = dispatcher.register(receiptSequence.incrementAndGet(),
+                    RECEIVE_TIMEOUT);
+        }
+
+        if (headers == null) {
+            headers = new HashMap<String, String>();
+        }
+        headers.put(Stomp.Headers.RECEIPT_REQUESTED, receipt.getReceiptId());
+        try {
+            send(destination, message, headers);
+        } catch (IOException e) {
+            receipt.fail(e);
+            throw e;
+        }
+        return receipt;
+    }
+
+    /**
+     * Waits up to timeout ms for room among the outstanding receipts and
+     * keeps it for the calling thread's next sendSafeAsync(), which then
+     * does not block. Lets a caller wait for the window without holding its
+     * own locks.
+     *
+     * @throws SendFailedException
+     *             if no receipt arrived to make room in time.
+     */
+    public void reserveReceiptSlot(long timeout) throws IOException,
+            SendFailedException {
+        if (reservedSlot.get() != null) {
+            return;
+        }
+        ReceiptDispatcher dispatcher = getReceiptDispatcher();
+        dispatcher.acquireSlot(timeout);
+        reservedSlot.set(dispatcher);
+    }
+
+    /**
+     * Gives back a slot the calling thread reserved and sendSafeAsync() did
+     * not use.
+     */
+    public void releaseReceiptSlot() {
+        ReceiptDispatcher dispatcher = reservedSlot.get();
+        if (dispatcher != null) {
+            reservedSlot.remove();
+            dispatcher.releaseSlot();
+        }
+    }
+
+    /**
+     * Waits up to timeout ms for all receipts requested through
+     * sendSafeAsync() to arrive.
+     *
+     * @return true if no receipt is outstanding.
+     */
+    public boolean awaitPendingReceipts(long timeout) {
+        ReceiptDispatcher dispatcher = receiptDispatcher;
+        if (dispatcher == null) {
+            return true;
+        }
+        try {
+            return dispatcher.awaitPending(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public int getPendingReceiptCount() {
+        ReceiptDispatcher dispatcher = receiptDispatcher;
+        return dispatcher == null ? 0 : dispatcher.getPendingCount();
+    }
+
+    public int getMaxPendingReceipts() {
+        return maxPendingReceipts;
+    }
+
+    /**
+     * Sets how many receipts sendSafeAsync() may have outstanding. Takes
+     * effect on the next connection.
+     */
+    public void setMaxPendingReceipts(int maxPendingReceipts) {
+        this.maxPendingReceipts = maxPendingReceipts;
+    }
+
+    private synchronized ReceiptDispatcher getReceiptDispatcher()
+            throws IOException {
+        if (!isConnected()) {
+            throw new IOException("Not connected");
+        }
+        ReceiptDispatcher dispatcher = receiptDispatcher;
+        if (dispatcher == null || !dispatcher.isRunning()) {
+            dispatcher = new ReceiptDispatcher(this, maxPendingReceipts);
+            dispatcher.start("stomp-receipts-"
+                    + getStompSocket().getRemoteSocketAddress());
+            receiptDispatcher = dispatcher;
+        }
+        return dispatcher;
+    }
+
+    private void awaitReceipt(ReceiptFuture receipt, long timeout)
+            throws SendFailedException {
+        try {
+            receipt.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SendFailedException) {
+                throw (SendFailedException) e.getCause();
+            }
+            throw new SendFailedException((Exception) e.getCause());
+        } catch (TimeoutException e) {
+            receipt.cancel(false);
+            throw new SendFailedException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SendFailedException(e);
+        }
+    }
+
     public void send(String destination, String message,
             Map<String, String> headers) throws IOException {
         send(destination, message.getBytes(), null, headers);
@@ -234,9 +530,50 @@ public class StompConnection {
         if (transaction != null) {
             headers.put("transaction", transaction);
         }
+        if (useContentLength) {
+            headers.put(Stomp.Headers.CONTENT_LENGTH,
+                    Integer.toString(message.length));
+        }
 
         StompFrame frame = new StompFrame("SEND", headers, message);
-        sendFrame(frame.format());
+        sendFrame(frame);
+    }
+
+    /**
+     * Sends the messages to one destination as SEND frames written with a
+     * single flush. The headers go on every frame.
+     */
+    public void send(String destination, List<byte[]> messages,
+            Map<String, String> headers) throws IOException {
+        // Frames share one header map unless each needs its own length.
+        Map<String, String> shared = useContentLength ? null : sendHeaders(
+                destination, null, headers, null);
+        List<StompFrame> frames = new ArrayList<StompFrame>(messages.size());
+        for (byte[] message : messages) {
+            frames.add(new StompFrame(Stomp.Commands.SEND, shared != null ? shared
+                    : sendHeaders(destination, null, headers, message), message));
+        }
+        sendFrames(frames);
+    }
+
+    /**
+     * @return a copy of headers with the ones every SEND carries added, and
+     *         the content-length of message if that is in use.
+     */
+    private Map<String, String> sendHeaders(String destination,
+            String transaction, Map<String, String> headers, byte[] message) {
+        Map<String, String> result = headers == null ? new HashMap<String, String>()
+                : new HashMap<String, String>(headers);
+        result.put("destination", destination);
+        result.put("persistent", "true");
+        if (transaction != null) {
+            result.put("transaction", transaction);
+        }
+        if (useContentLength && message != null) {
+            result.put(Stomp.Headers.CONTENT_LENGTH,
+                    Integer.toString(message.length));
+        }
+        return result;
     }
 
     public void subscribe(String destination) throws IOException {
@@ -258,7 +595,7 @@ public class StompConnection {
             headers.put("ack", ack);
         }
         StompFrame frame = new StompFrame("SUBSCRIBE", headers);
-        sendFrame(frame.format());
+        sendFrame(frame);
     }
 
     public void unsubscribe(String destination) throws IOException {
@@ -273,28 +610,71 @@ public class StompConnection {
         headers.put("destination", destination);
 
         StompFrame frame = new StompFrame("UNSUBSCRIBE", headers);
-        sendFrame(frame.format());
+        sendFrame(frame);
     }
 
     public void begin(String transaction) throws IOException {
         Map<String, String> headers = new HashMap<String, String>();
         headers.put("transaction", transaction);
         StompFrame frame = new StompFrame("BEGIN", headers);
-        sendFrame(frame.format());
+        sendFrame(frame);
     }
 
     public void abort(String transaction) throws IOException {
         Map<String, String> headers = new HashMap<String, String>();
         headers.put("transaction", transaction);
         StompFrame frame = new StompFrame("ABORT", headers);
-        sendFrame(frame.format());
+        sendFrame(frame);
     }
 
     public void commit(String transaction) throws IOException {
+        commit(transaction, null);
+    }
+
+    public void commit(String transaction, String receiptId)
+            throws IOException {
         Map<String, String> headers = new HashMap<String, String>();
         headers.put("transaction", transaction);
+        if (receiptId != null) {
+            headers.put(Stomp.Headers.RECEIPT_REQUESTED, receiptId);
+        }
         StompFrame frame = new StompFrame("COMMIT", headers);
-        sendFrame(frame.format());
+        sendFrame(frame);
+    }
+
+    /**
+     * Commits a transaction and waits for the broker's receipt, so every SEND
+     * in it is known to be accepted. The broker drops a transaction when its
+     * connection closes; committing one it no longer knows fails.
+     */
+    public void commitSafe(String transaction) throws IOException,
+            SendFailedException {
+        ReceiptDispatcher dispatcher = receiptDispatcher;
+        if (dispatcher != null) {
+            // The receipt reader owns the input stream once it is started.
+            PendingReceipt receipt = dispatcher.register(
+                    receiptSequence.incrementAndGet(), RECEIVE_TIMEOUT);
+            try {
+                commit(transaction, receipt.getReceiptId());
+            } catch (IOException e) {
+                receipt.fail(e);
+                throw e;
+            }
+            awaitReceipt(receipt, RECEIVE_TIMEOUT);
+            return;
+        }
+
+        String receiptId = Long.toString(receiptSequence.incrementAndGet());
+        commit(transaction, receiptId);
+        StompFrame reply = receive();
+        while (Stomp.Responses.RECEIPT.equals(reply.getAction())
+                && isStaleReceipt(reply, receiptId)) {
+            reply = receive();
+        }
+        if (!reply.getAction().equals(Stomp.Responses.RECEIPT)) {
+            throw new SendFailedException("Failed to commit transaction "
+                    + transaction + ": " + reply.getBody());
+        }
     }
 
     public void ack(String messageId) throws IOException {
@@ -308,6 +688,28 @@ public class StompConnection {
     public void ack(String messageId, String transaction,
             String subscriptionId, String connectionId, String receiptId)
             throws IOException {
+        sendFrame(ackFrame(messageId, transaction, subscriptionId,
+                connectionId, receiptId));
+    }
+
+    /**
+     * Acks several messages with back to back ACK frames and one flush. The
+     * receipt, if any, is requested on the last frame only; the broker
+     * handles a connection's frames in order, so it covers the whole batch.
+     */
+    public void ack(List<String> messageIds, String subscriptionId,
+            List<String> connectionIds, String receiptId) throws IOException {
+        List<StompFrame> frames = new ArrayList<StompFrame>(messageIds.size());
+        int last = messageIds.size() - 1;
+        for (int i = 0; i <= last; i++) {
+            frames.add(ackFrame(messageIds.get(i), null, subscriptionId,
+                    connectionIds.get(i), i == last ? receiptId : null));
+        }
+        sendFrames(frames);
+    }
+
+    private StompFrame ackFrame(String messageId, String transaction,
+            String subscriptionId, String connectionId, String receiptId) {
         Map<String, String> headers = new HashMap<String, String>();
         headers.put("message-id", messageId);
         log.debug("acking message-id: " + messageId);
@@ -322,14 +724,13 @@ public class StompConnection {
         if (receiptId != null && !receiptId.equals(Utils.NULL_STRING))
             headers.put("receipt", receiptId);
 
-        StompFrame frame = new StompFrame("ACK", headers);
-        sendFrame(frame.format());
+        return new StompFrame("ACK", headers);
     }
 
     public void keepAlive() throws IOException {
         Map<String, String> headers = new HashMap<String, String>();
         StompFrame frame = new StompFrame("KEEPALIVE", headers);
-        sendFrame(frame.format());
+        sendFrame(frame);
     }
 
     public void credit(StompFrame frame) throws IOException {
@@ -340,7 +741,21 @@ public class StompConnection {
         Map<String, String> headers = new HashMap<String, String>();
         headers.put("message-id", messageId);
         StompFrame frame = new StompFrame("CREDIT", headers);
-        sendFrame(frame.format());
+        sendFrame(frame);
+    }
+
+    /**
+     * Credits several delivered messages at once: one CREDIT frame per
+     * message id, written back to back with a single flush.
+     */
+    public void credit(List<String> messageIds) throws IOException {
+        List<StompFrame> frames = new ArrayList<StompFrame>(messageIds.size());
+        for (String messageId : messageIds) {
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("message-id", messageId);
+            frames.add(new StompFrame("CREDIT", headers));
+        }
+        sendFrames(frames);
     }
 
     protected String appendHeaders(HashMap<String, Object> headers) {
@@ -360,7 +775,7 @@ public class StompConnection {
             headers.put("subscription", subscriptionId);
 
         StompFrame frame = new StompFrame("NACK", headers);
-        sendFrame(frame.format());
+        sendFrame(frame);
     }
 
 }
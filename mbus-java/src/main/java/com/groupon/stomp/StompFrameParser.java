@@ -0,0 +1,399 @@
+package com.groupon.stomp;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Incremental STOMP frame parser working on ByteBuffers.
+ *
+ * {@link #parse(ByteBuffer)} consumes whatever bytes are available and returns
+ * a frame once one is complete, or null if it needs more input; the partial
+ * frame is kept across calls, so the caller can reuse its read buffer right
+ * away. Line ends and the body terminator are found with bulk scans over the
+ * buffer, well known header names and commands are shared String constants,
+ * and header values are only decoded when asked for (see {@link StompHeaders}).
+ *
+ * A parser holds the state of one stream and is not thread safe.
+ */
+public class StompFrameParser {
+
+    private static final int MAX_COMMAND_LENGTH = 1024;
+    private static final int MAX_HEADER_LENGTH = 1024 * 10;
+    private static final int MAX_HEADERS = 1000;
+    private static final int MAX_DATA_LENGTH = 1024 * 1024 * 100;
+
+    private static final int INITIAL_HEAD_SIZE = 512;
+    // Scratch buffers grown past this are dropped after the frame.
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String[] KNOWN_COMMANDS = {
+            Stomp.Responses.MESSAGE, Stomp.Responses.RECEIPT,
+            Stomp.Responses.ERROR, Stomp.Responses.CONNECTED,
+            Stomp.Commands.SEND, Stomp.Commands.ACK, "NACK", "CREDIT",
+            "KEEPALIVE", Stomp.Commands.CONNECT, "SUBSCRIBE", "UNSUBSCRIBE",
+            Stomp.Commands.DISCONNECT, Stomp.Commands.BEGIN,
+            Stomp.Commands.COMMIT, Stomp.Commands.ABORT };
+
+    private static final String[] KNOWN_HEADERS = {
+            Stomp.Headers.Message.MESSAGE_ID,
+            Stomp.Headers.Message.DESTINATION,
+            Stomp.Headers.CONTENT_LENGTH,
+            Stomp.Headers.Response.RECEIPT_ID,
+            Stomp.Headers.Message.SUBSCRIPTION, "connection-id",
+            Stomp.Headers.RECEIPT_REQUESTED, Stomp.Headers.TRANSACTION,
+            Stomp.Headers.Message.EXPIRATION_TIME,
+            Stomp.Headers.Message.PRORITY, Stomp.Headers.Message.TIMESTAMP,
+            Stomp.Headers.Message.REDELIVERED, Stomp.Headers.Send.PERSISTENT,
+            Stomp.Headers.Message.TYPE, Stomp.Headers.Error.MESSAGE,
+            Stomp.Headers.Connected.SESSION, "content-type" };
+
+    private static final byte[][] KNOWN_COMMAND_BYTES = toBytes(KNOWN_COMMANDS);
+    private static final byte[][] KNOWN_HEADER_BYTES = toBytes(KNOWN_HEADERS);
+
+    private enum State {
+        COMMAND, HEADERS, BODY, FIXED_BODY, TERMINATOR
+    }
+
+    private State state = State.COMMAND;
+
+    // Command line and header lines of the current frame.
+    private byte[] head = new byte[INITIAL_HEAD_SIZE];
+    private int headLength;
+    private int lineStart;
+    private int headerCount;
+    private String command;
+    private StompHeaders headers;
+
+    // Body of a frame with a content-length header, allocated at its size.
+    private byte[] content;
+    private int contentLength = -1;
+    // Scratch for a body that runs up to the NULL terminator.
+    private byte[] body;
+    private int bodyLength;
+
+    /**
+     * Consumes bytes from the buffer until a frame is complete.
+     *
+     * @return the frame, or null if all available bytes were consumed without
+     *         completing one.
+     * @throws ProtocolException
+     *             if the input is not a valid frame. The partial frame is
+     *             dropped.
+     */
+    public StompFrame parse(ByteBuffer buffer) throws ProtocolException {
+        try {
+            while (buffer.hasRemaining()) {
+                switch (state) {
+                case COMMAND:
+                    readCommandLine(buffer);
+                    break;
+                case HEADERS:
+                    readHeaderLine(buffer);
+                    break;
+                case FIXED_BODY:
+                    readFixedBody(buffer);
+                    break;
+                case TERMINATOR:
+                    if (buffer.get() != 0) {
+                        throw new ProtocolException(Stomp.Headers.CONTENT_LENGTH
+                                + " bytes were read and "
+                                + "there was no trailing null byte", true);
+                    }
+                    return completeFrame(content);
+                case BODY:
+                    if (readBody(buffer)) {
+                        return completeFrame(bodyLength == 0 ? StompFrame.NO_DATA
+                                : Arrays.copyOf(body, bodyLength));
+                    }
+                    break;
+                }
+            }
+            return null;
+        } catch (ProtocolException e) {
+            reset();
+            throw e;
+        }
+    }
+
+    /**
+     * Drops any partially parsed frame.
+     */
+    public void reset() {
+        state = State.COMMAND;
+        headLength = 0;
+        lineStart = 0;
+        headerCount = 0;
+        command = null;
+        headers = null;
+        content = null;
+        contentLength = -1;
+        bodyLength = 0;
+        if (head.length > MAX_RETAINED_SIZE) {
+            head = new byte[INITIAL_HEAD_SIZE];
+        }
+        if (body != null && body.length > MAX_RETAINED_SIZE) {
+            body = null;
+        }
+    }
+
+    private void readCommandLine(ByteBuffer buffer) throws ProtocolException {
+        if (!appendLine(buffer, MAX_COMMAND_LENGTH,
+                "The maximum command length was exceeded")) {
+            return;
+        }
+        int start = skipWhitespace(head, 0, headLength);
+        int end = trimWhitespace(head, start, headLength);
+        if (start == end) {
+            // Skip blank lines between frames.
+            headLength = 0;
+            return;
+        }
+        command = lookup(head, start, end, KNOWN_COMMANDS, KNOWN_COMMAND_BYTES);
+        lineStart = headLength;
+        state = State.HEADERS;
+    }
+
+    private void readHeaderLine(ByteBuffer buffer) throws ProtocolException {
+        if (!appendLine(buffer, MAX_HEADER_LENGTH,
+                "The maximum header length was exceeded")) {
+            return;
+        }
+        if (skipWhitespace(head, lineStart, headLength) < headLength) {
+            if (headerCount++ > MAX_HEADERS) {
+                throw new ProtocolException(
+                        "The maximum number of headers was exceeded", true);
+            }
+            lineStart = headLength;
+            return;
+        }
+        parseHeaders();
+    }
+
+    /**
+     * Copies bytes up to and including the next newline into head.
+     *
+     * @return true if a whole line is now in head.
+     */
+    private boolean appendLine(ByteBuffer buffer, int maxLength,
+            String errorMessage) throws ProtocolException {
+        int position = buffer.position();
+        int newline = indexOf(buffer, position, buffer.limit(), (byte) '\n');
+        int end = newline < 0 ? buffer.limit() : newline + 1;
+        int length = end - position;
+        if (headLength - lineStart + length > maxLength + 1) {
+            throw new ProtocolException(errorMessage, true);
+        }
+        if (headLength + length > head.length) {
+            head = Arrays.copyOf(head, Math.max(head.length * 2, headLength
+                    + length));
+        }
+        buffer.get(head, headLength, length);
+        headLength += length;
+        return newline >= 0;
+    }
+
+    private void parseHeaders() throws ProtocolException {
+        byte[] data = Arrays.copyOf(head, headLength);
+        headers = new StompHeaders(data, headerCount);
+        contentLength = -1;
+
+        int lineEnd = indexOf(data, 0, headLength, (byte) '\n');
+        while (lineEnd + 1 < lineStart) {
+            int start = lineEnd + 1;
+            lineEnd = indexOf(data, start, headLength, (byte) '\n');
+            int separator = indexOf(data, start, lineEnd, (byte) ':');
+            if (separator < 0) {
+                throw new ProtocolException("Unable to parser header line ["
+                        + new String(data, start, lineEnd - start, UTF8) + "]",
+                        true);
+            }
+            int nameStart = skipWhitespace(data, start, separator);
+            String name = lookup(data, nameStart, trimWhitespace(data,
+                    nameStart, separator), KNOWN_HEADERS, KNOWN_HEADER_BYTES);
+            int valueStart = skipWhitespace(data, separator + 1, lineEnd);
+            int valueEnd = trimWhitespace(data, valueStart, lineEnd);
+            headers.add(name, valueStart, valueEnd);
+            if (name == Stomp.Headers.CONTENT_LENGTH) {
+                contentLength = parseContentLength(data, valueStart, valueEnd);
+            }
+        }
+
+        bodyLength = 0;
+        if (contentLength == 0) {
+            content = StompFrame.NO_DATA;
+            state = State.TERMINATOR;
+        } else if (contentLength > 0) {
+            content = new byte[contentLength];
+            state = State.FIXED_BODY;
+        } else {
+            if (body == null) {
+                body = new byte[INITIAL_HEAD_SIZE];
+            }
+            state = State.BODY;
+        }
+    }
+
+    private void readFixedBody(ByteBuffer buffer) {
+        int length = Math.min(buffer.remaining(), contentLength - bodyLength);
+        buffer.get(content, bodyLength, length);
+        bodyLength += length;
+        if (bodyLength == contentLength) {
+            state = State.TERMINATOR;
+        }
+    }
+
+    /**
+     * Reads a body that ends at the first NULL byte.
+     *
+     * @return true once the terminator has been consumed.
+     */
+    private boolean readBody(ByteBuffer buffer) throws ProtocolException {
+        int position = buffer.position();
+        int terminator = indexOf(buffer, position, buffer.limit(), (byte) 0);
+        int length = (terminator < 0 ? buffer.limit() : terminator) - position;
+        if (bodyLength + length > MAX_DATA_LENGTH) {
+            throw new ProtocolException("The maximum data length was exceeded",
+                    true);
+        }
+        if (bodyLength + length > body.length) {
+            body = Arrays.copyOf(body, Math.max(body.length * 2, bodyLength
+                    + length));
+        }
+        buffer.get(body, bodyLength, length);
+        bodyLength += length;
+        if (terminator < 0) {
+            return false;
+        }
+        buffer.get();
+        return true;
+    }
+
+    private StompFrame completeFrame(byte[] data) {
+        StompFrame frame = new StompFrame(command, headers, data);
+        reset();
+        return frame;
+    }
+
+    private static int parseContentLength(byte[] data, int start, int end)
+            throws ProtocolException {
+        if (start == end) {
+            throw new ProtocolException(
+                    "Specified content-length is not a valid integer", true);
+        }
+        long length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = data[i];
+            if (b < '0' || b > '9') {
+                throw new ProtocolException(
+                        "Specified content-length is not a valid integer", true);
+            }
+            length = length * 10 + (b - '0');
+            if (length > MAX_DATA_LENGTH) {
+                throw new ProtocolException(
+                        "The maximum data length was exceeded", true);
+            }
+        }
+        return (int) length;
+    }
+
+    private static String lookup(byte[] data, int start, int end,
+            String[] known, byte[][] knownBytes) {
+        int length = end - start;
+        for (int i = 0; i < knownBytes.length; i++) {
+            byte[] candidate = knownBytes[i];
+            if (candidate.length == length && regionMatches(data, start, candidate)) {
+                return known[i];
+            }
+        }
+        return new String(data, start, length, UTF8);
+    }
+
+    private static boolean regionMatches(byte[] data, int start, byte[] candidate) {
+        for (int i = 0; i < candidate.length; i++) {
+            if (data[start + i] != candidate[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same notion of whitespace as String.trim().
+    private static int skipWhitespace(byte[] data, int start, int end) {
+        while (start < end && (data[start] & 0xff) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimWhitespace(byte[] data, int start, int end) {
+        while (end > start && (data[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int start, int end, byte b) {
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset();
+            int i = indexOf(buffer.array(), offset + start, offset + end, b);
+            return i < 0 ? -1 : i - offset;
+        }
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[][] toBytes(String[] strings) {
+        byte[][] bytes = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            bytes[i] = strings[i].getBytes(UTF8);
+        }
+        return bytes;
+    }
+}
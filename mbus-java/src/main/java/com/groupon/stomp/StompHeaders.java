@@ -0,0 +1,272 @@
+package com.groupon.stomp;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Header map of a parsed frame. Keeps the raw header bytes and only decodes a
+ * value into a String the first time it is asked for. Frames carry a handful
+ * of headers, so lookups are a linear scan over (mostly interned) names.
+ */
+final class StompHeaders extends AbstractMap<String, String> {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] data;
+    private String[] names;
+    private String[] values;
+    // Start and end offset into data of each value not yet decoded; a start
+    // of -1 marks a value set through put().
+    private int[] offsets;
+    private int size;
+
+    StompHeaders(byte[] data, int capacity) {
+        this.data = data;
+        this.names = new String[capacity];
+        this.values = new String[capacity];
+        this.offsets = new int[capacity * 2];
+    }
+
+    /**
+     * Adds a header whose value is bytes [start, end) of the raw data. A
+     * repeated name replaces the earlier value.
+     */
+    void add(String name, int start, int end) {
+        int i = indexOf(name);
+        if (i < 0) {
+            ensureCapacity(size + 1);
+            i = size++;
+            names[i] = name;
+        }
+        values[i] = null;
+        offsets[i * 2] = start;
+        offsets[i * 2 + 1] = end;
+    }
+
+    private int indexOf(Object name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i] == name) {
+                return i;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String valueAt(int i) {
+        String value = values[i];
+        int start = offsets[i * 2];
+        if (value == null && start >= 0) {
+            value = new String(data, start, offsets[i * 2 + 1] - start, UTF8);
+            values[i] = value;
+        }
+        return value;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > names.length) {
+            int newCapacity = Math.max(capacity, names.length * 2);
+            String[] newNames = new String[newCapacity];
+            String[] newValues = new String[newCapacity];
+            int[] newOffsets = new int[newCapacity * 2];
+            System.arraycopy(names, 0, newNames, 0, size);
+            System.arraycopy(values, 0, newValues, 0, size);
+            System.arraycopy(offsets, 0, newOffsets, 0, size * 2);
+            names = newNames;
+            values = newValues;
+            offsets = newOffsets;
+        }
+    }
+
+    private void removeAt(int i) {
+        int moved = size - i - 1;
+        System.arraycopy(names, i + 1, names, i, moved);
+        System.arraycopy(values, i + 1, values, i, moved);
+        System.arraycopy(offsets, (i + 1) * 2, offsets, i * 2, moved * 2);
+        size--;
+        names[size] = null;
+        values[size] = null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : valueAt(i);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        int i = indexOf(key);
+        if (i < 0) {
+            ensureCapacity(size + 1);
+            i = size++;
+            names[i] = key;
+            values[i] = null;
+            offsets[i * 2] = -1;
+        }
+        String old = valueAt(i);
+        values[i] = value;
+        offsets[i * 2] = -1;
+        return old;
+    }
+
+    @Override
+    public String remove(Object key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        String old = valueAt(i);
+        removeAt(i);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            names[i] = null;
+            values[i] = null;
+        }
+        size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+
+        private int next = 0;
+        private int last = -1;
+
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        public Map.Entry<String, String> next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new Entry(last);
+        }
+
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
+    }
+
+    private class Entry implements Map.Entry<String, String> {
+
+        private final int index;
+
+        Entry(int index) {
+            this.index = index;
+        }
+
+        public String getKey() {
+            return names[index];
+        }
+
+        public String getValue() {
+            return valueAt(index);
+        }
+
+        public String setValue(String value) {
+            String old = valueAt(index);
+            values[index] = value;
+            offsets[index * 2] = -1;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return eq(getKey(), e.getKey()) && eq(getValue(), e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            String value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,75 @@
+package com.groupon.stomp;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * The byte level side of a {@link StompConnection}: writes whole frames and
+ * reads them back. Writes may come from several threads; reads come from one
+ * thread at a time.
+ */
+interface StompTransport {
+
+    /**
+     * Encodes and writes one frame, followed by the NULL terminator.
+     */
+    void writeFrame(StompFrame frame) throws IOException;
+
+    /**
+     * Encodes and writes the frames back to back, with as few socket writes as
+     * the buffers allow rather than one per frame.
+     */
+    void writeFrames(List<StompFrame> frames) throws IOException;
+
+    /**
+     * Writes an already encoded frame head and body, followed by the NULL
+     * terminator. body may be null.
+     */
+    void writeFrame(byte[] head, byte[] body) throws IOException;
+
+    /**
+     * Reads the next frame, waiting at most timeout ms (0 waits forever).
+     *
+     * @throws java.net.SocketTimeoutException
+     *             if no complete frame arrived in time.
+     */
+    StompFrame readFrame(long timeout) throws IOException;
+
+    boolean isConnected();
+
+    Socket getSocket();
+
+    void close() throws IOException;
+}
@@ -51,13 +51,19 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
 
-
+/**
+ * Marshals STOMP frames. Unmarshalling from a ByteSequence or ByteBuffer goes
+ * through a {@link StompFrameParser}, which keeps the state of a partially
+ * received frame, so an instance should be used by one reader at a time.
+ */
 public class StompWireFormat implements WireFormat {
 
     private static final byte[] NO_DATA = new byte[] {};
@@ -69,6 +75,7 @@ public class StompWireFormat implements WireFormat {
     private static final int MAX_DATA_LENGTH = 1024 * 1024 * 100;
 
     private int version = 1;
+    private final StompFrameParser parser = new StompFrameParser();
 
     public ByteSequence marshal(Object command) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -79,9 +86,29 @@ public class StompWireFormat implements WireFormat {
     }
 
     public Object unmarshal(ByteSequence packet) throws IOException {
-        ByteArrayInputStream stream = new ByteArrayInputStream(packet);
-        DataInputStream dis = new DataInputStream(stream);
-        return unmarshal(dis);
+        parser.reset();
+        Object frame = unmarshal(ByteBuffer.wrap(packet.getData(),
+                packet.getOffset(), packet.getLength()));
+        if (frame == null) {
+            throw new EOFException("Incomplete frame");
+        }
+        return frame;
+    }
+
+    /**
+     * Parses the next frame out of the buffer. The bytes of an incomplete
+     * frame are consumed and remembered, so this can be called again as more
+     * data arrives.
+     *
+     * @return the frame, a {@link StompFrameError} if the input was not a
+     *         valid frame, or null if the frame is not complete yet.
+     */
+    public Object unmarshal(ByteBuffer buffer) {
+        try {
+            return parser.parse(buffer);
+        } catch (ProtocolException e) {
+            return new StompFrameError(e);
+        }
     }
 
     public void marshal(Object command, DataOutput os) throws IOException {
@@ -108,6 +135,10 @@ public class StompWireFormat implements WireFormat {
         os.write(END_OF_FRAME);
     }
 
+    /**
+     * Reads one frame a byte at a time. Prefer {@link #unmarshal(ByteBuffer)}
+     * where the input is available as a buffer.
+     */
     public Object unmarshal(DataInput in) throws IOException {
 
         try {
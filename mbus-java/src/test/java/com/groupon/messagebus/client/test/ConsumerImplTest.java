@@ -127,6 +127,7 @@ public class ConsumerImplTest extends TestCase {
             bytes = Base64.encodeBase64(bytes);
 
             when(frame1.getBody()).thenReturn(new String(bytes));
+            when(frame1.getContent()).thenReturn(bytes);
             when(frame1.getAction()).thenReturn("Message");
             HashMap<String, String> headers = new HashMap<String, String>();
             headers.put("message-id", "12345");
@@ -565,9 +566,8 @@ public class ConsumerImplTest extends TestCase {
         StompFrame receiptFrame = mock(StompFrame.class);
         when(receiptFrame.getAction()).thenReturn(Stomp.Responses.RECEIPT);
         Map<String, String> headers = new Hashtable<String, String>();
-        String receipt_id = java.util.UUID.nameUUIDFromBytes("12345".getBytes()).toString();
-        headers.put(Stomp.Headers.Response.RECEIPT_ID,
-                receipt_id);
+        // The RECEIPT carries the random id the ack was sent with.
+        StompMocks.echoAckReceipt(connection, headers);
         when(receiptFrame.getHeaders()).thenReturn(headers);
         when(connection.receive(300000)).thenReturn(frame1, receiptFrame);
 
@@ -583,7 +583,8 @@ public class ConsumerImplTest extends TestCase {
         boolean result = consumer.ackSafe();
         consumer.stop();
         verify(mockedStompServerFetcher).ackSafe(1000);
-        verify(connection).ack("12345",null,null,null,receipt_id);
+        verify(connection).ack("12345", null, null, null,
+                headers.get(Stomp.Headers.Response.RECEIPT_ID));
         assertTrue(result);
     }
 
@@ -648,4 +649,26 @@ public class ConsumerImplTest extends TestCase {
         consumer.stop();
         verify(consumer, never()).fetchHostList();
     }
+
+    @Test
+    public void test20_ackMessageByHandle() throws InvalidConfigException,
+            InvalidStatusException, IOException {
+        ConsumerImpl consumer = mockConsumerImpl(config);
+        consumer.start(config);
+        Message message = consumer.receive();
+        assertNotNull(message.getAckHandle());
+        assertTrue(consumer.ack(message.getAckHandle()));
+
+        // the string form still decodes to the same broker and message
+        String clearText = new String(Base64.decodeBase64(message.getAckId()
+                .getBytes()));
+        assertEquals(dummyHostParam.getHost() + ":" + dummyHostParam.getPort()
+                + ":12345:" + Utils.NULL_STRING, clearText);
+        assertEquals(message.getAckId(), message.getAckHandle().getAckId());
+        assertTrue(consumer.ack(message.getAckId()));
+        assertFalse(consumer.ack(Base64.encodeBase64String("bad:id".getBytes())));
+        consumer.stop();
+        verify(connection, Mockito.times(2)).ack(eq("12345"), anyString(),
+                anyString(), eq(Utils.NULL_STRING), anyString());
+    }
 }
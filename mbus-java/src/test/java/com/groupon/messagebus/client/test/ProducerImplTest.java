@@ -30,16 +30,21 @@ package com.groupon.messagebus.client.test;
  * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import junit.framework.TestCase;
@@ -49,17 +54,22 @@ import org.apache.log4j.BasicConfigurator;
 import org.apache.thrift.TException;
 import org.apache.thrift.TSerializer;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
 
 import com.groupon.messagebus.api.Producer;
 import com.groupon.messagebus.api.HostParams;
 import com.groupon.messagebus.api.Message;
 import com.groupon.messagebus.api.ProducerConfig;
+import com.groupon.messagebus.api.ReceiptFuture;
 import com.groupon.messagebus.api.exceptions.BrokerConnectionCloseFailedException;
 import com.groupon.messagebus.api.exceptions.InvalidConfigException;
 import com.groupon.messagebus.api.exceptions.InvalidStatusException;
 import com.groupon.messagebus.api.exceptions.SendFailedException;
 import com.groupon.messagebus.api.exceptions.TooManyConnectionRetryAttemptsException;
 import com.groupon.messagebus.client.ProducerImpl;
+import com.groupon.messagebus.client.Utils;
 import com.groupon.messagebus.thrift.api.MessageInternal;
 import com.groupon.stomp.StompConnection;
 
@@ -69,6 +79,10 @@ public class ProducerImplTest extends TestCase {
     private String MESSAGE_ID = "id-1";
     private byte[] MESSAGE_DATA = "my sweeet message.".getBytes();
     private byte[] MESSAGE_DATA2 = "my failing message.".getBytes();
+    @Captor
+    private ArgumentCaptor<Map<String, String>> headers;
+    @Captor
+    private ArgumentCaptor<List<byte[]>> payloads;
 
     void setDefaultProducerConfigs() {
         config = new ProducerConfig();
@@ -78,6 +92,7 @@ public class ProducerImplTest extends TestCase {
     }
 
     public void setUp() {
+        MockitoAnnotations.initMocks(this);
         setDefaultProducerConfigs();
         BasicConfigurator.configure();
     }
@@ -270,6 +285,68 @@ public class ProducerImplTest extends TestCase {
         producer.stop();
     }
 
+    @Test
+    public void testSendSafeBinaryEncoding() throws Exception {
+        StompConnection connection = mockStompConnection();
+        ProducerImpl producer = new ProducerImpl(connection);
+        config.setUseBinaryEncoding(true);
+
+        producer.start(config);
+
+        producer.sendSafe(Message.createBinaryMessage(MESSAGE_ID, MESSAGE_DATA));
+
+        ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+        verify(connection).setUseContentLength(true);
+        verify(connection).sendSafe(eq(config.getDestinationName()),
+                body.capture(), headers.capture());
+        assertTrue(Arrays.equals(Base64.decodeBase64(getMessageAsBytes(
+                MESSAGE_ID, MESSAGE_DATA)), body.getValue()));
+        assertEquals(Utils.BINARY_ENCODING,
+                headers.getValue().get(Utils.MESSAGE_ENCODING_HEADER));
+        producer.stop();
+    }
+
+    @Test
+    public void testSendSafeBatch() throws Exception {
+        StompConnection connection = mockStompConnection();
+        ProducerImpl producer = new ProducerImpl(connection);
+
+        producer.start(config);
+
+        producer.sendSafe(Arrays.asList(
+                Message.createBinaryMessage(MESSAGE_ID, MESSAGE_DATA),
+                Message.createBinaryMessage(MESSAGE_ID + "2", MESSAGE_DATA)));
+
+        verify(connection).sendSafe(eq(config.getDestinationName()),
+                payloads.capture(), eq((Map<String, String>) null));
+        assertEquals(2, payloads.getValue().size());
+        assertTrue(Arrays.equals(getMessageAsBytes(MESSAGE_ID, MESSAGE_DATA),
+                payloads.getValue().get(0)));
+        assertTrue(Arrays.equals(getMessageAsBytes(MESSAGE_ID + "2", MESSAGE_DATA),
+                payloads.getValue().get(1)));
+        producer.stop();
+    }
+
+    @Test
+    public void testSendSafeAsync() throws Exception {
+        StompConnection connection = mockStompConnection();
+        ReceiptFuture receipt = mock(ReceiptFuture.class);
+        when(connection.sendSafeAsync(config.getDestinationName(),
+                getMessageAsBytes(MESSAGE_ID, MESSAGE_DATA), null)).thenReturn(receipt);
+        ProducerImpl producer = new ProducerImpl(connection);
+
+        Message message = Message.createBinaryMessage(MESSAGE_ID, MESSAGE_DATA);
+
+        producer.start(config);
+
+        assertSame(receipt, producer.sendSafeAsync(message, null));
+
+        verify(connection).setMaxPendingReceipts(config.getMaxInflightSafeSends());
+        verify(connection).sendSafeAsync(config.getDestinationName(),
+                getMessageAsBytes(MESSAGE_ID, MESSAGE_DATA), null);
+        producer.stop();
+    }
+
     @Test
     public void testSendSafeError() throws TException, SendFailedException,
             IOException, TooManyConnectionRetryAttemptsException,
@@ -295,6 +372,32 @@ public class ProducerImplTest extends TestCase {
         producer.stop();
     }
 
+    @Test
+    public void testSendErrorReconnectsWithoutWaitingForReceipts()
+            throws Exception {
+        StompConnection connection = mockStompConnection();
+        ProducerImpl producer = new ProducerImpl(connection);
+        Message message = Message
+                .createBinaryMessage(MESSAGE_ID, MESSAGE_DATA2);
+
+        producer.start(config);
+
+        try {
+            producer.sendSafe(message, null);
+            fail("send should have failed");
+        } catch (SendFailedException e) {
+        }
+
+        // each failed attempt replaces the broken connection once, without
+        // waiting on its receipts
+        int attempts = config.getPublishMaxRetryAttempts();
+        verify(connection, times(attempts)).close();
+        verify(connection, times(attempts + 1)).open(
+                dummyHostParam.getHost(), dummyHostParam.getPort());
+        verify(connection, never()).awaitPendingReceipts(anyLong());
+        producer.stop();
+    }
+
     @Test
     public void testCheckConnectionRefresh()
             throws UnsupportedEncodingException, TException, Exception {
@@ -322,6 +425,29 @@ public class ProducerImplTest extends TestCase {
         producer.stop();
     }
 
+    @Test
+    public void testRefreshPostponedForOpenBatch() throws Exception {
+        config.setConnectionLifetime(200);
+        StompConnection connection = mockStompConnection();
+        ProducerImpl producer = new ProducerImpl(connection);
+
+        producer.start(config);
+        producer.beginBatch();
+
+        // the first refreshes wait for the batch
+        Thread.sleep(500);
+        verify(connection, never()).close();
+
+        // the fourth goes ahead
+        Thread.sleep(400);
+        verify(connection).close();
+        verify(connection, times(2)).open(dummyHostParam.getHost(),
+                dummyHostParam.getPort());
+
+        producer.abort();
+        producer.stop();
+    }
+
     @Test
     public void testStatusTransition() throws SendFailedException, TException,
             IOException, TooManyConnectionRetryAttemptsException,
@@ -229,9 +229,8 @@ public class StompServerFetcherTest extends TestCase{
         StompFrame receiptFrame = mock(StompFrame.class);
         when(receiptFrame.getAction()).thenReturn(Stomp.Responses.RECEIPT);
         Map<String, String> headers = new Hashtable<String, String>();
-        String receipt_id = java.util.UUID.nameUUIDFromBytes("12345".getBytes()).toString();
-        headers.put(Stomp.Headers.Response.RECEIPT_ID,
-                receipt_id);
+        // The RECEIPT carries the random id the ack was sent with.
+        StompMocks.echoAckReceipt(connection, headers);
         when(receiptFrame.getHeaders()).thenReturn(headers);
 
         when(connection.receive()).thenReturn(frame1, receiptFrame);
@@ -245,7 +244,8 @@ public class StompServerFetcherTest extends TestCase{
         fetcher.ackSafe(100);
         fetcher.close();
 
-        verify(connection).ack("12345",null,null,null,receipt_id);;
+        verify(connection).ack("12345", null, null, null,
+                headers.get(Stomp.Headers.Response.RECEIPT_ID));;
     }
     @Test
     public void test6_ackSafeFail() throws IOException, AckFailedException, InterruptedException {
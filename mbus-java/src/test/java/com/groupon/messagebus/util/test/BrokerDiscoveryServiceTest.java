@@ -0,0 +1,196 @@
+package com.groupon.messagebus.util.test;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.groupon.messagebus.api.HostParams;
+import com.groupon.messagebus.util.BrokerDiscoveryService;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class BrokerDiscoveryServiceTest extends TestCase {
+
+    private HttpServer server;
+    private String url;
+    private volatile String list = "broker1:61613,broker2:61613";
+    private volatile boolean failing = false;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/jmx", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                String etag = "\"" + list.hashCode() + "\"";
+                int code = 200;
+                if (failing) {
+                    code = 500;
+                } else if (etag.equals(exchange.getRequestHeaders().getFirst(
+                        "If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    code = 304;
+                }
+                byte[] body = code == 200 ? list.getBytes("UTF-8")
+                        : new byte[0];
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.sendResponseHeaders(code, code == 304 ? -1
+                        : body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/jmx";
+    }
+
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void test1_OnePollPerUrlWithConditionalRequests()
+            throws Exception {
+        BrokerDiscoveryService discovery = new BrokerDiscoveryService();
+        Set<HostParams> brokers = discovery.getBrokers(url);
+        assertEquals(2, brokers.size());
+        assertSame(brokers, discovery.getBrokers(url));
+        assertEquals(1, requests.get());
+
+        BrokerDiscoveryService.Subscription first = discovery.subscribe(url,
+                100, new Recorder());
+        BrokerDiscoveryService.Subscription second = discovery.subscribe(url,
+                100, new Recorder());
+        Thread.sleep(450);
+        first.cancel();
+        second.cancel();
+        // two subscribers, one poller, answered with 304s
+        int polls = requests.get() - 1;
+        assertTrue("polls " + polls, polls >= 2 && polls <= 6);
+        assertEquals(polls, notModified.get());
+
+        Thread.sleep(250);
+        assertEquals(polls + 1, requests.get());
+    }
+
+    @Test
+    public void test2_PushesDiffsAndKeepsLastGoodList() throws Exception {
+        BrokerDiscoveryService discovery = new BrokerDiscoveryService();
+        Recorder recorder = new Recorder();
+        discovery.getBrokers(url);
+        BrokerDiscoveryService.Subscription subscription = discovery
+                .subscribe(url, 50, recorder);
+        try {
+            list = "broker2:61613,broker3:61613";
+            Change change = recorder.changes.poll(5, TimeUnit.SECONDS);
+            assertNotNull(change);
+            assertEquals(1, change.added.size());
+            assertEquals("broker3", change.added.iterator().next().getHost());
+            assertEquals(1, change.removed.size());
+            assertEquals("broker1", change.removed.iterator().next().getHost());
+            assertEquals(2, change.brokers.size());
+
+            failing = true;
+            Thread.sleep(200);
+            assertEquals(change.brokers, discovery.getBrokers(url));
+            assertTrue(recorder.changes.isEmpty());
+        } finally {
+            subscription.cancel();
+        }
+    }
+
+    @Test
+    public void test3_ColdStartsFromCacheDirectory() throws Exception {
+        File directory = File.createTempFile("mbus-discovery", "");
+        directory.delete();
+        directory.mkdir();
+        try {
+            BrokerDiscoveryService discovery = new BrokerDiscoveryService();
+            discovery.setCacheDirectory(directory);
+            assertEquals(2, discovery.getBrokers(url).size());
+
+            // a restarted client with the URL down starts from the file
+            server.stop(0);
+            BrokerDiscoveryService restarted = new BrokerDiscoveryService();
+            restarted.setCacheDirectory(directory);
+            assertEquals(discovery.getBrokers(url), restarted.getBrokers(url));
+
+            try {
+                new BrokerDiscoveryService().getBrokers(url);
+                fail("No list and no server should fail");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static class Change {
+        final Set<HostParams> brokers;
+        final Set<HostParams> added;
+        final Set<HostParams> removed;
+
+        Change(Set<HostParams> brokers, Set<HostParams> added,
+                Set<HostParams> removed) {
+            this.brokers = brokers;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    private static class Recorder implements BrokerDiscoveryService.Listener {
+        final BlockingQueue<Change> changes = new LinkedBlockingQueue<Change>();
+
+        public void onBrokersChanged(String url, Set<HostParams> brokers,
+                Set<HostParams> added, Set<HostParams> removed) {
+            changes.add(new Change(brokers, added, removed));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.groupon.messagebus.util.test;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.groupon.messagebus.util.CircuitBreaker;
+import com.groupon.messagebus.util.ExponentialBackoff;
+
+public class CircuitBreakerTest extends TestCase {
+
+    @Test
+    public void test1_BackoffDoublesWithJitterUpToMax() {
+        ExponentialBackoff backoff = new ExponentialBackoff(100, 1000);
+        long[] steps = { 100, 200, 400, 800, 1000, 1000 };
+        for (long step : steps) {
+            long delay = backoff.nextDelay();
+            assertTrue("delay " + delay + " for step " + step,
+                    delay >= step / 2 && delay <= step);
+        }
+        assertEquals(steps.length, backoff.getAttempts());
+        backoff.reset();
+        assertTrue(backoff.nextDelay() <= 100);
+    }
+
+    @Test
+    public void test2_OpensAfterThresholdAndHalfOpensAfterDelay()
+            throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(2,
+                new ExponentialBackoff(50, 50));
+        assertTrue(breaker.allowRequest());
+
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertTrue(breaker.getRetryDelay() > 0);
+
+        Thread.sleep(60);
+        // one trial goes through once the delay is over
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        // a failed trial opens the circuit again
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        Thread.sleep(60);
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getRetryDelay());
+        assertTrue(breaker.allowRequest());
+    }
+}
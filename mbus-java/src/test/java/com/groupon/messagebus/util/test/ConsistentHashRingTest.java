@@ -0,0 +1,101 @@
+package com.groupon.messagebus.util.test;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.groupon.messagebus.util.ConsistentHashRing;
+
+public class ConsistentHashRingTest extends TestCase {
+
+    private static final List<String> NODES = Arrays.asList("broker1:61613",
+            "broker2:61613", "broker3:61613", "broker4:61613");
+    private static final int KEYS = 10000;
+
+    @Test
+    public void test1_SameKeySameNodeAcrossRings() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<String>(NODES);
+        List<String> shuffled = new ArrayList<String>(NODES);
+        Collections.reverse(shuffled);
+        ConsistentHashRing<String> other = new ConsistentHashRing<String>(
+                shuffled);
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(ring.get("key" + i), other.get("key" + i));
+        }
+        assertNull(new ConsistentHashRing<String>(new ArrayList<String>())
+                .get("key"));
+    }
+
+    @Test
+    public void test2_KeysSpreadEvenly() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<String>(NODES);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+            String node = ring.get("key" + i);
+            Integer count = counts.get(node);
+            counts.put(node, count == null ? 1 : count + 1);
+        }
+        assertEquals(NODES.size(), counts.size());
+        int fair = KEYS / NODES.size();
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            assertTrue(count.toString(), count.getValue() > fair * 0.7
+                    && count.getValue() < fair * 1.3);
+        }
+    }
+
+    @Test
+    public void test3_RemovingANodeOnlyMovesItsKeys() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<String>(NODES);
+        ConsistentHashRing<String> smaller = new ConsistentHashRing<String>(
+                NODES.subList(0, NODES.size() - 1));
+        String removed = NODES.get(NODES.size() - 1);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String before = ring.get("key" + i);
+            String after = smaller.get("key" + i);
+            if (!before.equals(removed)) {
+                assertEquals(before, after);
+            } else {
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved < KEYS / 2);
+    }
+}
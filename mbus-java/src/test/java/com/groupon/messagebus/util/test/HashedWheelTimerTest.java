@@ -0,0 +1,101 @@
+package com.groupon.messagebus.util.test;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.groupon.messagebus.util.HashedWheelTimer;
+
+public class HashedWheelTimerTest extends TestCase {
+
+    private HashedWheelTimer timer;
+
+    public void setUp() {
+        timer = new HashedWheelTimer("test-timer", 5, 8);
+    }
+
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void test1_RunsNotBeforeDelay() throws InterruptedException {
+        final CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(new Runnable() {
+            public void run() {
+                fired.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void test2_CancelledTaskNeverRuns() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+
+        Thread.sleep(100);
+        assertEquals(0, runs.get());
+        assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void test3_DelaysBeyondOneRevolution() throws InterruptedException {
+        // 8 buckets of 5ms make a 40ms wheel.
+        final CountDownLatch fired = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            timer.newTimeout(new Runnable() {
+                public void run() {
+                    fired.countDown();
+                }
+            }, i, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertEquals(0, timer.getPendingCount());
+    }
+}
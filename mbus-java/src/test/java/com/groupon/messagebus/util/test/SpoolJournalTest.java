@@ -0,0 +1,230 @@
+package com.groupon.messagebus.util.test;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.groupon.messagebus.util.SpoolJournal;
+
+public class SpoolJournalTest extends TestCase {
+
+    // segment header, then per record its length and CRC
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private File directory;
+
+    public void setUp() throws IOException {
+        directory = File.createTempFile("mbus-spool-journal", "");
+        assertTrue(directory.delete());
+    }
+
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes();
+    }
+
+    private static String string(SpoolJournal.Record record) {
+        return new String(record.getData());
+    }
+
+    private String[] segmentNames() {
+        String[] names = directory.list();
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Test
+    public void test1_TornRecordIsDroppedOnRecovery() throws Exception {
+        SpoolJournal journal = new SpoolJournal(directory, 4096, 1024 * 1024);
+        journal.append(bytes("first"), true);
+        journal.append(bytes("second"), true);
+        journal.close();
+
+        // A crash before the second record's length was written leaves
+        // zeroes where it goes.
+        RandomAccessFile file = new RandomAccessFile(new File(directory,
+                segmentNames()[0]), "rw");
+        try {
+            file.seek(HEADER_SIZE + RECORD_HEADER_SIZE + "first".length());
+            file.writeInt(0);
+        } finally {
+            file.close();
+        }
+
+        journal = new SpoolJournal(directory, 4096, 1024 * 1024);
+        assertEquals(1, journal.getPendingCount());
+        // appends go to a new segment after the recovered one
+        journal.append(bytes("third"), false);
+        List<SpoolJournal.Record> records = journal.peek(10, 0);
+        assertEquals(2, records.size());
+        assertEquals("first", string(records.get(0)));
+        assertEquals("third", string(records.get(1)));
+        journal.close();
+    }
+
+    @Test
+    public void test2_CorruptRecordEndsTheSegment() throws Exception {
+        SpoolJournal journal = new SpoolJournal(directory, 4096, 1024 * 1024);
+        journal.append(bytes("first"), true);
+        journal.append(bytes("second"), true);
+        journal.close();
+
+        RandomAccessFile file = new RandomAccessFile(new File(directory,
+                segmentNames()[0]), "rw");
+        try {
+            file.seek(HEADER_SIZE + 2 * RECORD_HEADER_SIZE + "first".length());
+            file.write('S');
+        } finally {
+            file.close();
+        }
+
+        journal = new SpoolJournal(directory, 4096, 1024 * 1024);
+        List<SpoolJournal.Record> records = journal.peek(10, 0);
+        assertEquals(1, records.size());
+        assertEquals("first", string(records.get(0)));
+        journal.close();
+    }
+
+    @Test
+    public void test3_DeliveredOffsetIsPersisted() throws Exception {
+        SpoolJournal journal = new SpoolJournal(directory, 4096, 1024 * 1024);
+        journal.append(Arrays.asList(bytes("first"), bytes("second"),
+                bytes("third")), true);
+        List<SpoolJournal.Record> records = journal.peek(10, 0);
+        assertEquals(3, records.size());
+        journal.delivered(records.get(1));
+        assertEquals(1, journal.getPendingCount());
+        journal.close();
+
+        journal = new SpoolJournal(directory, 4096, 1024 * 1024);
+        assertEquals(1, journal.getPendingCount());
+        records = journal.peek(10, 0);
+        assertEquals(1, records.size());
+        assertEquals("third", string(records.get(0)));
+
+        journal.delivered(records.get(0));
+        assertEquals(0, journal.getPendingCount());
+        assertTrue(journal.awaitEmpty(0));
+        journal.close();
+
+        // a segment with nothing left to deliver is deleted on recovery
+        journal = new SpoolJournal(directory, 4096, 1024 * 1024);
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(0, directory.list().length);
+        journal.close();
+    }
+
+    @Test
+    public void test4_SegmentsRollOverAndAreDeleted() throws Exception {
+        // room for one 40 byte record per segment
+        byte[] data = new byte[40];
+        SpoolJournal journal = new SpoolJournal(directory, 64, 3 * 64);
+        journal.append(data, false);
+        journal.append(data, false);
+        journal.append(data, false);
+        assertEquals(3, directory.list().length);
+        try {
+            journal.append(data, false);
+            fail("journal should be full");
+        } catch (IOException e) {
+        }
+
+        List<SpoolJournal.Record> records = journal.peek(10, 0);
+        assertEquals(3, records.size());
+        journal.delivered(records.get(0));
+        assertEquals(2, directory.list().length);
+        // the newest segment still takes appends, so it is kept
+        journal.delivered(records.get(2));
+        String[] names = segmentNames();
+        assertEquals(1, names.length);
+        assertEquals("spool-2.log", names[0]);
+
+        // the freed space takes new segments
+        journal.append(data, false);
+        journal.append(data, false);
+        assertEquals(2, journal.getPendingCount());
+        journal.close();
+    }
+
+    @Test
+    public void test5_DeadLetterMovesTheOldestRecord() throws Exception {
+        SpoolJournal journal = new SpoolJournal(directory, 4096, 1024 * 1024);
+        journal.append(Arrays.asList(bytes("poison"), bytes("fine")), true);
+        List<SpoolJournal.Record> records = journal.peek(10, 0);
+        try {
+            journal.deadLetter(records.get(1));
+            fail("only the oldest record can be dead lettered");
+        } catch (IllegalArgumentException e) {
+        }
+
+        journal.deadLetter(records.get(0));
+        assertEquals(1, journal.getPendingCount());
+        assertEquals("fine", string(journal.peek(10, 0).get(0)));
+        journal.close();
+
+        DataInputStream in = new DataInputStream(new FileInputStream(
+                new File(directory, SpoolJournal.DEAD_LETTER_FILE)));
+        try {
+            byte[] data = new byte[in.readInt()];
+            in.readInt();
+            in.readFully(data);
+            assertEquals("poison", new String(data));
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+
+        // the dead letter file is not taken for a segment
+        journal = new SpoolJournal(directory, 4096, 1024 * 1024);
+        assertEquals(1, journal.getPendingCount());
+        journal.close();
+    }
+}
@@ -0,0 +1,86 @@
+package com.groupon.messagebus.util.test;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.groupon.messagebus.util.ThreadFactories;
+
+public class ThreadFactoriesTest extends TestCase {
+
+    @Test
+    public void test1_PlatformThreadsAreNamedDaemons() {
+        ThreadFactory factory = ThreadFactories.newThreadFactory("test-", false);
+        Runnable noop = new Runnable() {
+            public void run() {
+            }
+        };
+        Thread first = factory.newThread(noop);
+        Thread second = factory.newThread(noop);
+        assertEquals("test-1", first.getName());
+        assertEquals("test-2", second.getName());
+        assertTrue(first.isDaemon());
+    }
+
+    @Test
+    public void test2_VirtualThreadsRunOrFallBack() throws InterruptedException {
+        ThreadFactory factory = ThreadFactories.newThreadFactory("virtual-", true);
+        final CountDownLatch ran = new CountDownLatch(1);
+        Thread thread = factory.newThread(new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertEquals("virtual-1", thread.getName());
+        // virtual threads are always daemon threads
+        assertTrue(thread.isDaemon());
+        thread.start();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void test3_PlatformThreadsCanBeNonDaemon() {
+        ThreadFactory factory = ThreadFactories.newThreadFactory("user-",
+                false, false);
+        Thread thread = factory.newThread(new Runnable() {
+            public void run() {
+            }
+        });
+        assertEquals("user-1", thread.getName());
+        assertFalse(thread.isDaemon());
+    }
+}
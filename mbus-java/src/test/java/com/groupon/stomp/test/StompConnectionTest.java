@@ -0,0 +1,321 @@
+package com.groupon.stomp.test;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.BasicConfigurator;
+import org.junit.Test;
+
+import com.groupon.messagebus.api.ReceiptFuture;
+import com.groupon.messagebus.api.exceptions.SendFailedException;
+import com.groupon.stomp.Stomp;
+import com.groupon.stomp.StompConnection;
+import com.groupon.stomp.StompFrame;
+import com.groupon.stomp.StompWireFormat;
+
+public class StompConnectionTest extends TestCase {
+
+    private ServerSocket serverSocket;
+    private Socket brokerSide;
+    private StompConnection connection;
+
+    public void setUp() throws IOException {
+        BasicConfigurator.resetConfiguration();
+        BasicConfigurator.configure();
+        serverSocket = new ServerSocket(0);
+        connection = new StompConnection();
+        connection.open("localhost", serverSocket.getLocalPort());
+        brokerSide = serverSocket.accept();
+    }
+
+    public void tearDown() throws IOException {
+        connection.close();
+        brokerSide.close();
+        serverSocket.close();
+    }
+
+    private void reopen(boolean nio) throws IOException {
+        connection.close();
+        brokerSide.close();
+        connection = new StompConnection();
+        connection.setUseNio(nio);
+        connection.open("localhost", serverSocket.getLocalPort());
+        brokerSide = serverSocket.accept();
+    }
+
+    private List<String> readReceiptIds(int frames) throws IOException {
+        DataInputStream in = new DataInputStream(brokerSide.getInputStream());
+        StompWireFormat wireFormat = new StompWireFormat();
+        List<String> receiptIds = new ArrayList<String>();
+        for (int i = 0; i < frames; i++) {
+            StompFrame frame = (StompFrame) wireFormat.unmarshal(in);
+            assertEquals("SEND", frame.getAction());
+            receiptIds.add(frame.getHeaders().get(Stomp.Headers.RECEIPT_REQUESTED));
+        }
+        return receiptIds;
+    }
+
+    private void reply(String action, String receiptId) throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(Stomp.Headers.Response.RECEIPT_ID, receiptId);
+        OutputStream out = brokerSide.getOutputStream();
+        out.write(new StompFrame(action, headers).format().getBytes("UTF-8"));
+        out.write(0);
+        out.flush();
+    }
+
+    @Test
+    public void test0_receiptsMatchedOutOfOrder() throws Exception {
+        ReceiptFuture first = connection.sendSafeAsync("jms.queue.Test", "one".getBytes(), null);
+        ReceiptFuture second = connection.sendSafeAsync("jms.queue.Test", "two".getBytes(), null);
+        ReceiptFuture third = connection.sendSafeAsync("jms.queue.Test", "three".getBytes(), null);
+
+        List<String> receiptIds = readReceiptIds(3);
+        assertEquals(3, new java.util.HashSet<String>(receiptIds).size());
+        assertEquals(first.getReceiptId(), receiptIds.get(0));
+        assertEquals(3, connection.getPendingReceiptCount());
+
+        reply(Stomp.Responses.RECEIPT, receiptIds.get(2));
+        reply(Stomp.Responses.ERROR, receiptIds.get(1));
+        reply(Stomp.Responses.RECEIPT, receiptIds.get(0));
+
+        third.get(5, TimeUnit.SECONDS);
+        first.get(5, TimeUnit.SECONDS);
+        try {
+            second.get(5, TimeUnit.SECONDS);
+            fail("ERROR frame should fail the receipt");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SendFailedException);
+        }
+        assertTrue(connection.awaitPendingReceipts(1000));
+    }
+
+    @Test
+    public void test1_closeFailsPendingReceipts() throws Exception {
+        ReceiptFuture receipt = connection.sendSafeAsync("jms.queue.Test", "one".getBytes(), null);
+        readReceiptIds(1);
+
+        assertFalse(receipt.isDone());
+        connection.close();
+        try {
+            receipt.get(5, TimeUnit.SECONDS);
+            fail("Closing the connection should fail the receipt");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SendFailedException);
+        }
+        assertEquals(0, connection.getPendingReceiptCount());
+    }
+
+    @Test
+    public void test2_syncSendSafeSharesReceiptReader() throws Exception {
+        ReceiptFuture async = connection.sendSafeAsync("jms.queue.Test", "one".getBytes(), null);
+        String asyncId = readReceiptIds(1).get(0);
+        reply(Stomp.Responses.RECEIPT, asyncId);
+        async.get(5, TimeUnit.SECONDS);
+
+        Thread broker = new Thread() {
+            public void run() {
+                try {
+                    reply(Stomp.Responses.RECEIPT, readReceiptIds(1).get(0));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        broker.start();
+        connection.sendSafe("jms.queue.Test", "two".getBytes(), null);
+        broker.join();
+    }
+
+    @Test
+    public void test3_nioSendIsByteExact() throws Exception {
+        reopen(true);
+        assertTrue(connection.isConnected());
+
+        // Larger than a pooled write buffer, and not valid UTF-8.
+        byte[] large = new byte[20000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i % 255 + 1);
+        }
+        connection.send("jms.queue.Test", "small".getBytes(), null);
+        connection.send("jms.queue.Test", large, null);
+
+        DataInputStream in = new DataInputStream(brokerSide.getInputStream());
+        StompWireFormat wireFormat = new StompWireFormat();
+        StompFrame small = (StompFrame) wireFormat.unmarshal(in);
+        assertEquals("SEND", small.getAction());
+        assertEquals("jms.queue.Test", small.getHeaders().get("destination"));
+        assertEquals("small", small.getBody());
+        assertTrue(Arrays.equals(large, ((StompFrame) wireFormat.unmarshal(in)).getContent()));
+    }
+
+    @Test
+    public void test4_nioReceiveSurvivesPartialFrames() throws Exception {
+        reopen(true);
+        OutputStream out = brokerSide.getOutputStream();
+
+        out.write("\nMESSAGE\nmessage-id:1\n\nfir".getBytes("UTF-8"));
+        out.flush();
+        try {
+            connection.receive(200);
+            fail("Half a frame should time out");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        out.write("st\0\nMESSAGE\ncontent-length:3\n\na\0b\0RECEIPT\nreceipt-id:7\n\n\0".getBytes("UTF-8"));
+        out.flush();
+
+        StompFrame first = connection.receive(5000);
+        assertEquals("MESSAGE", first.getAction());
+        assertEquals("1", first.getHeaders().get("message-id"));
+        assertEquals("first", first.getBody());
+
+        StompFrame second = connection.receive(5000);
+        assertTrue(Arrays.equals(new byte[] { 'a', 0, 'b' }, second.getContent()));
+
+        StompFrame third = connection.receive(5000);
+        assertEquals(Stomp.Responses.RECEIPT, third.getAction());
+        assertEquals("7", third.getHeaders().get(Stomp.Headers.Response.RECEIPT_ID));
+    }
+
+    @Test
+    public void test5_nioReceiptsMatched() throws Exception {
+        reopen(true);
+        ReceiptFuture receipt = connection.sendSafeAsync("jms.queue.Test", "one".getBytes(), null);
+        reply(Stomp.Responses.RECEIPT, readReceiptIds(1).get(0));
+        receipt.get(5, TimeUnit.SECONDS);
+        connection.close();
+        assertFalse(connection.isConnected());
+    }
+
+    @Test
+    public void test6_nioBatchSendSafe() throws Exception {
+        reopen(true);
+        final List<byte[]> messages = new ArrayList<byte[]>();
+        for (int i = 0; i < 50; i++) {
+            messages.add(("message " + i).getBytes());
+        }
+        // One body larger than a pooled write buffer in the middle.
+        byte[] large = new byte[20000];
+        Arrays.fill(large, (byte) 'x');
+        messages.set(25, large);
+
+        Thread broker = new Thread() {
+            public void run() {
+                try {
+                    List<String> receiptIds = readReceiptIds(messages.size());
+                    for (int i = receiptIds.size() - 1; i >= 0; i--) {
+                        reply(Stomp.Responses.RECEIPT, receiptIds.get(i));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        broker.start();
+        connection.sendSafe("jms.queue.Test", messages, null);
+        broker.join();
+    }
+
+    @Test
+    public void test7_batchSendSafeFailsOnError() throws Exception {
+        List<byte[]> messages = Arrays.asList("one".getBytes(), "two".getBytes());
+        Thread broker = new Thread() {
+            public void run() {
+                try {
+                    List<String> receiptIds = readReceiptIds(2);
+                    reply(Stomp.Responses.RECEIPT, receiptIds.get(0));
+                    reply(Stomp.Responses.ERROR, receiptIds.get(1));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        broker.start();
+        try {
+            connection.sendSafe("jms.queue.Test", messages, null);
+            fail("ERROR frame should fail the batch");
+        } catch (SendFailedException e) {
+            // expected
+        }
+        broker.join();
+    }
+
+    @Test
+    public void test8_reservedReceiptSlotIsKeptForTheThread() throws Exception {
+        connection.setMaxPendingReceipts(1);
+        connection.reserveReceiptSlot(1000);
+
+        final List<Exception> failures = new ArrayList<Exception>();
+        Thread other = new Thread() {
+            public void run() {
+                try {
+                    connection.reserveReceiptSlot(100);
+                } catch (Exception e) {
+                    failures.add(e);
+                }
+            }
+        };
+        other.start();
+        other.join();
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof SendFailedException);
+
+        // uses the reserved slot rather than waiting for one
+        ReceiptFuture receipt = connection.sendSafeAsync("jms.queue.Test",
+                "one".getBytes(), null);
+        connection.releaseReceiptSlot();
+        assertEquals(1, connection.getPendingReceiptCount());
+        reply(Stomp.Responses.RECEIPT, readReceiptIds(1).get(0));
+        receipt.get(5, TimeUnit.SECONDS);
+
+        // an unused reservation goes back to the window
+        connection.reserveReceiptSlot(1000);
+        connection.releaseReceiptSlot();
+        connection.reserveReceiptSlot(1000);
+        connection.releaseReceiptSlot();
+    }
+}
@@ -0,0 +1,148 @@
+package com.groupon.stomp.test;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.groupon.stomp.ProtocolException;
+import com.groupon.stomp.Stomp;
+import com.groupon.stomp.StompFrame;
+import com.groupon.stomp.StompFrameParser;
+
+public class StompFrameParserTest extends TestCase {
+
+    private static final String FRAMES = "\n\nMESSAGE\nmessage-id: 42 \ndestination:jms.queue.Test\r\nx-custom:caf\u00e9\n\nhello\0"
+            + "RECEIPT\nreceipt-id:7\n\n\0"
+            + "MESSAGE\ncontent-length:3\nmessage-id:43\n\na\0b\0";
+
+    private void assertFrames(StompFrame[] frames) {
+        assertEquals(Stomp.Responses.MESSAGE, frames[0].getAction());
+        assertEquals("42", frames[0].getHeaders().get("message-id"));
+        assertEquals("jms.queue.Test", frames[0].getHeaders().get("destination"));
+        assertEquals("caf\u00e9", frames[0].getHeaders().get("x-custom"));
+        assertEquals(3, frames[0].getHeaders().size());
+        assertEquals("hello", frames[0].getBody());
+
+        assertEquals(Stomp.Responses.RECEIPT, frames[1].getAction());
+        assertEquals("7", frames[1].getHeaders().get(Stomp.Headers.Response.RECEIPT_ID));
+        assertEquals(0, frames[1].getContent().length);
+
+        assertEquals("43", frames[2].getHeaders().get("message-id"));
+        assertTrue(Arrays.equals(new byte[] { 'a', 0, 'b' }, frames[2].getContent()));
+    }
+
+    @Test
+    public void test0_parseWholeBuffer() throws Exception {
+        StompFrameParser parser = new StompFrameParser();
+        ByteBuffer buffer = ByteBuffer.wrap(FRAMES.getBytes("UTF-8"));
+        StompFrame[] frames = new StompFrame[3];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = parser.parse(buffer);
+        }
+        assertFrames(frames);
+        assertFalse(buffer.hasRemaining());
+        assertNull(parser.parse(buffer));
+    }
+
+    @Test
+    public void test1_parseOneByteAtATime() throws Exception {
+        StompFrameParser parser = new StompFrameParser();
+        byte[] bytes = FRAMES.getBytes("UTF-8");
+        ByteBuffer direct = ByteBuffer.allocateDirect(1);
+        StompFrame[] frames = new StompFrame[3];
+        int found = 0;
+        for (byte b : bytes) {
+            direct.clear();
+            direct.put(b);
+            direct.flip();
+            StompFrame frame = parser.parse(direct);
+            if (frame != null) {
+                frames[found++] = frame;
+            }
+        }
+        assertEquals(3, found);
+        assertFrames(frames);
+    }
+
+    @Test
+    public void test2_wellKnownNamesAreShared() throws Exception {
+        StompFrame frame = new StompFrameParser().parse(ByteBuffer.wrap(FRAMES.getBytes("UTF-8")));
+        for (String name : frame.getHeaders().keySet()) {
+            if (name.equals(Stomp.Headers.Message.MESSAGE_ID)) {
+                assertSame(Stomp.Headers.Message.MESSAGE_ID, name);
+            }
+        }
+        assertSame(Stomp.Responses.MESSAGE, frame.getAction());
+    }
+
+    @Test
+    public void test3_headersAreMutable() throws Exception {
+        StompFrame frame = new StompFrameParser().parse(ByteBuffer.wrap(FRAMES.getBytes("UTF-8")));
+        Map<String, String> headers = frame.getHeaders();
+        assertEquals("42", headers.put("message-id", "99"));
+        assertNull(headers.put("extra", "1"));
+        assertEquals("jms.queue.Test", headers.remove("destination"));
+
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("message-id", "99");
+        expected.put("x-custom", "caf\u00e9");
+        expected.put("extra", "1");
+        assertEquals(expected, headers);
+        assertEquals(expected, new HashMap<String, String>(headers));
+    }
+
+    @Test
+    public void test4_invalidFramesRejected() throws Exception {
+        StompFrameParser parser = new StompFrameParser();
+        try {
+            parser.parse(ByteBuffer.wrap("MESSAGE\nno-separator\n\n\0".getBytes("UTF-8")));
+            fail("Header line without a separator should be rejected");
+        } catch (ProtocolException e) {
+            // expected
+        }
+        try {
+            parser.parse(ByteBuffer.wrap("MESSAGE\ncontent-length:2\n\nabc\0".getBytes("UTF-8")));
+            fail("Body longer than content-length should be rejected");
+        } catch (ProtocolException e) {
+            // expected
+        }
+        StompFrame frame = parser.parse(ByteBuffer.wrap("RECEIPT\nreceipt-id:1\n\n\0".getBytes("UTF-8")));
+        assertEquals("1", frame.getHeaders().get("receipt-id"));
+    }
+}
@@ -0,0 +1,71 @@
+package com.groupon.messagebus.stubbroker;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Messages waiting for delivery and the subscriptions competing for them. A
+ * JMS queue has one of these; on a topic every subscriber (durable or not) has
+ * its own. Only touched from the broker thread.
+ */
+class MessageQueue {
+
+    final String name;
+    final boolean durable;
+    final Deque<StoredMessage> messages = new ArrayDeque<StoredMessage>();
+    final List<Subscription> consumers = new ArrayList<Subscription>();
+    private int next;
+
+    MessageQueue(String name, boolean durable) {
+        this.name = name;
+        this.durable = durable;
+    }
+
+    /**
+     * @return the next subscription, round robin, whose session has credit
+     *         left, or null if none has.
+     */
+    Subscription nextConsumer() {
+        for (int i = 0; i < consumers.size(); i++) {
+            Subscription candidate = consumers.get((next + i) % consumers.size());
+            if (candidate.session.hasCredit()) {
+                next = (next + i + 1) % consumers.size();
+                return candidate;
+            }
+        }
+        return null;
+    }
+}
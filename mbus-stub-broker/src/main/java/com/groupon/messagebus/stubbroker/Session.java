@@ -0,0 +1,144 @@
+package com.groupon.messagebus.stubbroker;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.groupon.stomp.StompFrame;
+import com.groupon.stomp.StompFrameParser;
+
+/**
+ * One client connection of the stub broker. Only touched from the broker
+ * thread.
+ */
+class Session {
+
+    final SocketChannel channel;
+    final SelectionKey key;
+    final String connectionId = UUID.randomUUID().toString();
+    final StompFrameParser parser = new StompFrameParser();
+    final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    // Delivered in client ack mode and not acked yet, by message id.
+    final Map<String, Delivery> unacked = new LinkedHashMap<String, Delivery>();
+    // SEND and ACK frames of open transactions, by transaction id.
+    final Map<String, List<StompFrame>> transactions = new HashMap<String, List<StompFrame>>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+    private int credit;
+    boolean closed;
+
+    Session(SocketChannel channel, SelectionKey key, int initialCredit) {
+        this.channel = channel;
+        this.key = key;
+        this.credit = initialCredit;
+        readBuffer.flip();
+    }
+
+    boolean hasCredit() {
+        return credit > 0;
+    }
+
+    void addCredit(int n) {
+        credit += n;
+    }
+
+    void useCredit() {
+        credit--;
+    }
+
+    /**
+     * Reads what the socket has and returns the frames completed by it.
+     *
+     * @throws IOException
+     *             if the client closed the connection.
+     */
+    List<StompFrame> read() throws IOException {
+        List<StompFrame> frames = new ArrayList<StompFrame>();
+        readBuffer.clear();
+        int n = channel.read(readBuffer);
+        readBuffer.flip();
+        if (n < 0) {
+            throw new IOException("Connection closed by client");
+        }
+        StompFrame frame;
+        while ((frame = parser.parse(readBuffer)) != null) {
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    void write(ByteBuffer data) throws IOException {
+        outbound.addLast(data);
+        flush();
+    }
+
+    /**
+     * Writes as much queued output as the socket takes, and asks for OP_WRITE
+     * if some is left.
+     */
+    void flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            ByteBuffer head = outbound.peekFirst();
+            channel.write(head);
+            if (head.hasRemaining()) {
+                break;
+            }
+            outbound.removeFirst();
+        }
+        if (key.isValid()) {
+            key.interestOps(outbound.isEmpty() ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    static class Delivery {
+        final StoredMessage message;
+        final MessageQueue queue;
+
+        Delivery(StoredMessage message, MessageQueue queue) {
+            this.message = message;
+            this.queue = queue;
+        }
+    }
+}
@@ -0,0 +1,942 @@
+package com.groupon.messagebus.stubbroker;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.groupon.stomp.ByteSequence;
+import com.groupon.stomp.Stomp;
+import com.groupon.stomp.StompFrame;
+import com.groupon.stomp.StompFrameError;
+import com.groupon.stomp.StompWireFormat;
+
+/**
+ * An embeddable stand-in for a MessageBus broker, for tests and benchmarks
+ * that need a real socket but not HornetQ.
+ *
+ * It speaks the part of STOMP the client uses: CONNECT, SEND with receipts,
+ * SUBSCRIBE with auto or client ack, ACK/NACK, the CREDIT flow control frame
+ * (each session starts with {@link #setInitialCredit(int)} messages of credit,
+ * or the prefetch-size its SUBSCRIBE asks for if larger, and gets one more per
+ * CREDIT), BEGIN/COMMIT/ABORT transactions covering SEND and ACK, KEEPALIVE
+ * and DISCONNECT. Destinations
+ * starting with "jms.topic." are topics; a topic SUBSCRIBE with a
+ * durable-subscriber-name header keeps collecting messages while its client
+ * is away. Unacked messages are redelivered when their session goes away.
+ *
+ * Latency and failures can be injected to exercise the client's retry and
+ * timeout paths. Everything runs on one selector thread; nothing is
+ * persisted.
+ */
+public class StubBroker implements Runnable {
+
+    public static final int DEFAULT_PORT = 61613;
+    public static final int DEFAULT_INITIAL_CREDIT = 1;
+    private static final String TOPIC_NAME_PREFIX = "jms.topic.";
+    private static final String DURABLE_SUBSCRIBER_NAME = "durable-subscriber-name";
+    private static final String PREFETCH_SIZE = "prefetch-size";
+
+    private Logger log = Logger.getLogger(StubBroker.class);
+    private final int requestedPort;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    private volatile int initialCredit = DEFAULT_INITIAL_CREDIT;
+    private volatile long receiptLatency = 0;
+    private volatile long deliveryLatency = 0;
+    private volatile double receiptFailureRate = 0;
+    private volatile double connectionDropRate = 0;
+    private volatile boolean refuseConnections = false;
+    private volatile int maxQueueDepth = 0;
+    private final Random random = new Random();
+
+    // Broker thread state.
+    private final StompWireFormat wireFormat = new StompWireFormat();
+    private final List<Session> sessions = new ArrayList<Session>();
+    private final Map<String, MessageQueue> queues = new HashMap<String, MessageQueue>();
+    private final Map<String, List<MessageQueue>> topicSubscribers = new HashMap<String, List<MessageQueue>>();
+    private final Map<String, MessageQueue> durableQueues = new HashMap<String, MessageQueue>();
+    private final PriorityQueue<Scheduled> scheduled = new PriorityQueue<Scheduled>();
+    private long nextMessageId = 0;
+    private long nextScheduleSequence = 0;
+
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong messagesDelivered = new AtomicLong();
+    private final AtomicLong acks = new AtomicLong();
+    private final AtomicLong nacks = new AtomicLong();
+    private final AtomicLong keepAlives = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong injectedFailures = new AtomicLong();
+
+    /**
+     * Creates a broker on an ephemeral port; see {@link #getPort()}.
+     */
+    public StubBroker() {
+        this(0);
+    }
+
+    public StubBroker(int port) {
+        this.requestedPort = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Broker already started");
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(requestedPort));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this, "stub-broker-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Stub broker listening on port " + getPort());
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getInitialCredit() {
+        return initialCredit;
+    }
+
+    /**
+     * Sets how many messages a new session may receive before its first
+     * CREDIT. Default is 1, like the MessageBus brokers.
+     */
+    public void setInitialCredit(int initialCredit) {
+        this.initialCredit = initialCredit;
+    }
+
+    public long getReceiptLatency() {
+        return receiptLatency;
+    }
+
+    /**
+     * Delays every RECEIPT (and injected ERROR) by this many ms.
+     */
+    public void setReceiptLatency(long receiptLatency) {
+        this.receiptLatency = receiptLatency;
+    }
+
+    public long getDeliveryLatency() {
+        return deliveryLatency;
+    }
+
+    /**
+     * Delays every MESSAGE by this many ms after it could be delivered.
+     */
+    public void setDeliveryLatency(long deliveryLatency) {
+        this.deliveryLatency = deliveryLatency;
+    }
+
+    public double getReceiptFailureRate() {
+        return receiptFailureRate;
+    }
+
+    /**
+     * Fraction (0 to 1) of SEND and ACK frames asking for a receipt that are
+     * answered with an ERROR instead, and not applied.
+     */
+    public void setReceiptFailureRate(double receiptFailureRate) {
+        this.receiptFailureRate = receiptFailureRate;
+    }
+
+    public double getConnectionDropRate() {
+        return connectionDropRate;
+    }
+
+    /**
+     * Fraction (0 to 1) of incoming frames on which the broker drops the
+     * connection instead of handling the frame.
+     */
+    public void setConnectionDropRate(double connectionDropRate) {
+        this.connectionDropRate = connectionDropRate;
+    }
+
+    public boolean isRefuseConnections() {
+        return refuseConnections;
+    }
+
+    /**
+     * While set, new connections are accepted and closed right away.
+     */
+    public void setRefuseConnections(boolean refuseConnections) {
+        this.refuseConnections = refuseConnections;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Caps the number of undelivered messages a queue or subscription holds;
+     * past it the oldest are dropped, like HornetQ's DROP address policy.
+     * Default 0 is unbounded.
+     */
+    public void setMaxQueueDepth(int maxQueueDepth) {
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    public void setRandomSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    /**
+     * Closes every client connection, as a broker restart would. Unacked
+     * messages go back to their queues.
+     */
+    public void dropConnections() {
+        call(new Callable<Void>() {
+            public Void call() {
+                for (Session session : new ArrayList<Session>(sessions)) {
+                    closeSession(session);
+                }
+                return null;
+            }
+        });
+    }
+
+    public int getConnectionCount() {
+        return call(new Callable<Integer>() {
+            public Integer call() {
+                return sessions.size();
+            }
+        });
+    }
+
+    /**
+     * @return the number of messages waiting on a queue, not counting ones
+     *         delivered but unacked.
+     */
+    public int getQueueDepth(final String destination) {
+        return call(new Callable<Integer>() {
+            public Integer call() {
+                MessageQueue queue = queues.get(destination);
+                return queue == null ? 0 : queue.messages.size();
+            }
+        });
+    }
+
+    /**
+     * @return the number of messages waiting for a durable topic subscriber.
+     */
+    public int getDurableSubscriptionDepth(final String topic,
+            final String subscriberName) {
+        return call(new Callable<Integer>() {
+            public Integer call() {
+                MessageQueue queue = durableQueues.get(durableKey(topic,
+                        subscriberName));
+                return queue == null ? 0 : queue.messages.size();
+            }
+        });
+    }
+
+    /**
+     * @return true once some client has subscribed to the destination.
+     */
+    public boolean hasSubscriber(final String destination) {
+        return call(new Callable<Boolean>() {
+            public Boolean call() {
+                for (Session session : sessions) {
+                    for (Subscription subscription : session.subscriptions) {
+                        if (subscription.destination.equals(destination)) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+        });
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    public long getMessagesDelivered() {
+        return messagesDelivered.get();
+    }
+
+    public long getAcks() {
+        return acks.get();
+    }
+
+    public long getNacks() {
+        return nacks.get();
+    }
+
+    public long getKeepAlives() {
+        return keepAlives.get();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getInjectedFailures() {
+        return injectedFailures.get();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                long timeout = runScheduled();
+                if (timeout < 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            for (StompFrame frame : session.read()) {
+                                if (session.closed) {
+                                    break;
+                                }
+                                handle(session, frame);
+                            }
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                    } catch (IOException e) {
+                        log.debug("Closing connection " + session.connectionId, e);
+                        closeSession(session);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Stub broker stopped", e);
+        } finally {
+            running = false;
+            for (Session session : new ArrayList<Session>(sessions)) {
+                closeSession(session);
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                log.warn("Error closing stub broker", e);
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (refuseConnections) {
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Session session = new Session(channel, key, initialCredit);
+        key.attach(session);
+        sessions.add(session);
+    }
+
+    private void handle(Session session, StompFrame frame) throws IOException {
+        if (connectionDropRate > 0 && random.nextDouble() < connectionDropRate) {
+            injectedFailures.incrementAndGet();
+            closeSession(session);
+            return;
+        }
+        Map<String, String> headers = frame.getHeaders();
+        String receipt = headers.get(Stomp.Headers.RECEIPT_REQUESTED);
+        if (frame instanceof StompFrameError) {
+            error(session, ((StompFrameError) frame).getException().getMessage(), receipt);
+            return;
+        }
+
+        String action = frame.getAction();
+        String transaction = headers.get(Stomp.Headers.TRANSACTION);
+        if (transaction != null && (Stomp.Commands.SEND.equals(action)
+                || Stomp.Commands.ACK.equals(action))) {
+            onTransactional(session, frame, transaction, receipt);
+        } else if (Stomp.Commands.CONNECT.equals(action) || "STOMP".equals(action)) {
+            Map<String, String> reply = new HashMap<String, String>();
+            reply.put(Stomp.Headers.Connected.SESSION, session.connectionId);
+            write(session, new StompFrame(Stomp.Responses.CONNECTED, reply));
+        } else if (Stomp.Commands.SEND.equals(action)) {
+            onSend(session, frame, receipt);
+        } else if ("SUBSCRIBE".equals(action)) {
+            onSubscribe(session, headers, receipt);
+        } else if ("UNSUBSCRIBE".equals(action)) {
+            onUnsubscribe(session, headers, receipt);
+        } else if (Stomp.Commands.ACK.equals(action)) {
+            onAck(session, headers, receipt);
+        } else if ("NACK".equals(action)) {
+            onNack(session, headers, receipt);
+        } else if ("CREDIT".equals(action)) {
+            session.addCredit(1);
+            dispatch(session);
+        } else if (Stomp.Commands.BEGIN.equals(action)) {
+            onBegin(session, transaction, receipt);
+        } else if (Stomp.Commands.COMMIT.equals(action)) {
+            onCommit(session, transaction, receipt);
+        } else if (Stomp.Commands.ABORT.equals(action)) {
+            onAbort(session, transaction, receipt);
+        } else if ("KEEPALIVE".equals(action)) {
+            keepAlives.incrementAndGet();
+        } else if (Stomp.Commands.DISCONNECT.equals(action)) {
+            if (receipt != null) {
+                write(session, receiptFrame(receipt));
+            }
+            closeSession(session);
+        } else {
+            error(session, "Unknown command " + action, receipt);
+        }
+    }
+
+    private boolean injectFailure(Session session, String receipt) {
+        if (receipt == null || receiptFailureRate <= 0
+                || random.nextDouble() >= receiptFailureRate) {
+            return false;
+        }
+        injectedFailures.incrementAndGet();
+        error(session, "Injected failure", receipt);
+        return true;
+    }
+
+    private void onSend(Session session, StompFrame frame, String receipt) {
+        String destination = frame.getHeaders().get(Stomp.Headers.Send.DESTINATION);
+        if (destination == null) {
+            error(session, "SEND without destination", receipt);
+            return;
+        }
+        if (injectFailure(session, receipt)) {
+            return;
+        }
+        messagesReceived.incrementAndGet();
+        // Numeric like HornetQ's; the client's ack ids are ':' separated.
+        String messageId = String.valueOf(++nextMessageId);
+        if (isTopic(destination)) {
+            List<MessageQueue> subscribers = topicSubscribers.get(destination);
+            if (subscribers != null) {
+                for (MessageQueue queue : subscribers) {
+                    enqueue(queue, new StoredMessage(messageId, destination,
+                            frame.getHeaders(), frame.getContent()));
+                }
+            }
+        } else {
+            enqueue(queue(destination), new StoredMessage(messageId,
+                    destination, frame.getHeaders(), frame.getContent()));
+        }
+        if (receipt != null) {
+            later(session, receiptFrame(receipt), receiptLatency);
+        }
+    }
+
+    /**
+     * Holds a SEND or ACK back until its transaction commits.
+     */
+    private void onTransactional(Session session, StompFrame frame,
+            String transaction, String receipt) {
+        List<StompFrame> frames = session.transactions.get(transaction);
+        if (frames == null) {
+            error(session, "Unknown transaction " + transaction, receipt);
+            return;
+        }
+        frames.add(frame);
+        if (receipt != null) {
+            later(session, receiptFrame(receipt), receiptLatency);
+        }
+    }
+
+    private void onBegin(Session session, String transaction, String receipt) {
+        if (transaction == null
+                || session.transactions.containsKey(transaction)) {
+            error(session, "Bad or duplicate transaction " + transaction,
+                    receipt);
+            return;
+        }
+        session.transactions.put(transaction, new ArrayList<StompFrame>());
+        if (receipt != null) {
+            later(session, receiptFrame(receipt), receiptLatency);
+        }
+    }
+
+    private void onCommit(Session session, String transaction, String receipt) {
+        List<StompFrame> frames = transaction == null ? null
+                : session.transactions.remove(transaction);
+        if (frames == null) {
+            error(session, "Unknown transaction " + transaction, receipt);
+            return;
+        }
+        if (injectFailure(session, receipt)) {
+            return;
+        }
+        for (StompFrame frame : frames) {
+            if (Stomp.Commands.SEND.equals(frame.getAction())) {
+                onSend(session, frame, null);
+            } else {
+                onAck(session, frame.getHeaders(), null);
+            }
+        }
+        commits.incrementAndGet();
+        if (receipt != null) {
+            later(session, receiptFrame(receipt), receiptLatency);
+        }
+    }
+
+    private void onAbort(Session session, String transaction, String receipt) {
+        if (transaction == null
+                || session.transactions.remove(transaction) == null) {
+            error(session, "Unknown transaction " + transaction, receipt);
+            return;
+        }
+        if (receipt != null) {
+            later(session, receiptFrame(receipt), receiptLatency);
+        }
+    }
+
+    private void onSubscribe(Session session, Map<String, String> headers,
+            String receipt) {
+        String destination = headers.get(Stomp.Headers.Subscribe.DESTINATION);
+        if (destination == null) {
+            error(session, "SUBSCRIBE without destination", receipt);
+            return;
+        }
+        int window = initialCredit;
+        if (headers.containsKey(PREFETCH_SIZE)) {
+            try {
+                window = Integer.parseInt(headers.get(PREFETCH_SIZE));
+            } catch (NumberFormatException e) {
+                error(session, "Bad prefetch-size " + headers.get(PREFETCH_SIZE),
+                        receipt);
+                return;
+            }
+        }
+        if (window > initialCredit) {
+            session.addCredit(window - initialCredit);
+        }
+        String ack = headers.get(Stomp.Headers.Subscribe.ACK_MODE);
+        boolean clientAck = Stomp.Headers.Subscribe.AckModeValues.CLIENT.equals(ack)
+                || Stomp.Headers.Subscribe.AckModeValues.INDIVIDUAL.equals(ack);
+
+        MessageQueue queue;
+        if (isTopic(destination)) {
+            String durableName = headers.get(DURABLE_SUBSCRIBER_NAME);
+            if (durableName != null) {
+                String key = durableKey(destination, durableName);
+                queue = durableQueues.get(key);
+                if (queue == null) {
+                    queue = new MessageQueue(key, true);
+                    durableQueues.put(key, queue);
+                    topicSubscribers(destination).add(queue);
+                }
+            } else {
+                queue = new MessageQueue(destination, false);
+                topicSubscribers(destination).add(queue);
+            }
+        } else {
+            queue = queue(destination);
+        }
+
+        Subscription subscription = new Subscription(session,
+                headers.get(Stomp.Headers.Subscribe.ID), destination,
+                clientAck, queue);
+        queue.consumers.add(subscription);
+        session.subscriptions.add(subscription);
+        if (receipt != null) {
+            later(session, receiptFrame(receipt), receiptLatency);
+        }
+        dispatch(queue);
+    }
+
+    private void onUnsubscribe(Session session, Map<String, String> headers,
+            String receipt) {
+        String id = headers.get(Stomp.Headers.Unsubscribe.ID);
+        String destination = headers.get(Stomp.Headers.Unsubscribe.DESTINATION);
+        Iterator<Subscription> i = session.subscriptions.iterator();
+        while (i.hasNext()) {
+            Subscription subscription = i.next();
+            if (id != null ? id.equals(subscription.id)
+                    : subscription.destination.equals(destination)) {
+                i.remove();
+                removeSubscription(subscription);
+            }
+        }
+        if (receipt != null) {
+            later(session, receiptFrame(receipt), receiptLatency);
+        }
+    }
+
+    private void onAck(Session session, Map<String, String> headers,
+            String receipt) {
+        String messageId = headers.get(Stomp.Headers.Ack.MESSAGE_ID);
+        if (!session.unacked.containsKey(messageId)) {
+            error(session, "Unknown message-id " + messageId, receipt);
+            return;
+        }
+        if (injectFailure(session, receipt)) {
+            return;
+        }
+        session.unacked.remove(messageId);
+        acks.incrementAndGet();
+        if (receipt != null) {
+            later(session, receiptFrame(receipt), receiptLatency);
+        }
+    }
+
+    private void onNack(Session session, Map<String, String> headers,
+            String receipt) {
+        String messageId = headers.get(Stomp.Headers.Ack.MESSAGE_ID);
+        Session.Delivery delivery = session.unacked.remove(messageId);
+        if (delivery == null) {
+            error(session, "Unknown message-id " + messageId, receipt);
+            return;
+        }
+        nacks.incrementAndGet();
+        delivery.message.redelivered = true;
+        delivery.queue.messages.addFirst(delivery.message);
+        if (receipt != null) {
+            later(session, receiptFrame(receipt), receiptLatency);
+        }
+        dispatch(delivery.queue);
+    }
+
+    private void enqueue(MessageQueue queue, StoredMessage message) {
+        queue.messages.addLast(message);
+        dispatch(queue);
+        int max = maxQueueDepth;
+        while (max > 0 && queue.messages.size() > max) {
+            queue.messages.removeFirst();
+        }
+    }
+
+    /**
+     * Hands out messages from the queue while some consumer has credit.
+     */
+    private void dispatch(MessageQueue queue) {
+        while (!queue.messages.isEmpty()) {
+            Subscription subscription = queue.nextConsumer();
+            if (subscription == null) {
+                return;
+            }
+            deliver(subscription, queue.messages.pollFirst());
+        }
+    }
+
+    private void dispatch(Session session) {
+        for (Subscription subscription : new ArrayList<Subscription>(
+                session.subscriptions)) {
+            dispatch(subscription.queue);
+        }
+    }
+
+    private void deliver(Subscription subscription, StoredMessage message) {
+        Session session = subscription.session;
+        session.useCredit();
+        if (subscription.clientAck) {
+            session.unacked.put(message.messageId, new Session.Delivery(
+                    message, subscription.queue));
+        }
+        messagesDelivered.incrementAndGet();
+
+        Map<String, String> headers = new HashMap<String, String>(message.headers);
+        headers.remove(Stomp.Headers.RECEIPT_REQUESTED);
+        headers.put(Stomp.Headers.Message.MESSAGE_ID, message.messageId);
+        headers.put(Stomp.Headers.Message.DESTINATION, message.destination);
+        headers.put(Stomp.Headers.CONTENT_LENGTH,
+                Integer.toString(message.body.length));
+        headers.put("connection-id", session.connectionId);
+        if (subscription.id != null) {
+            headers.put(Stomp.Headers.Message.SUBSCRIPTION, subscription.id);
+        }
+        if (message.redelivered) {
+            headers.put(Stomp.Headers.Message.REDELIVERED, "true");
+        }
+        later(session, new StompFrame(Stomp.Responses.MESSAGE, headers,
+                message.body), deliveryLatency);
+    }
+
+    private void removeSubscription(Subscription subscription) {
+        MessageQueue queue = subscription.queue;
+        queue.consumers.remove(subscription);
+        if (!queue.durable && isTopic(subscription.destination)) {
+            List<MessageQueue> subscribers = topicSubscribers.get(subscription.destination);
+            if (subscribers != null) {
+                subscribers.remove(queue);
+            }
+        }
+    }
+
+    private void closeSession(Session session) {
+        if (session.closed) {
+            return;
+        }
+        session.closed = true;
+        sessions.remove(session);
+        session.key.cancel();
+        try {
+            session.channel.close();
+        } catch (IOException e) {
+            log.debug("Error closing connection " + session.connectionId, e);
+        }
+
+        for (Subscription subscription : session.subscriptions) {
+            removeSubscription(subscription);
+        }
+
+        // Put unacked messages back, oldest first, on queues that outlive the
+        // session.
+        Set<MessageQueue> touched = new HashSet<MessageQueue>();
+        List<Session.Delivery> deliveries = new ArrayList<Session.Delivery>(
+                session.unacked.values());
+        session.unacked.clear();
+        ListIterator<Session.Delivery> i = deliveries.listIterator(deliveries.size());
+        while (i.hasPrevious()) {
+            Session.Delivery delivery = i.previous();
+            MessageQueue queue = delivery.queue;
+            if (queue.durable || queues.get(queue.name) == queue) {
+                delivery.message.redelivered = true;
+                queue.messages.addFirst(delivery.message);
+                touched.add(queue);
+            }
+        }
+        for (MessageQueue queue : touched) {
+            dispatch(queue);
+        }
+    }
+
+    private MessageQueue queue(String destination) {
+        MessageQueue queue = queues.get(destination);
+        if (queue == null) {
+            queue = new MessageQueue(destination, false);
+            queues.put(destination, queue);
+        }
+        return queue;
+    }
+
+    private List<MessageQueue> topicSubscribers(String topic) {
+        List<MessageQueue> subscribers = topicSubscribers.get(topic);
+        if (subscribers == null) {
+            subscribers = new ArrayList<MessageQueue>();
+            topicSubscribers.put(topic, subscribers);
+        }
+        return subscribers;
+    }
+
+    private static boolean isTopic(String destination) {
+        return destination.startsWith(TOPIC_NAME_PREFIX);
+    }
+
+    private static String durableKey(String topic, String subscriberName) {
+        return topic + "/" + subscriberName;
+    }
+
+    private StompFrame receiptFrame(String receipt) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(Stomp.Headers.Response.RECEIPT_ID, receipt);
+        return new StompFrame(Stomp.Responses.RECEIPT, headers);
+    }
+
+    private void error(Session session, String message, String receipt) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(Stomp.Headers.Error.MESSAGE, message);
+        if (receipt != null) {
+            headers.put(Stomp.Headers.Response.RECEIPT_ID, receipt);
+        }
+        later(session, new StompFrame(Stomp.Responses.ERROR, headers,
+                message.getBytes()), receiptLatency);
+    }
+
+    private void later(final Session session, final StompFrame frame,
+            long delay) {
+        if (delay <= 0) {
+            write(session, frame);
+            return;
+        }
+        scheduled.add(new Scheduled(System.currentTimeMillis() + delay,
+                nextScheduleSequence++, new Runnable() {
+                    public void run() {
+                        write(session, frame);
+                    }
+                }));
+    }
+
+    private void write(Session session, StompFrame frame) {
+        if (session.closed) {
+            return;
+        }
+        try {
+            ByteSequence bytes = wireFormat.marshal(frame);
+            session.write(ByteBuffer.wrap(bytes.getData(), bytes.getOffset(),
+                    bytes.getLength()));
+        } catch (IOException e) {
+            log.debug("Closing connection " + session.connectionId, e);
+            closeSession(session);
+        }
+    }
+
+    /**
+     * Runs scheduled writes that are due.
+     *
+     * @return ms until the next one is due, 0 if none is scheduled, or -1 if
+     *         one is due right away.
+     */
+    private long runScheduled() {
+        while (true) {
+            Scheduled next = scheduled.peek();
+            if (next == null) {
+                return 0;
+            }
+            long wait = next.time - System.currentTimeMillis();
+            if (wait > 0) {
+                return wait;
+            }
+            scheduled.poll().task.run();
+        }
+    }
+
+    /**
+     * Runs the callable on the broker thread and waits for its result.
+     */
+    private <T> T call(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        if (Thread.currentThread() == thread || !running) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static class Scheduled implements Comparable<Scheduled> {
+        final long time;
+        final long sequence;
+        final Runnable task;
+
+        Scheduled(long time, long sequence, Runnable task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        public int compareTo(Scheduled other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+    }
+
+    /**
+     * Runs a broker until the process is killed.
+     *
+     * @param args
+     *            optional port, default 61613.
+     */
+    public static void main(String[] args) throws Exception {
+        org.apache.log4j.BasicConfigurator.configure();
+        StubBroker broker = new StubBroker(args.length > 0 ? Integer
+                .parseInt(args[0]) : DEFAULT_PORT);
+        broker.start();
+        broker.thread.join();
+    }
+}
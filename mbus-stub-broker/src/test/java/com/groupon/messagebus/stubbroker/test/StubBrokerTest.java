@@ -0,0 +1,1331 @@
+package com.groupon.messagebus.stubbroker.test;
+/*
+ * Copyright (c) 2013, Groupon, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of GROUPON nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.BasicConfigurator;
+import org.junit.Test;
+
+import com.groupon.messagebus.api.BrokerSelectionStrategy;
+import com.groupon.messagebus.api.ClusterSendStrategy;
+import com.groupon.messagebus.api.Consumer;
+import com.groupon.messagebus.api.ConsumerConfig;
+import com.groupon.messagebus.api.DestinationType;
+import com.groupon.messagebus.api.HostParams;
+import com.groupon.messagebus.api.Message;
+import com.groupon.messagebus.api.MessageListener;
+import com.groupon.messagebus.api.ProducerConfig;
+import com.groupon.messagebus.api.ReceiptFuture;
+import com.groupon.messagebus.api.exceptions.AckFailedException;
+import com.groupon.messagebus.api.exceptions.InvalidStatusException;
+import com.groupon.messagebus.api.exceptions.MessageBusException;
+import com.groupon.messagebus.api.exceptions.SendFailedException;
+import com.groupon.messagebus.client.ClusterProducer;
+import com.groupon.messagebus.client.ConsumerImpl;
+import com.groupon.messagebus.client.MultiplexConsumer;
+import com.groupon.messagebus.client.PooledProducer;
+import com.groupon.messagebus.client.ProducerImpl;
+import com.groupon.messagebus.client.SpoolingProducer;
+import com.groupon.messagebus.stubbroker.StubBroker;
+import com.groupon.messagebus.util.SpoolJournal;
+import com.groupon.stomp.StompConnection;
+import com.groupon.stomp.StompFrame;
+
+public class StubBrokerTest extends TestCase {
+
+    private static final String QUEUE = "jms.queue.StubBrokerTest";
+    private static final String TOPIC = "jms.topic.StubBrokerTest";
+
+    private StubBroker broker;
+    private HostParams host;
+
+    public void setUp() throws IOException {
+        BasicConfigurator.resetConfiguration();
+        BasicConfigurator.configure();
+        broker = new StubBroker();
+        broker.start();
+        host = new HostParams("localhost", broker.getPort());
+    }
+
+    public void tearDown() {
+        broker.stop();
+    }
+
+    private ProducerImpl startProducer(DestinationType type, String destination)
+            throws MessageBusException {
+        ProducerConfig config = new ProducerConfig();
+        config.setBroker(host);
+        config.setDestinationType(type);
+        config.setDestinationName(destination);
+        config.setPublishMaxRetryAttempts(1);
+        ProducerImpl producer = new ProducerImpl();
+        producer.start(config);
+        return producer;
+    }
+
+    private ConsumerImpl startConsumer(DestinationType type, String destination)
+            throws MessageBusException {
+        ConsumerConfig config = new ConsumerConfig();
+        config.setHostParams(Collections.singleton(host));
+        config.setUseDynamicServerList(false);
+        config.setDestinationType(type);
+        config.setDestinationName(destination);
+        config.setSubscriptionId("stub-broker-test");
+        ConsumerImpl consumer = new ConsumerImpl();
+        consumer.start(config);
+        return consumer;
+    }
+
+    private void awaitSubscriber(String destination) throws InterruptedException {
+        for (int i = 0; i < 500 && !broker.hasSubscriber(destination); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(broker.hasSubscriber(destination));
+    }
+
+    @Test
+    public void test1_ProduceAndConsume() throws Exception {
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+        for (int i = 0; i < 3; i++) {
+            producer.sendSafe(Message.createStringMessage("message " + i));
+        }
+        assertEquals(3, broker.getQueueDepth(QUEUE));
+
+        ConsumerImpl consumer = startConsumer(DestinationType.QUEUE, QUEUE);
+        for (int i = 0; i < 3; i++) {
+            Message message = consumer.receive(5000);
+            assertEquals("message " + i, message.getStringPayload());
+            assertTrue(consumer.ackSafe());
+        }
+        assertEquals(0, broker.getQueueDepth(QUEUE));
+        assertEquals(3, broker.getAcks());
+
+        consumer.stop();
+        producer.stop();
+    }
+
+    @Test
+    public void test2_DurableSubscription() throws Exception {
+        ConsumerImpl consumer = startConsumer(DestinationType.TOPIC, TOPIC);
+        awaitSubscriber(TOPIC);
+        consumer.stop();
+
+        // Published while the subscriber is away.
+        ProducerImpl producer = startProducer(DestinationType.TOPIC, TOPIC);
+        producer.sendSafe(Message.createStringMessage("kept"));
+        assertEquals(1, broker.getDurableSubscriptionDepth(TOPIC,
+                "stub-broker-test"));
+
+        consumer = startConsumer(DestinationType.TOPIC, TOPIC);
+        assertEquals("kept", consumer.receive(5000).getStringPayload());
+        consumer.ack();
+
+        consumer.stop();
+        producer.stop();
+    }
+
+    @Test
+    public void test3_InjectedReceiptFailure() throws Exception {
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+        broker.setReceiptFailureRate(1);
+        try {
+            producer.sendSafe(Message.createStringMessage("lost"));
+            fail("Expected SendFailedException");
+        } catch (SendFailedException e) {
+            // expected
+        }
+        assertEquals(1, broker.getInjectedFailures());
+        assertEquals(0, broker.getQueueDepth(QUEUE));
+
+        broker.setReceiptFailureRate(0);
+        producer.sendSafe(Message.createStringMessage("kept"));
+        assertEquals(1, broker.getQueueDepth(QUEUE));
+        producer.stop();
+    }
+
+    @Test
+    public void test4_UnackedMessageRedelivered() throws Exception {
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+        producer.sendSafe(Message.createStringMessage("retry me"));
+        producer.stop();
+
+        StompConnection connection = new StompConnection();
+        connection.open("localhost", broker.getPort());
+        connection.connect("guest", "guest");
+        connection.subscribe(QUEUE, "client");
+        StompFrame first = connection.receive(5000);
+        assertNull(first.getHeaders().get("redelivered"));
+        broker.dropConnections();
+        connection.close();
+
+        assertEquals(1, broker.getQueueDepth(QUEUE));
+        connection = new StompConnection();
+        connection.open("localhost", broker.getPort());
+        connection.connect("guest", "guest");
+        connection.subscribe(QUEUE, "client");
+        StompFrame second = connection.receive(5000);
+        assertEquals("true", second.getHeaders().get("redelivered"));
+        assertEquals(first.getHeaders().get("message-id"), second.getHeaders()
+                .get("message-id"));
+        connection.close();
+    }
+
+    @Test
+    public void test5_ReceiptLatency() throws Exception {
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+        broker.setReceiptLatency(200);
+        long start = System.currentTimeMillis();
+        producer.sendSafe(Message.createStringMessage("slow"));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        producer.stop();
+    }
+
+    @Test
+    public void test6_BinaryAndBase64EncodingsCoexist() throws Exception {
+        ProducerImpl base64Producer = startProducer(DestinationType.QUEUE, QUEUE);
+        ProducerConfig binaryConfig = new ProducerConfig();
+        binaryConfig.setBroker(host);
+        binaryConfig.setDestinationType(DestinationType.QUEUE);
+        binaryConfig.setDestinationName(QUEUE);
+        binaryConfig.setUseBinaryEncoding(true);
+        ProducerImpl binaryProducer = new ProducerImpl();
+        binaryProducer.start(binaryConfig);
+
+        // NUL bytes would end the frame early without content-length.
+        byte[] payload = new byte[] { 1, 0, 2, 0, 0, 3 };
+        binaryProducer.sendSafe(Message.createBinaryMessage(payload));
+        base64Producer.sendSafe(Message.createStringMessage("text"));
+        binaryProducer.sendSafe(Arrays.asList(
+                Message.createStringMessage("batch 1"),
+                Message.createStringMessage("batch 2")));
+
+        ConsumerImpl consumer = startConsumer(DestinationType.QUEUE, QUEUE);
+        assertTrue(Arrays.equals(payload, consumer.receive(5000)
+                .getBinaryPayload()));
+        consumer.ack();
+        assertEquals("text", consumer.receive(5000).getStringPayload());
+        consumer.ack();
+        assertEquals("batch 1", consumer.receive(5000).getStringPayload());
+        consumer.ack();
+        assertEquals("batch 2", consumer.receive(5000).getStringPayload());
+        consumer.ack();
+
+        consumer.stop();
+        base64Producer.stop();
+        binaryProducer.stop();
+    }
+
+    @Test
+    public void test7_PooledProducerRefreshesWithoutPause() throws Exception {
+        ProducerConfig config = new ProducerConfig();
+        config.setBroker(host);
+        config.setDestinationType(DestinationType.QUEUE);
+        config.setDestinationName(QUEUE);
+        final PooledProducer producer = new PooledProducer(3);
+        producer.start(config);
+        assertEquals(3, broker.getConnectionCount());
+
+        final int threads = 4;
+        final int perThread = 200;
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] senders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            senders[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        try {
+                            producer.sendSafe(Message.createStringMessage("m" + i));
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            senders[t].start();
+        }
+        // Every connection is replaced while the senders run.
+        producer.refreshConnection();
+        for (Thread sender : senders) {
+            sender.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(threads * perThread, broker.getQueueDepth(QUEUE));
+        for (int i = 0; i < 500 && broker.getConnectionCount() != 3; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, broker.getConnectionCount());
+
+        producer.stop();
+        try {
+            producer.send(Message.createStringMessage("late"));
+            fail("Stopped producer should not send");
+        } catch (InvalidStatusException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test8_MessageListenerAcksAndRedeliversOnFailure()
+            throws Exception {
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+        for (int i = 0; i < 20; i++) {
+            producer.send(Message.createStringMessage("m" + i));
+        }
+        producer.stop();
+
+        final ConsumerImpl consumer = startConsumer(DestinationType.QUEUE,
+                QUEUE);
+        final Set<String> received = Collections
+                .synchronizedSet(new HashSet<String>());
+        final CountDownLatch done = new CountDownLatch(20);
+        final AtomicBoolean failedOnce = new AtomicBoolean();
+        consumer.setMessageListener(new MessageListener() {
+            public void onMessage(Message message) {
+                String payload;
+                try {
+                    payload = message.getStringPayload();
+                } catch (MessageBusException e) {
+                    throw new RuntimeException(e);
+                }
+                if (payload.equals("m3")
+                        && failedOnce.compareAndSet(false, true)) {
+                    throw new RuntimeException("listener failure");
+                }
+                consumer.ack(message.getAckId());
+                if (received.add(payload)) {
+                    done.countDown();
+                }
+            }
+        });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(20, received.size());
+        assertEquals(1, broker.getNacks());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (broker.getAcks() < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(20, broker.getAcks());
+        assertEquals(0, broker.getQueueDepth(QUEUE));
+        consumer.stop();
+    }
+
+    @Test
+    public void test9_SharedReceiveQueueServesAllBrokers() throws Exception {
+        StubBroker second = new StubBroker();
+        second.start();
+        HostParams secondHost = new HostParams("localhost", second.getPort());
+        try {
+            ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+            ProducerConfig secondConfig = new ProducerConfig();
+            secondConfig.setBroker(secondHost);
+            secondConfig.setDestinationType(DestinationType.QUEUE);
+            secondConfig.setDestinationName(QUEUE);
+            ProducerImpl secondProducer = new ProducerImpl();
+            secondProducer.start(secondConfig);
+            for (int i = 0; i < 10; i++) {
+                producer.send(Message.createStringMessage("first " + i));
+                secondProducer.send(Message.createStringMessage("second " + i));
+            }
+            producer.stop();
+            secondProducer.stop();
+
+            ConsumerConfig config = new ConsumerConfig();
+            Set<HostParams> hosts = new LinkedHashSet<HostParams>();
+            hosts.add(host);
+            hosts.add(secondHost);
+            config.setHostParams(hosts);
+            config.setUseDynamicServerList(false);
+            config.setDestinationType(DestinationType.QUEUE);
+            config.setDestinationName(QUEUE);
+            config.setSubscriptionId("stub-broker-test");
+            config.setUseSharedReceiveQueue(true);
+            config.setSharedReceiveQueueCapacity(4);
+            ConsumerImpl consumer = new ConsumerImpl();
+            consumer.start(config);
+
+            Set<String> received = new HashSet<String>();
+            for (int i = 0; i < 20; i++) {
+                Message message = consumer.receive(5000);
+                received.add(message.getStringPayload());
+                assertTrue(consumer.ack(message.getAckId()));
+            }
+            assertEquals(20, received.size());
+            assertNull(consumer.receiveImmediate());
+            consumer.stop();
+        } finally {
+            second.stop();
+        }
+    }
+
+    @Test
+    public void test10_PrefetchWindowBoundsFetchedMessages() throws Exception {
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+        for (int i = 0; i < 10; i++) {
+            producer.send(Message.createStringMessage("m" + i));
+        }
+        producer.stop();
+
+        ConsumerConfig config = new ConsumerConfig();
+        config.setHostParams(Collections.singleton(host));
+        config.setUseDynamicServerList(false);
+        config.setDestinationType(DestinationType.QUEUE);
+        config.setDestinationName(QUEUE);
+        config.setSubscriptionId("stub-broker-test");
+        config.setPrefetchSize(4);
+        ConsumerImpl consumer = new ConsumerImpl();
+        consumer.start(config);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (consumer.getPrefetchedCounts().get(host) < 4
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, consumer.getPrefetchedCounts().get(host).intValue());
+        assertEquals(6, broker.getQueueDepth(QUEUE));
+
+        for (int i = 0; i < 10; i++) {
+            Message message = consumer.receive(5000);
+            assertEquals("m" + i, message.getStringPayload());
+            assertTrue(consumer.ack(message.getAckId()));
+            assertTrue(consumer.getPrefetchedCounts().get(host) <= 4);
+        }
+        assertNull(consumer.receiveImmediate());
+        consumer.stop();
+    }
+
+    @Test
+    public void test11_BatchedAcks() throws Exception {
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+        for (int i = 0; i < 12; i++) {
+            producer.send(Message.createStringMessage("m" + i));
+        }
+        producer.stop();
+
+        ConsumerConfig config = new ConsumerConfig();
+        config.setHostParams(Collections.singleton(host));
+        config.setUseDynamicServerList(false);
+        config.setDestinationType(DestinationType.QUEUE);
+        config.setDestinationName(QUEUE);
+        config.setSubscriptionId("stub-broker-test");
+        config.setAckBatchSize(5);
+        config.setAckBatchInterval(60000);
+        ConsumerImpl consumer = new ConsumerImpl();
+        consumer.start(config);
+
+        // A full batch goes out, the rest waits for the next flush.
+        for (int i = 0; i < 7; i++) {
+            consumer.receive(5000);
+            assertTrue(consumer.ack());
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (broker.getAcks() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, broker.getAcks());
+        consumer.flushAcks();
+
+        // One receipt covers a whole ackSafe batch.
+        List<String> ackIds = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            ackIds.add(consumer.receive(5000).getAckId());
+        }
+        assertTrue(consumer.ackSafe(ackIds, 5000));
+        assertEquals(12, broker.getAcks());
+        consumer.stop();
+    }
+
+    @Test
+    public void test12_AckSafeAsyncKeepsAcksInFlight() throws Exception {
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+        for (int i = 0; i < 50; i++) {
+            producer.send(Message.createStringMessage("m" + i));
+        }
+        producer.stop();
+        broker.setReceiptLatency(200);
+
+        ConsumerImpl consumer = startConsumer(DestinationType.QUEUE, QUEUE);
+        List<ReceiptFuture> receipts = new ArrayList<ReceiptFuture>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++) {
+            receipts.add(consumer.ackSafeAsync(consumer.receive(5000)
+                    .getAckId(), 5000));
+        }
+        // Not one receipt latency per ack.
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        for (ReceiptFuture receipt : receipts) {
+            receipt.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(50, broker.getAcks());
+
+        // An ack the broker rejects fails its future.
+        broker.setReceiptLatency(0);
+        producer = startProducer(DestinationType.QUEUE, QUEUE);
+        producer.send(Message.createStringMessage("rejected"));
+        producer.stop();
+        Message message = consumer.receive(5000);
+        broker.setReceiptFailureRate(1.0);
+        try {
+            consumer.ackSafeAsync(message.getAckId(), 5000).get(5,
+                    TimeUnit.SECONDS);
+            fail("ack should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AckFailedException);
+        }
+        consumer.stop();
+    }
+
+    @Test
+    public void test13_ThreadSafeConsumerSharedByThreads() throws Exception {
+        final int total = 40;
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+        for (int i = 0; i < total; i++) {
+            producer.send(Message.createStringMessage("m" + i));
+        }
+        producer.stop();
+
+        ConsumerConfig config = new ConsumerConfig();
+        config.setHostParams(Collections.singleton(host));
+        config.setUseDynamicServerList(false);
+        config.setDestinationType(DestinationType.QUEUE);
+        config.setDestinationName(QUEUE);
+        config.setSubscriptionId("stub-broker-test");
+        config.setPrefetchSize(8);
+        config.setThreadSafe(true);
+        final ConsumerImpl consumer = new ConsumerImpl();
+        consumer.start(config);
+
+        // Each thread acks its own last message with the no-arg ack().
+        final Set<String> received = Collections
+                .synchronizedSet(new HashSet<String>());
+        final AtomicInteger failedAcks = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        while (received.size() < total) {
+                            Message message = consumer.receive(2000);
+                            received.add(message.getStringPayload());
+                            if (!consumer.ack()) {
+                                failedAcks.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        // timed out once the queue is drained
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        assertEquals(total, received.size());
+        assertEquals(0, failedAcks.get());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (broker.getAcks() < total
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(total, broker.getAcks());
+        assertEquals(0, broker.getNacks());
+        consumer.stop();
+    }
+
+    @Test
+    public void test14_MultiplexConsumerSharesOneConnection() throws Exception {
+        String[] queues = { QUEUE + "1", QUEUE + "2", QUEUE + "3" };
+        // Credit is per session, so with the default of one message a
+        // message for a queue not being read yet could take the only credit.
+        broker.setInitialCredit(queues.length * 3);
+        ConsumerConfig connectionConfig = new ConsumerConfig();
+        connectionConfig.setSubscriptionId("stub-broker-test");
+        MultiplexConsumer mux = new MultiplexConsumer(connectionConfig);
+
+        List<Consumer> consumers = new ArrayList<Consumer>();
+        for (String queue : queues) {
+            ConsumerConfig config = new ConsumerConfig();
+            config.setHostParams(Collections.singleton(host));
+            config.setUseDynamicServerList(false);
+            config.setDestinationType(DestinationType.QUEUE);
+            config.setDestinationName(queue);
+            consumers.add(mux.subscribe(config));
+        }
+        for (String queue : queues) {
+            awaitSubscriber(queue);
+        }
+        assertEquals(1, broker.getConnectionCount());
+        assertEquals(1, mux.getConnectionCount());
+
+        for (String queue : queues) {
+            ProducerImpl producer = startProducer(DestinationType.QUEUE, queue);
+            for (int i = 0; i < 3; i++) {
+                producer.sendSafe(Message.createStringMessage(queue + " " + i));
+            }
+            producer.stop();
+        }
+
+        // Each consumer only sees its own destination.
+        for (int q = 0; q < queues.length; q++) {
+            for (int i = 0; i < 3; i++) {
+                Message message = consumers.get(q).receive(5000);
+                assertEquals(queues[q] + " " + i, message.getStringPayload());
+                assertTrue(consumers.get(q).ackSafe(message.getAckHandle(),
+                        5000));
+            }
+        }
+        assertEquals(9, broker.getAcks());
+
+        // Stopping one consumer leaves the others subscribed.
+        consumers.get(0).stop();
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, queues[1]);
+        producer.sendSafe(Message.createStringMessage("after stop"));
+        producer.stop();
+        assertEquals("after stop", consumers.get(1).receive(5000)
+                .getStringPayload());
+        assertTrue(consumers.get(1).ack());
+
+        mux.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (broker.getConnectionCount() > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, broker.getConnectionCount());
+        assertEquals(0, mux.getConnectionCount());
+    }
+
+    @Test
+    public void test15_TransactionalBatches() throws Exception {
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+        producer.beginBatch();
+        for (int i = 0; i < 3; i++) {
+            producer.send(Message.createStringMessage("message " + i));
+        }
+        assertEquals(0, broker.getQueueDepth(QUEUE));
+        producer.commit();
+        assertEquals(3, broker.getQueueDepth(QUEUE));
+
+        producer.beginBatch();
+        producer.send(Message.createStringMessage("aborted"));
+        producer.abort();
+        producer.sendSafe(Message.createStringMessage("after abort"));
+        assertEquals(4, broker.getQueueDepth(QUEUE));
+        producer.stop();
+
+        ConsumerImpl consumer = startConsumer(DestinationType.QUEUE, QUEUE);
+        consumer.beginBatch();
+        for (int i = 0; i < 3; i++) {
+            Message message = consumer.receive(5000);
+            assertEquals("message " + i, message.getStringPayload());
+            assertTrue(consumer.ack());
+        }
+        assertEquals(0, broker.getAcks());
+        assertTrue(consumer.commit(5000));
+        assertEquals(3, broker.getAcks());
+        assertEquals(2, broker.getCommits());
+
+        Message message = consumer.receive(5000);
+        assertEquals("after abort", message.getStringPayload());
+        assertTrue(consumer.ackSafe());
+        assertEquals(4, broker.getAcks());
+        consumer.stop();
+    }
+
+    @Test
+    public void test16_SpoolingProducerStoresAndForwards() throws Exception {
+        File spool = File.createTempFile("mbus-spool", "");
+        assertTrue(spool.delete());
+        ProducerConfig config = new ProducerConfig();
+        config.setBroker(host);
+        config.setDestinationType(DestinationType.QUEUE);
+        config.setDestinationName(QUEUE);
+        char[] padding = new char[200];
+        Arrays.fill(padding, 'x');
+        try {
+            // The broker is down, sends still return.
+            broker.setRefuseConnections(true);
+            SpoolingProducer producer = new SpoolingProducer(spool, 4096,
+                    1024 * 1024);
+            producer.start(config);
+            for (int i = 0; i < 50; i++) {
+                producer.sendSafe(Message.createStringMessage("message " + i
+                        + " " + new String(padding)));
+            }
+            assertEquals(50, producer.getSpooledCount());
+            assertTrue(spool.list().length > 1);
+            producer.stop();
+
+            // The next producer on the directory forwards them once the
+            // broker is back.
+            broker.setRefuseConnections(false);
+            producer = new SpoolingProducer(spool, 4096, 1024 * 1024);
+            producer.start(config);
+            assertEquals(50, producer.getSpooledCount());
+            producer.send(Message.createStringMessage("message 50 "
+                    + new String(padding)));
+            assertTrue(producer.awaitDrained(15000));
+            assertEquals(51, broker.getQueueDepth(QUEUE));
+            producer.stop();
+            // Delivered segments are deleted, the last one is kept.
+            assertTrue(spool.list().length <= 1);
+
+            ConsumerImpl consumer = startConsumer(DestinationType.QUEUE, QUEUE);
+            for (int i = 0; i <= 50; i++) {
+                Message message = consumer.receive(5000);
+                assertTrue(message.getStringPayload().startsWith(
+                        "message " + i + " "));
+                assertTrue(consumer.ack());
+            }
+            consumer.stop();
+        } finally {
+            broker.setRefuseConnections(false);
+            File[] files = spool.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            spool.delete();
+        }
+    }
+
+    @Test
+    public void test17_SendsFailFastWhileBrokerIsDown() throws Exception {
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+        try {
+            producer.sendSafe(Message.createStringMessage("before"));
+            broker.setRefuseConnections(true);
+            broker.dropConnections();
+
+            // Failed reconnects open the circuit, after which sends fail
+            // without trying to connect.
+            for (int i = 0; i < 5; i++) {
+                try {
+                    producer.sendSafe(Message.createStringMessage("lost"));
+                    fail("Sent while the broker refuses connections");
+                } catch (SendFailedException e) {
+                    // expected
+                }
+            }
+            long start = System.currentTimeMillis();
+            try {
+                producer.sendSafe(Message.createStringMessage("lost"));
+                fail("Sent while the broker refuses connections");
+            } catch (SendFailedException e) {
+                assertTrue(System.currentTimeMillis() - start < 100);
+            }
+
+            // The background task reconnects once the broker is back.
+            broker.setRefuseConnections(false);
+            long deadline = System.currentTimeMillis() + 10000;
+            boolean sent = false;
+            while (!sent && System.currentTimeMillis() < deadline) {
+                try {
+                    producer.sendSafe(Message.createStringMessage("after"));
+                    sent = true;
+                } catch (SendFailedException e) {
+                    Thread.sleep(50);
+                }
+            }
+            assertTrue(sent);
+            assertEquals(2, broker.getQueueDepth(QUEUE));
+        } finally {
+            broker.setRefuseConnections(false);
+            producer.stop();
+        }
+    }
+
+    @Test
+    public void test18_BrokerSelectionStrategiesDrainEveryBroker()
+            throws Exception {
+        StubBroker slow = new StubBroker();
+        slow.setReceiptLatency(20);
+        slow.start();
+        HostParams slowHost = new HostParams("localhost", slow.getPort());
+        try {
+            ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+            ProducerConfig slowConfig = new ProducerConfig();
+            slowConfig.setBroker(slowHost);
+            slowConfig.setDestinationType(DestinationType.QUEUE);
+            slowConfig.setDestinationName(QUEUE);
+            ProducerImpl slowProducer = new ProducerImpl();
+            slowProducer.start(slowConfig);
+
+            Set<HostParams> hosts = new LinkedHashSet<HostParams>();
+            hosts.add(host);
+            hosts.add(slowHost);
+            for (BrokerSelectionStrategy strategy : BrokerSelectionStrategy
+                    .values()) {
+                for (int i = 0; i < 10; i++) {
+                    producer.send(Message.createStringMessage("fast " + i));
+                    slowProducer.send(Message.createStringMessage("slow " + i));
+                }
+
+                ConsumerConfig config = new ConsumerConfig();
+                config.setHostParams(hosts);
+                config.setUseDynamicServerList(false);
+                config.setDestinationType(DestinationType.QUEUE);
+                config.setDestinationName(QUEUE);
+                config.setSubscriptionId("stub-broker-test");
+                config.setBrokerSelectionStrategy(strategy);
+                ConsumerImpl consumer = new ConsumerImpl();
+                consumer.start(config);
+
+                // A slow broker gets fewer receives but is not starved.
+                int fast = 0;
+                int slowCount = 0;
+                for (int i = 0; i < 20; i++) {
+                    Message message = consumer.receive(5000);
+                    if (message.getStringPayload().startsWith("fast")) {
+                        fast++;
+                    } else {
+                        slowCount++;
+                    }
+                    assertTrue(consumer.ackSafe());
+                }
+                assertEquals(strategy.toString(), 10, fast);
+                assertEquals(strategy.toString(), 10, slowCount);
+                consumer.stop();
+            }
+            producer.stop();
+            slowProducer.stop();
+            assertEquals(0, broker.getQueueDepth(QUEUE));
+            assertEquals(0, slow.getQueueDepth(QUEUE));
+        } finally {
+            slow.stop();
+        }
+    }
+
+    @Test
+    public void test19_ClusterProducerSpreadsOverDiscoveredBrokers()
+            throws Exception {
+        StubBroker second = new StubBroker();
+        second.start();
+        final HostParams secondHost = new HostParams("localhost",
+                second.getPort());
+        final Set<HostParams> listed = Collections
+                .synchronizedSet(new LinkedHashSet<HostParams>());
+        listed.add(host);
+        listed.add(secondHost);
+        ClusterProducer producer = new ClusterProducer() {
+            @Override
+            public Set<HostParams> fetchHostList() {
+                return new LinkedHashSet<HostParams>(listed);
+            }
+        };
+        try {
+            ProducerConfig config = new ProducerConfig();
+            config.setDestinationType(DestinationType.QUEUE);
+            config.setDestinationName(QUEUE);
+            config.setDynamicServerListFetchURL("http://localhost/unused");
+            config.setClusterSendStrategy(ClusterSendStrategy.PARTITION_KEY);
+            producer.start(config);
+            assertEquals(2, producer.getBrokers().size());
+
+            // Unkeyed sends alternate, keyed sends stick to one broker.
+            for (int i = 0; i < 10; i++) {
+                producer.sendSafe(Message.createStringMessage("unkeyed " + i));
+            }
+            assertEquals(5, broker.getQueueDepth(QUEUE));
+            assertEquals(5, second.getQueueDepth(QUEUE));
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put(ClusterProducer.PARTITION_KEY_HEADER, "customer-42");
+            for (int i = 0; i < 10; i++) {
+                producer.sendSafe(Message.createStringMessage("keyed " + i),
+                        headers);
+            }
+            assertEquals(20, broker.getQueueDepth(QUEUE)
+                    + second.getQueueDepth(QUEUE));
+            assertTrue(broker.getQueueDepth(QUEUE) == 15
+                    || second.getQueueDepth(QUEUE) == 15);
+
+            // A broker leaving the list stops getting sends.
+            listed.remove(secondHost);
+            producer.refreshServers();
+            assertEquals(Collections.singletonList(host), producer.getBrokers());
+            int secondDepth = second.getQueueDepth(QUEUE);
+            for (int i = 0; i < 4; i++) {
+                producer.sendSafe(Message.createStringMessage("after " + i),
+                        headers);
+            }
+            assertEquals(secondDepth, second.getQueueDepth(QUEUE));
+            assertEquals(24 - secondDepth, broker.getQueueDepth(QUEUE));
+        } finally {
+            producer.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void test20_PartitionKeysKeepOrderOnListenerLanes()
+            throws Exception {
+        StubBroker second = new StubBroker();
+        second.start();
+        HostParams secondHost = new HostParams("localhost", second.getPort());
+        Set<HostParams> hosts = new LinkedHashSet<HostParams>();
+        hosts.add(host);
+        hosts.add(secondHost);
+        final int keys = 8;
+        final int perKey = 25;
+        ClusterProducer producer = new ClusterProducer(hosts);
+        ConsumerImpl consumer = new ConsumerImpl();
+        try {
+            ProducerConfig producerConfig = new ProducerConfig();
+            producerConfig.setDestinationType(DestinationType.QUEUE);
+            producerConfig.setDestinationName(QUEUE);
+            producerConfig
+                    .setClusterSendStrategy(ClusterSendStrategy.PARTITION_KEY);
+            producer.start(producerConfig);
+            for (int i = 0; i < perKey; i++) {
+                for (int k = 0; k < keys; k++) {
+                    Message message = Message.createStringMessage(k + ":" + i);
+                    message.setPartitionKey("key" + k);
+                    producer.sendSafe(message);
+                }
+            }
+            // the keys hash onto both brokers
+            assertTrue(broker.getQueueDepth(QUEUE) > 0);
+            assertTrue(second.getQueueDepth(QUEUE) > 0);
+
+            ConsumerConfig config = new ConsumerConfig();
+            config.setHostParams(hosts);
+            config.setUseDynamicServerList(false);
+            config.setDestinationType(DestinationType.QUEUE);
+            config.setDestinationName(QUEUE);
+            config.setSubscriptionId("stub-broker-test");
+            config.setPrefetchSize(10);
+            config.setOrderedListenerLanes(true);
+            consumer.start(config);
+
+            final Map<String, Integer> lastSeen = new HashMap<String, Integer>();
+            final Map<String, String> laneOfKey = new HashMap<String, String>();
+            final Set<String> lanes = new HashSet<String>();
+            final List<String> errors = Collections
+                    .synchronizedList(new ArrayList<String>());
+            final CountDownLatch done = new CountDownLatch(keys * perKey);
+            final ConsumerImpl listening = consumer;
+            consumer.setMessageListener(new MessageListener() {
+                public void onMessage(Message message) {
+                    String payload;
+                    try {
+                        payload = message.getStringPayload();
+                    } catch (MessageBusException e) {
+                        throw new RuntimeException(e);
+                    }
+                    String key = "key" + payload.split(":")[0];
+                    int seq = Integer.parseInt(payload.split(":")[1]);
+                    String lane = Thread.currentThread().getName();
+                    synchronized (lastSeen) {
+                        if (!key.equals(message.getPartitionKey())) {
+                            errors.add("partition key of " + payload + " was "
+                                    + message.getPartitionKey());
+                        }
+                        Integer last = lastSeen.put(key, seq);
+                        if (seq != (last == null ? 0 : last + 1)) {
+                            errors.add(payload + " after " + last);
+                        }
+                        String previous = laneOfKey.put(key, lane);
+                        if (previous != null && !previous.equals(lane)) {
+                            errors.add(key + " moved from " + previous
+                                    + " to " + lane);
+                        }
+                        lanes.add(lane);
+                    }
+                    listening.ack(message.getAckId());
+                    done.countDown();
+                }
+            });
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(Collections.emptyList(), errors);
+            assertEquals(2, lanes.size());
+        } finally {
+            consumer.stop();
+            producer.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void test21_RemovedBrokerDrainsPrefetchedMessages()
+            throws Exception {
+        StubBroker second = new StubBroker();
+        second.start();
+        HostParams secondHost = new HostParams("localhost", second.getPort());
+        final Set<HostParams> listed = Collections
+                .synchronizedSet(new LinkedHashSet<HostParams>());
+        listed.add(host);
+        listed.add(secondHost);
+        ConsumerImpl consumer = new ConsumerImpl() {
+            @Override
+            public Set<HostParams> fetchHostList() {
+                return new LinkedHashSet<HostParams>(listed);
+            }
+        };
+        try {
+            ProducerConfig producerConfig = new ProducerConfig();
+            producerConfig.setBroker(secondHost);
+            producerConfig.setDestinationType(DestinationType.QUEUE);
+            producerConfig.setDestinationName(QUEUE);
+            ProducerImpl producer = new ProducerImpl();
+            producer.start(producerConfig);
+            for (int i = 0; i < 10; i++) {
+                producer.sendSafe(Message.createStringMessage("m" + i));
+            }
+            producer.stop();
+
+            ConsumerConfig config = new ConsumerConfig();
+            config.setHostParams(new LinkedHashSet<HostParams>(listed));
+            config.setUseDynamicServerList(false);
+            config.setDestinationType(DestinationType.QUEUE);
+            config.setDestinationName(QUEUE);
+            config.setSubscriptionId("stub-broker-test");
+            config.setPrefetchSize(4);
+            consumer.start(config);
+            for (int i = 0; i < 500 && second.getQueueDepth(QUEUE) != 6; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(6, second.getQueueDepth(QUEUE));
+
+            // The second broker leaves while 4 messages sit prefetched.
+            listed.remove(secondHost);
+            consumer.refreshServers();
+            for (int i = 0; i < 4; i++) {
+                assertNotNull(consumer.receive(2000));
+                assertTrue(consumer.ackSafe());
+            }
+            // no credit while draining
+            Thread.sleep(300);
+            assertNull(consumer.receiveImmediate());
+
+            for (int i = 0; i < 500 && second.getConnectionCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, second.getConnectionCount());
+            assertEquals(4, second.getAcks());
+            assertEquals(0, second.getNacks());
+            assertEquals(4, second.getMessagesDelivered());
+            assertEquals(6, second.getQueueDepth(QUEUE));
+        } finally {
+            consumer.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void test22_SpoolingProducerDeadLettersPoisonMessages()
+            throws Exception {
+        File spool = File.createTempFile("mbus-spool", "");
+        assertTrue(spool.delete());
+        ProducerConfig config = new ProducerConfig();
+        config.setBroker(host);
+        config.setDestinationType(DestinationType.QUEUE);
+        config.setDestinationName(QUEUE);
+        try {
+            // A record left by a crash that does not decode.
+            SpoolJournal journal = new SpoolJournal(spool, 4096, 1024 * 1024);
+            journal.append("garbage".getBytes(), true);
+            journal.close();
+
+            // The broker turns every send down.
+            broker.setReceiptFailureRate(1.0);
+            SpoolingProducer producer = new SpoolingProducer(spool, 4096,
+                    1024 * 1024);
+            producer.setMaxDeliveryAttempts(2);
+            producer.start(config);
+            producer.sendSafe(Message.createStringMessage("rejected"));
+            assertTrue(producer.awaitDrained(15000));
+            assertEquals(0, broker.getQueueDepth(QUEUE));
+
+            // Neither holds up what comes after them.
+            broker.setReceiptFailureRate(0);
+            producer.sendSafe(Message.createStringMessage("accepted"));
+            assertTrue(producer.awaitDrained(15000));
+            assertEquals(1, broker.getQueueDepth(QUEUE));
+            producer.stop();
+
+            // Both went to the dead letter file, in the journal's record
+            // format: length, CRC, data.
+            List<String> deadLetters = new ArrayList<String>();
+            DataInputStream in = new DataInputStream(new FileInputStream(
+                    new File(spool, SpoolJournal.DEAD_LETTER_FILE)));
+            try {
+                while (in.available() > 0) {
+                    byte[] data = new byte[in.readInt()];
+                    in.readInt();
+                    in.readFully(data);
+                    deadLetters.add(new String(data, "ISO-8859-1"));
+                }
+            } finally {
+                in.close();
+            }
+            assertEquals(2, deadLetters.size());
+            assertEquals("garbage", deadLetters.get(0));
+            assertTrue(deadLetters.get(1).contains("rejected"));
+        } finally {
+            broker.setReceiptFailureRate(0);
+            File[] files = spool.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            spool.delete();
+        }
+    }
+
+    @Test
+    public void test23_AckIdsReachDrainingConnection() throws Exception {
+        StubBroker second = new StubBroker();
+        second.start();
+        HostParams secondHost = new HostParams("localhost", second.getPort());
+        final Set<HostParams> listed = Collections
+                .synchronizedSet(new LinkedHashSet<HostParams>());
+        listed.add(host);
+        listed.add(secondHost);
+        ConsumerImpl consumer = new ConsumerImpl() {
+            @Override
+            public Set<HostParams> fetchHostList() {
+                return new LinkedHashSet<HostParams>(listed);
+            }
+        };
+        try {
+            ProducerConfig producerConfig = new ProducerConfig();
+            producerConfig.setBroker(secondHost);
+            producerConfig.setDestinationType(DestinationType.QUEUE);
+            producerConfig.setDestinationName(QUEUE);
+            ProducerImpl producer = new ProducerImpl();
+            producer.start(producerConfig);
+            for (int i = 0; i < 10; i++) {
+                producer.sendSafe(Message.createStringMessage("m" + i));
+            }
+            producer.stop();
+
+            ConsumerConfig config = new ConsumerConfig();
+            config.setHostParams(new LinkedHashSet<HostParams>(listed));
+            config.setUseDynamicServerList(false);
+            config.setDestinationType(DestinationType.QUEUE);
+            config.setDestinationName(QUEUE);
+            config.setSubscriptionId("stub-broker-test");
+            config.setPrefetchSize(4);
+            consumer.start(config);
+            for (int i = 0; i < 500 && second.getQueueDepth(QUEUE) != 6; i++) {
+                Thread.sleep(10);
+            }
+
+            listed.remove(secondHost);
+            consumer.refreshServers();
+            List<String> ackIds = new ArrayList<String>();
+            for (int i = 0; i < 4; i++) {
+                ackIds.add(consumer.receive(2000).getAckId());
+            }
+            // acks by id string go out on the draining connection, so it
+            // closes well before drainTimeout
+            for (String ackId : ackIds) {
+                assertTrue(consumer.ackSafe(ackId));
+            }
+            for (int i = 0; i < 300 && second.getConnectionCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, second.getConnectionCount());
+            assertEquals(4, second.getAcks());
+            assertEquals(0, second.getNacks());
+
+            // an ack for a broker that left does not connect to it again
+            assertFalse(consumer.ackSafe(ackIds.get(0)));
+            Thread.sleep(100);
+            assertEquals(0, second.getConnectionCount());
+        } finally {
+            consumer.stop();
+            second.stop();
+        }
+    }
+
+    public void test24_PartitionKeysSplitBatchesAndPinTransactions()
+            throws Exception {
+        StubBroker second = new StubBroker();
+        second.start();
+        HostParams secondHost = new HostParams("localhost", second.getPort());
+        Set<HostParams> hosts = new LinkedHashSet<HostParams>();
+        hosts.add(host);
+        hosts.add(secondHost);
+        final int keys = 8;
+        ClusterProducer producer = new ClusterProducer(hosts);
+        try {
+            ProducerConfig producerConfig = new ProducerConfig();
+            producerConfig.setDestinationType(DestinationType.QUEUE);
+            producerConfig.setDestinationName(QUEUE);
+            producerConfig
+                    .setClusterSendStrategy(ClusterSendStrategy.PARTITION_KEY);
+            producer.start(producerConfig);
+            // a mixed-key batch, then single sends of the same keys
+            List<Message> batch = new ArrayList<Message>();
+            for (int i = 0; i < 5; i++) {
+                for (int k = 0; k < keys; k++) {
+                    Message message = Message.createStringMessage(k + ":" + i);
+                    message.setPartitionKey("key" + k);
+                    batch.add(message);
+                }
+            }
+            producer.sendSafe(batch);
+            for (int i = 5; i < 10; i++) {
+                for (int k = 0; k < keys; k++) {
+                    Message message = Message.createStringMessage(k + ":" + i);
+                    message.setPartitionKey("key" + k);
+                    producer.sendSafe(message);
+                }
+            }
+
+            // each key's messages all sit on one broker, in order
+            Map<String, HostParams> brokerOfKey = new HashMap<String, HostParams>();
+            Map<HostParams, Integer> depths = new HashMap<HostParams, Integer>();
+            depths.put(host, broker.getQueueDepth(QUEUE));
+            depths.put(secondHost, second.getQueueDepth(QUEUE));
+            assertEquals(keys * 10, depths.get(host) + depths.get(secondHost));
+            for (HostParams broker : hosts) {
+                Map<String, Integer> lastSeen = new HashMap<String, Integer>();
+                ConsumerConfig config = new ConsumerConfig();
+                config.setHostParams(Collections.singleton(broker));
+                config.setUseDynamicServerList(false);
+                config.setDestinationType(DestinationType.QUEUE);
+                config.setDestinationName(QUEUE);
+                config.setSubscriptionId("stub-broker-test");
+                ConsumerImpl consumer = new ConsumerImpl();
+                consumer.start(config);
+                try {
+                    for (int i = 0; i < depths.get(broker); i++) {
+                        Message message = consumer.receive(2000);
+                        String[] payload = message.getStringPayload().split(":");
+                        String key = "key" + payload[0];
+                        int seq = Integer.parseInt(payload[1]);
+                        HostParams previous = brokerOfKey.put(key, broker);
+                        assertTrue(previous == null || previous.equals(broker));
+                        Integer last = lastSeen.put(key, seq);
+                        assertEquals(last == null ? 0 : last + 1, seq);
+                        consumer.ack();
+                    }
+                } finally {
+                    consumer.stop();
+                }
+                assertTrue(lastSeen.size() > 0);
+                for (Integer last : lastSeen.values()) {
+                    assertEquals(9, last.intValue());
+                }
+            }
+            assertEquals(keys, brokerOfKey.size());
+
+            // a transaction pinned by key refuses another broker's key
+            String otherKey = null;
+            for (Map.Entry<String, HostParams> entry : brokerOfKey.entrySet()) {
+                if (!entry.getValue().equals(brokerOfKey.get("key0"))) {
+                    otherKey = entry.getKey();
+                }
+            }
+            assertNotNull(otherKey);
+            producer.beginBatch("key0");
+            Message own = Message.createStringMessage("0:10");
+            own.setPartitionKey("key0");
+            producer.send(own);
+            Message foreign = Message.createStringMessage("x");
+            foreign.setPartitionKey(otherKey);
+            try {
+                producer.send(foreign);
+                fail("a key owned by another broker joined the transaction");
+            } catch (SendFailedException e) {
+                // expected
+            }
+            producer.commit();
+            assertEquals(1, broker.getQueueDepth(QUEUE)
+                    + second.getQueueDepth(QUEUE));
+        } finally {
+            producer.stop();
+            second.stop();
+        }
+    }
+
+    public void test25_AckSafeWithPrefetchAboveSharedQueueShare()
+            throws Exception {
+        ProducerImpl producer = startProducer(DestinationType.QUEUE, QUEUE);
+        for (int i = 0; i < 20; i++) {
+            producer.send(Message.createStringMessage("m" + i));
+        }
+        producer.stop();
+
+        ConsumerConfig config = new ConsumerConfig();
+        config.setHostParams(Collections.singleton(host));
+        config.setUseDynamicServerList(false);
+        config.setDestinationType(DestinationType.QUEUE);
+        config.setDestinationName(QUEUE);
+        config.setSubscriptionId("stub-broker-test");
+        config.setUseSharedReceiveQueue(true);
+        config.setSharedReceiveQueueCapacity(2);
+        config.setPrefetchSize(8);
+        ConsumerImpl consumer = new ConsumerImpl();
+        consumer.start(config);
+        try {
+            // the receipts arrive behind prefetched messages, which the
+            // connection's thread must queue past its share to read them
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 20; i++) {
+                Message message = consumer.receive(5000);
+                assertTrue(consumer.ackSafe(message.getAckId()));
+            }
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            assertEquals(20, broker.getAcks());
+        } finally {
+            consumer.stop();
+        }
+    }
+}